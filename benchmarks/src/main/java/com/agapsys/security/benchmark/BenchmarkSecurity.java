@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security.benchmark;
+
+import com.agapsys.security.CachingSecurityManager;
+import com.agapsys.security.ContextSecurityManager;
+import com.agapsys.security.Security;
+import com.agapsys.security.SecurityManager;
+
+/**
+ * Installs security managers used by benchmarks.
+ * Benchmarked classes are woven at build time, so installation does not weave anything.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class BenchmarkSecurity extends Security {
+
+	// CLASS SCOPE =============================================================
+	/** Security manager which allows everything (measures guard cost without decision cost). */
+	private static class AllowAllSecurityManager extends SecurityManager {
+		@Override
+		public boolean isAllowed(String[] requiredRoles) {
+			return true;
+		}
+
+		@Override
+		public boolean isAllowed(String[] requiredRoles, long[] requiredRoleMask) {
+			return true;
+		}
+	}
+
+	/** Security manager which denies everything (measures denial cost without decision cost). */
+	private static class DenyAllSecurityManager extends SecurityManager {
+		@Override
+		public boolean isAllowed(String[] requiredRoles) {
+			return false;
+		}
+
+		@Override
+		public boolean isAllowed(String[] requiredRoles, long[] requiredRoleMask) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a security manager.
+	 * @param name one of <code>allow</code>, <code>deny</code>, <code>context</code> or <code>caching</code>.
+	 * @return created security manager.
+	 */
+	public static SecurityManager createSecurityManager(String name) {
+		switch (name) {
+			case "allow":
+				return new AllowAllSecurityManager();
+
+			case "deny":
+				return new DenyAllSecurityManager();
+
+			case "context":
+				return new ContextSecurityManager();
+
+			case "caching":
+				return new CachingSecurityManager(new ContextSecurityManager(), 1024);
+
+			default:
+				throw new IllegalArgumentException("Unknown security manager: " + name);
+		}
+	}
+
+	/**
+	 * Installs given security manager.
+	 * @param securityManager security manager to be installed.
+	 */
+	public static void install(SecurityManager securityManager) {
+		init(securityManager, new String[0]);
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private BenchmarkSecurity() {}
+	// =========================================================================
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security.benchmark;
+
+import com.agapsys.security.Secured;
+
+/**
+ * Benchmarked class secured by a class-level annotation: its methods inherit the class requirement.
+ * Methods are trivial so measurements are dominated by guard cost.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+@Secured("R00")
+public class ClassGuardedTarget {
+
+	// CLASS SCOPE =============================================================
+	public static int staticGuarded(int value) {
+		return value + 1;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	public int guarded(int value) {
+		return value + 1;
+	}
+
+	@Secured("R01")
+	public int guardedWithMethodRoles(int value) { // <-- Requires class and method roles
+		return value + 1;
+	}
+	// =========================================================================
+}
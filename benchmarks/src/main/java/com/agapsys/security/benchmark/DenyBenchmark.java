@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security.benchmark;
+
+import com.agapsys.security.NotAllowedException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of denied calls for each exception mode.
+ * Calls are made by a principal without roles (see {@linkplain UnprivilegedPrincipalState}), so caching managers serve cached denials. The <code>deny</code> manager measures denial cost without decision cost.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DenyBenchmark {
+
+	@Param({"deny", "context", "caching"})
+	public String securityManager;
+
+	@Param({"STACK_TRACE", "NO_STACK_TRACE", "SHARED"})
+	public NotAllowedException.Mode exceptionMode;
+
+	private final GuardedTarget target = new GuardedTarget();
+	private final ClassGuardedTarget classTarget = new ClassGuardedTarget();
+	private int value = 0;
+
+	@Setup
+	public void setup() {
+		BenchmarkSecurity.install(BenchmarkSecurity.createSecurityManager(securityManager));
+		NotAllowedException.setMode(exceptionMode);
+	}
+
+	@TearDown
+	public void tearDown() {
+		NotAllowedException.setMode(NotAllowedException.Mode.STACK_TRACE);
+	}
+
+	@Benchmark
+	public Object staticDenied(UnprivilegedPrincipalState principal) {
+		try {
+			return GuardedTarget.staticGuarded(value);
+		} catch (NotAllowedException ex) {
+			return ex;
+		}
+	}
+
+	@Benchmark
+	public Object denied(UnprivilegedPrincipalState principal) {
+		try {
+			return target.guarded1(value);
+		} catch (NotAllowedException ex) {
+			return ex;
+		}
+	}
+
+	@Benchmark
+	public Object classDenied(UnprivilegedPrincipalState principal) {
+		try {
+			return classTarget.guarded(value);
+		} catch (NotAllowedException ex) {
+			return ex;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of allowed calls to guarded methods (compared to unguarded ones) for each security manager and number of required roles.
+ * <code>constantGuarded1</code> is the baseline of <code>guarded1</code> with a requirement which cannot be replaced at runtime.
+ * <code>classGuarded*</code> benchmarks call methods secured by a class-level annotation (see {@linkplain ClassGuardedTarget}).
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GuardBenchmark {
+
+	@Param({"allow", "context", "caching"})
+	public String securityManager;
+
+	private final GuardedTarget target = new GuardedTarget();
+	private final ClassGuardedTarget classTarget = new ClassGuardedTarget();
+	private int value = 0;
+
+	@Setup
+	public void setup() {
+		BenchmarkSecurity.install(BenchmarkSecurity.createSecurityManager(securityManager));
+	}
+
+	@Benchmark
+	public int staticUnguarded() {
+		return GuardedTarget.staticUnguarded(value);
+	}
+
+	@Benchmark
+	public int staticGuarded(PrincipalState principal) {
+		return GuardedTarget.staticGuarded(value);
+	}
+
+	@Benchmark
+	public int unguarded() {
+		return target.unguarded(value);
+	}
+
+	@Benchmark
+	public int guarded0(PrincipalState principal) {
+		return target.guarded0(value);
+	}
+
+	@Benchmark
+	public int guarded1(PrincipalState principal) {
+		return target.guarded1(value);
+	}
+
+	@Benchmark
+	public int constantGuarded1(PrincipalState principal) {
+		return target.constantGuarded1(value);
+	}
+
+	@Benchmark
+	public int guarded4(PrincipalState principal) {
+		return target.guarded4(value);
+	}
+
+	@Benchmark
+	public int guarded16(PrincipalState principal) {
+		return target.guarded16(value);
+	}
+
+	@Benchmark
+	public int staticClassGuarded(PrincipalState principal) {
+		return ClassGuardedTarget.staticGuarded(value);
+	}
+
+	@Benchmark
+	public int classGuarded(PrincipalState principal) {
+		return classTarget.guarded(value);
+	}
+
+	@Benchmark
+	public int classGuardedWithMethodRoles(PrincipalState principal) {
+		return classTarget.guardedWithMethodRoles(value);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security.benchmark;
+
+import com.agapsys.security.MethodRegistry;
+import com.agapsys.security.RoleRegistry;
+import com.agapsys.security.Secured;
+import com.agapsys.security.SecurityDomain;
+import com.agapsys.security.SecurityManager;
+import com.agapsys.security.WovenGuard;
+
+/**
+ * Benchmarked methods (mirroring the static and instance methods of framework's test classes).
+ * Methods are trivial so measurements are dominated by guard cost.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class GuardedTarget {
+
+	// CLASS SCOPE =============================================================
+	/** Roles granted to benchmark principals (superset of all required roles). */
+	public static final String[] ALL_ROLES = {
+		"R00", "R01", "R02", "R03", "R04", "R05", "R06", "R07",
+		"R08", "R09", "R10", "R11", "R12", "R13", "R14", "R15"
+	};
+
+	// Constants of a hand-written guard reading its requirement from constants (as guards did before requirements could be replaced at runtime)
+	private static final SecurityDomain DOMAIN = SecurityDomain.of(GuardedTarget.class);
+	private static final String[] CONSTANT_ROLES = {"R00"};
+	private static final long[] CONSTANT_ROLE_MASK = RoleRegistry.getMask(CONSTANT_ROLES);
+	private static final int CONSTANT_METHOD_ID = MethodRegistry.register(GuardedTarget.class, "constantGuarded1", "(I)I", CONSTANT_ROLES, null, null);
+
+	public static int staticUnguarded(int value) {
+		return value + 1;
+	}
+
+	@Secured("R00")
+	public static int staticGuarded(int value) {
+		return value + 1;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	public int unguarded(int value) {
+		return value + 1;
+	}
+
+	@Secured
+	public int guarded0(int value) {
+		return value + 1;
+	}
+
+	@Secured("R00")
+	public int guarded1(int value) {
+		return value + 1;
+	}
+
+	/** Same as {@linkplain #guarded1(int)}, but guarded by hand-written code whose requirement cannot be replaced at runtime (baseline of requirement reads). */
+	public int constantGuarded1(int value) {
+		SecurityManager sm = DOMAIN.getSecurityManager();
+
+		if (!(WovenGuard.isInstrumented() ? WovenGuard.isAllowed(sm, CONSTANT_METHOD_ID, CONSTANT_ROLES, CONSTANT_ROLE_MASK) : sm.isAllowed(CONSTANT_METHOD_ID, CONSTANT_ROLES, CONSTANT_ROLE_MASK)))
+			sm.onNotAllowed("com.agapsys.security.benchmark.GuardedTarget.constantGuarded1(int)", CONSTANT_ROLES);
+
+		return value + 1;
+	}
+
+	@Secured({"R00", "R01", "R02", "R03"})
+	public int guarded4(int value) {
+		return value + 1;
+	}
+
+	@Secured({
+		"R00", "R01", "R02", "R03", "R04", "R05", "R06", "R07",
+		"R08", "R09", "R10", "R11", "R12", "R13", "R14", "R15"
+	})
+	public int guarded16(int value) {
+		return value + 1;
+	}
+	// =========================================================================
+}
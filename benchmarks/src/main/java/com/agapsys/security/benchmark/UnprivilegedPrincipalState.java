@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security.benchmark;
+
+import com.agapsys.security.SecurityContext;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Binds a context without roles to each benchmark thread, so guarded methods requiring roles are denied.
+ * Unlike calls without a context, denials of an identified principal are cached by caching managers.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+@State(Scope.Thread)
+public class UnprivilegedPrincipalState {
+	private SecurityContext.Scope scope;
+
+	@Setup(Level.Trial)
+	public void bind() {
+		scope = new SecurityContext("unprivileged").bind();
+	}
+
+	@TearDown(Level.Trial)
+	public void unbind() {
+		scope.close();
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security.maven;
+
+import com.agapsys.security.Weaver;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * Weaves secured classes listed in <code>META-INF/security.info</code> at build time.
+ * Woven classes are detected by the framework during initialization, so they are not woven again at runtime.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+@Mojo(name = "weave", defaultPhase = LifecyclePhase.PROCESS_CLASSES, requiresDependencyResolution = ResolutionScope.COMPILE, threadSafe = true)
+public class WeaveMojo extends AbstractMojo {
+
+	// CLASS SCOPE =============================================================
+	private static final String SECURITY_INFO_FILE = "META-INF/security.info";
+	private static final String SECURITY_INFO_FILE_ENCODING = "utf-8";
+
+	private static Set<String> readSecurityInfo(File file) throws IOException {
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), SECURITY_INFO_FILE_ENCODING))) {
+			Set<String> classes = new LinkedHashSet<>();
+			String readLine;
+
+			while ((readLine = in.readLine()) != null) {
+				readLine = readLine.trim();
+
+				if (readLine.isEmpty())
+					continue;
+
+				if (!classes.add(readLine))
+					throw new IOException("Duplicate definition of " + readLine);
+			}
+
+			return classes;
+		}
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	/** Directory containing compiled classes. */
+	@Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+	private File classesDirectory;
+
+	@Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+	private List<String> classpathElements;
+
+	/** Skips weaving. */
+	@Parameter(property = "security.weave.skip", defaultValue = "false")
+	private boolean skip;
+
+	/** Weaves guards which skip requirements already satisfied by enclosing secured methods (see Security.enableReentrancyElision). */
+	@Parameter(property = "security.weave.reentrancyElision", defaultValue = "false")
+	private boolean reentrancyElision;
+
+	@Override
+	public void execute() throws MojoExecutionException, MojoFailureException {
+		if (skip) {
+			getLog().info("Skipping weaving");
+			return;
+		}
+
+		File securityInfo = new File(classesDirectory, SECURITY_INFO_FILE);
+
+		if (!securityInfo.isFile()) {
+			getLog().info("No secured classes (" + SECURITY_INFO_FILE + " not found)");
+			return;
+		}
+
+		try {
+			ClassPool cp = new ClassPool(true);
+			cp.appendClassPath(classesDirectory.getAbsolutePath());
+
+			for (String classpathElement : classpathElements) {
+				cp.appendClassPath(classpathElement);
+			}
+
+			cp.appendClassPath(new LoaderClassPath(Weaver.class.getClassLoader()));
+
+			int wovenCount = 0;
+			int skippedCount = 0;
+
+			for (String className : readSecurityInfo(securityInfo)) {
+				CtClass cc = cp.get(className);
+
+				if (Weaver.weave(cc, reentrancyElision)) { // <-- Passed per execution, so parallel builds do not share a global setting
+					cc.writeFile(classesDirectory.getAbsolutePath());
+					getLog().debug("Woven class: " + className);
+					wovenCount++;
+				} else {
+					getLog().debug("Class already woven: " + className);
+					skippedCount++;
+				}
+			}
+
+			getLog().info(String.format("Woven classes: %d (already woven: %d)", wovenCount, skippedCount));
+		} catch (RuntimeException ex) {
+			throw new MojoFailureException(ex.getMessage(), ex);
+		} catch (Exception ex) {
+			throw new MojoExecutionException(ex.getMessage(), ex);
+		}
+	}
+	// =========================================================================
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Decision which may be taken asynchronously (e.g. by a remote policy source) returned by {@linkplain SecurityManager#isAllowedAsync(int, String[], long[])}.
+ * A decision is completed once, either with a result ({@linkplain #complete(boolean)}) or with an error ({@linkplain #fail(Throwable)}).
+ * Listeners are notified by the thread completing the decision (or by the thread adding them, if decision is already completed).
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class AsyncDecision {
+
+	// CLASS SCOPE =============================================================
+	/** Completed decision allowing execution. */
+	public static final AsyncDecision ALLOWED = new AsyncDecision(true);
+
+	/** Completed decision denying execution. */
+	public static final AsyncDecision DENIED = new AsyncDecision(false);
+
+	/** Listener notified when a decision is completed. */
+	public static interface Listener {
+		/**
+		 * Called when a decision is completed.
+		 * @param decision completed decision.
+		 */
+		public void onCompleted(AsyncDecision decision);
+	}
+
+	/**
+	 * Returns a completed decision.
+	 * @param allowed decision result.
+	 * @return {@linkplain #ALLOWED} or {@linkplain #DENIED}.
+	 */
+	public static AsyncDecision of(boolean allowed) {
+		return allowed ? ALLOWED : DENIED;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private volatile boolean done = false;
+	private boolean allowed;
+	private Throwable error;
+	private List<Listener> listeners = new ArrayList<>();
+
+	private AsyncDecision(boolean allowed) {
+		this.allowed = allowed;
+		this.done = true;
+		this.listeners = null;
+		latch.countDown();
+	}
+
+	/** Creates a pending decision. */
+	public AsyncDecision() {}
+
+	private boolean complete(boolean allowed, Throwable error) {
+		List<Listener> toNotify;
+
+		synchronized (this) {
+			if (done)
+				return false;
+
+			this.allowed = allowed;
+			this.error = error;
+			this.done = true; // <-- Volatile write publishes result
+			toNotify = listeners;
+			listeners = null;
+		}
+
+		latch.countDown();
+
+		for (Listener listener : toNotify) {
+			notify(listener);
+		}
+
+		return true;
+	}
+
+	private void notify(Listener listener) {
+		try {
+			listener.onCompleted(this);
+		} catch (RuntimeException ex) {
+			Security.getLogger().log(SecurityLogger.Level.ERROR, "Error notifying decision listener", ex);
+		}
+	}
+
+	/**
+	 * Completes this decision.
+	 * @param allowed decision result.
+	 * @return a boolean indicating if this decision was completed by this call (false if it was already completed).
+	 */
+	public boolean complete(boolean allowed) {
+		return complete(allowed, null);
+	}
+
+	/**
+	 * Completes this decision with an error (e.g. when policy source is unavailable). Failed decisions never allow execution.
+	 * @param error error preventing the decision.
+	 * @return a boolean indicating if this decision was completed by this call (false if it was already completed).
+	 */
+	public boolean fail(Throwable error) {
+		if (error == null)
+			throw new IllegalArgumentException("Error cannot be null");
+
+		return complete(false, error);
+	}
+
+	/** @return a boolean indicating if this decision is completed. */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns the result of this decision.
+	 * @return a boolean indicating if execution is allowed.
+	 * @throws IllegalStateException if this decision is not completed.
+	 * @throws RuntimeException if this decision failed (runtime errors are rethrown, others are wrapped).
+	 */
+	public boolean isAllowed() {
+		if (!done)
+			throw new IllegalStateException("Decision is not completed");
+
+		if (error != null) {
+			if (error instanceof RuntimeException)
+				throw (RuntimeException) error;
+
+			if (error instanceof Error)
+				throw (Error) error;
+
+			throw new RuntimeException(error);
+		}
+
+		return allowed;
+	}
+
+	/** @return the error which prevented this decision or <code>null</code> if this decision is pending or did not fail. */
+	public Throwable getError() {
+		return done ? error : null;
+	}
+
+	/**
+	 * Waits for this decision.
+	 * @return a boolean indicating if execution is allowed (see {@linkplain #isAllowed()}).
+	 * @throws InterruptedException if current thread is interrupted while waiting.
+	 */
+	public boolean get() throws InterruptedException {
+		latch.await();
+		return isAllowed();
+	}
+
+	/**
+	 * Waits for this decision.
+	 * @param timeout maximum time to wait.
+	 * @param unit time unit of timeout.
+	 * @return a boolean indicating if execution is allowed (see {@linkplain #isAllowed()}).
+	 * @throws InterruptedException if current thread is interrupted while waiting.
+	 * @throws TimeoutException if decision is not completed in given time.
+	 */
+	public boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		if (!latch.await(timeout, unit))
+			throw new TimeoutException("Decision is not completed");
+
+		return isAllowed();
+	}
+
+	/**
+	 * Adds a listener notified when this decision is completed. If this decision is already completed, listener is notified immediately.
+	 * @param listener listener to be added.
+	 */
+	public void addListener(Listener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("Listener cannot be null");
+
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return;
+			}
+		}
+
+		notify(listener);
+	}
+
+	@Override
+	public String toString() {
+		if (!done)
+			return "AsyncDecision[pending]";
+
+		return error != null ? String.format("AsyncDecision[failed: %s]", error) : String.format("AsyncDecision[%s]", allowed ? "allowed" : "denied");
+	}
+	// =========================================================================
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous audit log of security decisions.
+ * Woven guards (see {@linkplain WovenGuard}) publish fixed-size events (timestamp, thread, method id and required role mask) into a preallocated lock-free ring buffer,
+ * which is drained by a background thread into memory-mapped binary files. Files are rotated when full and oldest files are deleted.
+ * All denials are recorded, while allowed executions are sampled (see constructor).
+ * <p>Each log file (<code>audit-NNNNNNNN.log</code>) is accompanied by a names file (<code>audit-NNNNNNNN.names</code>) mapping the method and role ids found in it to their names,
+ * since ids are only valid in the JVM which wrote the file. Records reference required role masks by an id, whose roles are also listed in the names file. Files can be read through {@linkplain AuditLogReader}.</p>
+ * <p>If a log file cannot be written, the log fails (see {@linkplain #getFailure()}) and stops accepting events. A failed log using {@linkplain Backpressure#DROP} is no longer the current log,
+ * so auditing is disabled. A failed log using {@linkplain Backpressure#BLOCK} (i.e. events must not be lost) remains the current log and rejects events by throwing an exception,
+ * so guarded calls fail closed until the log is replaced (see {@linkplain #setCurrent(AuditLog)}).</p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class AuditLog implements Closeable {
+
+	// CLASS SCOPE =============================================================
+	/** Defines what happens when an event is published while the ring buffer is full. */
+	public static enum Backpressure {
+		/** Event is discarded (and counted, see {@linkplain AuditLog#getDroppedCount()}). Guards never wait. */
+		DROP,
+
+		/** Publishing thread waits until there is room for the event. */
+		BLOCK
+	}
+
+	static final int FILE_MAGIC = 0x53454341; // <-- "SECA"
+	static final int FILE_VERSION = 2;
+	static final int HEADER_SIZE = 16;
+	static final int RECORD_SIZE = 32;
+	static final int FLAG_VALID = 1;
+	static final int FLAG_ALLOWED = 2;
+
+	static final String LOG_FILE_EXTENSION = ".log";
+	static final String NAMES_FILE_EXTENSION = ".names";
+	static final String NAMES_FILE_ENCODING = "utf-8";
+
+	private static final String FILE_PREFIX = "audit-";
+	private static final int DRAIN_BATCH_SIZE = 1024;
+	private static final long IDLE_PARK_NANOS = 1000000; // <-- 1 ms
+	private static final long BLOCK_PARK_NANOS = 10000;  // <-- 10 us
+	private static final long CLOSED_BIT = 1L << 62; // <-- Set in claim sequence when log is closed, so no event is claimed afterwards
+
+	private static final int DEFAULT_CAPACITY = 8192;
+	private static final long DEFAULT_FILE_SIZE = 16 * 1024 * 1024;
+	private static final int DEFAULT_MAX_FILES = 8;
+
+	private static volatile AuditLog current = null;
+
+	/**
+	 * Defines the audit log fed by woven guards.
+	 * @param auditLog audit log. Passing <code>null</code> disables auditing.
+	 */
+	public static synchronized void setCurrent(AuditLog auditLog) {
+		current = auditLog;
+		WovenGuard.update();
+	}
+
+	/** Disables auditing if given audit log is the current one. */
+	private static synchronized void clearCurrent(AuditLog auditLog) {
+		if (current == auditLog)
+			setCurrent(null);
+	}
+
+	/** @return the audit log fed by woven guards or <code>null</code> if auditing is disabled. */
+	public static AuditLog getCurrent() {
+		return current;
+	}
+
+	/** @return names file associated with given log file. */
+	static File getNamesFile(File logFile) {
+		String name = logFile.getName();
+		return new File(logFile.getParentFile(), name.substring(0, name.length() - LOG_FILE_EXTENSION.length()) + NAMES_FILE_EXTENSION);
+	}
+
+	/**
+	 * Lists log files found in given directory.
+	 * @param directory log directory.
+	 * @return log files (oldest first).
+	 */
+	static List<File> listLogFiles(File directory) {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(FILE_PREFIX) && name.endsWith(LOG_FILE_EXTENSION);
+			}
+		});
+
+		if (files == null)
+			return new ArrayList<>();
+
+		Arrays.sort(files); // <-- File indexes are zero-padded
+		return new ArrayList<>(Arrays.asList(files));
+	}
+
+	private static int getFileIndex(File logFile) {
+		String name = logFile.getName();
+
+		try {
+			return Integer.parseInt(name.substring(FILE_PREFIX.length(), name.length() - LOG_FILE_EXTENSION.length()));
+		} catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final File directory;
+	private final long fileSize;
+	private final int maxFiles;
+	private final Backpressure backpressure;
+	private final int allowSampleRate;
+
+	// Ring buffer -------------------------------------------------------------
+	private final int mask;
+	private final long[] timestamps;
+	private final long[] threadIds;
+	private final long[][] roleMasks; // <-- Masks published by guards are shared and never modified, so they are not copied
+	private final int[] methodIds;
+	private final boolean[] allowedFlags;
+	private final AtomicLongArray published; // <-- Sequence published in each slot
+	private final AtomicLong claimSequence = new AtomicLong();
+	private final AtomicLong consumeSequence = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	// -------------------------------------------------------------------------
+
+	// Writer state (accessed only by writer thread after construction) --------
+	private final Deque<File> files = new ArrayDeque<>();
+	private final BitSet writtenMethods = new BitSet();
+	private final BitSet writtenRoles = new BitSet();
+	private final Map<long[], Integer> writtenRoleMasks = new IdentityHashMap<>();
+	private int fileIndex;
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private Writer namesWriter;
+	// -------------------------------------------------------------------------
+
+	private final Thread writer;
+	private volatile long writtenCount = 0;
+	private volatile Throwable failure = null;
+
+	/**
+	 * Constructor.
+	 * @param directory directory where log files will be written.
+	 * @param capacity ring buffer capacity (rounded up to a power of two).
+	 * @param fileSize size of each log file, in bytes.
+	 * @param maxFiles maximum number of log files kept in given directory.
+	 * @param backpressure policy applied when ring buffer is full.
+	 * @param allowSampleRate defines that one of each <code>allowSampleRate</code> allowed executions (in average) is recorded. Passing zero implies in recording denials only.
+	 * @throws IOException if first log file could not be created.
+	 */
+	public AuditLog(File directory, int capacity, long fileSize, int maxFiles, Backpressure backpressure, int allowSampleRate) throws IOException {
+		if (directory == null)
+			throw new IllegalArgumentException("A directory must be provided");
+
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+		if (fileSize < HEADER_SIZE + RECORD_SIZE || fileSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid file size: " + fileSize);
+
+		if (maxFiles < 1)
+			throw new IllegalArgumentException("Invalid max files: " + maxFiles);
+
+		if (backpressure == null)
+			throw new IllegalArgumentException("Backpressure cannot be null");
+
+		if (allowSampleRate < 0)
+			throw new IllegalArgumentException("Invalid allow sample rate: " + allowSampleRate);
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory: " + directory);
+
+		this.directory = directory;
+		this.fileSize = fileSize;
+		this.maxFiles = maxFiles;
+		this.backpressure = backpressure;
+		this.allowSampleRate = allowSampleRate;
+
+		int ringSize = Integer.highestOneBit(capacity);
+		if (ringSize < capacity)
+			ringSize <<= 1;
+
+		this.mask = ringSize - 1;
+		this.timestamps = new long[ringSize];
+		this.threadIds = new long[ringSize];
+		this.roleMasks = new long[ringSize][];
+		this.methodIds = new int[ringSize];
+		this.allowedFlags = new boolean[ringSize];
+		this.published = new AtomicLongArray(ringSize);
+
+		for (int i = 0; i < ringSize; i++) {
+			published.set(i, -1);
+		}
+
+		for (File logFile : listLogFiles(directory)) {
+			files.add(logFile);
+			fileIndex = Math.max(fileIndex, getFileIndex(logFile));
+		}
+
+		openFile();
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "security-audit");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Constructor. Created instance uses a ring buffer of 8192 events, up to 8 files of 16 MiB, drops events when ring buffer is full and records denials only.
+	 * @param directory directory where log files will be written.
+	 * @throws IOException if first log file could not be created.
+	 */
+	public AuditLog(File directory) throws IOException {
+		this(directory, DEFAULT_CAPACITY, DEFAULT_FILE_SIZE, DEFAULT_MAX_FILES, Backpressure.DROP, 0);
+	}
+
+	/**
+	 * Publishes a decision.
+	 * @param methodId secured method id (see {@linkplain MethodRegistry}).
+	 * @param allowed decision.
+	 * @param requiredRoleMask mask of required roles. Given array is recorded as is, so it must not be modified.
+	 * @return a boolean indicating if event was published (it may be not sampled, dropped or this instance may be closed).
+	 * @throws IllegalStateException if this instance uses {@linkplain Backpressure#BLOCK} and it failed (see {@linkplain #getFailure()}).
+	 */
+	public boolean publish(int methodId, boolean allowed, long[] requiredRoleMask) {
+		Throwable f = failure;
+
+		if (f != null && backpressure == Backpressure.BLOCK)
+			throw new IllegalStateException("Audit log failed at " + directory, f);
+
+		if (allowed && (allowSampleRate == 0 || (allowSampleRate > 1 && ThreadLocalRandom.current().nextInt(allowSampleRate) != 0)))
+			return false;
+
+		long seq;
+
+		while (true) {
+			seq = claimSequence.get();
+
+			if ((seq & CLOSED_BIT) != 0) // <-- Checked on the claimed sequence itself, so an event is never claimed after writer is told to finish
+				return false;
+
+			if (seq - consumeSequence.get() > mask) { // <-- Ring buffer is full
+				if (backpressure == Backpressure.DROP) {
+					droppedCount.incrementAndGet();
+					return false;
+				}
+
+				LockSupport.unpark(writer); // <-- Writer may be idle-parked
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				continue;
+			}
+
+			if (claimSequence.compareAndSet(seq, seq + 1))
+				break;
+		}
+
+		int i = (int) seq & mask;
+		timestamps[i] = System.currentTimeMillis();
+		threadIds[i] = Thread.currentThread().getId();
+		roleMasks[i] = requiredRoleMask;
+		methodIds[i] = methodId;
+		allowedFlags[i] = allowed;
+		published.lazySet(i, seq); // <-- Ordered store: event fields are visible before the sequence
+		return true;
+	}
+
+	/** @return number of events discarded because ring buffer was full. */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/** @return number of events written to log files. */
+	public long getWrittenCount() {
+		return writtenCount;
+	}
+
+	/** @return the error which prevented this instance from writing log files or <code>null</code> if this instance did not fail. */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/** @return directory where log files are written. */
+	public File getDirectory() {
+		return directory;
+	}
+
+	private void openFile() throws IOException {
+		fileIndex++;
+		File logFile = new File(directory, String.format("%s%08d%s", FILE_PREFIX, fileIndex, LOG_FILE_EXTENSION));
+
+		file = new RandomAccessFile(logFile, "rw");
+		file.setLength(fileSize);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+		buffer.putInt(FILE_MAGIC).putInt(FILE_VERSION).putInt(RECORD_SIZE).putInt(0);
+
+		namesWriter = new OutputStreamWriter(new FileOutputStream(getNamesFile(logFile)), NAMES_FILE_ENCODING);
+		writtenMethods.clear();
+		writtenRoles.clear();
+		writtenRoleMasks.clear();
+
+		files.add(logFile);
+
+		while (files.size() > maxFiles) {
+			File oldest = files.removeFirst();
+			oldest.delete();
+			getNamesFile(oldest).delete();
+		}
+	}
+
+	private void closeFile() throws IOException {
+		buffer.force();
+		namesWriter.close();
+		file.close();
+	}
+
+	/** Writes the names of given method and roles (if not written yet to current file). @return id of given mask in current file. */
+	private int writeNames(int methodId, long[] roleMask) throws IOException {
+		if (!writtenMethods.get(methodId)) {
+			namesWriter.write(String.format("M %d %s\n", methodId, MethodRegistry.getName(methodId)));
+			writtenMethods.set(methodId);
+		}
+
+		Integer roleMaskId = writtenRoleMasks.get(roleMask);
+
+		if (roleMaskId != null)
+			return roleMaskId;
+
+		StringBuilder roleIds = new StringBuilder();
+
+		for (int word = 0; word < roleMask.length; word++) {
+			long bits = roleMask[word];
+
+			while (bits != 0) {
+				int roleId = word * 64 + Long.numberOfTrailingZeros(bits);
+
+				if (!writtenRoles.get(roleId)) {
+					namesWriter.write(String.format("R %d %s\n", roleId, RoleRegistry.getName(roleId)));
+					writtenRoles.set(roleId);
+				}
+
+				roleIds.append(' ').append(roleId);
+				bits &= bits - 1;
+			}
+		}
+
+		roleMaskId = writtenRoleMasks.size();
+		namesWriter.write(String.format("S %d%s\n", roleMaskId, roleIds));
+		writtenRoleMasks.put(roleMask, roleMaskId);
+		return roleMaskId;
+	}
+
+	/** Writes available events. @return number of written events. */
+	private int drain() throws IOException {
+		long seq = consumeSequence.get();
+		int count = 0;
+
+		while (count < DRAIN_BATCH_SIZE) {
+			int i = (int) seq & mask;
+
+			if (published.get(i) != seq)
+				break;
+
+			if (buffer.remaining() < RECORD_SIZE) {
+				closeFile();
+				openFile();
+			}
+
+			int roleMaskId = writeNames(methodIds[i], roleMasks[i]);
+			buffer.putLong(timestamps[i]).putLong(threadIds[i]).putLong(roleMaskId).putInt(methodIds[i]).putInt(FLAG_VALID | (allowedFlags[i] ? FLAG_ALLOWED : 0));
+
+			seq++;
+			count++;
+		}
+
+		if (count > 0) {
+			namesWriter.flush();
+			consumeSequence.lazySet(seq); // <-- Releases slots to publishers
+			writtenCount += count;
+		}
+
+		return count;
+	}
+
+	/** Prevents further events from being claimed. */
+	private void closeClaims() {
+		while (true) {
+			long seq = claimSequence.get();
+
+			if ((seq & CLOSED_BIT) != 0 || claimSequence.compareAndSet(seq, seq | CLOSED_BIT))
+				return;
+		}
+	}
+
+	/** Writer thread loop. */
+	private void write() {
+		try {
+			while (true) {
+				if (drain() > 0)
+					continue;
+
+				long claimed = claimSequence.get();
+
+				if ((claimed & CLOSED_BIT) != 0) {
+					if (consumeSequence.get() == (claimed & ~CLOSED_BIT))
+						break; // <-- All claimed events were written and no event can be claimed anymore
+
+					Thread.yield(); // <-- An event is being published
+				} else {
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+			}
+		} catch (IOException ex) {
+			fail(ex);
+		} finally {
+			try {
+				closeFile();
+			} catch (IOException ex) {
+				Security.getLogger().log(SecurityLogger.Level.ERROR, "Error closing audit log at {}", directory, ex);
+			}
+		}
+	}
+
+	/** Called by writer thread when log files cannot be written. */
+	private void fail(IOException ex) {
+		if (backpressure == Backpressure.BLOCK) {
+			failure = ex; // <-- Set before claims are closed, so publishers fail instead of discarding events
+			closeClaims();
+			Security.getLogger().log(SecurityLogger.Level.ERROR, "Error writing audit log at {}. Audited calls will fail until audit log is replaced", directory, ex);
+		} else {
+			closeClaims();
+			clearCurrent(this);
+			failure = ex; // <-- Set after auditing is disabled, so a failed log is never observed as current
+			Security.getLogger().log(SecurityLogger.Level.ERROR, "Error writing audit log at {}. Auditing is disabled", directory, ex);
+		}
+	}
+
+	/**
+	 * Writes pending events and closes current log file. Events published after this method is called are discarded.
+	 * If this instance is the current audit log, auditing is disabled.
+	 */
+	@Override
+	public void close() {
+		clearCurrent(this);
+
+		closeClaims();
+		LockSupport.unpark(writer);
+
+		try {
+			writer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	// =========================================================================
+}
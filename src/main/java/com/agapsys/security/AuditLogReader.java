@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reader of files written by {@linkplain AuditLog}.
+ * <p>This class can also be used as a command line utility which prints the events of given files (or of all files found in given directories):
+ * <code>java -cp security-framework.jar com.agapsys.security.AuditLogReader &lt;file or directory&gt;...</code></p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class AuditLogReader implements Closeable {
+
+	// CLASS SCOPE =============================================================
+	private static final int[] NO_ROLES = new int[0];
+
+	/**
+	 * Lists log files found in given directory.
+	 * @param directory log directory.
+	 * @return log files (oldest first).
+	 */
+	public static List<File> listLogFiles(File directory) {
+		return AuditLog.listLogFiles(directory);
+	}
+
+	private static void print(File logFile, SimpleDateFormat dateFormat) throws IOException {
+		try (AuditLogReader reader = new AuditLogReader(logFile)) {
+			while (reader.next()) {
+				System.out.println(String.format("%s\t%s\tthread=%d\t%s\t%s",
+					dateFormat.format(new Date(reader.getTimestamp())),
+					reader.isAllowed() ? "ALLOWED" : "DENIED",
+					reader.getThreadId(),
+					reader.getMethod(),
+					Arrays.toString(reader.getRoles())
+				));
+			}
+		}
+	}
+
+	/**
+	 * Prints the events of given files (or of all files found in given directories).
+	 * @param args files and/or directories.
+	 * @throws IOException if a file could not be read.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println(String.format("Usage: java %s <file or directory>...", AuditLogReader.class.getName()));
+			System.exit(1);
+		}
+
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+		for (String arg : args) {
+			File file = new File(arg);
+
+			if (file.isDirectory()) {
+				for (File logFile : listLogFiles(file)) {
+					print(logFile, dateFormat);
+				}
+			} else {
+				print(file, dateFormat);
+			}
+		}
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final RandomAccessFile file;
+	private final MappedByteBuffer buffer;
+	private final Map<Integer, String> methodNames = new HashMap<>();
+	private final Map<Integer, String> roleNames = new HashMap<>();
+	private final Map<Integer, int[]> roleSets = new HashMap<>();
+
+	private long timestamp;
+	private long threadId;
+	private int roleMaskId;
+	private int methodId;
+	private int flags;
+
+	/**
+	 * Constructor.
+	 * @param logFile log file.
+	 * @throws IOException if given file could not be read or if it is not a log file.
+	 */
+	public AuditLogReader(File logFile) throws IOException {
+		file = new RandomAccessFile(logFile, "r");
+
+		try {
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+
+			if (buffer.remaining() < AuditLog.HEADER_SIZE || buffer.getInt() != AuditLog.FILE_MAGIC)
+				throw new IOException("Invalid audit log file: " + logFile);
+
+			int version = buffer.getInt();
+			if (version != AuditLog.FILE_VERSION)
+				throw new IOException(String.format("Unsupported audit log version (%d): %s", version, logFile));
+
+			int recordSize = buffer.getInt();
+			if (recordSize != AuditLog.RECORD_SIZE)
+				throw new IOException(String.format("Unsupported record size (%d): %s", recordSize, logFile));
+
+			buffer.getInt(); // <-- Reserved
+			readNames(AuditLog.getNamesFile(logFile));
+		} catch (IOException ex) {
+			file.close();
+			throw ex;
+		}
+	}
+
+	private void readNames(File namesFile) throws IOException {
+		if (!namesFile.exists())
+			return;
+
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(namesFile), AuditLog.NAMES_FILE_ENCODING))) {
+			String readLine;
+
+			while ((readLine = in.readLine()) != null) {
+				String[] tokens = readLine.split(" ", 3);
+
+				if (tokens[0].equals("S") && tokens.length > 1) {
+					String[] roleIds = tokens.length == 3 ? tokens[2].split(" ") : new String[0];
+					int[] roleSet = new int[roleIds.length];
+
+					for (int i = 0; i < roleIds.length; i++) {
+						roleSet[i] = Integer.parseInt(roleIds[i]);
+					}
+
+					roleSets.put(Integer.parseInt(tokens[1]), roleSet);
+					continue;
+				}
+
+				if (tokens.length != 3)
+					continue;
+
+				Map<Integer, String> names = tokens[0].equals("M") ? methodNames : roleNames;
+				names.put(Integer.parseInt(tokens[1]), tokens[2]);
+			}
+		}
+	}
+
+	/**
+	 * Moves to next event.
+	 * @return a boolean indicating if there is an event (if <code>false</code> is returned, there are no more events).
+	 */
+	public boolean next() {
+		if (buffer.remaining() < AuditLog.RECORD_SIZE)
+			return false;
+
+		int position = buffer.position();
+		long nextTimestamp = buffer.getLong();
+		long nextThreadId = buffer.getLong();
+		long nextRoleMaskId = buffer.getLong();
+		int nextMethodId = buffer.getInt();
+		int nextFlags = buffer.getInt();
+
+		if ((nextFlags & AuditLog.FLAG_VALID) == 0) { // <-- End of written events
+			buffer.position(position);
+			return false;
+		}
+
+		timestamp = nextTimestamp;
+		threadId = nextThreadId;
+		roleMaskId = (int) nextRoleMaskId;
+		methodId = nextMethodId;
+		flags = nextFlags;
+		return true;
+	}
+
+	/** @return event timestamp (milliseconds since epoch). */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/** @return id of the thread which executed the secured method. */
+	public long getThreadId() {
+		return threadId;
+	}
+
+	/** @return id of the secured method (valid only in the JVM which wrote the file). */
+	public int getMethodId() {
+		return methodId;
+	}
+
+	/** @return name of the secured method or <code>null</code> if not available. */
+	public String getMethod() {
+		return methodNames.get(methodId);
+	}
+
+	private int[] getRoleSet() {
+		int[] roleSet = roleSets.get(roleMaskId);
+		return roleSet != null ? roleSet : NO_ROLES;
+	}
+
+	/** @return ids of required roles (valid only in the JVM which wrote the file). */
+	public int[] getRoleIds() {
+		return getRoleSet().clone();
+	}
+
+	/** @return names of required roles. Unknown roles are represented as <code>#id</code>. */
+	public String[] getRoles() {
+		int[] roleSet = getRoleSet();
+		String[] roles = new String[roleSet.length];
+
+		for (int i = 0; i < roleSet.length; i++) {
+			String role = roleNames.get(roleSet[i]);
+			roles[i] = role != null ? role : "#" + roleSet[i];
+		}
+
+		return roles;
+	}
+
+	/** @return a boolean indicating if execution was allowed. */
+	public boolean isAllowed() {
+		return (flags & AuditLog.FLAG_ALLOWED) != 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+	// =========================================================================
+}
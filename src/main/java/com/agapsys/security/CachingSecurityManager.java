@@ -0,0 +1,405 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Security manager which memoizes decisions of another one.
+ * Decisions are keyed by principal (see {@linkplain #getPrincipal()}) and by method id, or by the content of required roles for checks without method id.
+ * Entries also record the required roles they were taken for (compared by identity first, since woven methods pass the same instance on every call), so decisions taken before requirements are replaced at runtime
+ * (see {@linkplain MethodRegistry#setRequiredRoles(java.util.Map)}) are never served for new ones.
+ * Cache is bounded (least recently used entries are evicted first) and entries may expire after a given time.
+ * Asynchronous checks (see {@linkplain #isAllowedAsync(int, String[], long[])}) are forwarded to decorated manager on misses and cached when completed, so they never block.
+ * Stale entries are detected on lookup by comparing epochs, so {@linkplain #invalidate()} and {@linkplain #invalidate(Object)} do not scan cached decisions.
+ * Entries also record the role hierarchy in effect when they were cached, so replacing it (see {@linkplain RoleHierarchy#setCurrent(RoleHierarchy)}) invalidates all of them.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class CachingSecurityManager extends SecurityManager {
+
+	// CLASS SCOPE =============================================================
+	private static final int SEGMENT_COUNT = 16;
+
+	private static final int MODE_ROLES = 0;
+	private static final int MODE_ROLE_MASK = 1;
+	private static final int MODE_METHOD = 2;
+
+	private static class Key {
+		private final Object principal;
+		private final int methodId;
+		private final String[] requiredRoles; // <-- Compared by content. Only set for checks without method id (woven methods are keyed by id)
+		private final int hash;
+
+		public Key(Object principal, int methodId, String[] requiredRoles) {
+			this.principal = principal;
+			this.methodId = methodId;
+			this.requiredRoles = methodId < 0 ? requiredRoles : null;
+			this.hash = 31 * (31 * principal.hashCode() + Arrays.hashCode(this.requiredRoles)) + methodId;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return methodId == other.methodId && Arrays.equals(requiredRoles, other.requiredRoles) && principal.equals(other.principal);
+		}
+	}
+
+	/** Invalidation epochs. Replaced as a whole by {@linkplain CachingSecurityManager#invalidate()}, so readers never combine a global epoch with principal epochs of another generation. */
+	private static class Epochs {
+		private final long global;
+		private final ConcurrentMap<Object, Long> principals = new ConcurrentHashMap<>();
+
+		public Epochs(long global) {
+			this.global = global;
+		}
+
+		private long getPrincipalEpoch(Object principal) {
+			Long epoch = principals.get(principal);
+			return epoch != null ? epoch : 0;
+		}
+	}
+
+	private static class Entry {
+		private final boolean allowed;
+		private final String[] requiredRoles; // <-- Requirement the decision was taken for (replaced requirements publish new arrays)
+		private final long globalEpoch;
+		private final long principalEpoch;
+		private final RoleHierarchy hierarchy;
+		private final long expiresAt;
+
+		public Entry(boolean allowed, String[] requiredRoles, long globalEpoch, long principalEpoch, RoleHierarchy hierarchy, long expiresAt) {
+			this.allowed = allowed;
+			this.requiredRoles = requiredRoles;
+			this.globalEpoch = globalEpoch;
+			this.principalEpoch = principalEpoch;
+			this.hierarchy = hierarchy;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static class Segment extends LinkedHashMap<Key, Entry> {
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		public Segment(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			return size() > maxSize;
+		}
+	}
+
+	/** Caches an asynchronous decision once it is completed. */
+	private static class CacheListener implements AsyncDecision.Listener {
+		private final Segment segment;
+		private final Key key;
+		private final String[] requiredRoles;
+		private final long globalEpoch;
+		private final long principalEpoch;
+		private final RoleHierarchy hierarchy;
+		private final long expiresAt;
+
+		public CacheListener(Segment segment, Key key, String[] requiredRoles, long globalEpoch, long principalEpoch, RoleHierarchy hierarchy, long expiresAt) {
+			this.segment = segment;
+			this.key = key;
+			this.requiredRoles = requiredRoles;
+			this.globalEpoch = globalEpoch;
+			this.principalEpoch = principalEpoch;
+			this.hierarchy = hierarchy;
+			this.expiresAt = expiresAt;
+		}
+
+		@Override
+		public void onCompleted(AsyncDecision decision) {
+			if (decision.getError() != null)
+				return; // <-- Failed decisions are not cached
+
+			Entry entry = new Entry(decision.isAllowed(), requiredRoles, globalEpoch, principalEpoch, hierarchy, expiresAt);
+
+			synchronized (segment) {
+				segment.put(key, entry);
+			}
+		}
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final SecurityManager securityManager;
+	private final long ttlNanos;
+	private final Segment[] segments;
+	private final int maxPrincipalEpochs;
+
+	private volatile Epochs epochs = new Epochs(0);
+	private final AtomicLong principalEpochSequence = new AtomicLong(); // <-- Principal epochs are never reused, so they can be discarded along with the global epoch
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * @param securityManager decorated security manager.
+	 * @param maxSize maximum number of cached decisions.
+	 * @param ttl time-to-live of cached decisions. Passing zero implies in no expiration.
+	 * @param ttlUnit time unit of time-to-live.
+	 */
+	public CachingSecurityManager(SecurityManager securityManager, int maxSize, long ttl, TimeUnit ttlUnit) {
+		if (securityManager == null)
+			throw new IllegalArgumentException("A security manager must be provided");
+
+		if (maxSize < 1)
+			throw new IllegalArgumentException("Invalid max size: " + maxSize);
+
+		if (ttl < 0)
+			throw new IllegalArgumentException("Invalid time-to-live: " + ttl);
+
+		this.securityManager = securityManager;
+		this.ttlNanos = ttlUnit.toNanos(ttl);
+		this.segments = new Segment[SEGMENT_COUNT];
+		this.maxPrincipalEpochs = maxSize;
+
+		int segmentSize = Math.max(1, (maxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment(segmentSize);
+		}
+	}
+
+	/**
+	 * Constructor. Created instance has no expiration.
+	 * @param securityManager decorated security manager.
+	 * @param maxSize maximum number of cached decisions.
+	 */
+	public CachingSecurityManager(SecurityManager securityManager, int maxSize) {
+		this(securityManager, maxSize, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/** @return decorated security manager. */
+	public SecurityManager getSecurityManager() {
+		return securityManager;
+	}
+
+	/**
+	 * Returns the identity of the principal for which a decision is being taken.
+	 * Default implementation returns the principal of current {@linkplain SecurityContext}.
+	 * @return principal identity. If <code>null</code> is returned, decision will not be cached.
+	 */
+	protected Object getPrincipal() {
+		return SecurityContext.getCurrent().getPrincipal();
+	}
+
+	private Segment getSegment(Key key) {
+		int h = key.hash;
+		h ^= (h >>> 16);
+		return segments[h & (SEGMENT_COUNT - 1)];
+	}
+
+	private Entry getValidEntry(Segment segment, Key key, String[] requiredRoles, long currentGlobalEpoch, long currentPrincipalEpoch, RoleHierarchy currentHierarchy, long now) {
+		Entry entry;
+		synchronized (segment) {
+			entry = segment.get(key);
+		}
+
+		if (entry != null && (entry.requiredRoles == requiredRoles || Arrays.equals(entry.requiredRoles, requiredRoles)) && entry.globalEpoch == currentGlobalEpoch && entry.principalEpoch == currentPrincipalEpoch && entry.hierarchy == currentHierarchy && (ttlNanos == 0 || now - entry.expiresAt < 0))
+			return entry;
+
+		return null;
+	}
+
+	private boolean delegate(int mode, int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		switch (mode) {
+			case MODE_METHOD:
+				return securityManager.isAllowed(methodId, requiredRoles, requiredRoleMask);
+
+			case MODE_ROLE_MASK:
+				return securityManager.isAllowed(requiredRoles, requiredRoleMask);
+
+			default:
+				return securityManager.isAllowed(requiredRoles);
+		}
+	}
+
+	private boolean isAllowed(int mode, int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		Object principal = getPrincipal();
+
+		if (principal == null)
+			return delegate(mode, methodId, requiredRoles, requiredRoleMask);
+
+		Key key = new Key(principal, mode == MODE_METHOD ? methodId : -1, requiredRoles);
+		Segment segment = getSegment(key);
+
+		Epochs currentEpochs = epochs; // <-- Single read, so both epochs belong to the same generation
+		long currentGlobalEpoch = currentEpochs.global;
+		long currentPrincipalEpoch = currentEpochs.getPrincipalEpoch(principal);
+		RoleHierarchy currentHierarchy = RoleHierarchy.getCurrent();
+		long now = ttlNanos > 0 ? System.nanoTime() : 0;
+
+		Entry entry = getValidEntry(segment, key, requiredRoles, currentGlobalEpoch, currentPrincipalEpoch, currentHierarchy, now);
+
+		if (entry != null) {
+			hitCount.incrementAndGet();
+			return entry.allowed;
+		}
+
+		missCount.incrementAndGet();
+		boolean allowed = delegate(mode, methodId, requiredRoles, requiredRoleMask);
+		entry = new Entry(allowed, requiredRoles, currentGlobalEpoch, currentPrincipalEpoch, currentHierarchy, now + ttlNanos);
+
+		synchronized (segment) {
+			segment.put(key, entry);
+		}
+
+		return allowed;
+	}
+
+	@Override
+	public boolean isAllowed(String[] requiredRoles) {
+		return isAllowed(MODE_ROLES, -1, requiredRoles, null);
+	}
+
+	@Override
+	public boolean isAllowed(String[] requiredRoles, long[] requiredRoleMask) {
+		return isAllowed(MODE_ROLE_MASK, -1, requiredRoles, requiredRoleMask);
+	}
+
+	@Override
+	public boolean isAllowed(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		return isAllowed(MODE_METHOD, methodId, requiredRoles, requiredRoleMask);
+	}
+
+	@Override
+	public AsyncDecision isAllowedAsync(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		Object principal = getPrincipal();
+
+		if (principal == null)
+			return securityManager.isAllowedAsync(methodId, requiredRoles, requiredRoleMask);
+
+		Key key = new Key(principal, methodId, requiredRoles); // <-- Same key as isAllowed(int, String[], long[]), so both share cached decisions
+		Segment segment = getSegment(key);
+
+		Epochs currentEpochs = epochs;
+		long currentGlobalEpoch = currentEpochs.global;
+		long currentPrincipalEpoch = currentEpochs.getPrincipalEpoch(principal);
+		RoleHierarchy currentHierarchy = RoleHierarchy.getCurrent();
+		long now = ttlNanos > 0 ? System.nanoTime() : 0;
+
+		Entry entry = getValidEntry(segment, key, requiredRoles, currentGlobalEpoch, currentPrincipalEpoch, currentHierarchy, now);
+
+		if (entry != null) {
+			hitCount.incrementAndGet();
+			return AsyncDecision.of(entry.allowed);
+		}
+
+		missCount.incrementAndGet();
+		AsyncDecision decision = securityManager.isAllowedAsync(methodId, requiredRoles, requiredRoleMask); // <-- Not waited for, so callers of remote managers are not blocked on misses
+		decision.addListener(new CacheListener(segment, key, requiredRoles, currentGlobalEpoch, currentPrincipalEpoch, currentHierarchy, now + ttlNanos));
+		return decision;
+	}
+
+	@Override
+	public boolean isConditionSatisfied(int methodId, String condition) {
+		return securityManager.isConditionSatisfied(methodId, condition); // <-- Conditions may depend on request state, so they are not cached
+	}
+
+	@Override
+	public boolean isConditionSatisfied(int methodId, String condition, Object argument) {
+		return securityManager.isConditionSatisfied(methodId, condition, argument);
+	}
+
+	@Override
+	public boolean isConditionSatisfied(int methodId, String condition, long argument) {
+		return securityManager.isConditionSatisfied(methodId, condition, argument);
+	}
+
+	@Override
+	public boolean isConditionSatisfied(int methodId, String condition, double argument) {
+		return securityManager.isConditionSatisfied(methodId, condition, argument);
+	}
+
+	@Override
+	public boolean isConditionSatisfied(int methodId, String condition, boolean argument) {
+		return securityManager.isConditionSatisfied(methodId, condition, argument);
+	}
+
+	@Override
+	public void onNotAllowed(String securedMethod, String[] requiredRoles) throws NotAllowedException {
+		securityManager.onNotAllowed(securedMethod, requiredRoles);
+	}
+
+	/** Invalidates all cached decisions. Epochs of invalidated principals (see {@linkplain #invalidate(Object)}) are discarded. */
+	public synchronized void invalidate() {
+		epochs = new Epochs(epochs.global + 1); // <-- Global epoch and principal epochs are replaced at once
+	}
+
+	/**
+	 * Invalidates cached decisions of given principal (e.g. when its roles change).
+	 * Epochs are kept for up to as many principals as cached decisions. Beyond that, all cached decisions are invalidated.
+	 * @param principal principal identity.
+	 */
+	public void invalidate(Object principal) {
+		Epochs currentEpochs = epochs;
+		currentEpochs.principals.put(principal, principalEpochSequence.incrementAndGet()); // <-- If generation is replaced concurrently, all decisions are invalidated anyway
+
+		if (currentEpochs.principals.size() > maxPrincipalEpochs)
+			invalidate();
+	}
+
+	/** @return number of principals whose epochs are tracked (see {@linkplain #invalidate(Object)}). */
+	int getPrincipalEpochCount() {
+		return epochs.principals.size();
+	}
+
+	/** @return number of decisions served from cache. */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/** @return number of decisions delegated to decorated security manager. */
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	/** @return number of cached decisions (including stale ones not evicted yet). */
+	public int getSize() {
+		int size = 0;
+
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+	// =========================================================================
+}
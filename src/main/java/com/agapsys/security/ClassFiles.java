@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Minimal class file reader which inspects the field table without loading Javassist (see {@linkplain Security} and {@linkplain SecurityAgent}).
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+final class ClassFiles {
+
+	// CLASS SCOPE =============================================================
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+
+	/** @return size (in bytes, excluding tag) of a constant pool entry with given tag (except UTF-8 entries). */
+	private static int getConstantSize(int tag) throws IOException {
+		switch (tag) {
+			case 7:  // <-- Class
+			case 8:  // <-- String
+			case 16: // <-- MethodType
+			case 19: // <-- Module
+			case 20: // <-- Package
+				return 2;
+
+			case 15: // <-- MethodHandle
+				return 3;
+
+			case 3:  // <-- Integer
+			case 4:  // <-- Float
+			case 9:  // <-- Fieldref
+			case 10: // <-- Methodref
+			case 11: // <-- InterfaceMethodref
+			case 12: // <-- NameAndType
+			case 17: // <-- Dynamic
+			case 18: // <-- InvokeDynamic
+				return 4;
+
+			case CONSTANT_LONG:
+			case CONSTANT_DOUBLE:
+				return 8;
+
+			default:
+				throw new IOException("Invalid constant pool tag: " + tag);
+		}
+	}
+
+	private static void skip(DataInputStream in, int count) throws IOException {
+		if (in.skipBytes(count) != count)
+			throw new IOException("Truncated class file");
+	}
+
+	/**
+	 * Checks if a class file declares a field.
+	 * @param classFile class file.
+	 * @param fieldName field name.
+	 * @return a boolean indicating if given class file declares a field with given name.
+	 * @throws IOException if given data is not a valid class file.
+	 */
+	static boolean declaresField(byte[] classFile, String fieldName) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+
+		if (in.readInt() != MAGIC)
+			throw new IOException("Invalid class file");
+
+		skip(in, 4); // <-- Version
+
+		int constantPoolCount = in.readUnsignedShort();
+		String[] utf8 = new String[constantPoolCount];
+
+		for (int i = 1; i < constantPoolCount; i++) {
+			int tag = in.readUnsignedByte();
+
+			if (tag == CONSTANT_UTF8) {
+				utf8[i] = in.readUTF();
+			} else {
+				skip(in, getConstantSize(tag));
+
+				if (tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE)
+					i++; // <-- Takes two entries
+			}
+		}
+
+		skip(in, 6); // <-- Access flags, this class and super class
+		skip(in, 2 * in.readUnsignedShort()); // <-- Interfaces
+
+		int fieldCount = in.readUnsignedShort();
+
+		for (int i = 0; i < fieldCount; i++) {
+			skip(in, 2); // <-- Access flags
+			int nameIndex = in.readUnsignedShort();
+
+			if (nameIndex >= constantPoolCount)
+				throw new IOException("Invalid constant pool index: " + nameIndex);
+
+			if (fieldName.equals(utf8[nameIndex]))
+				return true;
+
+			skip(in, 2); // <-- Descriptor
+			int attributeCount = in.readUnsignedShort();
+
+			for (int j = 0; j < attributeCount; j++) {
+				skip(in, 2); // <-- Name
+				skip(in, in.readInt());
+			}
+		}
+
+		return false;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private ClassFiles() {}
+	// =========================================================================
+}
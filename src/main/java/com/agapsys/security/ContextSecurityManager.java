@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.BitSet;
+
+/**
+ * Security manager which checks requirements against the {@linkplain SecurityContext} bound to current thread.
+ * When there is no bound context, only methods without required roles are allowed.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class ContextSecurityManager extends SecurityManager {
+
+	// CLASS SCOPE =============================================================
+	/** @return a boolean indicating if given class overrides a method declared by given base class. */
+	private static boolean overrides(Class<?> cls, Class<?> baseClass, String name, Class<?>... parameterTypes) {
+		try {
+			return cls.getMethod(name, parameterTypes).getDeclaringClass() != baseClass;
+		} catch (NoSuchMethodException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	/** Defines if batch checks can be evaluated against the context mask (i.e. if per-method checks were not overridden by a subclass). */
+	private final boolean maskBatch = !overrides(getClass(), SecurityManager.class, "isAllowed", int.class, String[].class, long[].class) && !overrides(getClass(), ContextSecurityManager.class, "isAllowed", String[].class, long[].class);
+
+	@Override
+	public boolean isAllowed(String[] requiredRoles) {
+		return SecurityContext.getCurrent().hasRoles(requiredRoles);
+	}
+
+	@Override
+	public boolean isAllowed(String[] requiredRoles, long[] requiredRoleMask) {
+		return SecurityContext.getCurrent().hasRoles(requiredRoleMask);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * Principal roles are resolved once for all methods, unless a subclass overrides per-method checks (which are then called for each method, as guards do).
+	 */
+	@Override
+	public BitSet isAllowed(int[] methodIds) {
+		if (!maskBatch)
+			return super.isAllowed(methodIds);
+
+		long[] grantedRoleMask = SecurityContext.getCurrent().getEffectiveMask(); // <-- Resolved once for all methods
+		BitSet allowed = new BitSet(methodIds.length);
+
+		for (int i = 0; i < methodIds.length; i++) {
+			SecuredMethod method = MethodRegistry.getMethod(methodIds[i]);
+			RoleExpression expression = method.getRequiredExpression();
+
+			if (RoleRegistry.containsAll(grantedRoleMask, method.getSharedRequiredRoleMask()) && (expression == null || expression.evaluate(grantedRoleMask)) && isConditionSatisfied(method))
+				allowed.set(i);
+		}
+
+		return allowed;
+	}
+	// =========================================================================
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Future returned by a secured method whose body was deferred until a pending {@linkplain AsyncDecision} is completed (see {@linkplain SecurityManager#isAllowedAsync(int, String[], long[])}).
+ * Method body is executed by the executor defined when the method was called (see {@linkplain Security#setDeferredExecutor(java.util.concurrent.Executor)}), with the {@linkplain SecurityContext} of the caller bound.
+ * This future only supports blocking retrieval: it is returned only by methods whose declared return type is exactly {@linkplain Future}.
+ * If execution is not allowed, future fails with the exception thrown by {@linkplain SecurityManager#onNotAllowed(String, String[])}.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+final class DeferredFuture implements Future<Object>, AsyncDecision.Listener {
+
+	// CLASS SCOPE =============================================================
+	private static final int STATE_PENDING = 0;
+	private static final int STATE_RUNNING = 1;
+	private static final int STATE_DONE = 2;
+	private static final int STATE_CANCELLED = 3;
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final SecurityContext context = SecurityContext.getCurrent();
+	private final Executor executor = Security.getDeferredExecutor();
+	private final CountDownLatch latch = new CountDownLatch(1);
+
+	private final SecurityManager securityManager;
+	private final Method body;
+	private final Object target;
+	private final Object[] args;
+	private final String securedMethod;
+	private final String[] requiredRoles;
+
+	private int state = STATE_PENDING;
+	private volatile Future<?> result;
+	private volatile Throwable error;
+
+	DeferredFuture(SecurityManager securityManager, Method body, Object target, Object[] args, String securedMethod, String[] requiredRoles) {
+		this.securityManager = securityManager;
+		this.body = body;
+		this.target = target;
+		this.args = args;
+		this.securedMethod = securedMethod;
+		this.requiredRoles = requiredRoles;
+	}
+
+	@Override
+	public void onCompleted(final AsyncDecision decision) {
+		if (executor == null) {
+			run(decision);
+			return;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					DeferredFuture.this.run(decision);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			synchronized (this) {
+				if (state != STATE_PENDING)
+					return;
+
+				error = ex;
+				state = STATE_DONE;
+			}
+
+			latch.countDown();
+		}
+	}
+
+	/** Runs method body (or fails if execution is not allowed). */
+	private void run(AsyncDecision decision) {
+		synchronized (this) {
+			if (state != STATE_PENDING)
+				return;
+
+			state = STATE_RUNNING;
+		}
+
+		SecurityContext.Scope scope = context.bind();
+
+		try {
+			if (!decision.isAllowed())
+				securityManager.onNotAllowed(securedMethod, requiredRoles);
+
+			result = (Future<?>) body.invoke(target, args);
+		} catch (InvocationTargetException ex) {
+			error = ex.getCause();
+		} catch (Throwable t) {
+			error = t;
+		} finally {
+			scope.close();
+		}
+
+		synchronized (this) {
+			state = STATE_DONE;
+		}
+
+		latch.countDown();
+	}
+
+	private void checkCompletion() throws ExecutionException {
+		if (isCancelled())
+			throw new CancellationException();
+
+		if (error != null)
+			throw new ExecutionException(error);
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (state == STATE_PENDING) {
+				state = STATE_CANCELLED;
+				latch.countDown();
+				return true;
+			}
+		}
+
+		Future<?> f = result;
+		return f != null && f.cancel(mayInterruptIfRunning);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		if (state == STATE_CANCELLED)
+			return true;
+
+		Future<?> f = result;
+		return f != null && f.isCancelled();
+	}
+
+	@Override
+	public boolean isDone() {
+		if (latch.getCount() > 0)
+			return false;
+
+		Future<?> f = result;
+		return f == null || f.isDone();
+	}
+
+	@Override
+	public Object get() throws InterruptedException, ExecutionException {
+		latch.await();
+		checkCompletion();
+
+		Future<?> f = result;
+		return f != null ? f.get() : null; // <-- Method body may return null
+	}
+
+	@Override
+	public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		if (!latch.await(timeout, unit))
+			throw new TimeoutException();
+
+		checkCompletion();
+
+		Future<?> f = result;
+		return f != null ? f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS) : null;
+	}
+	// =========================================================================
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+/**
+ * Condition on a method argument declared through {@linkplain Secured#conditions()}.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+final class MethodCondition {
+
+	// CLASS SCOPE =============================================================
+	private static boolean isIdentifier(String str) {
+		if (str.isEmpty() || !Character.isJavaIdentifierStart(str.charAt(0)))
+			return false;
+
+		for (int i = 1; i < str.length(); i++) {
+			if (!Character.isJavaIdentifierPart(str.charAt(i)))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Parses a condition.
+	 * @param condition condition declaration (e.g. <code>sameTenant(tenantId)</code>, <code>owner($1)</code> or <code>businessHours()</code>).
+	 * @return parsed condition.
+	 * @throws IllegalArgumentException if given condition is invalid.
+	 */
+	static MethodCondition parse(String condition) {
+		int open = condition.indexOf('(');
+		String name = open < 0 ? "" : condition.substring(0, open).trim();
+
+		if (open < 0 || !condition.trim().endsWith(")") || !isIdentifier(name))
+			throw new IllegalArgumentException(String.format("Invalid condition '%s'", condition));
+
+		String parameter = condition.substring(open + 1, condition.lastIndexOf(')')).trim();
+
+		if (parameter.isEmpty())
+			return new MethodCondition(name, null, -1);
+
+		if (parameter.startsWith("$")) {
+			int position;
+
+			try {
+				position = Integer.parseInt(parameter.substring(1));
+			} catch (NumberFormatException ex) {
+				position = 0;
+			}
+
+			if (position < 1)
+				throw new IllegalArgumentException(String.format("Invalid parameter position in condition '%s'", condition));
+
+			return new MethodCondition(name, null, position);
+		}
+
+		if (!isIdentifier(parameter))
+			throw new IllegalArgumentException(String.format("Invalid condition '%s'", condition));
+
+		return new MethodCondition(name, parameter, -1);
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final String name;
+	private final String parameterName;
+	private final int parameterPosition;
+
+	private MethodCondition(String name, String parameterName, int parameterPosition) {
+		this.name = name;
+		this.parameterName = parameterName;
+		this.parameterPosition = parameterPosition;
+	}
+
+	/** @return condition name. */
+	String getName() {
+		return name;
+	}
+
+	/** @return name of the parameter passed to the condition or <code>null</code> if parameter is referenced by position (or if there is no parameter). */
+	String getParameterName() {
+		return parameterName;
+	}
+
+	/** @return position (starting at 1) of the parameter passed to the condition or -1 if parameter is referenced by name (or if there is no parameter). */
+	int getParameterPosition() {
+		return parameterPosition;
+	}
+
+	/** @return a boolean indicating if this condition receives an argument. */
+	boolean hasParameter() {
+		return parameterName != null || parameterPosition > 0;
+	}
+	// =========================================================================
+}
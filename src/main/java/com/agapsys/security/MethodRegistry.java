@@ -0,0 +1,500 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry assigning dense integer ids to secured methods.
+ * Woven classes register their secured methods (along with their requirements) when they are initialized, so guards identify the method being invoked by an integer
+ * which security managers (see {@linkplain SecurityManager#isAllowed(int, String[], long[])}), caches and metrics can use without reflection or stack walking.
+ * Methods are registered per defining class loader: a class loaded by distinct class loaders (e.g. by distinct {@linkplain SecurityDomain domains} or after a redeployment) registers its methods
+ * under distinct ids, so each one is checked against its own requirements. A method registered twice by the same class loader keeps its id, but its declared requirement is replaced if it changed
+ * (e.g. when a class is redefined). Methods released along with their class loader (see {@linkplain SecurityDomain#close()}) cannot be looked up anymore, and their ids are recycled by methods registered afterwards
+ * with the same class, name and descriptor (e.g. by a redeployed version), so redeployments do not grow the registry (nor the tables indexed by method id, such as {@linkplain SecurityMetrics}).
+ * Until its id is recycled, a released method keeps its metadata (e.g. for audit logs writing its events), which holds no reference to its class loader.
+ * <p>Registry is also the requirement table read by woven guards, so required roles can be replaced at runtime (see {@linkplain #setRequiredRoles(Map)}) without weaving classes again.
+ * Each method has a {@linkplain RequirementHolder holder} kept by its woven class in a constant (see {@linkplain #getHolder(int)}), so a guard reads its requirement through a volatile load of the holder instead of indexing the registry.
+ * Holders are updated only when requirements are replaced, and a guard observes either the previous or the new requirement of its method (never a mix of both).
+ * Lookups by id (see {@linkplain #getMethod(int)}) read a snapshot which is replaced as a whole, so several replacements are observed at once. Role expressions and conditions are compiled into guards and cannot be replaced.</p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class MethodRegistry {
+
+	// CLASS SCOPE =============================================================
+	/** Methods registered by a class loader. */
+	private static final class Registrations {
+		private final Map<String, Integer> methodIds = new HashMap<>(); // <-- Keyed by class, name and descriptor
+		private final Map<String, Integer> longNameIds = new HashMap<>();
+	}
+
+	private static final Object NO_CLASS_LOADER = new Object(); // <-- Key of methods registered without class loader (e.g. by classes woven by previous versions)
+	private static final Map<Object, Registrations> REGISTRATIONS = new WeakHashMap<>(); // <-- Keyed by defining class loader. Guarded by class lock
+	private static final ConcurrentMap<String, Integer> LONG_NAME_IDS = new ConcurrentHashMap<>(); // <-- Most recent registration of each long name
+	private static final Map<String, Deque<Integer>> RELEASED_IDS = new HashMap<>(); // <-- Ids of released methods keyed by class, name and descriptor. Guarded by class lock
+	private static volatile SecuredMethod[] methods = new SecuredMethod[0];
+	private static RequirementHolder[] holders = new RequirementHolder[0]; // <-- Guarded by class lock. Holders are never replaced, since woven classes keep them
+
+	private static Object toKey(ClassLoader classLoader) {
+		return classLoader != null ? classLoader : NO_CLASS_LOADER;
+	}
+
+	private static String toLongName(String className, String methodName, String descriptor) {
+		StringBuilder sb = new StringBuilder(className).append('.').append(methodName).append('(');
+		int i = 1; // <-- Skips '('
+		boolean first = true;
+
+		while (descriptor.charAt(i) != ')') {
+			int dimensions = 0;
+
+			while (descriptor.charAt(i) == '[') {
+				dimensions++;
+				i++;
+			}
+
+			String type;
+			char c = descriptor.charAt(i);
+
+			switch (c) {
+				case 'Z': type = "boolean"; break;
+				case 'B': type = "byte"; break;
+				case 'C': type = "char"; break;
+				case 'S': type = "short"; break;
+				case 'I': type = "int"; break;
+				case 'J': type = "long"; break;
+				case 'F': type = "float"; break;
+				case 'D': type = "double"; break;
+
+				case 'L':
+					int end = descriptor.indexOf(';', i);
+					type = descriptor.substring(i + 1, end).replace('/', '.');
+					i = end;
+					break;
+
+				default:
+					throw new IllegalArgumentException("Invalid descriptor: " + descriptor);
+			}
+
+			i++;
+
+			if (!first)
+				sb.append(',');
+
+			sb.append(type);
+
+			for (int d = 0; d < dimensions; d++) {
+				sb.append("[]");
+			}
+
+			first = false;
+		}
+
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * Registers a secured method.
+	 * This method is used by woven code and it is not intended to be used directly.
+	 * @param className name of the class declaring the method.
+	 * @param methodName method name.
+	 * @param descriptor method descriptor (e.g. <code>(Ljava/lang/String;)V</code>).
+	 * @param requiredRoles roles required by the method.
+	 * @return method id.
+	 */
+	public static int register(String className, String methodName, String descriptor, String[] requiredRoles) {
+		return register(className, methodName, descriptor, requiredRoles, null);
+	}
+
+	/**
+	 * Registers a secured method.
+	 * This method is used by woven code and it is not intended to be used directly.
+	 * @param className name of the class declaring the method.
+	 * @param methodName method name.
+	 * @param descriptor method descriptor (e.g. <code>(Ljava/lang/String;)V</code>).
+	 * @param requiredRoles roles required by the method.
+	 * @param requiredExpression role expression which must also be satisfied (see {@linkplain RoleExpression}) or <code>null</code>.
+	 * @return method id.
+	 */
+	public static int register(String className, String methodName, String descriptor, String[] requiredRoles, String requiredExpression) {
+		return register(className, methodName, descriptor, requiredRoles, requiredExpression, null);
+	}
+
+	/**
+	 * Registers a secured method.
+	 * This method is used by woven code and it is not intended to be used directly.
+	 * @param className name of the class declaring the method.
+	 * @param methodName method name.
+	 * @param descriptor method descriptor (e.g. <code>(Ljava/lang/String;)V</code>).
+	 * @param requiredRoles roles required by the method.
+	 * @param requiredExpression role expression which must also be satisfied (see {@linkplain RoleExpression}) or <code>null</code>.
+	 * @param conditions conditions on method arguments (see {@linkplain Secured#conditions()}) or <code>null</code>.
+	 * @return method id.
+	 */
+	public static int register(String className, String methodName, String descriptor, String[] requiredRoles, String requiredExpression, String[] conditions) {
+		return register((ClassLoader) null, className, methodName, descriptor, requiredRoles, requiredExpression, conditions);
+	}
+
+	/**
+	 * Registers a secured method of a class.
+	 * This method is used by woven code and it is not intended to be used directly.
+	 * @param declaringClass class declaring the method.
+	 * @param methodName method name.
+	 * @param descriptor method descriptor (e.g. <code>(Ljava/lang/String;)V</code>).
+	 * @param requiredRoles roles required by the method.
+	 * @param requiredExpression role expression which must also be satisfied (see {@linkplain RoleExpression}) or <code>null</code>.
+	 * @param conditions conditions on method arguments (see {@linkplain Secured#conditions()}) or <code>null</code>.
+	 * @return method id.
+	 */
+	public static int register(Class<?> declaringClass, String methodName, String descriptor, String[] requiredRoles, String requiredExpression, String[] conditions) {
+		return register(declaringClass.getClassLoader(), declaringClass.getName(), methodName, descriptor, requiredRoles, requiredExpression, conditions);
+	}
+
+	/**
+	 * Registers a secured method of a class defined (or to be defined) by given class loader.
+	 * @param classLoader defining class loader (<code>null</code> if unknown).
+	 */
+	static synchronized int register(ClassLoader classLoader, String className, String methodName, String descriptor, String[] requiredRoles, String requiredExpression, String[] conditions) {
+		if (className == null || className.isEmpty())
+			throw new IllegalArgumentException("Null/Empty class name");
+
+		if (methodName == null || methodName.isEmpty())
+			throw new IllegalArgumentException("Null/Empty method name");
+
+		if (descriptor == null || !descriptor.startsWith("("))
+			throw new IllegalArgumentException("Invalid descriptor: " + descriptor);
+
+		if (requiredRoles == null)
+			throw new IllegalArgumentException("Required roles cannot be null");
+
+		Object loaderKey = toKey(classLoader);
+		Registrations registrations = REGISTRATIONS.get(loaderKey);
+
+		if (registrations == null) {
+			registrations = new Registrations();
+			REGISTRATIONS.put(loaderKey, registrations);
+		}
+
+		String key = className + "." + methodName + descriptor;
+		Integer id = registrations.methodIds.get(key);
+		String longName = toLongName(className, methodName, descriptor);
+		RoleExpression expression = requiredExpression != null ? RoleExpression.parse(requiredExpression) : null;
+		String[] conditionArray = conditions != null ? conditions : new String[0];
+
+		if (id == null) {
+			Deque<Integer> releasedIds = RELEASED_IDS.get(key);
+			SecuredMethod[] arr;
+
+			if (releasedIds != null) {
+				id = releasedIds.removeFirst(); // <-- Guards of released classes keep their own holders, so recycled id gets a new one
+
+				if (releasedIds.isEmpty())
+					RELEASED_IDS.remove(key);
+
+				arr = methods.clone();
+			} else {
+				arr = Arrays.copyOf(methods, methods.length + 1);
+				id = arr.length - 1;
+				holders = Arrays.copyOf(holders, arr.length);
+			}
+
+			arr[id] = new SecuredMethod(id, className, methodName, descriptor, longName, requiredRoles, expression, conditionArray);
+			holders[id] = new RequirementHolder(arr[id]);
+			methods = arr;
+
+			registrations.methodIds.put(key, id);
+
+			if (!registrations.longNameIds.containsKey(longName)) { // <-- Methods differing only by return type (e.g. bridge methods) share the long name
+				registrations.longNameIds.put(longName, id);
+				LONG_NAME_IDS.put(longName, id);
+			}
+		} else {
+			SecuredMethod declared = methods[id].getDeclared();
+
+			if (!declared.isDeclaredAs(requiredRoles, expression, conditionArray)) { // <-- Class was redefined with another requirement, which replaces the previous one (and any runtime override)
+				SecuredMethod[] arr = methods.clone();
+				arr[id] = new SecuredMethod(id, className, methodName, descriptor, longName, requiredRoles, expression, conditionArray);
+				publish(arr);
+				Security.getLogger().log(SecurityLogger.Level.INFO, "Replaced declared requirement of {}", longName);
+			}
+		}
+
+		return id;
+	}
+
+	/**
+	 * Checks if methods were registered by given class loader or by its descendants.
+	 * @param classLoader class loader.
+	 * @return a boolean indicating if secured classes of given class loader (or of its descendants) were initialized.
+	 */
+	static synchronized boolean hasRegistrations(ClassLoader classLoader) {
+		for (Object key : REGISTRATIONS.keySet()) {
+			if (key == NO_CLASS_LOADER)
+				continue;
+
+			for (ClassLoader cl = (ClassLoader) key; cl != null; cl = cl.getParent()) {
+				if (cl == classLoader)
+					return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Releases the methods registered by given class loader and by its descendants (e.g. when a {@linkplain SecurityDomain} is closed).
+	 * Released methods cannot be looked up anymore, so methods registered afterwards by other class loaders are never resolved to them.
+	 * @param classLoader class loader.
+	 * @param retained class loaders whose methods (and the ones of their descendants) are not released, even if they descend from given class loader (e.g. the ones owning other open domains).
+	 */
+	static synchronized void release(ClassLoader classLoader, Set<ClassLoader> retained) {
+		List<Registrations> released = new ArrayList<>();
+
+		for (Object key : new ArrayList<>(REGISTRATIONS.keySet())) {
+			if (key == NO_CLASS_LOADER)
+				continue;
+
+			for (ClassLoader cl = (ClassLoader) key; cl != null; cl = cl.getParent()) {
+				if (cl != classLoader && retained.contains(cl))
+					break;
+
+				if (cl == classLoader) {
+					released.add(REGISTRATIONS.remove(key));
+					break;
+				}
+			}
+		}
+
+		for (Registrations registrations : released) {
+			for (Map.Entry<String, Integer> entry : registrations.methodIds.entrySet()) {
+				Deque<Integer> releasedIds = RELEASED_IDS.get(entry.getKey());
+
+				if (releasedIds == null) {
+					releasedIds = new ArrayDeque<>();
+					RELEASED_IDS.put(entry.getKey(), releasedIds);
+				}
+
+				releasedIds.add(entry.getValue());
+			}
+
+			for (Map.Entry<String, Integer> entry : registrations.longNameIds.entrySet()) {
+				String longName = entry.getKey();
+
+				if (!LONG_NAME_IDS.remove(longName, entry.getValue()))
+					continue;
+
+				for (Registrations remaining : REGISTRATIONS.values()) { // <-- Name is resolved to a method registered by another class loader (if any)
+					Integer id = remaining.longNameIds.get(longName);
+
+					if (id != null)
+						LONG_NAME_IDS.put(longName, id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the id of a registered method.
+	 * If a method with given name was registered by several class loaders, the id of the most recent registration is returned (see {@linkplain #getId(Method)}).
+	 * @param longName method long name (e.g. <code>com.example.Foo.run(java.lang.String)</code>).
+	 * @return method id or -1 if given method is not registered.
+	 */
+	public static int getId(String longName) {
+		Integer id = LONG_NAME_IDS.get(longName);
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * Returns the id of a registered method.
+	 * @param method secured method.
+	 * @return id registered by the class loader of the class declaring given method, or -1 if given method is not registered (e.g. if its class was not woven or initialized).
+	 */
+	public static int getId(Method method) {
+		StringBuilder sb = new StringBuilder(method.getDeclaringClass().getName()).append('.').append(method.getName()).append('(');
+		Class<?>[] parameterTypes = method.getParameterTypes();
+
+		for (int i = 0; i < parameterTypes.length; i++) {
+			if (i > 0)
+				sb.append(',');
+
+			Class<?> type = parameterTypes[i];
+			int dimensions = 0;
+
+			while (type.isArray()) {
+				type = type.getComponentType();
+				dimensions++;
+			}
+
+			sb.append(type.getName());
+
+			for (int d = 0; d < dimensions; d++) {
+				sb.append("[]");
+			}
+		}
+
+		String longName = sb.append(')').toString();
+		Integer id;
+
+		synchronized (MethodRegistry.class) {
+			Registrations registrations = REGISTRATIONS.get(toKey(method.getDeclaringClass().getClassLoader()));
+			id = registrations != null ? registrations.longNameIds.get(longName) : null;
+
+			if (id == null) {
+				registrations = REGISTRATIONS.get(NO_CLASS_LOADER); // <-- Registered without class loader
+				id = registrations != null ? registrations.longNameIds.get(longName) : null;
+			}
+		}
+
+		return id != null ? id : -1;
+	}
+
+	/**
+	 * Returns the metadata of a registered method.
+	 * @param id method id.
+	 * @return method metadata.
+	 */
+	public static SecuredMethod getMethod(int id) {
+		SecuredMethod[] arr = methods;
+
+		if (id < 0 || id >= arr.length)
+			throw new IllegalArgumentException("Invalid method id: " + id);
+
+		return arr[id];
+	}
+
+	/**
+	 * Returns the current metadata (and requirement) of a registered method without validating given id.
+	 * This method is used by guards of classes which cannot keep the {@linkplain #getHolder(int) holder} of their methods (e.g. retransformed classes) and it is not intended to be used directly.
+	 * @param id method id.
+	 * @return method metadata.
+	 */
+	public static SecuredMethod getRequirement(int id) {
+		return methods[id];
+	}
+
+	/**
+	 * Returns the holder of the current metadata (and requirement) of a registered method.
+	 * This method is used by woven code and it is not intended to be used directly.
+	 * @param id method id.
+	 * @return holder, which is the same instance for the whole lifetime of the method.
+	 */
+	public static synchronized RequirementHolder getHolder(int id) {
+		if (id < 0 || id >= holders.length)
+			throw new IllegalArgumentException("Invalid method id: " + id);
+
+		return holders[id];
+	}
+
+	/** Publishes given snapshot and updates the holders of modified methods. Called with class lock held. */
+	private static void publish(SecuredMethod[] arr) {
+		methods = arr;
+
+		for (int i = 0; i < arr.length; i++) {
+			if (holders[i].get() != arr[i])
+				holders[i].set(arr[i]);
+		}
+	}
+
+	/**
+	 * Replaces the roles required by a registered method.
+	 * @param id method id.
+	 * @param requiredRoles roles required by the method.
+	 */
+	public static void setRequiredRoles(int id, String... requiredRoles) {
+		setRequiredRoles(Collections.singletonMap(id, requiredRoles));
+	}
+
+	/**
+	 * Replaces the roles required by registered methods. All replacements are published at once to lookups by id (see {@linkplain #getMethod(int)}), while each guard observes the replacement of its own method.
+	 * Decisions cached before replacement (e.g. by {@linkplain CachingSecurityManager}) become stale.
+	 * @param requiredRoles map of method ids to required roles.
+	 */
+	public static synchronized void setRequiredRoles(Map<Integer, String[]> requiredRoles) {
+		if (requiredRoles == null)
+			throw new IllegalArgumentException("Required roles cannot be null");
+
+		SecuredMethod[] arr = methods.clone();
+
+		for (Map.Entry<Integer, String[]> entry : requiredRoles.entrySet()) {
+			Integer id = entry.getKey();
+			String[] roles = entry.getValue();
+
+			if (id == null || id < 0 || id >= arr.length)
+				throw new IllegalArgumentException("Invalid method id: " + id);
+
+			if (roles == null)
+				throw new IllegalArgumentException("Required roles cannot be null");
+
+			for (int i = 0; i < roles.length; i++) {
+				if (roles[i] == null || roles[i].trim().isEmpty())
+					throw new IllegalArgumentException("Null/Empty role at index " + i);
+			}
+
+			arr[id] = arr[id].withRequiredRoles(roles);
+		}
+
+		publish(arr); // <-- Single snapshot swap
+
+		if (!requiredRoles.isEmpty())
+			Security.getLogger().log(SecurityLogger.Level.INFO, "Replaced required roles of {} method(s)", requiredRoles.size());
+	}
+
+	/** Restores the roles declared by all registered methods whose required roles were replaced. */
+	public static synchronized void resetRequiredRoles() {
+		SecuredMethod[] arr = methods.clone();
+		boolean modified = false;
+
+		for (int i = 0; i < arr.length; i++) {
+			if (arr[i].isOverridden()) {
+				arr[i] = arr[i].getDeclared();
+				modified = true;
+			}
+		}
+
+		if (modified)
+			publish(arr);
+	}
+
+	/**
+	 * Returns the long name of a registered method.
+	 * @param id method id.
+	 * @return method long name.
+	 */
+	public static String getName(int id) {
+		return getMethod(id).getLongName();
+	}
+
+	/** @return the number of registered methods. */
+	public static int getMethodCount() {
+		return methods.length;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private MethodRegistry() {}
+	// =========================================================================
+}
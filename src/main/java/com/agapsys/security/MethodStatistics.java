@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+/**
+ * Authorization statistics of a secured method (see {@linkplain SecurityMetrics}).
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class MethodStatistics {
+	private final String method;
+	private final long allowCount;
+	private final long denyCount;
+	private final long[] latencyHistogram;
+
+	MethodStatistics(String method, long allowCount, long denyCount, long[] latencyHistogram) {
+		this.method = method;
+		this.allowCount = allowCount;
+		this.denyCount = denyCount;
+		this.latencyHistogram = latencyHistogram;
+	}
+
+	/** @return method long name. */
+	public String getMethod() {
+		return method;
+	}
+
+	/** @return number of allowed executions. */
+	public long getAllowCount() {
+		return allowCount;
+	}
+
+	/** @return number of denied executions. */
+	public long getDenyCount() {
+		return denyCount;
+	}
+
+	/** @return latency histogram of security manager decisions (see {@linkplain SecurityMetrics#getLatencyHistogram(int)}). */
+	public long[] getLatencyHistogram() {
+		return latencyHistogram.clone();
+	}
+}
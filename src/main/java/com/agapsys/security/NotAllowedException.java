@@ -15,11 +15,106 @@
  */
 package com.agapsys.security;
 
+import java.util.Arrays;
+
 /**
  *
  * @author Leandro Oliveira (leandro@agapsys.com)
  */
 public class NotAllowedException extends RuntimeException {
 
-	public NotAllowedException() {}
+	// CLASS SCOPE =============================================================
+	private static final long serialVersionUID = 1L;
+
+	/** Defines how instances are created by {@linkplain #newInstance(String, String[])}. */
+	public static enum Mode {
+		/** A new instance (with stack trace) is created for each denial. This is the default mode. */
+		STACK_TRACE,
+
+		/** A new instance without stack trace is created for each denial. */
+		NO_STACK_TRACE,
+
+		/** A single shared instance (without stack trace and details) is used for all denials. */
+		SHARED
+	}
+
+	private static final NotAllowedException SHARED_INSTANCE = new NotAllowedException(null, null, false);
+
+	private static volatile Mode mode = Mode.STACK_TRACE;
+
+	/**
+	 * Defines how instances are created by {@linkplain #newInstance(String, String[])}.
+	 * @param mode creation mode. By default, {@linkplain Mode#STACK_TRACE} is used.
+	 */
+	public static void setMode(Mode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException("Mode cannot be null");
+
+		NotAllowedException.mode = mode;
+	}
+
+	/** @return creation mode used by {@linkplain #newInstance(String, String[])}. */
+	public static Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Returns an exception according to current creation mode (see {@linkplain #setMode(Mode)}).
+	 * @param securedMethod secured method (may be <code>null</code>).
+	 * @param requiredRoles roles required by secured method (may be <code>null</code>). This array is not copied.
+	 * @return exception instance.
+	 */
+	public static NotAllowedException newInstance(String securedMethod, String[] requiredRoles) {
+		switch (mode) {
+			case SHARED:
+				return SHARED_INSTANCE;
+
+			case NO_STACK_TRACE:
+				return new NotAllowedException(securedMethod, requiredRoles, false);
+
+			default:
+				return new NotAllowedException(securedMethod, requiredRoles, true);
+		}
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final String securedMethod;
+	private final String[] requiredRoles;
+	private String message = null;
+
+	public NotAllowedException() {
+		this(null, null, true);
+	}
+
+	public NotAllowedException(String securedMethod, String[] requiredRoles) {
+		this(securedMethod, requiredRoles, true);
+	}
+
+	protected NotAllowedException(String securedMethod, String[] requiredRoles, boolean writableStackTrace) {
+		super(null, null, writableStackTrace, writableStackTrace);
+		this.securedMethod = securedMethod;
+		this.requiredRoles = requiredRoles;
+	}
+
+	/** @return the secured method which execution was not allowed or <code>null</code> if not available. */
+	public String getSecuredMethod() {
+		return securedMethod;
+	}
+
+	/** @return the roles required by secured method or <code>null</code> if not available. */
+	public String[] getRequiredRoles() {
+		return requiredRoles != null ? requiredRoles.clone() : null;
+	}
+
+	@Override
+	public String getMessage() {
+		if (message == null && securedMethod != null) {
+			String roles = requiredRoles != null ? Arrays.toString(requiredRoles) : "[]";
+			message = String.format("Execution of '%s' is not allowed (required roles: %s)", securedMethod, roles);
+		}
+
+		return message;
+	}
+	// =========================================================================
 }
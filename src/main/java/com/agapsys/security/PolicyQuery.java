@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.Arrays;
+
+/**
+ * Authorization query sent to a policy decision point (see {@linkplain RemotePolicySecurityManager}).
+ * Queries are equal if they have the same principal, method and required roles, so identical queries can be coalesced and cached.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class PolicyQuery {
+	private final Object principal;
+	private final int methodId;
+	private final String[] requiredRoles;
+	private final int hash;
+
+	/**
+	 * Constructor.
+	 * @param principal principal requesting execution (may be <code>null</code> for anonymous requests).
+	 * @param methodId secured method id (see {@linkplain MethodRegistry}) or -1 if query is not related to a secured method.
+	 * @param requiredRoles roles required for execution.
+	 */
+	public PolicyQuery(Object principal, int methodId, String[] requiredRoles) {
+		if (requiredRoles == null)
+			throw new IllegalArgumentException("Required roles cannot be null");
+
+		this.principal = principal;
+		this.methodId = methodId;
+		this.requiredRoles = requiredRoles;
+		this.hash = 31 * (31 * (principal != null ? principal.hashCode() : 0) + methodId) + Arrays.hashCode(requiredRoles);
+	}
+
+	/** @return principal requesting execution (<code>null</code> for anonymous requests). */
+	public Object getPrincipal() {
+		return principal;
+	}
+
+	/** @return secured method id or -1 if query is not related to a secured method. */
+	public int getMethodId() {
+		return methodId;
+	}
+
+	/** @return a copy of the roles required for execution. */
+	public String[] getRequiredRoles() {
+		return requiredRoles.clone();
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof PolicyQuery))
+			return false;
+
+		PolicyQuery other = (PolicyQuery) obj;
+		return hash == other.hash && methodId == other.methodId && (principal == null ? other.principal == null : principal.equals(other.principal)) && Arrays.equals(requiredRoles, other.requiredRoles);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("PolicyQuery[principal: %s, methodId: %d, requiredRoles: %s]", principal, methodId, Arrays.toString(requiredRoles));
+	}
+}
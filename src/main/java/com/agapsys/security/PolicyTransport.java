@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Transport used by {@linkplain RemotePolicySecurityManager} to send queries to a policy decision point (e.g. over HTTP or gRPC).
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public interface PolicyTransport {
+	/**
+	 * Sends a batch of queries in a single request.
+	 * This method is called by a single dispatcher thread, so implementations may block.
+	 * @param queries distinct queries to be decided.
+	 * @return decisions, where <code>decisions[i]</code> is the decision for <code>queries.get(i)</code>.
+	 * @throws IOException if policy decision point cannot be reached. All queries of the batch fail (and are not cached).
+	 */
+	public boolean[] decide(List<PolicyQuery> queries) throws IOException;
+}
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Security manager which delegates decisions to an external policy decision point through a {@linkplain PolicyTransport}.
+ * In order to reduce round trips under bursty load:
+ * <ul>
+ * <li>Concurrent identical queries (see {@linkplain PolicyQuery}) are coalesced: only the first one is sent and all callers share its decision.</li>
+ * <li>Distinct queries issued within a batch window are sent in a single request (a batch is sent earlier if it reaches maximum batch size).</li>
+ * <li>Decisions are cached until they expire or are invalidated (see {@linkplain #invalidate()}). Cache is bounded (least recently used entries are evicted first).</li>
+ * </ul>
+ * Decisions are taken asynchronously (see {@linkplain #isAllowedAsync(int, String[], long[])}), so secured methods returning futures do not block callers. Synchronous checks wait for decisions up to a timeout and fail when it expires.
+ * Requests are sent by a single dispatcher thread, but decisions are completed (and deferred method bodies are executed) by a separate pool, so listeners never block the dispatcher.
+ * Failed requests fail their decisions and are not cached. Failed (or timed out) checks throw instead of returning <code>false</code>, so execution is not allowed regardless of expression polarity.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class RemotePolicySecurityManager extends SecurityManager implements Closeable {
+
+	// CLASS SCOPE =============================================================
+	private static final long DEFAULT_BATCH_WINDOW_MILLIS = 2;
+	private static final int DEFAULT_MAX_BATCH_SIZE = 256;
+	private static final long DEFAULT_TTL_SECONDS = 60;
+	private static final int DEFAULT_MAX_CACHE_SIZE = 10000;
+	private static final long DEFAULT_DECISION_TIMEOUT_SECONDS = 5;
+	private static final int CACHE_SEGMENT_COUNT = 16;
+
+	private static ThreadFactory newThreadFactory(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static class CacheEntry {
+		private final boolean allowed;
+		private final long epoch;
+		private final long expiresAt;
+
+		public CacheEntry(boolean allowed, long epoch, long expiresAt) {
+			this.allowed = allowed;
+			this.epoch = epoch;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static class CacheSegment extends LinkedHashMap<PolicyQuery, CacheEntry> {
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		public CacheSegment(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<PolicyQuery, CacheEntry> eldest) {
+			return size() > maxSize;
+		}
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final PolicyTransport transport;
+	private final long batchWindowNanos;
+	private final int maxBatchSize;
+	private final long ttlNanos;
+	private final long decisionTimeoutNanos;
+
+	private final ScheduledExecutorService dispatcher;
+	private final ExecutorService completer;
+	private final CacheSegment[] cacheSegments;
+	private final ConcurrentMap<PolicyQuery, AsyncDecision> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong epoch = new AtomicLong();
+
+	private final Object batchLock = new Object();
+	private List<PolicyQuery> batch = new ArrayList<>();
+	private boolean closed = false;
+
+	private final AtomicLong queryCount = new AtomicLong();
+	private final AtomicLong cacheHitCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong requestCount = new AtomicLong();
+
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * Constructor.
+	 * @param transport transport used to reach policy decision point.
+	 * @param batchWindow time distinct queries wait for other ones before being sent. Passing zero sends queries as soon as possible (queries issued while a request is being sent are still batched).
+	 * @param batchWindowUnit time unit of batch window.
+	 * @param maxBatchSize maximum number of queries sent in a single request.
+	 * @param ttl time-to-live of cached decisions. Passing zero implies in no expiration.
+	 * @param ttlUnit time unit of time-to-live.
+	 * @param maxCacheSize maximum number of cached decisions (least recently used decisions are evicted when it is full). Passing zero disables caching.
+	 * @param decisionTimeout maximum time synchronous checks wait for a decision. Checks fail (so execution is not allowed) when it expires.
+	 * @param decisionTimeoutUnit time unit of decision timeout.
+	 */
+	public RemotePolicySecurityManager(PolicyTransport transport, long batchWindow, TimeUnit batchWindowUnit, int maxBatchSize, long ttl, TimeUnit ttlUnit, int maxCacheSize, long decisionTimeout, TimeUnit decisionTimeoutUnit) {
+		if (transport == null)
+			throw new IllegalArgumentException("A transport must be provided");
+
+		if (batchWindow < 0)
+			throw new IllegalArgumentException("Invalid batch window: " + batchWindow);
+
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Invalid max batch size: " + maxBatchSize);
+
+		if (ttl < 0)
+			throw new IllegalArgumentException("Invalid time-to-live: " + ttl);
+
+		if (maxCacheSize < 0)
+			throw new IllegalArgumentException("Invalid max cache size: " + maxCacheSize);
+
+		if (decisionTimeout <= 0)
+			throw new IllegalArgumentException("Invalid decision timeout: " + decisionTimeout);
+
+		this.transport = transport;
+		this.batchWindowNanos = batchWindowUnit.toNanos(batchWindow);
+		this.maxBatchSize = maxBatchSize;
+		this.ttlNanos = ttlUnit.toNanos(ttl);
+		this.cacheSegments = new CacheSegment[maxCacheSize > 0 ? CACHE_SEGMENT_COUNT : 0];
+		this.decisionTimeoutNanos = decisionTimeoutUnit.toNanos(decisionTimeout);
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, newThreadFactory("security-policy-client"));
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false); // <-- Pending batch is failed by close(), so scheduled flushes are dropped
+		this.dispatcher = executor;
+		this.completer = Executors.newCachedThreadPool(newThreadFactory("security-policy-callback")); // <-- Unbounded, so deferred bodies waiting for nested decisions do not starve other completions
+
+		int segmentSize = Math.max(1, (maxCacheSize + CACHE_SEGMENT_COUNT - 1) / CACHE_SEGMENT_COUNT);
+
+		for (int i = 0; i < cacheSegments.length; i++) {
+			cacheSegments[i] = new CacheSegment(segmentSize);
+		}
+	}
+
+	/**
+	 * Constructor. Synchronous checks wait up to 5 seconds for a decision.
+	 * @param transport transport used to reach policy decision point.
+	 * @param batchWindow time distinct queries wait for other ones before being sent. Passing zero sends queries as soon as possible (queries issued while a request is being sent are still batched).
+	 * @param batchWindowUnit time unit of batch window.
+	 * @param maxBatchSize maximum number of queries sent in a single request.
+	 * @param ttl time-to-live of cached decisions. Passing zero implies in no expiration.
+	 * @param ttlUnit time unit of time-to-live.
+	 * @param maxCacheSize maximum number of cached decisions (least recently used decisions are evicted when it is full). Passing zero disables caching.
+	 */
+	public RemotePolicySecurityManager(PolicyTransport transport, long batchWindow, TimeUnit batchWindowUnit, int maxBatchSize, long ttl, TimeUnit ttlUnit, int maxCacheSize) {
+		this(transport, batchWindow, batchWindowUnit, maxBatchSize, ttl, ttlUnit, maxCacheSize, DEFAULT_DECISION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Constructor. Created instance uses a batch window of 2 milliseconds, batches of up to 256 queries, caches up to 10000 decisions for 60 seconds and waits up to 5 seconds for synchronous decisions.
+	 * @param transport transport used to reach policy decision point.
+	 */
+	public RemotePolicySecurityManager(PolicyTransport transport) {
+		this(transport, DEFAULT_BATCH_WINDOW_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_MAX_BATCH_SIZE, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS, DEFAULT_MAX_CACHE_SIZE);
+	}
+
+	/**
+	 * Returns the identity of the principal for which a decision is being taken.
+	 * Default implementation returns the principal of current {@linkplain SecurityContext}.
+	 * @return principal identity (may be <code>null</code> for anonymous requests).
+	 */
+	protected Object getPrincipal() {
+		return SecurityContext.getCurrent().getPrincipal();
+	}
+
+	private CacheSegment getCacheSegment(PolicyQuery query) {
+		int h = query.hashCode();
+		h ^= (h >>> 16);
+		return cacheSegments[h & (CACHE_SEGMENT_COUNT - 1)];
+	}
+
+	private CacheEntry getCached(PolicyQuery query) {
+		if (cacheSegments.length == 0)
+			return null;
+
+		CacheSegment segment = getCacheSegment(query);
+
+		synchronized (segment) {
+			return segment.get(query);
+		}
+	}
+
+	/**
+	 * Decides a query.
+	 * @param query query to be decided.
+	 * @return decision (pending if query was not cached).
+	 */
+	public AsyncDecision decide(PolicyQuery query) {
+		queryCount.incrementAndGet();
+		CacheEntry entry = getCached(query);
+
+		if (entry != null && entry.epoch == epoch.get() && (ttlNanos == 0 || System.nanoTime() - entry.expiresAt < 0)) {
+			cacheHitCount.incrementAndGet();
+			return AsyncDecision.of(entry.allowed);
+		}
+
+		AsyncDecision decision = new AsyncDecision();
+		AsyncDecision existing = inFlight.putIfAbsent(query, decision);
+
+		if (existing != null) {
+			coalescedCount.incrementAndGet(); // <-- Single flight: identical query is already pending
+			return existing;
+		}
+
+		enqueue(query);
+		return decision;
+	}
+
+	private void enqueue(PolicyQuery query) {
+		synchronized (batchLock) {
+			if (closed) {
+				inFlight.remove(query).fail(new IllegalStateException("Security manager is closed"));
+				return;
+			}
+
+			batch.add(query);
+
+			if (batch.size() >= maxBatchSize) {
+				final List<PolicyQuery> fullBatch = batch;
+				batch = new ArrayList<>(); // <-- Full batch is handed off at once, so it never exceeds maximum size
+
+				dispatcher.execute(new Runnable() {
+					@Override
+					public void run() {
+						send(fullBatch);
+					}
+				});
+			} else if (batch.size() == 1) {
+				dispatcher.schedule(flushTask, batchWindowNanos, TimeUnit.NANOSECONDS); // <-- Window starts with the first query of a batch
+			}
+		}
+	}
+
+	private void flush() {
+		List<PolicyQuery> queries;
+
+		synchronized (batchLock) {
+			if (batch.isEmpty())
+				return; // <-- Batch was already sent (e.g. when it reached maximum size or when dispatcher was closed)
+
+			queries = batch;
+			batch = new ArrayList<>();
+		}
+
+		send(queries);
+	}
+
+	private void send(List<PolicyQuery> queries) {
+		long requestEpoch = epoch.get(); // <-- Decisions invalidated while request is being sent are not cached
+		boolean[] decisions;
+
+		try {
+			requestCount.incrementAndGet();
+			decisions = transport.decide(queries);
+
+			if (decisions == null || decisions.length != queries.size())
+				throw new IOException(String.format("Invalid response: expected %d decisions", queries.size()));
+		} catch (Throwable t) {
+			Security.getLogger().log(SecurityLogger.Level.ERROR, "Error querying policy decision point", t);
+			complete(remove(queries), null, t);
+			return;
+		}
+
+		long expiresAt = ttlNanos > 0 ? System.nanoTime() + ttlNanos : 0;
+
+		if (cacheSegments.length > 0) {
+			for (int i = 0; i < decisions.length; i++) {
+				PolicyQuery query = queries.get(i);
+				CacheSegment segment = getCacheSegment(query);
+
+				synchronized (segment) {
+					segment.put(query, new CacheEntry(decisions[i], requestEpoch, expiresAt));
+				}
+			}
+		}
+
+		complete(remove(queries), decisions, null); // <-- Removed after caching, so no query is sent twice
+	}
+
+	/** Removes given queries from in-flight ones. */
+	private List<AsyncDecision> remove(List<PolicyQuery> queries) {
+		List<AsyncDecision> decisions = new ArrayList<>(queries.size());
+
+		for (PolicyQuery query : queries) {
+			decisions.add(inFlight.remove(query));
+		}
+
+		return decisions;
+	}
+
+	/**
+	 * Completes decisions in the completion pool.
+	 * Listeners (e.g. deferred method bodies) may issue (and wait for) other queries, so they must never run in the dispatcher thread.
+	 */
+	private void complete(final List<AsyncDecision> decisions, final boolean[] results, final Throwable error) {
+		completer.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < decisions.size(); i++) {
+					if (error != null) {
+						decisions.get(i).fail(error);
+					} else {
+						decisions.get(i).complete(results[i]);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits for a decision.
+	 * Timeouts and interruptions are raised just like failed requests: returning <code>false</code> would allow execution of methods secured by negated expressions (e.g. "not SUSPENDED") and would be cached by wrapping managers.
+	 */
+	private boolean await(AsyncDecision decision) {
+		try {
+			return decision.get(decisionTimeoutNanos, TimeUnit.NANOSECONDS);
+		} catch (TimeoutException ex) {
+			Security.getLogger().log(SecurityLogger.Level.WARN, "Timeout waiting for policy decision point (execution denied)");
+			throw new RuntimeException(ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ex);
+		}
+	}
+
+	@Override
+	public AsyncDecision isAllowedAsync(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		return decide(new PolicyQuery(getPrincipal(), methodId, requiredRoles));
+	}
+
+	@Override
+	public boolean isAllowed(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		return await(isAllowedAsync(methodId, requiredRoles, requiredRoleMask));
+	}
+
+	@Override
+	public boolean isAllowed(String[] requiredRoles) {
+		return await(decide(new PolicyQuery(getPrincipal(), -1, requiredRoles)));
+	}
+
+	@Override
+	public BitSet isAllowed(int[] methodIds) {
+		Object principal = getPrincipal();
+		AsyncDecision[] decisions = new AsyncDecision[methodIds.length];
+
+		for (int i = 0; i < methodIds.length; i++) {
+			decisions[i] = decide(new PolicyQuery(principal, methodIds[i], MethodRegistry.getMethod(methodIds[i]).getSharedRequiredRoles())); // <-- All queries are issued before waiting, so they share a batch
+		}
+
+		BitSet allowed = new BitSet(methodIds.length);
+
+		for (int i = 0; i < methodIds.length; i++) {
+			SecuredMethod method = MethodRegistry.getMethod(methodIds[i]);
+			RoleExpression expression = method.getRequiredExpression();
+
+			if (await(decisions[i]) && (expression == null || expression.evaluate(this)) && isConditionSatisfied(method))
+				allowed.set(i);
+		}
+
+		return allowed;
+	}
+
+	/** Invalidates all cached decisions (e.g. when policies change). */
+	public void invalidate() {
+		epoch.incrementAndGet();
+
+		for (CacheSegment segment : cacheSegments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/** @return number of cached decisions (including stale ones not evicted yet). */
+	public int getCacheSize() {
+		int size = 0;
+
+		for (CacheSegment segment : cacheSegments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+
+	/** @return number of decided queries. */
+	public long getQueryCount() {
+		return queryCount.get();
+	}
+
+	/** @return number of queries decided from cache. */
+	public long getCacheHitCount() {
+		return cacheHitCount.get();
+	}
+
+	/** @return number of queries which shared the decision of an identical pending query. */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	/** @return number of requests sent to policy decision point. */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/** Stops the dispatcher and the completion pool. Pending queries fail, but requests already being sent are still completed. */
+	@Override
+	public void close() {
+		List<PolicyQuery> queries;
+
+		synchronized (batchLock) {
+			if (closed)
+				return;
+
+			closed = true;
+			queries = batch;
+			batch = new ArrayList<>();
+		}
+
+		dispatcher.execute(new Runnable() {
+			@Override
+			public void run() {
+				completer.shutdown(); // <-- Runs after requests already handed off to the dispatcher, so their completions are still accepted
+			}
+		});
+		dispatcher.shutdown();
+
+		for (PolicyQuery query : queries) {
+			inFlight.remove(query).fail(new IllegalStateException("Security manager is closed"));
+		}
+	}
+
+	/**
+	 * Waits for the dispatcher and the completion pool to terminate after {@linkplain #close()}.
+	 * @param timeout maximum time to wait.
+	 * @param unit time unit of timeout.
+	 * @return a boolean indicating if both terminated before timeout.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		if (!dispatcher.awaitTermination(timeout, unit))
+			return false;
+
+		return completer.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+	// =========================================================================
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+/**
+ * Holds the current metadata (and requirement) of a secured method registered in {@linkplain MethodRegistry}.
+ * Woven classes keep the holder of each secured method in a static final field, so a guard reads its requirement through a volatile load of {@linkplain #get() held metadata}
+ * (instead of indexing the registry) and then loads required roles and their mask from it once per call. Since the load is volatile, the JIT compiler does not fold the requirement into compiled guards:
+ * a steady-state read costs a volatile load (a plain load on x86, an acquire load on ARMv8). Holders are updated only when requirements are replaced (see {@linkplain MethodRegistry#setRequiredRoles(java.util.Map)}).
+ * This class is used by woven code and it is not intended to be used directly.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class RequirementHolder {
+	private volatile SecuredMethod method;
+
+	RequirementHolder(SecuredMethod method) {
+		this.method = method;
+	}
+
+	/** @return current metadata of held method. */
+	public SecuredMethod get() {
+		return method;
+	}
+
+	void set(SecuredMethod method) {
+		this.method = method;
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Boolean combination of roles which can be used as a requirement of a secured method (e.g. <code>@Secured("ADMIN or (SUPPORT and EU)")</code>).
+ * <p>Syntax:</p>
+ * <pre>
+ * expression := term (("or" | "||") term)*
+ * term       := factor (("and" | "&amp;&amp;") factor)*
+ * factor     := ("not" | "!") factor | "(" expression ")" | role
+ * </pre>
+ * Keywords are case-insensitive. A value of {@linkplain Secured} is handled as an expression if it contains whitespace, parentheses or operator symbols
+ * (see {@linkplain #isExpression(String)}); otherwise it is a plain role.
+ * <p>Expressions are parsed and validated when classes are woven and they are compiled into guard code (roles joined by "and" are checked at once as a role mask),
+ * so there is no parsing nor allocation when secured methods are called.</p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class RoleExpression {
+
+	// CLASS SCOPE =============================================================
+	/** Node of a parsed expression. */
+	static abstract class Node {
+		abstract boolean evaluate(long[] grantedRoleMask);
+		abstract boolean evaluate(SecurityManager securityManager);
+		abstract void collectRoles(Set<String> roles);
+		abstract void toString(StringBuilder sb);
+	}
+
+	/** Conjunction: all roles (checked at once) and all other operands must be satisfied. */
+	static final class And extends Node {
+		final String[] roles;
+		final Node[] operands;
+		private volatile long[] roleMask = null; // <-- Resolved on first evaluation, so parsing does not register roles; volatile publishes the filled array
+
+		And(String[] roles, Node[] operands) {
+			this.roles = roles;
+			this.operands = operands;
+		}
+
+		private long[] getRoleMask() {
+			long[] mask = roleMask;
+
+			if (mask == null)
+				roleMask = mask = RoleRegistry.getMask(roles);
+
+			return mask;
+		}
+
+		@Override
+		boolean evaluate(long[] grantedRoleMask) {
+			if (!RoleRegistry.containsAll(grantedRoleMask, getRoleMask()))
+				return false;
+
+			for (Node operand : operands) {
+				if (!operand.evaluate(grantedRoleMask))
+					return false;
+			}
+
+			return true;
+		}
+
+		@Override
+		boolean evaluate(SecurityManager securityManager) {
+			if (roles.length > 0 && !securityManager.isAllowed(roles, getRoleMask()))
+				return false;
+
+			for (Node operand : operands) {
+				if (!operand.evaluate(securityManager))
+					return false;
+			}
+
+			return true;
+		}
+
+		@Override
+		void collectRoles(Set<String> roles) {
+			for (String role : this.roles) {
+				roles.add(role);
+			}
+
+			for (Node operand : operands) {
+				operand.collectRoles(roles);
+			}
+		}
+
+		@Override
+		void toString(StringBuilder sb) {
+			boolean first = true;
+			boolean enclose = roles.length + operands.length > 1;
+
+			if (enclose)
+				sb.append('(');
+
+			for (String role : roles) {
+				if (!first)
+					sb.append(" and ");
+
+				sb.append(role);
+				first = false;
+			}
+
+			for (Node operand : operands) {
+				if (!first)
+					sb.append(" and ");
+
+				operand.toString(sb);
+				first = false;
+			}
+
+			if (enclose)
+				sb.append(')');
+		}
+	}
+
+	/** Disjunction: at least one operand must be satisfied. */
+	static final class Or extends Node {
+		final Node[] operands;
+
+		Or(Node[] operands) {
+			this.operands = operands;
+		}
+
+		@Override
+		boolean evaluate(long[] grantedRoleMask) {
+			for (Node operand : operands) {
+				if (operand.evaluate(grantedRoleMask))
+					return true;
+			}
+
+			return false;
+		}
+
+		@Override
+		boolean evaluate(SecurityManager securityManager) {
+			for (Node operand : operands) {
+				if (operand.evaluate(securityManager))
+					return true;
+			}
+
+			return false;
+		}
+
+		@Override
+		void collectRoles(Set<String> roles) {
+			for (Node operand : operands) {
+				operand.collectRoles(roles);
+			}
+		}
+
+		@Override
+		void toString(StringBuilder sb) {
+			sb.append('(');
+
+			for (int i = 0; i < operands.length; i++) {
+				if (i > 0)
+					sb.append(" or ");
+
+				operands[i].toString(sb);
+			}
+
+			sb.append(')');
+		}
+	}
+
+	/** Negation. */
+	static final class Not extends Node {
+		final Node operand;
+
+		Not(Node operand) {
+			this.operand = operand;
+		}
+
+		@Override
+		boolean evaluate(long[] grantedRoleMask) {
+			return !operand.evaluate(grantedRoleMask);
+		}
+
+		@Override
+		boolean evaluate(SecurityManager securityManager) {
+			return !operand.evaluate(securityManager);
+		}
+
+		@Override
+		void collectRoles(Set<String> roles) {
+			operand.collectRoles(roles);
+		}
+
+		@Override
+		void toString(StringBuilder sb) {
+			sb.append("not ");
+			operand.toString(sb);
+		}
+	}
+
+	/** Recursive descent parser. */
+	private static class Parser {
+		private final String source;
+		private final List<String> tokens = new ArrayList<>();
+		private int position = 0;
+
+		public Parser(String source) {
+			this.source = source;
+			tokenize();
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(String.format("Invalid role expression '%s': %s", source, message));
+		}
+
+		private void tokenize() {
+			int i = 0;
+
+			while (i < source.length()) {
+				char c = source.charAt(i);
+
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '(' || c == ')' || c == '!') {
+					tokens.add(String.valueOf(c));
+					i++;
+				} else if (c == '&' || c == '|') {
+					if (i + 1 >= source.length() || source.charAt(i + 1) != c)
+						throw error("unexpected '" + c + "'");
+
+					tokens.add(c == '&' ? "and" : "or");
+					i += 2;
+				} else {
+					int start = i;
+
+					while (i < source.length() && !isDelimiter(source.charAt(i))) {
+						i++;
+					}
+
+					String token = source.substring(start, i);
+					String keyword = token.toLowerCase();
+					tokens.add(keyword.equals("and") || keyword.equals("or") || keyword.equals("not") ? keyword : token);
+				}
+			}
+		}
+
+		private String peek() {
+			return position < tokens.size() ? tokens.get(position) : null;
+		}
+
+		private boolean accept(String token) {
+			if (token.equals(peek())) {
+				position++;
+				return true;
+			}
+
+			return false;
+		}
+
+		public Node parse() {
+			if (tokens.isEmpty())
+				throw error("empty expression");
+
+			Node node = parseExpression();
+
+			if (peek() != null)
+				throw error("unexpected '" + peek() + "'");
+
+			return node;
+		}
+
+		private Node parseExpression() {
+			List<Node> operands = new ArrayList<>();
+			operands.add(parseTerm());
+
+			while (accept("or")) {
+				operands.add(parseTerm());
+			}
+
+			return operands.size() == 1 ? operands.get(0) : new Or(operands.toArray(new Node[operands.size()]));
+		}
+
+		private Node parseTerm() {
+			Set<String> roles = new LinkedHashSet<>();
+			List<Node> operands = new ArrayList<>();
+
+			do {
+				Object factor = parseFactor();
+
+				if (factor instanceof String) {
+					roles.add((String) factor); // <-- Roles of a conjunction are checked at once
+				} else if (factor instanceof And) {
+					And and = (And) factor;
+
+					for (String role : and.roles) {
+						roles.add(role);
+					}
+
+					for (Node operand : and.operands) {
+						operands.add(operand);
+					}
+				} else {
+					operands.add((Node) factor);
+				}
+			} while (accept("and"));
+
+			if (roles.isEmpty() && operands.size() == 1)
+				return operands.get(0);
+
+			return new And(roles.toArray(new String[roles.size()]), operands.toArray(new Node[operands.size()]));
+		}
+
+		/** @return a role name or a node. */
+		private Object parseFactor() {
+			String token = peek();
+
+			if (token == null)
+				throw error("unexpected end of expression");
+
+			if (accept("not") || accept("!")) {
+				Object factor = parseFactor();
+				return new Not(factor instanceof String ? new And(new String[] {(String) factor}, new Node[0]) : (Node) factor);
+			}
+
+			if (accept("(")) {
+				Node node = parseExpression();
+
+				if (!accept(")"))
+					throw error("missing ')'");
+
+				return node;
+			}
+
+			if (token.equals(")") || token.equals("and") || token.equals("or"))
+				throw error("unexpected '" + token + "'");
+
+			position++;
+			return token;
+		}
+	}
+
+	private static boolean isDelimiter(char c) {
+		return Character.isWhitespace(c) || c == '(' || c == ')' || c == '!' || c == '&' || c == '|';
+	}
+
+	/**
+	 * Checks if a value of {@linkplain Secured} is an expression (instead of a plain role).
+	 * @param value annotation value.
+	 * @return a boolean indicating if given value contains whitespace, parentheses or operator symbols.
+	 */
+	public static boolean isExpression(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (isDelimiter(value.charAt(i)))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Parses an expression.
+	 * @param expression expression source.
+	 * @return parsed expression.
+	 * @throws IllegalArgumentException if given expression is invalid.
+	 */
+	public static RoleExpression parse(String expression) {
+		if (expression == null)
+			throw new IllegalArgumentException("Expression cannot be null");
+
+		Node root = new Parser(expression).parse();
+
+		if (root instanceof And == false) // <-- Root is always a conjunction, so a single role mask check can be the first one
+			root = new And(new String[0], new Node[] {root});
+
+		return new RoleExpression((And) root);
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final And root;
+
+	private RoleExpression(And root) {
+		this.root = root;
+	}
+
+	And getRoot() {
+		return root;
+	}
+
+	/** @return roles referenced by this expression. */
+	public String[] getRoles() {
+		Set<String> roles = new LinkedHashSet<>();
+		root.collectRoles(roles);
+		return roles.toArray(new String[roles.size()]);
+	}
+
+	/**
+	 * Evaluates this expression.
+	 * @param grantedRoleMask mask of granted roles (see {@linkplain RoleRegistry}).
+	 * @return a boolean indicating if this expression is satisfied by given roles.
+	 */
+	public boolean evaluate(long[] grantedRoleMask) {
+		return root.evaluate(grantedRoleMask);
+	}
+
+	/**
+	 * Evaluates this expression through a security manager (like woven guards do).
+	 * @param securityManager security manager checking the roles joined by "and" (see {@linkplain SecurityManager#isAllowed(String[], long[])}).
+	 * @return a boolean indicating if this expression is satisfied.
+	 */
+	public boolean evaluate(SecurityManager securityManager) {
+		return root.evaluate(securityManager);
+	}
+
+	/** @return normalized expression (operands of "and" and "or" are enclosed in parentheses). */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		root.toString(sb);
+		return sb.toString();
+	}
+	// =========================================================================
+}
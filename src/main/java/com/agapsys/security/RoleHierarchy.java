@@ -0,0 +1,233 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable role hierarchy (e.g. ADMIN implies MANAGER, which implies USER).
+ * The transitive closure of the hierarchy is computed once (when hierarchy is created) into a role mask per role (see {@linkplain RoleRegistry}),
+ * so expanding granted roles is proportional to the number of granted roles and checking requirements against an expanded mask does not depend on the hierarchy.
+ * <p>The hierarchy used by {@linkplain SecurityContext} is replaced atomically through {@linkplain #setCurrent(RoleHierarchy)} (e.g. when hierarchy definition is reloaded).
+ * Contexts expand their roles again on the first check performed after a replacement.</p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class RoleHierarchy {
+
+	// CLASS SCOPE =============================================================
+	private static final long[][] NO_CLOSURES = new long[0][];
+
+	/** Hierarchy without implied roles. */
+	public static final RoleHierarchy NONE = new RoleHierarchy(Collections.<String, Collection<String>>emptyMap());
+
+	private static volatile RoleHierarchy current = NONE;
+
+	/** @return current hierarchy ({@linkplain #NONE} if there is no hierarchy). */
+	public static RoleHierarchy getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Replaces current hierarchy.
+	 * @param hierarchy new hierarchy.
+	 */
+	public static void setCurrent(RoleHierarchy hierarchy) {
+		if (hierarchy == null)
+			throw new IllegalArgumentException("Hierarchy cannot be null");
+
+		current = hierarchy;
+	}
+
+	/**
+	 * Parses a hierarchy definition.
+	 * Each non-empty line is a chain where each role implies the following ones (e.g. <code>ADMIN &gt; MANAGER &gt; USER</code>). Lines starting with '#' are ignored.
+	 * @param definition hierarchy definition.
+	 * @return parsed hierarchy.
+	 * @throws IllegalArgumentException if given definition is invalid or contains a cycle.
+	 */
+	public static RoleHierarchy parse(String definition) {
+		if (definition == null)
+			throw new IllegalArgumentException("Definition cannot be null");
+
+		Map<String, Set<String>> impliedRoles = new LinkedHashMap<>();
+
+		for (String line : definition.split("\\r?\\n")) {
+			line = line.trim();
+
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			String[] chain = line.split(">");
+
+			if (chain.length < 2)
+				throw new IllegalArgumentException("Invalid hierarchy line: " + line);
+
+			for (int i = 0; i < chain.length; i++) {
+				chain[i] = chain[i].trim();
+
+				if (chain[i].isEmpty())
+					throw new IllegalArgumentException("Invalid hierarchy line: " + line);
+			}
+
+			for (int i = 0; i < chain.length - 1; i++) {
+				Set<String> implied = impliedRoles.get(chain[i]);
+
+				if (implied == null) {
+					implied = new LinkedHashSet<>();
+					impliedRoles.put(chain[i], implied);
+				}
+
+				implied.add(chain[i + 1]);
+			}
+		}
+
+		return new RoleHierarchy(impliedRoles);
+	}
+
+	/** Adds to given closure the roles reachable from given role, detecting cycles. */
+	private static void collect(String role, Map<String, ? extends Collection<String>> impliedRoles, List<String> path, Map<String, Set<String>> closures) {
+		Set<String> closure = closures.get(role);
+
+		if (closure != null)
+			return;
+
+		if (path.contains(role)) {
+			List<String> cycle = new ArrayList<>(path.subList(path.indexOf(role), path.size()));
+			cycle.add(role);
+			throw new IllegalArgumentException("Cyclic role hierarchy: " + cycle);
+		}
+
+		path.add(role);
+		closure = new LinkedHashSet<>();
+		Collection<String> implied = impliedRoles.get(role);
+
+		if (implied != null) {
+			for (String impliedRole : implied) {
+				if (impliedRole == null || impliedRole.trim().isEmpty())
+					throw new IllegalArgumentException("Null/Empty role implied by " + role);
+
+				collect(impliedRole, impliedRoles, path, closures);
+				closure.add(impliedRole);
+				closure.addAll(closures.get(impliedRole));
+			}
+		}
+
+		path.remove(path.size() - 1);
+		closures.put(role, closure);
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final Map<String, Set<String>> impliedRoles; // <-- Transitive closure by role name
+	private final long[][] closures;                     // <-- Transitive closure masks indexed by role id (null for roles without implied roles)
+
+	/**
+	 * Constructor.
+	 * @param impliedRoles roles directly implied by each role (e.g. ADMIN -&gt; [MANAGER], MANAGER -&gt; [USER]).
+	 * @throws IllegalArgumentException if given hierarchy contains a cycle.
+	 */
+	public RoleHierarchy(Map<String, ? extends Collection<String>> impliedRoles) {
+		if (impliedRoles == null)
+			throw new IllegalArgumentException("Implied roles cannot be null");
+
+		Map<String, Set<String>> closureMap = new LinkedHashMap<>();
+
+		for (String role : impliedRoles.keySet()) {
+			if (role == null || role.trim().isEmpty())
+				throw new IllegalArgumentException("Null/Empty role");
+
+			collect(role, impliedRoles, new ArrayList<String>(), closureMap);
+		}
+
+		Map<String, Set<String>> closureView = new LinkedHashMap<>();
+		int maxId = -1;
+
+		for (Map.Entry<String, Set<String>> entry : closureMap.entrySet()) {
+			if (entry.getValue().isEmpty())
+				continue;
+
+			closureView.put(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+			maxId = Math.max(maxId, RoleRegistry.getId(entry.getKey()));
+		}
+
+		long[][] closureArr = maxId < 0 ? NO_CLOSURES : new long[maxId + 1][];
+
+		for (Map.Entry<String, Set<String>> entry : closureView.entrySet()) {
+			Set<String> closure = entry.getValue();
+			closureArr[RoleRegistry.getId(entry.getKey())] = RoleRegistry.getMask(closure.toArray(new String[closure.size()]));
+		}
+
+		this.impliedRoles = Collections.unmodifiableMap(closureView);
+		this.closures = closureArr;
+	}
+
+	/**
+	 * Returns the roles implied (directly or transitively) by given role.
+	 * @param role role name.
+	 * @return implied roles (empty if given role does not imply other roles).
+	 */
+	public Set<String> getImpliedRoles(String role) {
+		Set<String> implied = impliedRoles.get(role);
+		return implied != null ? implied : Collections.<String>emptySet();
+	}
+
+	/**
+	 * Expands a role mask with implied roles.
+	 * @param roleMask mask of granted roles.
+	 * @return mask containing given roles and the roles implied by them. If there are no implied roles, given mask is returned.
+	 */
+	public long[] expand(long[] roleMask) {
+		long[] expanded = null;
+
+		for (int word = 0; word < roleMask.length; word++) {
+			long bits = roleMask[word];
+
+			while (bits != 0) {
+				int id = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+
+				if (id >= closures.length)
+					break; // <-- Remaining ids are greater
+
+				long[] closure = closures[id];
+
+				if (closure == null)
+					continue;
+
+				if (expanded == null)
+					expanded = roleMask.clone();
+
+				if (expanded.length < closure.length)
+					expanded = Arrays.copyOf(expanded, closure.length);
+
+				for (int i = 0; i < closure.length; i++) {
+					expanded[i] |= closure[i];
+				}
+			}
+		}
+
+		return expanded != null ? expanded : roleMask;
+	}
+	// =========================================================================
+}
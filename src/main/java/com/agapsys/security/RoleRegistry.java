@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry assigning dense integer ids to role names.
+ * Role ids are used to represent a set of roles as a bit mask (a <code>long[]</code> where role <code>n</code> is bit <code>n % 64</code> of word <code>n / 64</code>),
+ * so checking if a set of roles contains another one costs a couple of AND instructions.
+ * Ids are stable for the lifetime of the JVM (masks held by caches and audit logs stay valid), so they are not released along with security domains: the registry grows only with distinct role names, which redeployed classes declare again.
+ * Roles declared in secured classes are registered while classes are secured.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class RoleRegistry {
+
+	// CLASS SCOPE =============================================================
+	private static final long[] EMPTY_MASK = new long[0];
+
+	private static final ConcurrentMap<String, Integer> ROLE_IDS = new ConcurrentHashMap<>();
+	private static volatile String[] roleNames = new String[0];
+
+	private static synchronized int register(String role) {
+		Integer id = ROLE_IDS.get(role);
+
+		if (id == null) {
+			String[] names = Arrays.copyOf(roleNames, roleNames.length + 1);
+			id = names.length - 1;
+			names[id] = role;
+			roleNames = names;
+			ROLE_IDS.put(role, id);
+		}
+
+		return id;
+	}
+
+	/**
+	 * Returns the id associated with given role, registering it if necessary.
+	 * @param role role name.
+	 * @return role id.
+	 */
+	public static int getId(String role) {
+		if (role == null || role.isEmpty())
+			throw new IllegalArgumentException("Null/Empty role");
+
+		Integer id = ROLE_IDS.get(role);
+
+		if (id != null)
+			return id;
+
+		return register(role);
+	}
+
+	/**
+	 * Returns the name of a registered role.
+	 * @param id role id.
+	 * @return role name.
+	 */
+	public static String getName(int id) {
+		String[] names = roleNames;
+
+		if (id < 0 || id >= names.length)
+			throw new IllegalArgumentException("Invalid role id: " + id);
+
+		return names[id];
+	}
+
+	/** @return the number of registered roles. */
+	public static int getRoleCount() {
+		return roleNames.length;
+	}
+
+	/**
+	 * Returns the mask representing given roles, registering unknown ones.
+	 * @param roles role names.
+	 * @return mask representing given roles.
+	 */
+	public static long[] getMask(String... roles) {
+		if (roles.length == 0)
+			return EMPTY_MASK;
+
+		int[] ids = new int[roles.length];
+		int maxId = 0;
+
+		for (int i = 0; i < roles.length; i++) {
+			ids[i] = getId(roles[i]);
+			maxId = Math.max(maxId, ids[i]);
+		}
+
+		long[] mask = new long[(maxId >>> 6) + 1];
+
+		for (int id : ids) {
+			mask[id >>> 6] |= 1L << id;
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Returns the names of the roles contained in given mask.
+	 * @param mask role mask.
+	 * @return role names (in id order).
+	 */
+	public static String[] getRoles(long[] mask) {
+		String[] names = roleNames;
+		String[] roles = new String[getCount(mask)];
+		int i = 0;
+
+		for (int word = 0; word < mask.length; word++) {
+			long bits = mask[word];
+
+			while (bits != 0) {
+				int id = (word << 6) + Long.numberOfTrailingZeros(bits);
+				roles[i++] = names[id];
+				bits &= bits - 1;
+			}
+		}
+
+		return roles;
+	}
+
+	/**
+	 * Returns the number of roles contained in given mask.
+	 * @param mask role mask.
+	 * @return number of roles contained in given mask.
+	 */
+	public static int getCount(long[] mask) {
+		int count = 0;
+
+		for (long word : mask) {
+			count += Long.bitCount(word);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Checks if a mask contains all roles of another one.
+	 * @param grantedMask mask of granted roles.
+	 * @param requiredMask mask of required roles.
+	 * @return a boolean indicating if all roles of required mask are contained in granted mask.
+	 */
+	public static boolean containsAll(long[] grantedMask, long[] requiredMask) {
+		for (int i = 0; i < requiredMask.length; i++) {
+			long required = requiredMask[i];
+
+			if (required != 0 && (i >= grantedMask.length || (grantedMask[i] & required) != required))
+				return false;
+		}
+
+		return true;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private RoleRegistry() {}
+	// =========================================================================
+}
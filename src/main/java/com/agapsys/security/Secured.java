@@ -22,11 +22,21 @@ import java.lang.annotation.Target;
 
 /**
  * Marks a class/method as secured
+ * <p>Methods whose declared return type is exactly {@linkplain java.util.concurrent.Future} do not block callers while a decision is pending (see {@linkplain SecurityManager#isAllowedAsync(int, String[], long[])}):
+ * they return a future which only supports blocking retrieval. Methods returning subtypes (e.g. <code>FutureTask</code>) or other types are checked synchronously.</p>
  * @author Leandro Oliveira (leandro@agapsys.com)
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target({ElementType.METHOD, ElementType.TYPE})
 public @interface Secured {
-	/** @return required roles for method execution. */
+	/** @return required roles for method execution. Values containing whitespace, parentheses or operators are {@linkplain RoleExpression role expressions} (e.g. <code>"ADMIN or (SUPPORT and EU)"</code>). All values must be satisfied. */
 	String[] value()    default {};
+
+	/**
+	 * @return conditions on method arguments which must be satisfied for method execution (e.g. <code>"sameTenant(tenantId)"</code>).
+	 * Each condition has a name and (optionally) a method parameter, referenced by name or by position (e.g. <code>$1</code>). Guards pass the argument to
+	 * {@linkplain SecurityManager#isConditionSatisfied(int, String, Object)} (or to the overload matching its primitive type, so primitives are not boxed).
+	 * Conditions are allowed only in methods. Parameters are referenced by name only if classes are compiled with debug information (default for Maven and javac <code>-g</code>).
+	 */
+	String[] conditions() default {};
 }
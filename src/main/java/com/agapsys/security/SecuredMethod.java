@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.Arrays;
+
+/**
+ * Metadata of a secured method registered in {@linkplain MethodRegistry}.
+ * Instances are immutable: when requirements are replaced at runtime (see {@linkplain MethodRegistry#setRequiredRoles(java.util.Map)}), a new instance is registered.
+ * Public getters return copies. Woven guards use the shared arrays instead (see {@linkplain #getSharedRequiredRoles()}), which are the same arrays received by every security manager checking the method.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class SecuredMethod {
+	private final int id;
+	private final String className;
+	private final String methodName;
+	private final String descriptor;
+	private final String longName;
+	private final String[] requiredRoles;
+	private final long[] requiredRoleMask;
+	private final RoleExpression requiredExpression;
+	private final String[] conditions;
+	private final MethodCondition[] methodConditions; // <-- Parsed at registration, so batch authorization does not parse them on each check
+	private final SecuredMethod declared;
+
+	SecuredMethod(int id, String className, String methodName, String descriptor, String longName, String[] requiredRoles, RoleExpression requiredExpression, String[] conditions) {
+		this.id = id;
+		this.className = className;
+		this.methodName = methodName;
+		this.descriptor = descriptor;
+		this.longName = longName;
+		this.requiredRoles = requiredRoles.clone();
+		this.requiredRoleMask = RoleRegistry.getMask(requiredRoles);
+		this.requiredExpression = requiredExpression;
+		this.conditions = conditions.clone();
+		this.methodConditions = new MethodCondition[conditions.length];
+
+		for (int i = 0; i < conditions.length; i++) {
+			methodConditions[i] = MethodCondition.parse(conditions[i]);
+		}
+
+		this.declared = this;
+	}
+
+	private SecuredMethod(SecuredMethod declared, String[] requiredRoles) {
+		this.id = declared.id;
+		this.className = declared.className;
+		this.methodName = declared.methodName;
+		this.descriptor = declared.descriptor;
+		this.longName = declared.longName;
+		this.requiredRoles = requiredRoles.clone();
+		this.requiredRoleMask = RoleRegistry.getMask(requiredRoles);
+		this.requiredExpression = declared.requiredExpression;
+		this.conditions = declared.conditions;
+		this.methodConditions = declared.methodConditions;
+		this.declared = declared;
+	}
+
+	/** @return a copy of this method requiring given roles instead of the declared ones. */
+	SecuredMethod withRequiredRoles(String[] requiredRoles) {
+		return new SecuredMethod(declared, requiredRoles);
+	}
+
+	/** @return a boolean indicating if this method was declared with given requirement. */
+	boolean isDeclaredAs(String[] requiredRoles, RoleExpression requiredExpression, String[] conditions) {
+		if (!Arrays.equals(this.requiredRoles, requiredRoles) || !Arrays.equals(this.conditions, conditions))
+			return false;
+
+		if (this.requiredExpression == null || requiredExpression == null)
+			return this.requiredExpression == requiredExpression;
+
+		return this.requiredExpression.toString().equals(requiredExpression.toString());
+	}
+
+	/** @return the metadata of this method as declared by its annotations. */
+	SecuredMethod getDeclared() {
+		return declared;
+	}
+
+	/** @return method id. */
+	public int getId() {
+		return id;
+	}
+
+	/** @return name of the class declaring the method. */
+	public String getClassName() {
+		return className;
+	}
+
+	/** @return method name. */
+	public String getMethodName() {
+		return methodName;
+	}
+
+	/** @return method descriptor (e.g. <code>(Ljava/lang/String;)V</code>). */
+	public String getDescriptor() {
+		return descriptor;
+	}
+
+	/** @return method long name (e.g. <code>com.example.Foo.run(java.lang.String)</code>). */
+	public String getLongName() {
+		return longName;
+	}
+
+	/** @return roles required by the method. */
+	public String[] getRequiredRoles() {
+		return requiredRoles.clone();
+	}
+
+	/** @return mask of roles required by the method (see {@linkplain RoleRegistry}). */
+	public long[] getRequiredRoleMask() {
+		return requiredRoleMask.clone();
+	}
+
+	/**
+	 * Returns the roles required by the method without copying them.
+	 * This method is used by woven code and it is not intended to be used directly: returned array is passed by guards to security managers (and kept by caches and audit logs),
+	 * so modifying it would silently change the requirement of every subsequent check of the method. Use {@linkplain #getRequiredRoles()} for a copy.
+	 * @return shared array of required roles, which must not be modified.
+	 */
+	public String[] getSharedRequiredRoles() {
+		return requiredRoles;
+	}
+
+	/**
+	 * Returns the mask of roles required by the method without copying it.
+	 * This method is used by woven code and it is not intended to be used directly (see {@linkplain #getSharedRequiredRoles()}). Use {@linkplain #getRequiredRoleMask()} for a copy.
+	 * @return shared mask of required roles, which must not be modified.
+	 */
+	public long[] getSharedRequiredRoleMask() {
+		return requiredRoleMask;
+	}
+
+	/** @return a boolean indicating if the roles required by the method were replaced at runtime (see {@linkplain MethodRegistry#setRequiredRoles(java.util.Map)}). */
+	public boolean isOverridden() {
+		return declared != this;
+	}
+
+	/** @return role expression which must also be satisfied (besides required roles) or <code>null</code> if the method does not declare expressions. */
+	public RoleExpression getRequiredExpression() {
+		return requiredExpression;
+	}
+
+	/** @return conditions on method arguments (see {@linkplain Secured#conditions()}). */
+	public String[] getConditions() {
+		return conditions.clone();
+	}
+
+	/** @return parsed conditions, which must not be modified (see {@linkplain #getConditions()}). */
+	MethodCondition[] getMethodConditions() {
+		return methodConditions;
+	}
+
+	@Override
+	public String toString() {
+		return longName;
+	}
+}
@@ -16,14 +16,17 @@
 package com.agapsys.security;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
-import javassist.ClassPool;
-import javassist.CtClass;
-import javassist.CtMethod;
+import java.util.concurrent.Executor;
 
 /**
  * Class responsible by security preventing unexpected method executions
@@ -46,12 +49,58 @@ public class Security {
 		if (securedClasses == null)
 			throw new IllegalArgumentException("Secured classes cannot be null");
 		
-		Security.securityManager = securityManager;
+		SecurityDomain.GLOBAL.swapSecurityManager(securityManager);
 
-		ClassPool cp = ClassPool.getDefault();
+		secure(classLoader, securedClasses, null);
+	}
+
+	/**
+	 * Weaves given classes (except the ones woven in advance) and defines them in given class loader.
+	 * @param domain domain whose weaver shall be used or <code>null</code> for the global domain.
+	 */
+	static void secure(ClassLoader classLoader, Set<String> securedClasses, SecurityDomain domain) {
+		if (agentInstalled) {
+			SecurityAgent.checkFailures();
+			logger.log(SecurityLogger.Level.INFO, "Security agent installed. Classes will be secured when loaded");
+			return;
+		}
+
+		List<String> unwovenClasses = new ArrayList<>();
 
 		for (String securedClass : securedClasses) {
-			secure(classLoader, cp, securedClass);
+			if (isWoven(classLoader, securedClass)) {
+				logger.log(SecurityLogger.Level.DEBUG, "Class woven in advance: {}", securedClass);
+			} else {
+				unwovenClasses.add(securedClass);
+			}
+		}
+
+		if (!unwovenClasses.isEmpty()) { // <-- Javassist is loaded only if there are classes to be woven
+			Weaver weaver = (domain != null ? domain : SecurityDomain.GLOBAL).getWeaver(classLoader);
+			weaver.secure(unwovenClasses, parallelInit ? Runtime.getRuntime().availableProcessors() : 1);
+		}
+	}
+
+	/**
+	 * Checks if the class file of given class declares the marker field added by {@linkplain Weaver}.
+	 * The class itself is not loaded, so it still can be woven if marker is not found.
+	 */
+	private static boolean isWoven(ClassLoader classLoader, String className) {
+		try (InputStream is = classLoader.getResourceAsStream(className.replace('.', '/') + ".class")) {
+			if (is == null)
+				return false;
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+
+			while ((read = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, read);
+			}
+
+			return ClassFiles.declaresField(baos.toByteArray(), Weaver.WOVEN_MARKER_FIELD);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
 		}
 	}
 
@@ -78,10 +127,11 @@ public class Security {
 		}
 	}
 
-	private static Set<String> readSecurityInfo(String embeddedFileName, String encoding) {
-		try (InputStream is = Security.class.getClassLoader().getResourceAsStream(embeddedFileName)) {
+	/** Reads the secured class list embedded in given class loader. */
+	static Set<String> readSecurityInfo(ClassLoader classLoader) {
+		try (InputStream is = classLoader.getResourceAsStream(EMBEDDED_PROTECTED_CLASS_LIST_FILE)) {
 			if (is != null)
-				return readSecurityInfo(is, encoding);
+				return readSecurityInfo(is, EMBEDDED_PROTECTED_CLASS_LIST_FILE_ENCODING);
 			
 			return new LinkedHashSet<>();
 		} catch (IOException ex) {
@@ -89,38 +139,63 @@ public class Security {
 		}
 	}
 
-	private static String toScCommaDelimited(Iterable<String>strIterable, boolean encloseInDoubleQuotes) {
-		StringBuilder sb = new StringBuilder();
+	/** Reads the requirement index generated by {@linkplain SecurityProcessor} embedded in given class loader. */
+	static SecurityIndex readSecurityIndex(ClassLoader classLoader) {
+		SecurityIndex index = null;
 
-		boolean first = true;
-		for (String str : strIterable) {
-			if (!first) {
-				sb.append(", ");
+		try {
+			Enumeration<URL> resources = classLoader.getResources(SecurityIndex.EMBEDDED_INDEX_FILE); // <-- Each JAR may have its own index
+
+			while (resources.hasMoreElements()) {
+				try (InputStream is = resources.nextElement().openStream()) {
+					SecurityIndex read = SecurityIndex.read(is);
+
+					if (index == null) {
+						index = read;
+					} else {
+						index.addAll(read); // <-- First definition of a class wins (as when loading classes)
+					}
+				}
 			}
-			
-			if (encloseInDoubleQuotes)
-				sb.append("\"");
-			
-			sb.append(str);
-			
-			if (encloseInDoubleQuotes)
-				sb.append("\"");
-			
-			first = false;
-		}
 
-		return sb.toString();
+			return index;
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
 	}
 
-	private static boolean logEnabled = false;
+	private static volatile SecurityLogger logger = SecurityLogger.NOOP;
 	private static boolean skipFrozenClasses = false;
+	private static boolean parallelInit = false;
+	private static volatile boolean reentrancyElision = false;
+	private static volatile boolean agentInstalled = false;
+	private static volatile Executor deferredExecutor = null;
+	private static volatile boolean indexVerification = Security.class.desiredAssertionStatus();
 	
 	/** 
 	 * Enables/Disables console logging output.
 	 * @param enable defines if log messages shall be printed to console. By default log is disabled.
+	 * @deprecated Use {@linkplain #setLogger(SecurityLogger)} instead.
 	 */
+	@Deprecated
 	public static void enableLog(boolean enable) {
-		logEnabled = enable;
+		setLogger(enable ? new SecurityLogger.StreamLogger(System.out, SecurityLogger.Level.DEBUG) : SecurityLogger.NOOP);
+	}
+	
+	/**
+	 * Defines the logger used by the framework.
+	 * @param logger logger receiving framework messages. By default, {@linkplain SecurityLogger#NOOP} is used.
+	 */
+	public static void setLogger(SecurityLogger logger) {
+		if (logger == null)
+			throw new IllegalArgumentException("Logger cannot be null");
+		
+		Security.logger = logger;
+	}
+	
+	/** @return the logger used by the framework. */
+	public static SecurityLogger getLogger() {
+		return logger;
 	}
 	
 	/**
@@ -131,77 +206,103 @@ public class Security {
 		skipFrozenClasses = skip;
 	}
 	
-	private static void log(String message, Object...msgArgs) {
-		if (logEnabled) {
-			if (msgArgs.length > 0) message = String.format(message, msgArgs);
-			System.out.println(message);
-		}
+	/**
+	 * Enables/Disables parallel weaving during initialization.
+	 * When enabled, secured classes are parsed and woven concurrently (using all available processors) and defined serially, in declaration order. Result is the same as serial weaving.
+	 * @param enable defines if classes shall be woven concurrently. By default classes are woven serially.
+	 */
+	public static void enableParallelInit(boolean enable) {
+		parallelInit = enable;
 	}
 	
-	private static void secure(ClassLoader classLoader, ClassPool cp, String className) {
-		try {
-			
-			CtClass cc = cp.get(className);
-			
-			if (!skipFrozenClasses || !cc.isFrozen()) {
-				CtMethod methods[] = cc.getDeclaredMethods();
-				Secured securedClassAnnotation = (Secured) cc.getAnnotation(Secured.class);
-
-				for (CtMethod method : methods) {
-					Secured securedMethodAnnotation = (Secured) method.getAnnotation(Secured.class);
-					Unsecured unsecuredMethodAnnotation = (Unsecured) method.getAnnotation(Unsecured.class);
-					
-					if (securedMethodAnnotation != null && unsecuredMethodAnnotation != null)
-						throw new RuntimeException(String.format("Method '%s' has both '%s' and '%s' annotations", method.getLongName(), Secured.class.getName(), Unsecured.class.getName()));
-
-					if (unsecuredMethodAnnotation == null && (securedClassAnnotation != null || securedMethodAnnotation != null)) {
-						Set<String> roles = new LinkedHashSet<>();
-
-						if (securedClassAnnotation != null) {
-							for (String role : securedClassAnnotation.value()) {
-								if (!roles.add(role))
-									throw new RuntimeException(String.format("Duplicate role definition (%s) for %s", role, cc.getName()));
-							}
-						}
-
-						if (securedMethodAnnotation != null) {
-							for (String role : securedMethodAnnotation.value()) {
-								if (!roles.add(role))
-									throw new RuntimeException(String.format("Duplicate role definition (%s) for %s", role, method.getLongName()));
-							}
-						}
-
-						String scVarRoles = roles.isEmpty() ? "String[] roles = new String[0]" : String.format("String[] roles = {%s}", toScCommaDelimited(roles, true));
-						String scVarSecurityManager = "com.agapsys.security.SecurityManager sm = com.agapsys.security.Security.getSecurityManager()";
-						String sc = String.format("{ %s; %s; if (!sm.isAllowed(roles)) { sm.onNotAllowed(); } }", scVarRoles, scVarSecurityManager);
-						method.insertBefore(sc);
-					}
-				}
-			
-				cc.toClass(classLoader, Security.class.getProtectionDomain());
-				log("Secured class: %s", className);
-			} else {
-				log("Class already secured: %s", className);
-			}
-		} catch (Throwable t) {
-			if (t instanceof RuntimeException) {
-				throw (RuntimeException) t;
-			}
+	/**
+	 * Enables/Disables reentrancy elision for classes woven afterwards at runtime (and by {@linkplain Weaver#weave(javassist.CtClass)}). Build-time weaving passes its own setting (see {@linkplain Weaver#weave(javassist.CtClass, boolean)}).
+	 * When enabled, a secured method called (directly or indirectly) by other secured methods in the same thread does not check requirements implied by the ones already satisfied by its callers.
+	 * Elided checks are neither passed to the security manager nor recorded by instrumentation, so this mode must not be used with managers whose decisions depend on the method being executed.
+	 * Methods declaring {@linkplain RoleExpression role expressions} are always checked. Binding a {@linkplain SecurityContext} opens a new scope.
+	 * @param enable defines if implied checks shall be skipped. By default all checks are performed (and guards do not track satisfied requirements).
+	 */
+	public static void enableReentrancyElision(boolean enable) {
+		reentrancyElision = enable;
+	}
 
-			throw new RuntimeException(t);
-		}
+	/**
+	 * Defines the executor running the bodies of secured methods deferred by pending decisions (see {@linkplain SecurityManager#isAllowedAsync(int, String[], long[])}).
+	 * Each deferred call uses the executor defined when the method was called. Bodies are executed with the {@linkplain SecurityContext} of the caller bound.
+	 * If given executor rejects a body, the future returned to the caller fails with the rejection.
+	 * @param executor executor running deferred bodies. Passing <code>null</code> runs them in the thread completing the decision (default), which must then not be a thread reserved for I/O (e.g. the one receiving responses of a remote policy source).
+	 */
+	public static void setDeferredExecutor(Executor executor) {
+		deferredExecutor = executor;
 	}
-	// -------------------------------------------------------------------------
 
-	private static SecurityManager securityManager = null;
+	/** @return the executor running deferred bodies or <code>null</code> if they are run in the thread completing the decision. */
+	public static Executor getDeferredExecutor() {
+		return deferredExecutor;
+	}
+
+	/**
+	 * Enables/Disables the verification of requirement indexes (see {@linkplain SecurityProcessor}) against the annotations found in class files.
+	 * When enabled, the annotations of each class woven from an index are read and fingerprinted, so stale index entries (e.g. of classes recompiled by an IDE without the processor) are detected and ignored.
+	 * When disabled, index entries are trusted, so weaving does not read annotations at all. Thus, indexes must be generated by the same build producing class files (as Maven builds do).
+	 * @param enable defines if index entries shall be verified. By default, verification is enabled only if assertions are enabled for this framework (e.g. when running tests or with <code>-ea</code> during development).
+	 */
+	public static void enableIndexVerification(boolean enable) {
+		indexVerification = enable;
+	}
+
+	static boolean isIndexVerificationEnabled() {
+		return indexVerification;
+	}
+
+	static boolean isReentrancyElisionEnabled() {
+		return reentrancyElision;
+	}
+	
+	static void setAgentInstalled(boolean installed) {
+		agentInstalled = installed;
+	}
+	
+	static boolean isSkipFrozenClasses() {
+		return skipFrozenClasses;
+	}
+	
+	// -------------------------------------------------------------------------
 
 	/**
 	 * Returns the {@linkplain SecurityManager} instance used by framework.
+	 * Classes belonging to other {@linkplain SecurityDomain security domains} use the manager of their domains.
 	 *
 	 * @return the {@linkplain SecurityManager} instance used by framework.
 	 */
 	public static SecurityManager getSecurityManager() {
-		return securityManager;
+		return SecurityDomain.GLOBAL.getSecurityManager();
+	}
+
+	/**
+	 * Atomically replaces the security manager used by framework (e.g. when a policy is reloaded).
+	 * Replacement is visible to all threads once this method returns. Each guarded call reads the manager once, so a call is checked entirely by either the previous or the new manager.
+	 * @param securityManager new security manager.
+	 * @return previous security manager (<code>null</code> if framework was not initialized).
+	 */
+	public static SecurityManager swapSecurityManager(SecurityManager securityManager) {
+		SecurityManager previous = SecurityDomain.GLOBAL.swapSecurityManager(securityManager);
+		logger.log(SecurityLogger.Level.INFO, "Security manager replaced: {}", securityManager);
+		return previous;
+	}
+
+	/**
+	 * Atomically replaces the security manager used by framework if current one is the expected one.
+	 * @param expected expected security manager.
+	 * @param securityManager new security manager.
+	 * @return a boolean indicating if manager was replaced.
+	 */
+	public static boolean compareAndSwapSecurityManager(SecurityManager expected, SecurityManager securityManager) {
+		if (!SecurityDomain.GLOBAL.compareAndSwapSecurityManager(expected, securityManager))
+			return false;
+
+		logger.log(SecurityLogger.Level.INFO, "Security manager replaced: {}", securityManager);
+		return true;
 	}
 
 	/**
@@ -214,7 +315,7 @@ public class Security {
 	}
 	
 	protected static void init(ClassLoader classLoader, SecurityManager securityManager) {
-		init(classLoader, securityManager, readSecurityInfo(EMBEDDED_PROTECTED_CLASS_LIST_FILE, EMBEDDED_PROTECTED_CLASS_LIST_FILE_ENCODING));
+		init(classLoader, securityManager, readSecurityInfo(classLoader));
 	}
 
 	protected static void init(SecurityManager securityManager, String... securedClasses) {
@@ -222,6 +323,10 @@ public class Security {
 	}
 	
 	protected static void init(ClassLoader classLoader, SecurityManager securityManager, String... securedClasses) {
+		init(classLoader, securityManager, toClassNameSet(securedClasses));
+	}
+
+	static Set<String> toClassNameSet(String... securedClasses) {
 		Set<String> protectedClassNameSet = new LinkedHashSet<>();
 		
 		for (int i = 0; i < securedClasses.length; i++) {
@@ -235,7 +340,7 @@ public class Security {
 				throw new IllegalArgumentException("Duplicate definition of " + protectedClassName);
 		}
 
-		init(classLoader, securityManager, protectedClassNameSet);
+		return protectedClassNameSet;
 	}
 	// =========================================================================
 	
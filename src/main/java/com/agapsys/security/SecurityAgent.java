@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javassist.ClassPool;
+import javassist.LoaderClassPath;
+
+/**
+ * Java agent which weaves secured classes when they are loaded by the JVM.
+ * When the agent is installed, {@linkplain Security} initialization only installs the security manager: classes are woven on demand,
+ * so startup does not pay for classes which are never used.
+ * <p>Usage: <code>java -javaagent:security-framework.jar[=retransform] ...</code>. The agent can also be attached to a running JVM.
+ * If <code>retransform</code> argument is given (or if agent is attached to a running JVM), secured classes loaded before the agent are retransformed.</p>
+ * <p>Classes which cannot be woven are loaded with all of their methods denying execution. If even that fails, {@linkplain Security} initialization fails.</p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class SecurityAgent {
+
+	// CLASS SCOPE =============================================================
+	private static final String RETRANSFORM_ARG = "retransform";
+	private static final byte[] SECURED_DESCRIPTOR = ("L" + Secured.class.getName().replace('.', '/') + ";").getBytes(StandardCharsets.US_ASCII);
+	private static final List<String> FAILED_CLASSES = new CopyOnWriteArrayList<>();
+
+	private static boolean contains(byte[] data, byte[] pattern) {
+		outer:
+		for (int i = 0; i <= data.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (data[i + j] != pattern[j])
+					continue outer;
+			}
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/** Weaves classes referencing {@linkplain Secured} annotation. */
+	static class Transformer implements ClassFileTransformer {
+		private final Map<ClassLoader, ClassPool> classPools = new WeakHashMap<>();
+
+		private synchronized ClassPool getClassPool(ClassLoader loader) {
+			ClassPool cp = classPools.get(loader);
+
+			if (cp == null) {
+				cp = new ClassPool(true);
+				cp.appendClassPath(new LoaderClassPath(loader));
+				classPools.put(loader, cp);
+			}
+
+			return cp;
+		}
+
+		@Override
+		public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+			if (loader == null || className == null || !contains(classfileBuffer, SECURED_DESCRIPTOR))
+				return null;
+
+			try {
+				if (ClassFiles.declaresField(classfileBuffer, Weaver.WOVEN_MARKER_FIELD)) // <-- Woven in advance (or bytes of a woven class passed again on retransformation)
+					return null;
+			} catch (IOException ex) {
+				return null; // <-- Invalid class file is rejected by the JVM
+			}
+
+			ClassPool cp = getClassPool(loader);
+
+			try {
+				byte[] woven;
+
+				synchronized (cp) {
+					woven = Weaver.weave(cp, classfileBuffer, classBeingRedefined == null || isWoven(classBeingRedefined), loader); // <-- Fields cannot be added to loaded classes (unless they were added when class was loaded)
+				}
+
+				SecurityLogger logger = Security.getLogger();
+
+				if (woven != null && logger.isEnabled(SecurityLogger.Level.DEBUG))
+					logger.log(SecurityLogger.Level.DEBUG, "Secured class: {}", className.replace('/', '.'));
+
+				return woven;
+			} catch (Throwable t) {
+				// JVM ignores errors thrown by transformers, so class would be silently loaded without security
+				Security.getLogger().log(SecurityLogger.Level.ERROR, "Error securing class {} (execution of its methods will be denied)", className.replace('/', '.'), t);
+
+				try {
+					synchronized (cp) {
+						return Weaver.weaveDenyAll(cp, classfileBuffer);
+					}
+				} catch (Throwable t2) {
+					FAILED_CLASSES.add(className.replace('/', '.'));
+					Security.getLogger().log(SecurityLogger.Level.ERROR, "Error denying execution of class {}", className.replace('/', '.'), t2);
+					return null;
+				}
+			}
+		}
+	}
+
+	private static boolean isSecured(Class<?> c) {
+		if (c.isAnnotationPresent(Secured.class))
+			return true;
+
+		for (Method method : c.getDeclaredMethods()) {
+			if (method.isAnnotationPresent(Secured.class))
+				return true;
+		}
+
+		return false;
+	}
+
+	private static boolean isWoven(Class<?> c) {
+		try {
+			c.getDeclaredField(Weaver.WOVEN_MARKER_FIELD);
+			return true;
+		} catch (NoSuchFieldException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if all classes seen by the agent were secured.
+	 * @throws IllegalStateException if a class was loaded without security.
+	 */
+	static void checkFailures() throws IllegalStateException {
+		if (!FAILED_CLASSES.isEmpty())
+			throw new IllegalStateException("Classes loaded without security: " + FAILED_CLASSES);
+	}
+
+	private static void install(Instrumentation inst, boolean retransform) {
+		inst.addTransformer(new Transformer(), inst.isRetransformClassesSupported());
+		Security.setAgentInstalled(true);
+
+		if (retransform && inst.isRetransformClassesSupported()) {
+			List<Class<?>> securedClasses = new ArrayList<>();
+
+			for (Class<?> c : inst.getAllLoadedClasses()) {
+				if (c.getClassLoader() != null && inst.isModifiableClass(c) && isSecured(c) && !isWoven(c))
+					securedClasses.add(c);
+			}
+
+			if (!securedClasses.isEmpty()) {
+				try {
+					inst.retransformClasses(securedClasses.toArray(new Class<?>[securedClasses.size()]));
+				} catch (UnmodifiableClassException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Entry point used when agent is loaded at JVM startup.
+	 * @param args agent arguments.
+	 * @param inst instrumentation instance.
+	 */
+	public static void premain(String args, Instrumentation inst) {
+		install(inst, RETRANSFORM_ARG.equals(args));
+	}
+
+	/**
+	 * Entry point used when agent is attached to a running JVM.
+	 * @param args agent arguments.
+	 * @param inst instrumentation instance.
+	 */
+	public static void agentmain(String args, Instrumentation inst) {
+		install(inst, true);
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private SecurityAgent() {}
+	// =========================================================================
+}
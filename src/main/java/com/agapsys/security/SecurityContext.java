@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of a principal and its roles.
+ * Roles are resolved once (when context is created) into a mask (see {@linkplain RoleRegistry}), so checking requirements against a context is lock-free and does not depend on session state.
+ * Requirements are checked against granted roles and the roles implied by them according to current {@linkplain RoleHierarchy}.
+ * A context is bound to the current thread through {@linkplain #bind()}:
+ * <pre>
+ * try (SecurityContext.Scope scope = new SecurityContext(user, "USER", "ADMIN").bind()) {
+ *     ...
+ * }
+ * </pre>
+ * Contexts are propagated to tasks executed by other threads through {@linkplain SecurityExecutors}.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class SecurityContext {
+
+	// CLASS SCOPE =============================================================
+	/** Context without principal and roles. This is the current context when no context is bound to a thread. */
+	public static final SecurityContext ANONYMOUS = new SecurityContext(null);
+
+	private static final ThreadLocal<SecurityContext> CURRENT = new ThreadLocal<>();
+
+	/**
+	 * Scope of a bound context. Closing a scope restores the context which was bound when scope was opened.
+	 */
+	public static final class Scope implements AutoCloseable {
+		private final SecurityContext previous;
+		private final int scopeDepth;
+		private boolean closed = false;
+
+		private Scope(SecurityContext previous) {
+			this.previous = previous;
+			this.scopeDepth = WovenGuard.suspend(); // <-- Requirements satisfied by previous principal are not implied for this one
+		}
+
+		@Override
+		public void close() {
+			if (closed)
+				return;
+
+			closed = true;
+			WovenGuard.resume(scopeDepth);
+
+			if (previous == null) {
+				CURRENT.remove();
+			} else {
+				CURRENT.set(previous);
+			}
+		}
+	}
+
+	/** Mask of effective roles computed for a hierarchy. */
+	private static final class EffectiveRoles {
+		private final RoleHierarchy hierarchy;
+		private final long[] roleMask;
+
+		public EffectiveRoles(RoleHierarchy hierarchy, long[] roleMask) {
+			this.hierarchy = hierarchy;
+			this.roleMask = roleMask;
+		}
+	}
+
+	/**
+	 * Returns the context bound to current thread.
+	 * @return the context bound to current thread or {@linkplain #ANONYMOUS} if there is no context bound to current thread.
+	 */
+	public static SecurityContext getCurrent() {
+		SecurityContext context = CURRENT.get();
+		return context != null ? context : ANONYMOUS;
+	}
+
+	/** Removes the context bound to current thread (if any), along with the requirements satisfied by it (see {@linkplain Security#enableReentrancyElision(boolean)}). */
+	public static void unbind() {
+		CURRENT.remove();
+		WovenGuard.reset();
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final Object principal;
+	private final Set<String> roles;
+	private final long[] roleMask;
+	private EffectiveRoles effectiveRoles = null; // <-- Immutable holder, so publication races are benign
+
+	/**
+	 * Constructor.
+	 * @param principal principal associated with this context (may be <code>null</code>).
+	 * @param roles roles granted to given principal.
+	 */
+	public SecurityContext(Object principal, String... roles) {
+		Set<String> roleSet = new LinkedHashSet<>();
+
+		for (int i = 0; i < roles.length; i++) {
+			String role = roles[i];
+
+			if (role == null || role.trim().isEmpty())
+				throw new IllegalArgumentException("Null/Empty role at index " + i);
+
+			if (!roleSet.add(role))
+				throw new IllegalArgumentException("Duplicate definition of " + role);
+		}
+
+		this.principal = principal;
+		this.roles = Collections.unmodifiableSet(roleSet);
+		this.roleMask = RoleRegistry.getMask(roles);
+	}
+
+	/**
+	 * Constructor.
+	 * @param principal principal associated with this context (may be <code>null</code>).
+	 * @param roles roles granted to given principal.
+	 */
+	public SecurityContext(Object principal, Collection<String> roles) {
+		this(principal, roles.toArray(new String[roles.size()]));
+	}
+
+	/** @return the principal associated with this context. */
+	public Object getPrincipal() {
+		return principal;
+	}
+
+	/** @return the roles granted to the principal. */
+	public Set<String> getRoles() {
+		return roles;
+	}
+
+	/** @return a copy of the mask of granted roles. */
+	public long[] getRoleMask() {
+		return roleMask.clone();
+	}
+
+	long[] getEffectiveMask() {
+		RoleHierarchy hierarchy = RoleHierarchy.getCurrent();
+		EffectiveRoles effective = effectiveRoles;
+
+		if (effective == null || effective.hierarchy != hierarchy) {
+			effective = new EffectiveRoles(hierarchy, hierarchy.expand(roleMask));
+			effectiveRoles = effective;
+		}
+
+		return effective.roleMask;
+	}
+
+	/** @return a copy of the mask of granted roles and the roles implied by them according to current {@linkplain RoleHierarchy}. */
+	public long[] getEffectiveRoleMask() {
+		return getEffectiveMask().clone();
+	}
+
+	/**
+	 * Checks if all roles of given mask are granted (directly or through current {@linkplain RoleHierarchy}).
+	 * @param requiredRoleMask mask of required roles.
+	 * @return a boolean indicating if all roles of given mask are granted.
+	 */
+	public boolean hasRoles(long[] requiredRoleMask) {
+		return RoleRegistry.containsAll(getEffectiveMask(), requiredRoleMask);
+	}
+
+	/**
+	 * Checks if all given roles are granted (directly or through current {@linkplain RoleHierarchy}).
+	 * @param requiredRoles required roles.
+	 * @return a boolean indicating if all given roles are granted.
+	 */
+	public boolean hasRoles(String... requiredRoles) {
+		RoleHierarchy hierarchy = null;
+
+		for (String role : requiredRoles) {
+			if (roles.contains(role))
+				continue;
+
+			if (hierarchy == null)
+				hierarchy = RoleHierarchy.getCurrent();
+
+			if (!hasImpliedRole(hierarchy, role))
+				return false;
+		}
+
+		return true;
+	}
+
+	private boolean hasImpliedRole(RoleHierarchy hierarchy, String role) {
+		for (String grantedRole : roles) {
+			if (hierarchy.getImpliedRoles(grantedRole).contains(role))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Binds this context to current thread.
+	 * @return scope which restores previously bound context when closed.
+	 */
+	public Scope bind() {
+		Scope scope = new Scope(CURRENT.get());
+		CURRENT.set(this);
+		return scope;
+	}
+	// =========================================================================
+}
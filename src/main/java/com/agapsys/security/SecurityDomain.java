@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.Closeable;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Security scope of a class loader (e.g. an application or plugin sharing the JVM with others).
+ * Each domain has its own security manager and weaves its classes with its own Javassist class pool, so domains are initialized independently
+ * and closing a domain releases its weaving state. Classes which are not loaded (directly or through a parent) by a class loader owning a domain
+ * belong to the global domain, which is the one initialized through {@linkplain Security}.
+ * <pre>
+ * SecurityDomain domain = SecurityDomain.open(pluginClassLoader, securityManager);
+ * domain.init(); // Weaves classes listed in META-INF/security.info of given class loader
+ * ...
+ * domain.close(); // Secured methods of plugin classes cannot be executed anymore
+ * </pre>
+ * Woven classes resolve their domain once (when they are initialized), so guards read the domain manager without lookups. Thus, a domain must be opened before any secured class of its class loader
+ * is initialized: classes initialized earlier would stay bound to the global domain, so opening a domain for such a class loader fails.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class SecurityDomain implements Closeable {
+
+	// CLASS SCOPE =============================================================
+	/** Domain of classes not belonging to other domains. */
+	static final SecurityDomain GLOBAL = new SecurityDomain(null);
+
+	private static final Map<ClassLoader, SecurityDomain> DOMAINS = new WeakHashMap<>();
+
+	private static final ClassValue<SecurityDomain> CLASS_DOMAINS = new ClassValue<SecurityDomain>() {
+		@Override
+		protected SecurityDomain computeValue(Class<?> type) {
+			synchronized (DOMAINS) {
+				for (ClassLoader classLoader = type.getClassLoader(); classLoader != null; classLoader = classLoader.getParent()) {
+					SecurityDomain domain = DOMAINS.get(classLoader);
+
+					if (domain != null)
+						return domain;
+				}
+			}
+
+			return GLOBAL;
+		}
+	};
+
+	/**
+	 * Returns the domain of given class.
+	 * This method is used by woven code.
+	 * @param c secured class.
+	 * @return the domain owning the class loader (or one of its parents) of given class, or the global domain.
+	 */
+	public static SecurityDomain of(Class<?> c) {
+		return CLASS_DOMAINS.get(c);
+	}
+
+	/**
+	 * Returns the domain owned by a class loader.
+	 * @param classLoader class loader.
+	 * @return the open domain owned by given class loader or <code>null</code> if there is no such domain.
+	 */
+	public static SecurityDomain get(ClassLoader classLoader) {
+		synchronized (DOMAINS) {
+			return DOMAINS.get(classLoader);
+		}
+	}
+
+	/**
+	 * Opens a domain.
+	 * @param classLoader class loader owning the domain.
+	 * @param securityManager security manager of the domain.
+	 * @return opened domain.
+	 * @throws IllegalStateException if there is already an open domain owned by given class loader or if secured classes of given class loader (or of its descendants) were already initialized.
+	 */
+	public static SecurityDomain open(ClassLoader classLoader, SecurityManager securityManager) {
+		if (classLoader == null)
+			throw new IllegalArgumentException("A class loader must be provided");
+
+		if (securityManager == null)
+			throw new IllegalArgumentException("A security manager must be provided");
+
+		SecurityDomain domain = new SecurityDomain(classLoader);
+		domain.securityManager = securityManager;
+
+		synchronized (DOMAINS) {
+			if (DOMAINS.containsKey(classLoader))
+				throw new IllegalStateException("There is already a security domain for given class loader");
+
+			if (MethodRegistry.hasRegistrations(classLoader)) // <-- Initialized classes are bound to the domain of a parent (or to the global one) and cannot be moved
+				throw new IllegalStateException("Secured classes of given class loader were initialized before its security domain was opened");
+
+			DOMAINS.put(classLoader, domain);
+		}
+
+		return domain;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final WeakReference<ClassLoader> classLoader; // <-- Domains are values of a weak map keyed by class loader
+	private volatile SecurityManager securityManager = null;
+	private volatile boolean closed = false;
+	private Weaver weaver = null;
+	private final Map<ClassLoader, Weaver> globalWeavers = new WeakHashMap<>(); // <-- Used by global domain only (its classes may be defined in any class loader)
+
+	private SecurityDomain(ClassLoader classLoader) {
+		this.classLoader = classLoader != null ? new WeakReference<>(classLoader) : null;
+	}
+
+	/**
+	 * Returns the security manager of this domain.
+	 * @return the security manager of this domain (<code>null</code> if global domain was not initialized).
+	 * @throws IllegalStateException if this domain is closed.
+	 */
+	public SecurityManager getSecurityManager() {
+		SecurityManager sm = securityManager;
+
+		if (sm == null && closed)
+			throw new IllegalStateException("Security domain is closed");
+
+		return sm;
+	}
+
+	private ClassLoader getClassLoader() {
+		ClassLoader cl = classLoader.get();
+
+		if (cl == null)
+			throw new IllegalStateException("Security domain is closed");
+
+		return cl;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("Security domain is closed");
+	}
+
+	/**
+	 * Atomically replaces the security manager of this domain (see {@linkplain Security#swapSecurityManager(SecurityManager)}).
+	 * @param securityManager new security manager.
+	 * @return previous security manager.
+	 */
+	public SecurityManager swapSecurityManager(SecurityManager securityManager) {
+		if (securityManager == null)
+			throw new IllegalArgumentException("A security manager must be provided");
+
+		synchronized (this) {
+			checkOpen();
+			SecurityManager previous = this.securityManager;
+			this.securityManager = securityManager;
+			return previous;
+		}
+	}
+
+	/**
+	 * Atomically replaces the security manager of this domain if current one is the expected one.
+	 * @param expected expected security manager.
+	 * @param securityManager new security manager.
+	 * @return a boolean indicating if manager was replaced.
+	 */
+	public synchronized boolean compareAndSwapSecurityManager(SecurityManager expected, SecurityManager securityManager) {
+		if (securityManager == null)
+			throw new IllegalArgumentException("A security manager must be provided");
+
+		checkOpen();
+
+		if (this.securityManager != expected)
+			return false;
+
+		this.securityManager = securityManager;
+		return true;
+	}
+
+	/**
+	 * Weaves the classes listed in <code>META-INF/security.info</code> of the class loader owning this domain and defines them in that class loader.
+	 */
+	public void init() {
+		init(Security.readSecurityInfo(getClassLoader()));
+	}
+
+	/**
+	 * Weaves given classes and defines them in the class loader owning this domain.
+	 * @param securedClasses secured class names.
+	 */
+	public void init(String... securedClasses) {
+		init(Security.toClassNameSet(securedClasses));
+	}
+
+	private synchronized void init(Set<String> securedClasses) {
+		if (this == GLOBAL)
+			throw new UnsupportedOperationException("Global domain is initialized through Security");
+
+		checkOpen();
+		Security.secure(getClassLoader(), securedClasses, this);
+	}
+
+	/**
+	 * Returns the weaver used to define classes in given class loader (created on first use, so Javassist is not loaded if all classes are woven in advance).
+	 * Global domain holds a weaver per class loader, which is released along with its class loader.
+	 * @param cl class loader where woven classes will be defined (the one owning this domain, unless this is the global domain).
+	 * @return weaver.
+	 */
+	Weaver getWeaver(ClassLoader cl) {
+		if (this == GLOBAL) {
+			synchronized (globalWeavers) {
+				Weaver globalWeaver = globalWeavers.get(cl);
+
+				if (globalWeaver == null) {
+					globalWeaver = new Weaver(cl, Security.readSecurityIndex(cl));
+					globalWeavers.put(cl, globalWeaver);
+				}
+
+				return globalWeaver;
+			}
+		}
+
+		synchronized (this) {
+			if (weaver == null)
+				weaver = new Weaver(cl, Security.readSecurityIndex(cl));
+
+			return weaver;
+		}
+	}
+
+	/**
+	 * Closes this domain. Secured methods of classes belonging to a closed domain cannot be executed (their guards throw {@linkplain IllegalStateException}).
+	 * Domain is unregistered and its weaving state (Javassist class pool) and secured methods (see {@linkplain MethodRegistry}) are released.
+	 */
+	@Override
+	public void close() {
+		if (this == GLOBAL)
+			throw new UnsupportedOperationException("Global domain cannot be closed");
+
+		synchronized (this) {
+			if (closed)
+				return;
+
+			closed = true;
+			securityManager = null;
+			weaver = null;
+		}
+
+		synchronized (DOMAINS) {
+			ClassLoader cl = classLoader.get();
+
+			if (cl != null && DOMAINS.get(cl) == this)
+				DOMAINS.remove(cl);
+
+			if (cl != null)
+				MethodRegistry.release(cl, DOMAINS.keySet()); // <-- Nested domains keep their methods
+		}
+
+		classLoader.clear();
+	}
+
+	/** @return a boolean indicating if this domain is closed. */
+	public boolean isClosed() {
+		return closed;
+	}
+	// =========================================================================
+}
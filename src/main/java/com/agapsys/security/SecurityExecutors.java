@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Propagates the {@linkplain SecurityContext} of the submitting thread to tasks executed by other threads.
+ * A task captures the context which is current when the task is wrapped (a single reference to an immutable snapshot) and binds it
+ * while the task runs, restoring the context of the executing thread afterwards:
+ * <pre>
+ * ExecutorService executor = SecurityExecutors.wrap(Executors.newFixedThreadPool(8));
+ * executor.submit(task); // <-- task runs with the context of the submitting thread
+ * </pre>
+ * Tasks submitted without a bound context run as {@linkplain SecurityContext#ANONYMOUS}, so they never see a context left by a previous task.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class SecurityExecutors {
+
+	// CLASS SCOPE =============================================================
+	private static class ContextRunnable implements Runnable {
+		private final SecurityContext context;
+		private final Runnable task;
+
+		public ContextRunnable(SecurityContext context, Runnable task) {
+			this.context = context;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			SecurityContext.Scope scope = context.bind();
+
+			try {
+				task.run();
+			} finally {
+				scope.close();
+			}
+		}
+	}
+
+	private static class ContextCallable<T> implements Callable<T> {
+		private final SecurityContext context;
+		private final Callable<T> task;
+
+		public ContextCallable(SecurityContext context, Callable<T> task) {
+			this.context = context;
+			this.task = task;
+		}
+
+		@Override
+		public T call() throws Exception {
+			SecurityContext.Scope scope = context.bind();
+
+			try {
+				return task.call();
+			} finally {
+				scope.close();
+			}
+		}
+	}
+
+	private static class ContextExecutor implements Executor {
+		private final Executor executor;
+
+		public ContextExecutor(Executor executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			executor.execute(wrap(command));
+		}
+	}
+
+	private static class ContextExecutorService extends ContextExecutor implements ExecutorService {
+		private final ExecutorService executorService;
+
+		public ContextExecutorService(ExecutorService executorService) {
+			super(executorService);
+			this.executorService = executorService;
+		}
+
+		private <T> List<Callable<T>> wrapAll(Collection<? extends Callable<T>> tasks) {
+			SecurityContext context = SecurityContext.getCurrent(); // <-- All tasks share the same snapshot
+			List<Callable<T>> wrapped = new ArrayList<>(tasks.size());
+
+			for (Callable<T> task : tasks) {
+				wrapped.add(new ContextCallable<>(context, task));
+			}
+
+			return wrapped;
+		}
+
+		@Override
+		public void shutdown() {
+			executorService.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return executorService.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return executorService.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return executorService.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return executorService.awaitTermination(timeout, unit);
+		}
+
+		@Override
+		public <T> Future<T> submit(Callable<T> task) {
+			return executorService.submit(wrap(task));
+		}
+
+		@Override
+		public <T> Future<T> submit(Runnable task, T result) {
+			return executorService.submit(wrap(task), result);
+		}
+
+		@Override
+		public Future<?> submit(Runnable task) {
+			return executorService.submit(wrap(task));
+		}
+
+		@Override
+		public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+			return executorService.invokeAll(wrapAll(tasks));
+		}
+
+		@Override
+		public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
+			return executorService.invokeAll(wrapAll(tasks), timeout, unit);
+		}
+
+		@Override
+		public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+			return executorService.invokeAny(wrapAll(tasks));
+		}
+
+		@Override
+		public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return executorService.invokeAny(wrapAll(tasks), timeout, unit);
+		}
+	}
+
+	/**
+	 * Wraps a task so that it runs with the context which is current when this method is called.
+	 * @param task task to be wrapped.
+	 * @return wrapped task.
+	 */
+	public static Runnable wrap(Runnable task) {
+		if (task == null)
+			throw new IllegalArgumentException("Task cannot be null");
+
+		return new ContextRunnable(SecurityContext.getCurrent(), task);
+	}
+
+	/**
+	 * Wraps a task so that it runs with the context which is current when this method is called.
+	 * @param <T> task result type.
+	 * @param task task to be wrapped.
+	 * @return wrapped task.
+	 */
+	public static <T> Callable<T> wrap(Callable<T> task) {
+		if (task == null)
+			throw new IllegalArgumentException("Task cannot be null");
+
+		return new ContextCallable<>(SecurityContext.getCurrent(), task);
+	}
+
+	/**
+	 * Wraps an executor so that submitted tasks run with the context of the submitting thread.
+	 * @param executor executor to be wrapped.
+	 * @return wrapped executor.
+	 */
+	public static Executor wrap(Executor executor) {
+		if (executor == null)
+			throw new IllegalArgumentException("Executor cannot be null");
+
+		if (executor instanceof ContextExecutor)
+			return executor; // <-- Already wrapped
+
+		if (executor instanceof ExecutorService)
+			return wrap((ExecutorService) executor);
+
+		return new ContextExecutor(executor);
+	}
+
+	/**
+	 * Wraps an executor service so that submitted tasks run with the context of the submitting thread.
+	 * Lifecycle methods (e.g. {@linkplain ExecutorService#shutdown()}) are delegated to given executor service.
+	 * @param executorService executor service to be wrapped.
+	 * @return wrapped executor service.
+	 */
+	public static ExecutorService wrap(ExecutorService executorService) {
+		if (executorService == null)
+			throw new IllegalArgumentException("Executor service cannot be null");
+
+		if (executorService instanceof ContextExecutorService)
+			return executorService; // <-- Already wrapped
+
+		return new ContextExecutorService(executorService);
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private SecurityExecutors() {}
+	// =========================================================================
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Per-method requirement index generated at compile time by {@linkplain SecurityProcessor}.
+ * When an index is available, secured classes are woven without reading (and validating) annotations.
+ * <p>Index is a text file where each line is one of:</p>
+ * <pre>
+ * C &lt;class&gt;                     (class without class-level &#64;Secured)
+ * S &lt;class&gt; [roles]             (class annotated with &#64;Secured)
+ * M &lt;class&gt; &lt;method&gt; [roles]    (method annotated with &#64;Secured)
+ * U &lt;class&gt; &lt;method&gt;            (method annotated with &#64;Unsecured)
+ * K &lt;class&gt; &lt;method&gt; conditions (conditions of a method annotated with &#64;Secured)
+ * H &lt;class&gt; &lt;fingerprint&gt;      (fingerprint of the annotations of the class)
+ * </pre>
+ * Methods are identified by name and descriptor (e.g. <code>run(Ljava/lang/String;)V</code>) and roles are comma-delimited.
+ * Whitespace, commas and '%' in roles and conditions (e.g. in {@linkplain RoleExpression role expressions}) are percent-encoded.
+ * <p>Index may be stale if classes are compiled without the processor (e.g. by IDEs) after it last ran. When verification is enabled (see {@linkplain Security#enableIndexVerification(boolean)}),
+ * an entry is used only if its fingerprint matches the one computed from the annotations found in the class file being woven (see {@linkplain #getFingerprint(Collection)}). Otherwise, annotations are read.</p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+final class SecurityIndex {
+
+	// CLASS SCOPE =============================================================
+	static final String EMBEDDED_INDEX_FILE = "META-INF/security.index";
+	static final String EMBEDDED_INDEX_FILE_ENCODING = "utf-8";
+
+	private static final String[] NO_ROLES = new String[0];
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/** Index entry of a secured class. */
+	static final class ClassEntry {
+		private final String className;
+		private final boolean secured;
+		private final String[] roles;
+		private final Map<String, String[]> securedMethods = new LinkedHashMap<>();
+		private final Set<String> unsecuredMethods = new LinkedHashSet<>();
+		private final Map<String, String[]> methodConditions = new LinkedHashMap<>();
+		private String fingerprint = null;
+
+		ClassEntry(String className, boolean secured, String[] roles) {
+			this.className = className;
+			this.secured = secured;
+			this.roles = roles;
+		}
+
+		void setFingerprint(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+
+		/**
+		 * Checks if this entry was generated from the annotations of a class.
+		 * @param fingerprint fingerprint of class annotations (see {@linkplain SecurityIndex#getFingerprint(Collection)}).
+		 * @return a boolean indicating if this entry can be used instead of class annotations (entries without fingerprint never match).
+		 */
+		boolean matches(String fingerprint) {
+			return this.fingerprint != null && this.fingerprint.equals(fingerprint);
+		}
+
+		void addSecuredMethod(String method, String[] roles) {
+			securedMethods.put(method, roles);
+		}
+
+		void addUnsecuredMethod(String method) {
+			unsecuredMethods.add(method);
+		}
+
+		void addMethodConditions(String method, String[] conditions) {
+			methodConditions.put(method, conditions);
+		}
+
+		/**
+		 * Returns the conditions declared by a method.
+		 * @param method method name and descriptor.
+		 * @return method conditions (empty if method does not declare conditions).
+		 */
+		String[] getConditions(String method) {
+			String[] conditions = methodConditions.get(method);
+			return conditions != null ? conditions : NO_ROLES;
+		}
+
+		/**
+		 * Returns the roles required by a method.
+		 * @param method method name and descriptor.
+		 * @return required roles or <code>null</code> if given method is not secured.
+		 */
+		String[] getRequiredRoles(String method) {
+			if (unsecuredMethods.contains(method))
+				return null;
+
+			String[] methodRoles = securedMethods.get(method);
+
+			if (methodRoles == null)
+				return secured ? roles : null;
+
+			if (!secured)
+				return methodRoles;
+
+			String[] merged = new String[roles.length + methodRoles.length];
+			System.arraycopy(roles, 0, merged, 0, roles.length);
+			System.arraycopy(methodRoles, 0, merged, roles.length, methodRoles.length);
+			return merged;
+		}
+	}
+
+	private static String[] parseRoles(String[] tokens, int index) {
+		if (tokens.length <= index || tokens[index].isEmpty())
+			return NO_ROLES;
+
+		String[] roles = tokens[index].split(",");
+
+		for (int i = 0; i < roles.length; i++) {
+			roles[i] = decode(roles[i]);
+		}
+
+		return roles;
+	}
+
+	private static String encode(String role) {
+		return role.replace("%", "%25").replace(" ", "%20").replace("\t", "%09").replace(",", "%2C");
+	}
+
+	private static String decode(String role) {
+		return role.replace("%2C", ",").replace("%09", "\t").replace("%20", " ").replace("%25", "%");
+	}
+
+	private static String toCommaDelimited(String[] roles) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < roles.length; i++) {
+			if (i > 0)
+				sb.append(",");
+
+			sb.append(encode(roles[i]));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the fingerprint line of a class annotated with {@linkplain Secured}.
+	 * @param values annotation values (as declared).
+	 * @return fingerprint line.
+	 */
+	static String getSecuredClassLine(String[] values) {
+		return "S " + toCommaDelimited(values);
+	}
+
+	/**
+	 * Returns the fingerprint line of a method annotated with {@linkplain Secured}.
+	 * @param method method name and descriptor.
+	 * @param values annotation values (as declared).
+	 * @param conditions annotation conditions (as declared).
+	 * @return fingerprint line.
+	 */
+	static String getSecuredMethodLine(String method, String[] values, String[] conditions) {
+		return String.format("M %s %s %s", method, toCommaDelimited(values), toCommaDelimited(conditions));
+	}
+
+	/**
+	 * Returns the fingerprint line of a method annotated with {@linkplain Unsecured}.
+	 * @param method method name and descriptor.
+	 * @return fingerprint line.
+	 */
+	static String getUnsecuredMethodLine(String method) {
+		return "U " + method;
+	}
+
+	/**
+	 * Computes the fingerprint of the annotations of a class. Fingerprint is computed by the processor (from source) and by the weaver (from class files), so both must describe
+	 * annotations through the same lines (see {@linkplain #getSecuredClassLine(String[])}, {@linkplain #getSecuredMethodLine(String, String[], String[])} and {@linkplain #getUnsecuredMethodLine(String)}).
+	 * @param lines fingerprint lines (in any order).
+	 * @return fingerprint.
+	 */
+	static String getFingerprint(Collection<String> lines) {
+		MessageDigest digest;
+
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException(ex); // <-- Every JVM provides SHA-1
+		}
+
+		Charset charset = Charset.forName(EMBEDDED_INDEX_FILE_ENCODING);
+
+		for (String line : new TreeSet<>(lines)) { // <-- Sorted, so element and method order do not matter
+			digest.update(line.getBytes(charset));
+			digest.update((byte) '\n');
+		}
+
+		byte[] hash = digest.digest();
+		char[] hex = new char[hash.length * 2];
+
+		for (int i = 0; i < hash.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xf];
+		}
+
+		return new String(hex);
+	}
+
+	/**
+	 * Reads an index.
+	 * @param is input stream.
+	 * @return read index.
+	 */
+	static SecurityIndex read(InputStream is) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(is, EMBEDDED_INDEX_FILE_ENCODING));
+		SecurityIndex index = new SecurityIndex();
+		String readLine;
+
+		while ((readLine = in.readLine()) != null) {
+			readLine = readLine.trim();
+
+			if (readLine.isEmpty())
+				continue;
+
+			String[] tokens = readLine.split(" ");
+
+			switch (tokens[0]) {
+				case "C":
+				case "S":
+					index.addClass(tokens[1], tokens[0].equals("S"), parseRoles(tokens, 2));
+					break;
+
+				case "M":
+					index.getEntry(tokens[1]).addSecuredMethod(tokens[2], parseRoles(tokens, 3));
+					break;
+
+				case "U":
+					index.getEntry(tokens[1]).addUnsecuredMethod(tokens[2]);
+					break;
+
+				case "K":
+					index.getEntry(tokens[1]).addMethodConditions(tokens[2], parseRoles(tokens, 3));
+					break;
+
+				case "H":
+					index.getEntry(tokens[1]).setFingerprint(tokens[2]);
+					break;
+
+				default:
+					throw new IOException("Invalid index line: " + readLine);
+			}
+		}
+
+		return index;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final Map<String, ClassEntry> entries = new LinkedHashMap<>();
+
+	ClassEntry addClass(String className, boolean secured, String[] roles) {
+		ClassEntry entry = new ClassEntry(className, secured, roles);
+
+		if (entries.put(className, entry) != null)
+			throw new IllegalArgumentException("Duplicate definition of " + className);
+
+		return entry;
+	}
+
+	/**
+	 * Adds an entry read from another index.
+	 * @param entry class entry.
+	 */
+	void add(ClassEntry entry) {
+		if (entries.put(entry.className, entry) != null)
+			throw new IllegalArgumentException("Duplicate definition of " + entry.className);
+	}
+
+	/**
+	 * Adds the entries of another index (e.g. read from another JAR). Classes already indexed are kept.
+	 * @param other index to be merged.
+	 */
+	void addAll(SecurityIndex other) {
+		for (ClassEntry entry : other.entries.values()) {
+			if (!entries.containsKey(entry.className))
+				entries.put(entry.className, entry);
+		}
+	}
+
+	/**
+	 * Returns the entry of given class.
+	 * @param className class name.
+	 * @return class entry or <code>null</code> if given class is not indexed.
+	 */
+	ClassEntry get(String className) {
+		return entries.get(className);
+	}
+
+	private ClassEntry getEntry(String className) throws IOException {
+		ClassEntry entry = entries.get(className);
+
+		if (entry == null)
+			throw new IOException("Class not declared in index: " + className);
+
+		return entry;
+	}
+
+	/** @return indexed class names. */
+	Collection<String> getClassNames() {
+		return entries.keySet();
+	}
+
+	/**
+	 * Writes this index.
+	 * @param os output stream.
+	 */
+	void write(OutputStream os) throws IOException {
+		Writer writer = new OutputStreamWriter(os, EMBEDDED_INDEX_FILE_ENCODING);
+
+		for (ClassEntry entry : entries.values()) {
+			writer.write(String.format("%s %s %s", entry.secured ? "S" : "C", entry.className, toCommaDelimited(entry.roles)).trim() + "\n");
+
+			for (Map.Entry<String, String[]> method : entry.securedMethods.entrySet()) {
+				writer.write(String.format("M %s %s %s", entry.className, method.getKey(), toCommaDelimited(method.getValue())).trim() + "\n");
+			}
+
+			for (Map.Entry<String, String[]> method : entry.methodConditions.entrySet()) {
+				writer.write(String.format("K %s %s %s\n", entry.className, method.getKey(), toCommaDelimited(method.getValue())));
+			}
+
+			for (String method : entry.unsecuredMethods) {
+				writer.write(String.format("U %s %s\n", entry.className, method));
+			}
+
+			if (entry.fingerprint != null)
+				writer.write(String.format("H %s %s\n", entry.className, entry.fingerprint));
+		}
+
+		writer.flush();
+	}
+	// =========================================================================
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.PrintStream;
+import java.util.logging.Logger;
+
+/**
+ * Logger used by the framework (see {@linkplain Security#setLogger(SecurityLogger)}).
+ * Messages are parameterized (each <code>{}</code> in a message is replaced by the next argument) and they are formatted only if given level is enabled,
+ * so disabled messages cost a level check and no allocation. If the last argument is a {@linkplain Throwable} not consumed by a placeholder, it is logged as the error of the message.
+ * <p>Implementations decide which levels are enabled and how formatted messages are written (e.g. by routing them to an application's logging framework).</p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public abstract class SecurityLogger {
+
+	// CLASS SCOPE =============================================================
+	/** Message levels. */
+	public static enum Level {
+		DEBUG,
+		INFO,
+		WARN,
+		ERROR
+	}
+
+	/** Logger which discards all messages. This is the default logger. */
+	public static final SecurityLogger NOOP = new SecurityLogger() {
+		@Override
+		public boolean isEnabled(Level level) {
+			return false;
+		}
+
+		@Override
+		protected void write(Level level, String message, Throwable error) {}
+	};
+
+	/**
+	 * Logger which prints messages to a stream.
+	 * Each message is printed (unbuffered) while holding the lock of the stream, so threads logging concurrently are serialized. This logger is intended for development:
+	 * with <code>DEBUG</code> enabled, messages written by guards make secured calls contend on that lock. Production deployments should route messages to a logging framework (e.g. {@linkplain JulLogger}).
+	 */
+	public static class StreamLogger extends SecurityLogger {
+		private final PrintStream out;
+		private final Level minLevel;
+
+		/**
+		 * Constructor.
+		 * @param out output stream.
+		 * @param minLevel lowest enabled level.
+		 */
+		public StreamLogger(PrintStream out, Level minLevel) {
+			if (out == null)
+				throw new IllegalArgumentException("An output stream must be provided");
+
+			if (minLevel == null)
+				throw new IllegalArgumentException("Level cannot be null");
+
+			this.out = out;
+			this.minLevel = minLevel;
+		}
+
+		@Override
+		public boolean isEnabled(Level level) {
+			return level.compareTo(minLevel) >= 0;
+		}
+
+		@Override
+		protected void write(Level level, String message, Throwable error) {
+			out.println(message);
+
+			if (error != null)
+				error.printStackTrace(out);
+		}
+	}
+
+	/** Logger which routes messages to <code>java.util.logging</code>. */
+	public static class JulLogger extends SecurityLogger {
+		private final Logger logger;
+
+		/**
+		 * Constructor.
+		 * @param loggerName name of the <code>java.util.logging</code> logger receiving messages.
+		 */
+		public JulLogger(String loggerName) {
+			this.logger = Logger.getLogger(loggerName);
+		}
+
+		/** Constructor. Messages are sent to the logger named after this framework's package. */
+		public JulLogger() {
+			this(SecurityLogger.class.getPackage().getName());
+		}
+
+		private static java.util.logging.Level toJulLevel(Level level) {
+			switch (level) {
+				case DEBUG: return java.util.logging.Level.FINE;
+				case INFO:  return java.util.logging.Level.INFO;
+				case WARN:  return java.util.logging.Level.WARNING;
+				default:    return java.util.logging.Level.SEVERE;
+			}
+		}
+
+		@Override
+		public boolean isEnabled(Level level) {
+			return logger.isLoggable(toJulLevel(level));
+		}
+
+		@Override
+		protected void write(Level level, String message, Throwable error) {
+			logger.log(toJulLevel(level), message, error);
+		}
+	}
+
+	/**
+	 * Formats a parameterized message.
+	 * @param message message containing <code>{}</code> placeholders.
+	 * @param args arguments.
+	 * @return formatted message.
+	 */
+	static String format(String message, Object... args) {
+		StringBuilder sb = new StringBuilder(message.length() + 32);
+		int argIndex = 0;
+		int start = 0;
+		int placeholder;
+
+		while (argIndex < args.length && (placeholder = message.indexOf("{}", start)) != -1) {
+			sb.append(message, start, placeholder).append(args[argIndex++]);
+			start = placeholder + 2;
+		}
+
+		return sb.append(message, start, message.length()).toString();
+	}
+
+	private static int countPlaceholders(String message) {
+		int count = 0;
+		int index = 0;
+
+		while ((index = message.indexOf("{}", index)) != -1) {
+			count++;
+			index += 2;
+		}
+
+		return count;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	/**
+	 * Checks if messages of given level shall be written.
+	 * @param level message level.
+	 * @return a boolean indicating if messages of given level shall be written.
+	 */
+	public abstract boolean isEnabled(Level level);
+
+	/**
+	 * Writes a message. This method is called only if given level is enabled.
+	 * @param level message level.
+	 * @param message formatted message.
+	 * @param error error associated with the message (may be <code>null</code>).
+	 */
+	protected abstract void write(Level level, String message, Throwable error);
+
+	private void writeFormatted(Level level, String message, Object... args) {
+		Throwable error = null;
+
+		if (args.length > 0 && args[args.length - 1] instanceof Throwable && countPlaceholders(message) < args.length)
+			error = (Throwable) args[args.length - 1];
+
+		write(level, format(message, args), error);
+	}
+
+	/**
+	 * Logs a message.
+	 * @param level message level.
+	 * @param message message.
+	 */
+	public void log(Level level, String message) {
+		if (isEnabled(level))
+			write(level, message, null);
+	}
+
+	/**
+	 * Logs a parameterized message.
+	 * @param level message level.
+	 * @param message message.
+	 * @param arg message argument.
+	 */
+	public void log(Level level, String message, Object arg) {
+		if (isEnabled(level))
+			writeFormatted(level, message, arg);
+	}
+
+	/**
+	 * Logs a parameterized message.
+	 * @param level message level.
+	 * @param message message.
+	 * @param arg1 first message argument.
+	 * @param arg2 second message argument.
+	 */
+	public void log(Level level, String message, Object arg1, Object arg2) {
+		if (isEnabled(level))
+			writeFormatted(level, message, arg1, arg2);
+	}
+
+	/**
+	 * Logs a parameterized message.
+	 * @param level message level.
+	 * @param message message.
+	 * @param arg1 first message argument.
+	 * @param arg2 second message argument.
+	 * @param arg3 third message argument.
+	 */
+	public void log(Level level, String message, Object arg1, Object arg2, Object arg3) {
+		if (isEnabled(level))
+			writeFormatted(level, message, arg1, arg2, arg3);
+	}
+	// =========================================================================
+}
@@ -15,19 +15,194 @@
  */
 package com.agapsys.security;
 
+import java.util.BitSet;
+
 public abstract class SecurityManager {
+	/** Details of the denial being handled by current thread (see {@linkplain #onNotAllowed(String, String[])}). */
+	private static final class Denial {
+		private String securedMethod;
+		private String[] requiredRoles;
+	}
+	
+	private static final ThreadLocal<Denial> DENIAL = new ThreadLocal<Denial>() {
+		@Override
+		protected Denial initialValue() {
+			return new Denial();
+		}
+	};
+	
 	/** 
 	 * Checks if execution is allowed for given roles
-	 * @param requiredRoles required roles for execution
+	 * @param requiredRoles required roles for execution. Woven methods pass the same (shared) array on every call, so implementations must not modify it.
 	 * @return a boolean indicating if execution is allowed.
 	 */
 	public abstract boolean isAllowed(String[] requiredRoles);
 	
+	/**
+	 * Checks if execution is allowed for given roles.
+	 * Default implementation delegates to {@linkplain #isAllowed(String[])}.
+	 * Managers able to represent principal roles as a mask (see {@linkplain RoleRegistry}) should override this method in order to avoid string comparisons.
+	 * @param requiredRoles required roles for execution. Woven methods pass the same (shared) array on every call, so implementations must not modify it.
+	 * @param requiredRoleMask mask of required roles (see {@linkplain RoleRegistry#getMask(String...)}). Woven methods pass the same (shared) array on every call, so implementations must not modify it.
+	 * @return a boolean indicating if execution is allowed.
+	 */
+	public boolean isAllowed(String[] requiredRoles, long[] requiredRoleMask) {
+		return isAllowed(requiredRoles);
+	}
+	
+	/**
+	 * Checks if execution of a secured method is allowed.
+	 * This is the method called by woven methods. Default implementation delegates to {@linkplain #isAllowed(String[], long[])}.
+	 * Managers whose decisions depend on the method being executed (or which cache decisions per method) should override this method.
+	 * @param methodId secured method id. Method metadata is available through {@linkplain MethodRegistry#getMethod(int)}.
+	 * @param requiredRoles required roles for execution. Woven methods pass the same (shared) array on every call, so implementations must not modify it.
+	 * @param requiredRoleMask mask of required roles. Woven methods pass the same (shared) array on every call, so implementations must not modify it.
+	 * @return a boolean indicating if execution is allowed.
+	 */
+	public boolean isAllowed(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		return isAllowed(requiredRoles, requiredRoleMask);
+	}
+	
+	/**
+	 * Checks asynchronously if execution of a secured method is allowed.
+	 * This is the method called by woven methods whose declared return type is exactly {@linkplain java.util.concurrent.Future} (methods declaring subtypes use the synchronous check):
+	 * if returned decision is pending, method body is deferred until decision is completed (see {@linkplain Security#setDeferredExecutor(java.util.concurrent.Executor)})
+	 * and caller receives a future which waits for the decision and then for the future returned by method body. Thus, managers backed by remote policy sources should override this method in order to avoid blocking callers.
+	 * Default implementation returns a completed decision taken by {@linkplain #isAllowed(int, String[], long[])}.
+	 * Implementations completing decisions in other threads must capture caller state (e.g. current {@linkplain SecurityContext}) before returning.
+	 * @param methodId secured method id.
+	 * @param requiredRoles required roles for execution. Woven methods pass the same (shared) array on every call, so implementations must not modify it.
+	 * @param requiredRoleMask mask of required roles. Woven methods pass the same (shared) array on every call, so implementations must not modify it.
+	 * @return decision (possibly pending).
+	 */
+	public AsyncDecision isAllowedAsync(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		return AsyncDecision.of(isAllowed(methodId, requiredRoles, requiredRoleMask));
+	}
+
+	/**
+	 * Checks a condition on a method argument (see {@linkplain Secured#conditions()}).
+	 * This method is called by woven methods after required roles are checked. Default implementation returns <code>false</code>, so methods declaring conditions
+	 * are denied (through {@linkplain #onNotAllowed(String, String[])}) unless the manager supports them.
+	 * @param methodId secured method id (see {@linkplain MethodRegistry}).
+	 * @param condition condition name.
+	 * @param argument argument passed to the secured method (<code>null</code> if condition has no parameter).
+	 * @return a boolean indicating if condition is satisfied.
+	 */
+	public boolean isConditionSatisfied(int methodId, String condition, Object argument) {
+		return false;
+	}
+
+	/**
+	 * Checks a condition which does not receive an argument (e.g. <code>businessHours()</code>).
+	 * Default implementation delegates to {@linkplain #isConditionSatisfied(int, String, Object)} passing a <code>null</code> argument.
+	 * @param methodId secured method id.
+	 * @param condition condition name.
+	 * @return a boolean indicating if condition is satisfied.
+	 */
+	public boolean isConditionSatisfied(int methodId, String condition) {
+		return isConditionSatisfied(methodId, condition, (Object) null);
+	}
+
+	/**
+	 * Checks a condition on an integral (<code>byte</code>, <code>short</code>, <code>char</code>, <code>int</code> or <code>long</code>) argument.
+	 * Default implementation delegates to {@linkplain #isConditionSatisfied(int, String, Object)}. Managers should override this method in order to avoid boxing.
+	 * @param methodId secured method id.
+	 * @param condition condition name.
+	 * @param argument argument passed to the secured method.
+	 * @return a boolean indicating if condition is satisfied.
+	 */
+	public boolean isConditionSatisfied(int methodId, String condition, long argument) {
+		return isConditionSatisfied(methodId, condition, (Object) argument);
+	}
+
+	/**
+	 * Checks a condition on a floating-point (<code>float</code> or <code>double</code>) argument.
+	 * Default implementation delegates to {@linkplain #isConditionSatisfied(int, String, Object)}. Managers should override this method in order to avoid boxing.
+	 * @param methodId secured method id.
+	 * @param condition condition name.
+	 * @param argument argument passed to the secured method.
+	 * @return a boolean indicating if condition is satisfied.
+	 */
+	public boolean isConditionSatisfied(int methodId, String condition, double argument) {
+		return isConditionSatisfied(methodId, condition, (Object) argument);
+	}
+
+	/**
+	 * Checks a condition on a <code>boolean</code> argument.
+	 * Default implementation delegates to {@linkplain #isConditionSatisfied(int, String, Object)}.
+	 * @param methodId secured method id.
+	 * @param condition condition name.
+	 * @param argument argument passed to the secured method.
+	 * @return a boolean indicating if condition is satisfied.
+	 */
+	public boolean isConditionSatisfied(int methodId, String condition, boolean argument) {
+		return isConditionSatisfied(methodId, condition, (Object) argument);
+	}
+
+	/**
+	 * Checks which secured methods can be executed (e.g. to render menus according to current principal).
+	 * Requirements are read from {@linkplain MethodRegistry}, so annotations are not read and methods are not executed.
+	 * Default implementation evaluates each method as its woven guard does. {@linkplain Secured#conditions() Conditions} without parameter are checked through {@linkplain #isConditionSatisfied(int, String)},
+	 * while methods declaring conditions on arguments are reported as not allowed, since those conditions cannot be evaluated without a call. Managers able to resolve principal roles once (e.g. {@linkplain ContextSecurityManager}) should override this method.
+	 * @param methodIds secured method ids (see {@linkplain MethodRegistry}).
+	 * @return bit set where bit <i>i</i> is set if method <code>methodIds[i]</code> can be executed.
+	 */
+	public BitSet isAllowed(int[] methodIds) {
+		BitSet allowed = new BitSet(methodIds.length);
+
+		for (int i = 0; i < methodIds.length; i++) {
+			SecuredMethod method = MethodRegistry.getMethod(methodIds[i]);
+			RoleExpression expression = method.getRequiredExpression();
+
+			if (isAllowed(methodIds[i], method.getSharedRequiredRoles(), method.getSharedRequiredRoleMask()) && (expression == null || expression.evaluate(this)) && isConditionSatisfied(method))
+				allowed.set(i);
+		}
+
+		return allowed;
+	}
+
+	/**
+	 * Checks the conditions of a method without calling it (see {@linkplain #isAllowed(int[])}).
+	 * @return a boolean indicating if all conditions are satisfied. Conditions on arguments are never satisfied.
+	 */
+	final boolean isConditionSatisfied(SecuredMethod method) {
+		for (MethodCondition methodCondition : method.getMethodConditions()) {
+			if (methodCondition.hasParameter() || !isConditionSatisfied(method.getId(), methodCondition.getName()))
+				return false;
+		}
+
+		return true;
+	}
+	
 	/** 
 	 * Called if an execution is not allowed.
+	 * Default implementation throws the exception returned by {@linkplain NotAllowedException#newInstance(String, String[])}, with the details of the denial being handled (if any, see {@linkplain #onNotAllowed(String, String[])}).
 	 * @throws NotAllowedException if an execution is not allowed.
 	 */
 	public void onNotAllowed() throws NotAllowedException {
-		throw new NotAllowedException();
+		Denial denial = DENIAL.get();
+		throw NotAllowedException.newInstance(denial.securedMethod, denial.requiredRoles);
+	}
+	
+	/** 
+	 * Called by woven methods if an execution is not allowed.
+	 * Default implementation delegates to {@linkplain #onNotAllowed()}, so managers overriding it keep working.
+	 * @param securedMethod secured method (may be <code>null</code>).
+	 * @param requiredRoles roles required by secured method (may be <code>null</code>). Woven methods pass the same (shared) array on every call, so implementations must not modify it.
+	 * @throws NotAllowedException if an execution is not allowed.
+	 */
+	public void onNotAllowed(String securedMethod, String[] requiredRoles) throws NotAllowedException {
+		Denial denial = DENIAL.get();
+		String previousSecuredMethod = denial.securedMethod; // <-- Denials may be nested (e.g. an override calling another secured method)
+		String[] previousRequiredRoles = denial.requiredRoles;
+		denial.securedMethod = securedMethod;
+		denial.requiredRoles = requiredRoles;
+		
+		try {
+			onNotAllowed();
+		} finally {
+			denial.securedMethod = previousSecuredMethod;
+			denial.requiredRoles = previousRequiredRoles;
+		}
 	}
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Per-method authorization metrics (allowed/denied executions and latency of security manager decisions).
+ * When enabled, woven guards (see {@linkplain WovenGuard}) feed striped counters, which are aggregated only when read. Stripes are padded to whole cache lines and added per method
+ * only when its updates contend (up to the number of available processors), so concurrent guards rarely contend and methods checked by few threads keep a single stripe.
+ * <p>Metrics are exported through the platform MBean server as <code>com.agapsys.security:type=SecurityMetrics</code> once metrics are enabled.</p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class SecurityMetrics {
+
+	// CLASS SCOPE =============================================================
+	/** Number of latency histogram buckets. */
+	public static final int LATENCY_BUCKET_COUNT = 30;
+
+	/** Name of the MBean exporting metrics. */
+	public static final String MBEAN_NAME = "com.agapsys.security:type=SecurityMetrics";
+
+	private static final int ALLOW_SLOT = 0;
+	private static final int DENY_SLOT = 1;
+	private static final int LATENCY_SLOT = 2;
+	private static final int SLOT_COUNT = LATENCY_SLOT + LATENCY_BUCKET_COUNT;
+	private static final int PADDING = 8; // <-- 64 bytes on each side of a stripe, so stripes never share cache lines (even when allocated next to each other)
+
+	private static final int MAX_STRIPE_COUNT;
+
+	static {
+		int stripeCount = 1;
+
+		while (stripeCount < Runtime.getRuntime().availableProcessors() && stripeCount < 64) {
+			stripeCount <<= 1;
+		}
+
+		MAX_STRIPE_COUNT = stripeCount;
+	}
+
+	/**
+	 * Counters of a secured method. Each stripe holds all slots (slot <code>s</code> is at <code>PADDING + s</code>).
+	 * Methods start with a single stripe and stripes are added only when updates contend, so methods checked by few threads cost a few hundred bytes.
+	 */
+	private static class Counters {
+		private volatile AtomicLongArray[] stripes = new AtomicLongArray[] {newStripe()};
+
+		private static AtomicLongArray newStripe() {
+			return new AtomicLongArray(PADDING + SLOT_COUNT + PADDING);
+		}
+
+		private void increment(int slot) {
+			AtomicLongArray[] arr = stripes;
+			int h = (int) Thread.currentThread().getId();
+			h ^= (h >>> 16);
+			AtomicLongArray cells = arr[h & (arr.length - 1)];
+
+			int i = PADDING + slot;
+			long value = cells.get(i);
+
+			if (!cells.compareAndSet(i, value, value + 1)) { // <-- Contention: update is retried and more stripes are added
+				cells.incrementAndGet(i);
+				grow(arr);
+			}
+		}
+
+		private synchronized void grow(AtomicLongArray[] arr) {
+			if (stripes != arr || arr.length >= MAX_STRIPE_COUNT)
+				return;
+
+			AtomicLongArray[] grown = Arrays.copyOf(arr, arr.length * 2); // <-- Existing stripes keep their counts
+
+			for (int i = arr.length; i < grown.length; i++) {
+				grown[i] = newStripe();
+			}
+
+			stripes = grown;
+		}
+
+		private long sum(int slot) {
+			long sum = 0;
+
+			for (AtomicLongArray cells : stripes) {
+				sum += cells.get(PADDING + slot);
+			}
+
+			return sum;
+		}
+
+		private void reset() {
+			for (AtomicLongArray cells : stripes) {
+				for (int i = 0; i < SLOT_COUNT; i++) {
+					cells.set(PADDING + i, 0);
+				}
+			}
+		}
+	}
+
+	private static volatile boolean enabled = false;
+	private static volatile Counters[] counters = new Counters[0];
+	private static boolean mbeanRegistered = false;
+
+	private static Counters getCounters(int methodId) {
+		Counters[] arr = counters;
+
+		if (methodId < arr.length) {
+			Counters c = arr[methodId];
+
+			if (c != null)
+				return c;
+		}
+
+		return createCounters(methodId);
+	}
+
+	private static synchronized Counters createCounters(int methodId) {
+		Counters[] arr = counters;
+
+		if (methodId >= arr.length)
+			arr = Arrays.copyOf(arr, Math.max(methodId + 1, arr.length * 2));
+
+		Counters c = arr[methodId];
+
+		if (c == null) {
+			c = new Counters();
+			arr[methodId] = c;
+		}
+
+		counters = arr; // <-- Publishes created counters
+		return c;
+	}
+
+	private static int getLatencyBucket(long nanos) {
+		int bucket = 63 - Long.numberOfLeadingZeros(nanos | 1);
+		return Math.min(bucket, LATENCY_BUCKET_COUNT - 1);
+	}
+
+	private static synchronized void registerMBean() {
+		if (mbeanRegistered)
+			return;
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(MBEAN_NAME);
+
+			if (!server.isRegistered(name))
+				server.registerMBean(new MBean(), name);
+
+			mbeanRegistered = true;
+		} catch (JMException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/** @return a boolean indicating if metrics are being collected. */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enables/Disables metrics collection. Enabling metrics registers the metrics MBean (see {@linkplain #MBEAN_NAME}).
+	 * @param enabled defines if metrics shall be collected. By default metrics are disabled.
+	 */
+	public static void setEnabled(boolean enabled) {
+		if (enabled)
+			registerMBean();
+
+		SecurityMetrics.enabled = enabled;
+		WovenGuard.update();
+	}
+
+	/**
+	 * Records a decision.
+	 * @param methodId secured method id (see {@linkplain MethodRegistry}).
+	 * @param allowed decision.
+	 * @param elapsedNanos time taken by security manager to decide.
+	 */
+	static void record(int methodId, boolean allowed, long elapsedNanos) {
+		Counters c = getCounters(methodId);
+		c.increment(allowed ? ALLOW_SLOT : DENY_SLOT);
+		c.increment(LATENCY_SLOT + getLatencyBucket(elapsedNanos));
+	}
+
+	private static Counters peekCounters(int methodId) {
+		Counters[] arr = counters;
+		return methodId >= 0 && methodId < arr.length ? arr[methodId] : null;
+	}
+
+	/**
+	 * Returns the number of allowed executions of a secured method.
+	 * @param methodId secured method id.
+	 * @return number of allowed executions since last reset.
+	 */
+	public static long getAllowCount(int methodId) {
+		Counters c = peekCounters(methodId);
+		return c != null ? c.sum(ALLOW_SLOT) : 0;
+	}
+
+	/**
+	 * Returns the number of denied executions of a secured method.
+	 * @param methodId secured method id.
+	 * @return number of denied executions since last reset.
+	 */
+	public static long getDenyCount(int methodId) {
+		Counters c = peekCounters(methodId);
+		return c != null ? c.sum(DENY_SLOT) : 0;
+	}
+
+	/**
+	 * Returns the latency histogram of security manager decisions for a secured method.
+	 * Bucket <code>0</code> counts decisions taken in less than 2 ns, bucket <code>i</code> counts decisions taken in <code>[2^i, 2^(i+1))</code> ns
+	 * and last bucket also counts slower decisions.
+	 * @param methodId secured method id.
+	 * @return latency histogram (see {@linkplain #LATENCY_BUCKET_COUNT}).
+	 */
+	public static long[] getLatencyHistogram(int methodId) {
+		long[] histogram = new long[LATENCY_BUCKET_COUNT];
+		Counters c = peekCounters(methodId);
+
+		if (c != null) {
+			for (int i = 0; i < histogram.length; i++) {
+				histogram[i] = c.sum(LATENCY_SLOT + i);
+			}
+		}
+
+		return histogram;
+	}
+
+	/** @return statistics of each secured method checked at least once since last reset. */
+	public static List<MethodStatistics> getMethodStatistics() {
+		Counters[] arr = counters;
+		List<MethodStatistics> statistics = new ArrayList<>();
+
+		for (int i = 0; i < arr.length; i++) {
+			if (arr[i] == null)
+				continue;
+
+			long allowCount = getAllowCount(i);
+			long denyCount = getDenyCount(i);
+
+			if (allowCount > 0 || denyCount > 0)
+				statistics.add(new MethodStatistics(MethodRegistry.getName(i), allowCount, denyCount, getLatencyHistogram(i)));
+		}
+
+		return statistics;
+	}
+
+	/** Resets all counters. Updates concurrent to a reset may be lost. */
+	public static void reset() {
+		for (Counters c : counters) {
+			if (c != null)
+				c.reset();
+		}
+	}
+
+	private static class MBean implements SecurityMetricsMXBean {
+
+		@Override
+		public boolean isEnabled() {
+			return SecurityMetrics.isEnabled();
+		}
+
+		@Override
+		public void setEnabled(boolean enabled) {
+			SecurityMetrics.setEnabled(enabled);
+		}
+
+		@Override
+		public List<MethodStatistics> getMethodStatistics() {
+			return SecurityMetrics.getMethodStatistics();
+		}
+
+		@Override
+		public void reset() {
+			SecurityMetrics.reset();
+		}
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private SecurityMetrics() {}
+	// =========================================================================
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.List;
+
+/**
+ * Management interface of {@linkplain SecurityMetrics}.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public interface SecurityMetricsMXBean {
+
+	/** @return a boolean indicating if metrics are being collected. */
+	public boolean isEnabled();
+
+	/**
+	 * Enables/Disables metrics collection.
+	 * @param enabled defines if metrics shall be collected.
+	 */
+	public void setEnabled(boolean enabled);
+
+	/** @return statistics of each secured method checked at least once since last reset. */
+	public List<MethodStatistics> getMethodStatistics();
+
+	/** Resets all counters. */
+	public void reset();
+}
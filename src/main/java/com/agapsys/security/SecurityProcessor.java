@@ -0,0 +1,372 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor which discovers secured classes at compile time.
+ * Processor generates <code>META-INF/security.info</code> (secured class list) and <code>META-INF/security.index</code> (see {@linkplain SecurityIndex})
+ * and reports invalid annotation usage (duplicate roles, invalid expressions and conditions and methods annotated with both {@linkplain Secured} and {@linkplain Unsecured}) as compilation errors.
+ * <p>Processor is registered as a service, so it runs whenever the framework is in the compilation classpath.
+ * When only some classes of a module are compiled (e.g. incremental builds), files found in the output directory are merged: entries of classes being compiled are replaced
+ * and entries of classes which are neither being compiled nor found anymore are discarded.</p>
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+@SupportedAnnotationTypes({"com.agapsys.security.Secured", "com.agapsys.security.Unsecured"})
+public class SecurityProcessor extends AbstractProcessor {
+
+	// CLASS SCOPE =============================================================
+	private static final String EMBEDDED_PROTECTED_CLASS_LIST_FILE = "META-INF/security.info";
+	private static final String EMBEDDED_PROTECTED_CLASS_LIST_FILE_ENCODING = "utf-8";
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final SecurityIndex index = new SecurityIndex();
+	private final Set<String> compiledClasses = new LinkedHashSet<>();
+	private boolean errorRaised = false;
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	private void error(String message, Element element) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+		errorRaised = true;
+	}
+
+	private String getBinaryName(TypeElement typeElement) {
+		return processingEnv.getElementUtils().getBinaryName(typeElement).toString();
+	}
+
+	/** Appends the JVM descriptor of given type (e.g. <code>Ljava/lang/String;</code>). */
+	private void appendDescriptor(StringBuilder sb, TypeMirror type) {
+		type = processingEnv.getTypeUtils().erasure(type);
+
+		switch (type.getKind()) {
+			case BOOLEAN: sb.append('Z'); break;
+			case BYTE:    sb.append('B'); break;
+			case CHAR:    sb.append('C'); break;
+			case SHORT:   sb.append('S'); break;
+			case INT:     sb.append('I'); break;
+			case LONG:    sb.append('J'); break;
+			case FLOAT:   sb.append('F'); break;
+			case DOUBLE:  sb.append('D'); break;
+			case VOID:    sb.append('V'); break;
+
+			case ARRAY:
+				sb.append('[');
+				appendDescriptor(sb, ((ArrayType) type).getComponentType());
+				break;
+
+			case DECLARED:
+				TypeElement typeElement = (TypeElement) processingEnv.getTypeUtils().asElement(type);
+				sb.append('L').append(getBinaryName(typeElement).replace('.', '/')).append(';');
+				break;
+
+			default:
+				throw new IllegalArgumentException("Unsupported type: " + type);
+		}
+	}
+
+	/** Returns the type name used in method long names (e.g. <code>java.lang.String[]</code>). */
+	private String getTypeName(TypeMirror type) {
+		type = processingEnv.getTypeUtils().erasure(type);
+
+		switch (type.getKind()) {
+			case ARRAY:
+				return getTypeName(((ArrayType) type).getComponentType()) + "[]";
+
+			case DECLARED:
+				return getBinaryName((TypeElement) processingEnv.getTypeUtils().asElement(type));
+
+			default:
+				return type.toString();
+		}
+	}
+
+	/** @return method name and descriptor (e.g. <code>run(Ljava/lang/String;)V</code>). */
+	private String getMethodKey(ExecutableElement method) {
+		StringBuilder sb = new StringBuilder(method.getSimpleName()).append('(');
+
+		for (VariableElement parameter : method.getParameters()) {
+			appendDescriptor(sb, parameter.asType());
+		}
+
+		sb.append(')');
+		appendDescriptor(sb, method.getReturnType());
+		return sb.toString();
+	}
+
+	/** @return method long name as reported by the weaver (e.g. <code>com.example.Foo.run(java.lang.String)</code>). */
+	private String getMethodLongName(String className, ExecutableElement method) {
+		StringBuilder sb = new StringBuilder(className).append('.').append(method.getSimpleName()).append('(');
+		List<? extends VariableElement> parameters = method.getParameters();
+
+		for (int i = 0; i < parameters.size(); i++) {
+			if (i > 0)
+				sb.append(',');
+
+			sb.append(getTypeName(parameters.get(i).asType()));
+		}
+
+		return sb.append(')').toString();
+	}
+
+	private void addSecuredClass(Map<String, TypeElement> securedClasses, Element element) {
+		TypeElement typeElement = (TypeElement) element;
+		securedClasses.put(getBinaryName(typeElement), typeElement);
+	}
+
+	/** Reports invalid role expressions found in given annotation values. */
+	private void validateExpressions(String[] values, String target, Element element) {
+		for (String value : values) {
+			if (!RoleExpression.isExpression(value))
+				continue;
+
+			try {
+				RoleExpression.parse(value);
+			} catch (IllegalArgumentException ex) {
+				error(String.format("%s for %s", ex.getMessage(), target), element);
+			}
+		}
+	}
+
+	/** Reports invalid conditions (and conditions referencing unknown parameters) declared by given method. */
+	private void validateConditions(String[] conditions, String target, ExecutableElement method) {
+		List<? extends VariableElement> parameters = method.getParameters();
+
+		for (String condition : conditions) {
+			MethodCondition methodCondition;
+
+			try {
+				methodCondition = MethodCondition.parse(condition);
+			} catch (IllegalArgumentException ex) {
+				error(String.format("%s for %s", ex.getMessage(), target), method);
+				continue;
+			}
+
+			if (methodCondition.getParameterPosition() > parameters.size()) {
+				error(String.format("Invalid parameter position in condition '%s' for %s", condition, target), method);
+			} else if (methodCondition.getParameterName() != null) {
+				boolean found = false;
+
+				for (VariableElement parameter : parameters) {
+					if (parameter.getSimpleName().contentEquals(methodCondition.getParameterName())) {
+						found = true;
+						break;
+					}
+				}
+
+				if (!found)
+					error(String.format("Unknown parameter in condition '%s' for %s", condition, target), method);
+			}
+		}
+	}
+
+	/** Validates given class and adds it to the index. */
+	private void index(String className, TypeElement typeElement) {
+		Secured securedClassAnnotation = typeElement.getAnnotation(Secured.class);
+		Set<String> classRoles = new LinkedHashSet<>();
+		List<String> fingerprintLines = new ArrayList<>(); // <-- Describes annotations as declared, so the weaver can detect class files compiled after this index
+
+		if (securedClassAnnotation != null) {
+			fingerprintLines.add(SecurityIndex.getSecuredClassLine(securedClassAnnotation.value()));
+
+			for (String role : securedClassAnnotation.value()) {
+				if (!classRoles.add(role))
+					error(String.format("Duplicate role definition (%s) for %s", role, className), typeElement);
+			}
+
+			validateExpressions(securedClassAnnotation.value(), className, typeElement);
+
+			if (securedClassAnnotation.conditions().length > 0)
+				error(String.format("Conditions cannot be declared by classes (%s)", className), typeElement);
+		}
+
+		SecurityIndex.ClassEntry entry = index.addClass(className, securedClassAnnotation != null, classRoles.toArray(new String[classRoles.size()]));
+
+		for (Element enclosedElement : typeElement.getEnclosedElements()) {
+			if (enclosedElement.getKind() != ElementKind.METHOD)
+				continue;
+
+			ExecutableElement method = (ExecutableElement) enclosedElement;
+			Secured securedMethodAnnotation = method.getAnnotation(Secured.class);
+			Unsecured unsecuredMethodAnnotation = method.getAnnotation(Unsecured.class);
+
+			if (securedMethodAnnotation != null && unsecuredMethodAnnotation != null) {
+				error(String.format("Method '%s' has both '%s' and '%s' annotations", getMethodLongName(className, method), Secured.class.getName(), Unsecured.class.getName()), method);
+				continue;
+			}
+
+			if (unsecuredMethodAnnotation != null) {
+				entry.addUnsecuredMethod(getMethodKey(method));
+				fingerprintLines.add(SecurityIndex.getUnsecuredMethodLine(getMethodKey(method)));
+			} else if (securedMethodAnnotation != null) {
+				fingerprintLines.add(SecurityIndex.getSecuredMethodLine(getMethodKey(method), securedMethodAnnotation.value(), securedMethodAnnotation.conditions()));
+
+				Set<String> roles = new LinkedHashSet<>(classRoles);
+				Set<String> methodRoles = new LinkedHashSet<>();
+
+				for (String role : securedMethodAnnotation.value()) {
+					if (!roles.add(role))
+						error(String.format("Duplicate role definition (%s) for %s", role, getMethodLongName(className, method)), method);
+
+					methodRoles.add(role);
+				}
+
+				validateExpressions(securedMethodAnnotation.value(), getMethodLongName(className, method), method);
+				validateConditions(securedMethodAnnotation.conditions(), getMethodLongName(className, method), method);
+
+				entry.addSecuredMethod(getMethodKey(method), methodRoles.toArray(new String[methodRoles.size()]));
+
+				if (securedMethodAnnotation.conditions().length > 0)
+					entry.addMethodConditions(getMethodKey(method), securedMethodAnnotation.conditions());
+			}
+		}
+
+		entry.setFingerprint(SecurityIndex.getFingerprint(fingerprintLines));
+	}
+
+	/** Collects the binary names of given types and of their nested types. */
+	private void addCompiledClasses(Iterable<? extends Element> elements) {
+		for (Element element : elements) {
+			if (element.getKind().isClass() || element.getKind().isInterface()) {
+				compiledClasses.add(getBinaryName((TypeElement) element));
+				addCompiledClasses(element.getEnclosedElements());
+			}
+		}
+	}
+
+	/** @return index previously written to output directory or <code>null</code> if there is no such index. */
+	private SecurityIndex readPreviousIndex() {
+		FileObject resource;
+
+		try {
+			resource = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SecurityIndex.EMBEDDED_INDEX_FILE);
+		} catch (IOException | IllegalArgumentException ex) {
+			return null;
+		}
+
+		try (InputStream is = resource.openInputStream()) {
+			return SecurityIndex.read(is);
+		} catch (IOException ex) {
+			return null; // <-- Not found (or unreadable, in which case it is regenerated from the classes being compiled)
+		}
+	}
+
+	/**
+	 * Merges the index of the classes being compiled with the previous one.
+	 * @return merged index (sorted by class name) or <code>null</code> if there is nothing to be written.
+	 */
+	private SecurityIndex mergeIndex() {
+		SecurityIndex previous = readPreviousIndex();
+		Set<String> classNames = new TreeSet<>(index.getClassNames());
+
+		if (previous != null) {
+			for (String className : previous.getClassNames()) {
+				if (!compiledClasses.contains(className) && processingEnv.getElementUtils().getTypeElement(className.replace('$', '.')) != null)
+					classNames.add(className); // <-- Not being compiled, but still exists
+			}
+		} else if (classNames.isEmpty()) {
+			return null;
+		}
+
+		SecurityIndex merged = new SecurityIndex();
+
+		for (String className : classNames) {
+			SecurityIndex.ClassEntry entry = index.get(className);
+			merged.add(entry != null ? entry : previous.get(className));
+		}
+
+		return merged;
+	}
+
+	private void writeFiles(SecurityIndex mergedIndex) throws IOException {
+		try (OutputStream os = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", EMBEDDED_PROTECTED_CLASS_LIST_FILE).openOutputStream()) {
+			Writer writer = new OutputStreamWriter(os, EMBEDDED_PROTECTED_CLASS_LIST_FILE_ENCODING);
+
+			for (String className : mergedIndex.getClassNames()) {
+				writer.write(className + "\n");
+			}
+
+			writer.flush();
+		}
+
+		try (OutputStream os = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SecurityIndex.EMBEDDED_INDEX_FILE).openOutputStream()) {
+			mergedIndex.write(os);
+		}
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		Map<String, TypeElement> securedClasses = new TreeMap<>(); // <-- Sorted to produce the same output regardless of element order
+		addCompiledClasses(roundEnv.getRootElements());
+
+		for (Element element : roundEnv.getElementsAnnotatedWith(Secured.class)) {
+			if (element.getKind() == ElementKind.METHOD) {
+				addSecuredClass(securedClasses, element.getEnclosingElement());
+			} else if (element.getKind().isClass() || element.getKind().isInterface()) {
+				addSecuredClass(securedClasses, element);
+			}
+		}
+
+		for (Map.Entry<String, TypeElement> securedClass : securedClasses.entrySet()) {
+			if (index.get(securedClass.getKey()) == null) // <-- Elements are processed in the round they are found
+				index(securedClass.getKey(), securedClass.getValue());
+		}
+
+		if (roundEnv.processingOver() && !errorRaised) {
+			try {
+				SecurityIndex merged = mergeIndex();
+
+				if (merged != null)
+					writeFiles(merged);
+			} catch (IOException ex) {
+				error("Error writing security files: " + ex.getMessage(), null);
+			}
+		}
+
+		return false;
+	}
+	// =========================================================================
+}
@@ -0,0 +1,829 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.LocalVariableAttribute;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.ArrayMemberValue;
+import javassist.bytecode.annotation.MemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+
+/**
+ * Inserts security guards into secured methods.
+ * This is the only class of the framework depending on Javassist. Classes woven in advance (e.g. at build time through {@linkplain #weave(CtClass)})
+ * are detected by {@linkplain Security} and are not woven again, so Javassist is not required at runtime when all secured classes are woven in advance.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class Weaver {
+
+	// CLASS SCOPE =============================================================
+	/** Name of the synthetic field which marks a class as woven. */
+	public static final String WOVEN_MARKER_FIELD = "security$woven";
+
+	private static final String METHOD_ID_FIELD_PREFIX = "security$methodId$";
+	private static final String REQUIREMENT_FIELD_PREFIX = "security$requirement$";
+	private static final String DOMAIN_FIELD = "security$domain";
+	private static final String EXPRESSION_ROLES_FIELD_PREFIX = "security$exprRoles$";
+	private static final String EXPRESSION_ROLE_MASK_FIELD_PREFIX = "security$exprRoleMask$";
+	private static final String ASYNC_BODY_METHOD_PREFIX = "security$asyncBody$";
+	private static final String ASYNC_BODY_FIELD_PREFIX = "security$asyncBodyMethod$";
+	private static final String FUTURE_RETURN_TYPE = ")Ljava/util/concurrent/Future;"; // <-- Only this exact type, since deferred futures cannot implement subtypes declared by secured methods
+
+	private static String toScCommaDelimited(Iterable<String>strIterable, boolean encloseInDoubleQuotes) {
+		StringBuilder sb = new StringBuilder();
+
+		boolean first = true;
+		for (String str : strIterable) {
+			if (!first) {
+				sb.append(", ");
+			}
+
+			if (encloseInDoubleQuotes)
+				sb.append("\"");
+
+			sb.append(str);
+
+			if (encloseInDoubleQuotes)
+				sb.append("\"");
+
+			first = false;
+		}
+
+		return sb.toString();
+	}
+
+	private static void setSynthetic(CtField field) {
+		FieldInfo fieldInfo = field.getFieldInfo2();
+		fieldInfo.setAccessFlags(fieldInfo.getAccessFlags() | AccessFlag.SYNTHETIC);
+	}
+
+	/**
+	 * Adds a synthetic constant to given class.
+	 * Constants are initialized once (when class is initialized), so woven guards can reference them without any allocation.
+	 * @return field name.
+	 */
+	private static String addConstant(CtClass cc, String type, String name, String initializer) throws CannotCompileException {
+		CtField field = CtField.make(String.format("private static final %s %s;", type, name), cc);
+		setSynthetic(field);
+		cc.addField(field, CtField.Initializer.byExpr(initializer));
+		return name;
+	}
+
+	/**
+	 * Compiles role expressions (see {@linkplain RoleExpression}) into guard code.
+	 * Roles joined by "and" are checked at once through {@linkplain SecurityManager#isAllowed(String[], long[])} with constant arguments,
+	 * while operators are compiled into Java short-circuit operators.
+	 */
+	private static class ExpressionCompiler {
+		private final CtClass cc;
+		private final boolean addFields;
+		private int constantCount = 0;
+
+		public ExpressionCompiler(CtClass cc, boolean addFields) {
+			this.cc = cc;
+			this.addFields = addFields;
+		}
+
+		private String compileRoles(String[] roles) throws CannotCompileException {
+			String rolesField;
+			String roleMaskField;
+
+			if (addFields) {
+				rolesField = addConstant(cc, "String[]", EXPRESSION_ROLES_FIELD_PREFIX + constantCount, String.format("new String[] {%s}", toScCommaDelimited(Arrays.asList(roles), true)));
+				roleMaskField = addConstant(cc, "long[]", EXPRESSION_ROLE_MASK_FIELD_PREFIX + constantCount, String.format("com.agapsys.security.RoleRegistry.getMask(%s)", rolesField));
+			} else {
+				rolesField = String.format("((String[]) com.agapsys.security.WovenConstants.get(%d))", WovenConstants.add(roles));
+				roleMaskField = String.format("((long[]) com.agapsys.security.WovenConstants.get(%d))", WovenConstants.add(RoleRegistry.getMask(roles)));
+			}
+
+			constantCount++;
+			return String.format("sm.isAllowed(%s, %s)", rolesField, roleMaskField);
+		}
+
+		private String join(List<String> operands, String operator) {
+			if (operands.size() == 1)
+				return operands.get(0);
+
+			StringBuilder sb = new StringBuilder("(");
+
+			for (int i = 0; i < operands.size(); i++) {
+				if (i > 0)
+					sb.append(' ').append(operator).append(' ');
+
+				sb.append(operands.get(i));
+			}
+
+			return sb.append(')').toString();
+		}
+
+		public String compile(RoleExpression.Node node) throws CannotCompileException {
+			List<String> operands = new ArrayList<>();
+
+			if (node instanceof RoleExpression.And) {
+				RoleExpression.And and = (RoleExpression.And) node;
+
+				if (and.roles.length > 0)
+					operands.add(compileRoles(and.roles));
+
+				for (RoleExpression.Node operand : and.operands) {
+					operands.add(compile(operand));
+				}
+
+				return join(operands, "&&");
+			}
+
+			if (node instanceof RoleExpression.Or) {
+				for (RoleExpression.Node operand : ((RoleExpression.Or) node).operands) {
+					operands.add(compile(operand));
+				}
+
+				return join(operands, "||");
+			}
+
+			return "!" + compile(((RoleExpression.Not) node).operand);
+		}
+	}
+
+	/**
+	 * Checks if given class is already woven.
+	 * @param cc class to be checked.
+	 * @return a boolean indicating if given class is already woven.
+	 */
+	public static boolean isWoven(CtClass cc) {
+		try {
+			cc.getDeclaredField(WOVEN_MARKER_FIELD);
+			return true;
+		} catch (NotFoundException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * Inserts security guards into secured methods of given class and marks it as woven.
+	 * @param cc class to be woven.
+	 * @param reentrancyElision defines if guards shall skip requirements already satisfied by enclosing secured methods (see {@linkplain Security#enableReentrancyElision(boolean)}).
+	 * @return a boolean indicating if given class was modified (classes already woven are not modified).
+	 * @throws CannotCompileException if a guard could not be compiled.
+	 * @throws ClassNotFoundException if an annotation could not be loaded.
+	 */
+	public static boolean weave(CtClass cc, boolean reentrancyElision) throws CannotCompileException, ClassNotFoundException {
+		return weave(cc, null, new LinkedHashSet<String>(), true, null, reentrancyElision);
+	}
+
+	/**
+	 * Inserts security guards into secured methods of given class and marks it as woven.
+	 * Reentrancy elision is applied according to {@linkplain Security#enableReentrancyElision(boolean)}.
+	 * @param cc class to be woven.
+	 * @return a boolean indicating if given class was modified (classes already woven are not modified).
+	 * @throws CannotCompileException if a guard could not be compiled.
+	 * @throws ClassNotFoundException if an annotation could not be loaded.
+	 */
+	public static boolean weave(CtClass cc) throws CannotCompileException, ClassNotFoundException {
+		return weave(cc, Security.isReentrancyElisionEnabled());
+	}
+
+	/**
+	 * Returns the roles required by given method according to its annotations.
+	 * @return required roles or <code>null</code> if given method is not secured.
+	 */
+	private static String[] getRequiredRoles(CtClass cc, Secured securedClassAnnotation, CtMethod method) throws ClassNotFoundException {
+		Secured securedMethodAnnotation = (Secured) method.getAnnotation(Secured.class);
+		Unsecured unsecuredMethodAnnotation = (Unsecured) method.getAnnotation(Unsecured.class);
+
+		if (securedMethodAnnotation != null && unsecuredMethodAnnotation != null)
+			throw new RuntimeException(String.format("Method '%s' has both '%s' and '%s' annotations", method.getLongName(), Secured.class.getName(), Unsecured.class.getName()));
+
+		if (unsecuredMethodAnnotation != null || (securedClassAnnotation == null && securedMethodAnnotation == null))
+			return null;
+
+		Set<String> roles = new LinkedHashSet<>();
+
+		if (securedClassAnnotation != null) {
+			for (String role : securedClassAnnotation.value()) {
+				if (!roles.add(role))
+					throw new RuntimeException(String.format("Duplicate role definition (%s) for %s", role, cc.getName()));
+			}
+		}
+
+		if (securedMethodAnnotation != null) {
+			for (String role : securedMethodAnnotation.value()) {
+				if (!roles.add(role))
+					throw new RuntimeException(String.format("Duplicate role definition (%s) for %s", role, method.getLongName()));
+			}
+		}
+
+		return roles.toArray(new String[roles.size()]);
+	}
+
+	/**
+	 * Returns the conditions declared by given method according to its annotations.
+	 * @return declared conditions (empty if method does not declare conditions).
+	 */
+	private static String[] getConditions(CtClass cc, Secured securedClassAnnotation, CtMethod method) throws ClassNotFoundException {
+		if (securedClassAnnotation != null && securedClassAnnotation.conditions().length > 0)
+			throw new RuntimeException(String.format("Conditions cannot be declared by classes (%s)", cc.getName()));
+
+		Secured securedMethodAnnotation = (Secured) method.getAnnotation(Secured.class);
+		return securedMethodAnnotation != null ? securedMethodAnnotation.conditions() : new String[0];
+	}
+
+	/** @return values of a string array member of given annotation, as declared in the class file (empty if member is not declared). */
+	private static String[] getStrings(Annotation annotation, String memberName) {
+		MemberValue memberValue = annotation.getMemberValue(memberName);
+
+		if (!(memberValue instanceof ArrayMemberValue))
+			return new String[0];
+
+		MemberValue[] elements = ((ArrayMemberValue) memberValue).getValue();
+		String[] values = new String[elements.length];
+
+		for (int i = 0; i < elements.length; i++) {
+			values[i] = ((StringMemberValue) elements[i]).getValue();
+		}
+
+		return values;
+	}
+
+	private static Annotation getAnnotation(AttributeInfo attribute, Class<?> annotationClass) {
+		return attribute instanceof AnnotationsAttribute ? ((AnnotationsAttribute) attribute).getAnnotation(annotationClass.getName()) : null;
+	}
+
+	/**
+	 * Computes the fingerprint of the annotations of given class (see {@linkplain SecurityIndex#getFingerprint(java.util.Collection)}).
+	 * Annotations are read from the class file (without loading annotation classes). Bridge and synthetic methods are ignored, since they are not seen by the processor.
+	 */
+	private static String getFingerprint(CtClass cc) {
+		List<String> lines = new ArrayList<>();
+		Annotation securedClassAnnotation = getAnnotation(cc.getClassFile2().getAttribute(AnnotationsAttribute.visibleTag), Secured.class);
+
+		if (securedClassAnnotation != null)
+			lines.add(SecurityIndex.getSecuredClassLine(getStrings(securedClassAnnotation, "value")));
+
+		for (CtMethod method : cc.getDeclaredMethods()) {
+			MethodInfo methodInfo = method.getMethodInfo2();
+
+			if ((methodInfo.getAccessFlags() & (AccessFlag.BRIDGE | AccessFlag.SYNTHETIC)) != 0)
+				continue;
+
+			AttributeInfo attribute = methodInfo.getAttribute(AnnotationsAttribute.visibleTag);
+			Annotation securedMethodAnnotation = getAnnotation(attribute, Secured.class);
+			String methodKey = method.getName() + method.getSignature();
+
+			if (getAnnotation(attribute, Unsecured.class) != null) {
+				lines.add(SecurityIndex.getUnsecuredMethodLine(methodKey));
+			} else if (securedMethodAnnotation != null) {
+				lines.add(SecurityIndex.getSecuredMethodLine(methodKey, getStrings(securedMethodAnnotation, "value"), getStrings(securedMethodAnnotation, "conditions")));
+			}
+		}
+
+		return SecurityIndex.getFingerprint(lines);
+	}
+
+	/** @return descriptors of the parameters of given method (e.g. <code>{"I", "Ljava/lang/String;"}</code>). */
+	private static List<String> getParameterDescriptors(CtMethod method) {
+		String signature = method.getSignature();
+		List<String> descriptors = new ArrayList<>();
+		int i = 1;
+
+		while (signature.charAt(i) != ')') {
+			int start = i;
+
+			while (signature.charAt(i) == '[') {
+				i++;
+			}
+
+			if (signature.charAt(i) == 'L')
+				i = signature.indexOf(';', i);
+
+			descriptors.add(signature.substring(start, ++i));
+		}
+
+		return descriptors;
+	}
+
+	/**
+	 * Resolves the position (starting at 1) of a parameter referenced by name.
+	 * Parameter names are read from the local variable table, so given method must be compiled with debug information.
+	 */
+	private static int getParameterPosition(CtMethod method, List<String> parameterDescriptors, String parameterName) {
+		CodeAttribute codeAttribute = method.getMethodInfo().getCodeAttribute();
+		LocalVariableAttribute localVariables = codeAttribute == null ? null : (LocalVariableAttribute) codeAttribute.getAttribute(LocalVariableAttribute.tag);
+
+		if (localVariables == null)
+			throw new RuntimeException(String.format("Parameter names are not available for %s (compile with debug information or reference parameters by position)", method.getLongName()));
+
+		int slot = Modifier.isStatic(method.getModifiers()) ? 0 : 1; // <-- Slot 0 holds 'this' in instance methods
+
+		for (int position = 1; position <= parameterDescriptors.size(); position++) {
+			for (int i = 0; i < localVariables.tableLength(); i++) {
+				if (localVariables.index(i) == slot && localVariables.startPc(i) == 0 && localVariables.variableName(i).equals(parameterName))
+					return position;
+			}
+
+			String descriptor = parameterDescriptors.get(position - 1);
+			slot += descriptor.equals("J") || descriptor.equals("D") ? 2 : 1;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Compiles a condition into a call to the matching {@linkplain SecurityManager#isConditionSatisfied(int, String, Object)} overload.
+	 * Primitive arguments are widened (instead of boxed) at weave time.
+	 */
+	private static String compileCondition(CtMethod method, String methodIdField, String condition) {
+		MethodCondition methodCondition;
+
+		try {
+			methodCondition = MethodCondition.parse(condition);
+		} catch (IllegalArgumentException ex) {
+			throw new RuntimeException(String.format("%s for %s", ex.getMessage(), method.getLongName()), ex);
+		}
+
+		if (!methodCondition.hasParameter())
+			return String.format("sm.isConditionSatisfied(%s, \"%s\")", methodIdField, methodCondition.getName());
+
+		List<String> parameterDescriptors = getParameterDescriptors(method);
+		int position = methodCondition.getParameterName() != null ? getParameterPosition(method, parameterDescriptors, methodCondition.getParameterName()) : methodCondition.getParameterPosition();
+
+		if (position < 0)
+			throw new RuntimeException(String.format("Unknown parameter in condition '%s' for %s", condition, method.getLongName()));
+
+		if (position > parameterDescriptors.size())
+			throw new RuntimeException(String.format("Invalid parameter position in condition '%s' for %s", condition, method.getLongName()));
+
+		String scArgument;
+
+		switch (parameterDescriptors.get(position - 1).charAt(0)) {
+			case 'B':
+			case 'S':
+			case 'C':
+			case 'I':
+			case 'J':
+				scArgument = "(long) $" + position;
+				break;
+
+			case 'F':
+			case 'D':
+				scArgument = "(double) $" + position;
+				break;
+
+			case 'Z':
+				scArgument = "$" + position;
+				break;
+
+			default:
+				scArgument = "(Object) $" + position;
+		}
+
+		return String.format("sm.isConditionSatisfied(%s, \"%s\", %s)", methodIdField, methodCondition.getName(), scArgument);
+	}
+
+	/**
+	 * Adds to given class an unguarded copy of a method body, which is executed when a decision is pending.
+	 * @return field holding the copy (see {@linkplain WovenGuard#getAsyncBody(Class, String)}).
+	 */
+	private static String addAsyncBody(CtClass cc, CtMethod method, int securedMethodIndex) throws CannotCompileException {
+		String name = ASYNC_BODY_METHOD_PREFIX + securedMethodIndex;
+		CtMethod body = CtNewMethod.copy(method, name, cc, null);
+		body.setModifiers(Modifier.PRIVATE | (method.getModifiers() & Modifier.STATIC));
+
+		MethodInfo methodInfo = body.getMethodInfo();
+		methodInfo.setAccessFlags(methodInfo.getAccessFlags() | AccessFlag.SYNTHETIC);
+
+		for (Iterator<?> i = methodInfo.getAttributes().iterator(); i.hasNext();) {
+			String attributeName = ((AttributeInfo) i.next()).getName();
+
+			if (attributeName.equals(AnnotationsAttribute.visibleTag) || attributeName.equals(AnnotationsAttribute.invisibleTag))
+				i.remove(); // <-- Copy is not a secured method
+		}
+
+		cc.addMethod(body);
+
+		return addConstant(cc, "java.lang.reflect.Method", ASYNC_BODY_FIELD_PREFIX + securedMethodIndex, String.format("com.agapsys.security.WovenGuard.getAsyncBody(%s.class, \"%s\")", cc.getName(), name));
+	}
+
+	/**
+	 * Weaves given class collecting roles declared by its secured methods.
+	 * Roles are not registered here, so registration order does not depend on the order classes are woven.
+	 * @param indexEntry index entry of given class (generated at compile time by {@linkplain SecurityProcessor}). If given and up to date, annotations are neither read nor validated.
+	 * @param addFields defines if constants shall be added to given class as synthetic fields. Otherwise (e.g. when a loaded class is retransformed) constants are held by {@linkplain WovenConstants} and class is not marked as woven.
+	 * @param classLoader class loader defining given class. Used to register secured methods when constants cannot be added (otherwise, they are registered by the class itself).
+	 * @param reentrancyElision defines if guards shall skip requirements already satisfied by enclosing secured methods.
+	 */
+	private static boolean weave(CtClass cc, SecurityIndex.ClassEntry indexEntry, Set<String> declaredRoles, boolean addFields, ClassLoader classLoader, boolean reentrancyElision) throws CannotCompileException, ClassNotFoundException {
+		if (isWoven(cc))
+			return false;
+
+		if (indexEntry != null && Security.isIndexVerificationEnabled() && !indexEntry.matches(getFingerprint(cc))) { // <-- Verification reads annotations, so it is skipped unless enabled
+			Security.getLogger().log(SecurityLogger.Level.WARN, "Security index is stale for {} (annotations are read instead)", cc.getName());
+			indexEntry = null;
+		}
+
+		CtMethod methods[] = cc.getDeclaredMethods();
+		Secured securedClassAnnotation = indexEntry == null ? (Secured) cc.getAnnotation(Secured.class) : null;
+		int securedMethodCount = 0;
+		ExpressionCompiler compiler = new ExpressionCompiler(cc, addFields);
+		String domainField = null;
+
+		for (CtMethod method : methods) {
+			String[] values = indexEntry != null ? indexEntry.getRequiredRoles(method.getName() + method.getSignature()) : getRequiredRoles(cc, securedClassAnnotation, method);
+
+			if (values != null) {
+				String[] conditions = indexEntry != null ? indexEntry.getConditions(method.getName() + method.getSignature()) : getConditions(cc, securedClassAnnotation, method);
+				List<String> roleList = new ArrayList<>();
+				List<RoleExpression> expressions = new ArrayList<>();
+
+				for (String value : values) {
+					if (RoleExpression.isExpression(value)) {
+						try {
+							expressions.add(RoleExpression.parse(value));
+						} catch (IllegalArgumentException ex) {
+							throw new RuntimeException(String.format("%s for %s", ex.getMessage(), method.getLongName()), ex);
+						}
+					} else {
+						roleList.add(value);
+					}
+				}
+
+				String[] roles = roleList.toArray(new String[roleList.size()]);
+				declaredRoles.addAll(roleList);
+
+				StringBuilder expression = new StringBuilder(); // <-- Expressions are joined by "and" (like plain roles)
+
+				for (RoleExpression parsedExpression : expressions) {
+					declaredRoles.addAll(Arrays.asList(parsedExpression.getRoles()));
+
+					if (expression.length() > 0)
+						expression.append(" and ");
+
+					expression.append(parsedExpression);
+				}
+
+				String scExpression = expressions.isEmpty() ? "null" : String.format("\"%s\"", expression);
+				String scConditions = conditions.length == 0 ? "null" : String.format("new String[] {%s}", toScCommaDelimited(Arrays.asList(conditions), true));
+
+				String methodIdField;
+
+				if (addFields) {
+					String scRoles = roles.length == 0 ? "new String[0]" : String.format("new String[] {%s}", toScCommaDelimited(Arrays.asList(roles), true));
+					methodIdField = addConstant(cc, "int", METHOD_ID_FIELD_PREFIX + securedMethodCount, String.format("com.agapsys.security.MethodRegistry.register(%s.class, \"%s\", \"%s\", %s, %s, %s)", cc.getName(), method.getName(), method.getSignature(), scRoles, scExpression, scConditions));
+				} else {
+					methodIdField = Integer.toString(MethodRegistry.register(classLoader, cc.getName(), method.getName(), method.getSignature(), roles, expressions.isEmpty() ? null : expression.toString(), conditions));
+				}
+
+				// Requirement is read on each call (instead of being a constant), so it can be replaced at runtime (see MethodRegistry.setRequiredRoles). Holder is a constant, so reading it costs a volatile load of its field
+				String scRequirement;
+
+				if (addFields) {
+					String holderField = addConstant(cc, "com.agapsys.security.RequirementHolder", REQUIREMENT_FIELD_PREFIX + securedMethodCount, String.format("com.agapsys.security.MethodRegistry.getHolder(%s)", methodIdField));
+					scRequirement = String.format("%s.get()", holderField);
+				} else {
+					scRequirement = String.format("com.agapsys.security.MethodRegistry.getRequirement(%s)", methodIdField);
+				}
+
+				// Requirement is loaded once into locals, so a guard observes a single requirement and does not read it again for each use
+				String scVarRequirement = String.format("com.agapsys.security.SecuredMethod requirement = %s; String[] requiredRoles = requirement.getSharedRequiredRoles(); long[] requiredRoleMask = requirement.getSharedRequiredRoleMask()", scRequirement);
+				String rolesField = "requiredRoles";
+				String roleMaskField = "requiredRoleMask";
+
+				if (domainField == null) {
+					String scDomain = String.format("com.agapsys.security.SecurityDomain.of(%s.class)", cc.getName());
+					domainField = addFields ? addConstant(cc, "com.agapsys.security.SecurityDomain", DOMAIN_FIELD, scDomain) : scDomain; // <-- Domain lookup is cached by SecurityDomain when fields cannot be added
+				}
+
+				String scVarSecurityManager = String.format("com.agapsys.security.SecurityManager sm = %s.getSecurityManager()", domainField);
+				String sc;
+
+				if (expressions.isEmpty() && conditions.length == 0) {
+					String scIsAllowed = String.format("(com.agapsys.security.WovenGuard.isInstrumented() ? com.agapsys.security.WovenGuard.isAllowed(sm, %s, %s, %s) : sm.isAllowed(%s, %s, %s))", methodIdField, rolesField, roleMaskField, methodIdField, rolesField, roleMaskField);
+					String scCheck = String.format("{ %s; if (!%s) { sm.onNotAllowed(\"%s\", %s); } }", scVarSecurityManager, scIsAllowed, method.getLongName(), rolesField);
+
+					if (addFields && method.getSignature().endsWith(FUTURE_RETURN_TYPE) && !Modifier.isAbstract(method.getModifiers())) {
+						// Body is deferred if decision is pending. Methods added to loaded classes cannot be retransformed, so this variant requires fields (and methods) to be added
+						String asyncBodyField = addAsyncBody(cc, method, securedMethodCount);
+						String scTarget = Modifier.isStatic(method.getModifiers()) ? "null" : "$0";
+						String scVarDecision = String.format("com.agapsys.security.AsyncDecision decision = com.agapsys.security.WovenGuard.isInstrumented() ? com.agapsys.security.WovenGuard.isAllowedAsync(sm, %s, %s, %s) : sm.isAllowedAsync(%s, %s, %s)", methodIdField, rolesField, roleMaskField, methodIdField, rolesField, roleMaskField);
+						String scDefer = String.format("if (!decision.isDone()) { return (java.util.concurrent.Future) com.agapsys.security.WovenGuard.defer(decision, sm, %s, %s, $args, \"%s\", %s); }", asyncBodyField, scTarget, method.getLongName(), rolesField);
+						sc = String.format("{ %s; %s; %s if (!decision.isAllowed()) { sm.onNotAllowed(\"%s\", %s); } }", scVarSecurityManager, scVarDecision, scDefer, method.getLongName(), rolesField);
+					} else if (reentrancyElision) {
+						// Scope is left in a finally block. Guard is inserted outside it and enters the scope only after the check passes, so failed checks do not leave the scope
+						method.insertAfter("com.agapsys.security.WovenGuard.exit();", true);
+						sc = String.format("{ if (!com.agapsys.security.WovenGuard.isImplied(%s)) %s com.agapsys.security.WovenGuard.enter(%s); }", roleMaskField, scCheck, roleMaskField);
+					} else {
+						sc = scCheck;
+					}
+				} else {
+					List<String> scExpressions = new ArrayList<>();
+
+					for (RoleExpression parsedExpression : expressions) {
+						scExpressions.add(compiler.compile(parsedExpression.getRoot()));
+					}
+
+					for (String condition : conditions) {
+						scExpressions.add(compileCondition(method, methodIdField, condition)); // <-- Conditions are checked after roles (and are never elided)
+					}
+
+					String scIsAllowed = String.format("sm.isAllowed(%s, %s, %s) && %s", methodIdField, rolesField, roleMaskField, compiler.join(scExpressions, "&&"));
+					String scVarInstrumented = "boolean instrumented = com.agapsys.security.WovenGuard.isInstrumented(); long start = instrumented ? com.agapsys.security.WovenGuard.start() : 0L";
+					String scRecord = String.format("if (instrumented) { com.agapsys.security.WovenGuard.record(%s, allowed, start, %s); }", methodIdField, roleMaskField);
+					sc = String.format("{ %s; %s; boolean allowed = %s; %s if (!allowed) { sm.onNotAllowed(\"%s\", %s); } }", scVarSecurityManager, scVarInstrumented, scIsAllowed, scRecord, method.getLongName(), rolesField);
+				}
+				sc = String.format("{ %s; %s }", scVarRequirement, sc);
+				method.insertBefore(sc);
+
+				securedMethodCount++;
+			}
+		}
+
+		if (addFields) {
+			CtField marker = CtField.make(String.format("private static final boolean %s;", WOVEN_MARKER_FIELD), cc);
+			setSynthetic(marker);
+			cc.addField(marker, CtField.Initializer.constant(true));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Weaves a class file.
+	 * @param cp class pool used to resolve classes referenced by given class.
+	 * @param classfile class file to be woven.
+	 * @param addFields defines if constants shall be added to given class as synthetic fields (see {@linkplain #weave(CtClass, SecurityIndex.ClassEntry, Set, boolean, ClassLoader, boolean)}).
+	 * @param classLoader class loader defining given class.
+	 * @return woven class file or <code>null</code> if given class was not modified.
+	 */
+	static byte[] weave(ClassPool cp, byte[] classfile, boolean addFields, ClassLoader classLoader) throws IOException, CannotCompileException, ClassNotFoundException {
+		CtClass cc = cp.makeClass(new ByteArrayInputStream(classfile), false);
+
+		try {
+			Set<String> declaredRoles = new LinkedHashSet<>();
+
+			if (!weave(cc, null, declaredRoles, addFields, classLoader, Security.isReentrancyElisionEnabled()))
+				return null;
+
+			registerRoles(declaredRoles);
+			return cc.toBytecode();
+		} finally {
+			cc.detach();
+		}
+	}
+
+	/**
+	 * Makes all methods of a class file deny execution. Used when a class cannot be woven, so it is not loaded without security.
+	 * @param cp class pool used to resolve classes referenced by given class.
+	 * @param classfile class file which could not be woven.
+	 * @return modified class file.
+	 */
+	static byte[] weaveDenyAll(ClassPool cp, byte[] classfile) throws IOException, CannotCompileException {
+		CtClass cc = cp.makeClass(new ByteArrayInputStream(classfile), false);
+
+		try {
+			for (CtMethod method : cc.getDeclaredMethods()) {
+				if (Modifier.isAbstract(method.getModifiers()) || Modifier.isNative(method.getModifiers()))
+					continue;
+
+				method.insertBefore(String.format("{ throw new com.agapsys.security.NotAllowedException(\"%s\", null); }", method.getLongName()));
+			}
+
+			return cc.toBytecode();
+		} finally {
+			cc.detach();
+		}
+	}
+
+	private static void registerRoles(Set<String> roles) {
+		for (String role : roles) {
+			RoleRegistry.getId(role);
+		}
+	}
+
+	private static RuntimeException toRuntimeException(Throwable t) {
+		if (t instanceof RuntimeException)
+			return (RuntimeException) t;
+
+		return new RuntimeException(t);
+	}
+
+	/** Class pool used by a weaver. Classes defined by a weaver are frozen in its pool, so each weaver has its own pool (shared pools would accumulate the class paths of released class loaders). */
+	private static class WeaverClassPool extends ClassPool {
+		public WeaverClassPool() {
+			super(true);
+		}
+
+		public CtClass getCachedClass(String className) {
+			return getCached(className);
+		}
+	}
+
+	/** Result of a class woven by a worker thread. */
+	private static class WovenClass {
+		private final String className;
+		private final Set<String> declaredRoles = new LinkedHashSet<>();
+		private byte[] bytecode = null;
+		private Throwable error = null;
+
+		public WovenClass(String className) {
+			this.className = className;
+		}
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private final WeakReference<ClassLoader> classLoader; // <-- Weavers are held (along with their class pools) until class loader is released
+	private final WeaverClassPool classPool;
+	private final SecurityIndex index;
+
+	Weaver(ClassLoader classLoader) {
+		this(classLoader, null);
+	}
+
+	/**
+	 * Constructor.
+	 * @param classLoader class loader where woven classes will be defined.
+	 * @param index requirement index generated at compile time (may be <code>null</code>). Classes not found in the index are woven according to their annotations.
+	 */
+	Weaver(ClassLoader classLoader, SecurityIndex index) {
+		this.classLoader = new WeakReference<>(classLoader);
+		this.index = index;
+		this.classPool = new WeaverClassPool();
+		this.classPool.appendClassPath(new LoaderClassPath(classLoader));
+	}
+
+	private ClassLoader getClassLoader() {
+		ClassLoader cl = classLoader.get();
+
+		if (cl == null)
+			throw new IllegalStateException("Class loader was released");
+
+		return cl;
+	}
+
+	private SecurityIndex.ClassEntry getIndexEntry(String className) {
+		return index != null ? index.get(className) : null;
+	}
+
+	/**
+	 * Weaves given class and defines it in the class loader associated with this instance.
+	 * @param className secured class name.
+	 */
+	void secure(String className) {
+		try {
+
+			CtClass cc = classPool.get(className);
+
+			if (!Security.isSkipFrozenClasses() || !cc.isFrozen()) {
+				Set<String> declaredRoles = new LinkedHashSet<>();
+				weave(cc, getIndexEntry(className), declaredRoles, true, null, Security.isReentrancyElisionEnabled());
+				registerRoles(declaredRoles);
+				cc.toClass(getClassLoader(), Security.class.getProtectionDomain());
+				Security.getLogger().log(SecurityLogger.Level.DEBUG, "Secured class: {}", className);
+			} else {
+				Security.getLogger().log(SecurityLogger.Level.DEBUG, "Class already secured: {}", className);
+			}
+		} catch (Throwable t) {
+			throw toRuntimeException(t);
+		}
+	}
+
+	/**
+	 * Weaves given classes and defines them in the class loader associated with this instance.
+	 * Classes are parsed and woven concurrently (each worker thread uses its own class pool), but they are defined serially in given order.
+	 * Result (including role ids and errors) is the same as calling {@linkplain #secure(String)} for each class.
+	 * @param classNames secured class names.
+	 * @param parallelism number of worker threads.
+	 */
+	void secure(List<String> classNames, int parallelism) {
+		if (parallelism < 2 || classNames.size() < 2) {
+			for (String className : classNames) {
+				secure(className);
+			}
+
+			return;
+		}
+
+		final ClassLoader cl = getClassLoader();
+		final ThreadLocal<ClassPool> workerClassPool = new ThreadLocal<ClassPool>() {
+			@Override
+			protected ClassPool initialValue() {
+				ClassPool cp = new ClassPool(true);
+				cp.appendClassPath(new LoaderClassPath(cl));
+				return cp;
+			}
+		};
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, classNames.size()), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "security-weaver");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		try {
+			List<Future<WovenClass>> futures = new ArrayList<>();
+
+			for (final String className : classNames) {
+				CtClass cached = classPool.getCachedClass(className);
+
+				if (cached != null && cached.isFrozen()) {
+					futures.add(null); // <-- Frozen classes are handled serially
+					continue;
+				}
+
+				futures.add(executor.submit(new Callable<WovenClass>() {
+					@Override
+					public WovenClass call() {
+						WovenClass wovenClass = new WovenClass(className);
+
+						try {
+							CtClass cc = workerClassPool.get().get(className);
+							weave(cc, getIndexEntry(className), wovenClass.declaredRoles, true, null, Security.isReentrancyElisionEnabled());
+							wovenClass.bytecode = cc.toBytecode();
+						} catch (Throwable t) {
+							wovenClass.error = t;
+						}
+
+						return wovenClass;
+					}
+				}));
+			}
+
+			for (int i = 0; i < classNames.size(); i++) {
+				Future<WovenClass> future = futures.get(i);
+
+				if (future == null) {
+					secure(classNames.get(i));
+					continue;
+				}
+
+				WovenClass wovenClass;
+
+				try {
+					wovenClass = future.get();
+				} catch (InterruptedException | ExecutionException ex) {
+					throw toRuntimeException(ex);
+				}
+
+				if (wovenClass.error != null)
+					throw toRuntimeException(wovenClass.error);
+
+				try {
+					CtClass cc = classPool.makeClass(new ByteArrayInputStream(wovenClass.bytecode));
+					registerRoles(wovenClass.declaredRoles);
+					cc.toClass(cl, Security.class.getProtectionDomain());
+					Security.getLogger().log(SecurityLogger.Level.DEBUG, "Secured class: {}", wovenClass.className);
+				} catch (Throwable t) {
+					throw toRuntimeException(t);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	// =========================================================================
+}
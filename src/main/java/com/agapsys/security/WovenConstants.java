@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds constants referenced by guards woven into classes which cannot receive new fields (e.g. classes retransformed by {@linkplain SecurityAgent}).
+ * Constants are never modified, so equal constants (e.g. the roles of a class woven again after a redeployment) share a single index and this table grows only with distinct constants.
+ * This class is used by woven code and it is not intended to be used directly.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class WovenConstants {
+
+	// CLASS SCOPE =============================================================
+	/** Compares constants (e.g. arrays) by content. */
+	private static final class Key {
+		private final Object[] constant;
+
+		private Key(Object constant) {
+			this.constant = new Object[] {constant};
+		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.deepHashCode(constant);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && Arrays.deepEquals(constant, ((Key) obj).constant);
+		}
+	}
+
+	private static volatile Object[] constants = new Object[64];
+	private static int count = 0;
+	private static final Map<Key, Integer> INDEXES = new HashMap<>(); // <-- Guarded by class lock
+
+	static synchronized int add(Object constant) {
+		Key key = new Key(constant);
+		Integer index = INDEXES.get(key);
+
+		if (index != null)
+			return index;
+
+		if (count == constants.length)
+			constants = Arrays.copyOf(constants, count * 2);
+
+		constants[count] = constant;
+		INDEXES.put(key, count);
+		return count++;
+	}
+
+	/**
+	 * Returns a constant.
+	 * @param index constant index.
+	 * @return constant.
+	 */
+	public static Object get(int index) {
+		return constants[index];
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private WovenConstants() {}
+	// =========================================================================
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+/**
+ * Entry point of woven guards when instrumentation (see {@linkplain SecurityMetrics} and {@linkplain AuditLog}) is active.
+ * When no instrumentation is active, guards only pay for a volatile read. Methods woven with reentrancy elision (see {@linkplain Security#enableReentrancyElision(boolean)}) also track satisfied requirements per thread.
+ * Methods whose declared return type is {@linkplain Future} defer their bodies through this class when decisions are pending (see {@linkplain SecurityManager#isAllowedAsync(int, String[], long[])}).
+ * This class is used by woven code and it is not intended to be used directly.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public final class WovenGuard {
+
+	// CLASS SCOPE =============================================================
+	private static volatile boolean instrumented = false;
+
+	private static final long[] NO_SCOPE = new long[0]; // <-- Nothing satisfied (e.g. outside secured methods)
+
+	/** Requirements satisfied by the secured methods being executed by a thread (see {@linkplain Security#enableReentrancyElision(boolean)}). */
+	private static final class Scope {
+		private long[][] frames = new long[16][];
+		private int depth = 0;
+
+		private long[] getSatisfied() {
+			return depth == 0 ? NO_SCOPE : frames[depth - 1];
+		}
+
+		private void push(long[] satisfied) {
+			if (depth == frames.length)
+				frames = Arrays.copyOf(frames, depth * 2);
+
+			frames[depth++] = satisfied;
+		}
+
+		private void pop() {
+			if (depth > 0) // <-- Scope may have been reset (see SecurityContext#unbind()) while a secured method was executing
+				frames[--depth] = null;
+		}
+	}
+
+	/** Feeds instrumentation with an asynchronous decision once it is completed. */
+	private static final class Recorder implements AsyncDecision.Listener {
+		private final int methodId;
+		private final long start;
+		private final long[] requiredRoleMask;
+
+		private Recorder(int methodId, long start, long[] requiredRoleMask) {
+			this.methodId = methodId;
+			this.start = start;
+			this.requiredRoleMask = requiredRoleMask;
+		}
+
+		@Override
+		public void onCompleted(AsyncDecision decision) {
+			record(methodId, decision.getError() == null && decision.isAllowed(), start, requiredRoleMask); // <-- Failed decisions are recorded as denials
+		}
+	}
+
+	private static final ThreadLocal<Scope> SCOPE = new ThreadLocal<Scope>() {
+		@Override
+		protected Scope initialValue() {
+			return new Scope();
+		}
+	};
+
+	/** Recomputes instrumentation state. Synchronized, so concurrent updates (e.g. enabling metrics while an audit log is installed) never publish a stale state. */
+	static synchronized void update() {
+		instrumented = SecurityMetrics.isEnabled() || AuditLog.getCurrent() != null;
+	}
+
+	/** @return a boolean indicating if guards shall call {@linkplain #isAllowed(SecurityManager, int, String[], long[])}. */
+	public static boolean isInstrumented() {
+		return instrumented;
+	}
+
+	/**
+	 * Checks if a secured method can be executed, feeding active instrumentation.
+	 * @param securityManager security manager taking the decision.
+	 * @param methodId secured method id (see {@linkplain MethodRegistry}).
+	 * @param requiredRoles required roles.
+	 * @param requiredRoleMask mask of required roles.
+	 * @return decision of given security manager.
+	 */
+	public static boolean isAllowed(SecurityManager securityManager, int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		long start = start();
+		boolean allowed = securityManager.isAllowed(methodId, requiredRoles, requiredRoleMask);
+		record(methodId, allowed, start, requiredRoleMask);
+		return allowed;
+	}
+
+	/**
+	 * Checks asynchronously if a secured method can be executed, feeding active instrumentation when decision is completed.
+	 * @param securityManager security manager taking the decision.
+	 * @param methodId secured method id (see {@linkplain MethodRegistry}).
+	 * @param requiredRoles required roles.
+	 * @param requiredRoleMask mask of required roles.
+	 * @return decision of given security manager (see {@linkplain SecurityManager#isAllowedAsync(int, String[], long[])}).
+	 */
+	public static AsyncDecision isAllowedAsync(SecurityManager securityManager, int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		long start = start();
+		AsyncDecision decision = securityManager.isAllowedAsync(methodId, requiredRoles, requiredRoleMask);
+		decision.addListener(new Recorder(methodId, start, requiredRoleMask)); // <-- Added before the deferred body, so decision is recorded before the body runs
+		return decision;
+	}
+
+	/**
+	 * Starts timing a decision taken by a guard which does not use {@linkplain #isAllowed(SecurityManager, int, String[], long[])} (e.g. guards evaluating {@linkplain RoleExpression role expressions}).
+	 * @return start time to be passed to {@linkplain #record(int, boolean, long, long[])} (zero if metrics are disabled).
+	 */
+	public static long start() {
+		return SecurityMetrics.isEnabled() ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Feeds active instrumentation with a decision.
+	 * @param methodId secured method id (see {@linkplain MethodRegistry}).
+	 * @param allowed decision.
+	 * @param start value returned by {@linkplain #start()}.
+	 * @param requiredRoleMask mask of required roles.
+	 */
+	public static void record(int methodId, boolean allowed, long start, long[] requiredRoleMask) {
+		if (start != 0 && SecurityMetrics.isEnabled())
+			SecurityMetrics.record(methodId, allowed, System.nanoTime() - start);
+
+		AuditLog auditLog = AuditLog.getCurrent();
+
+		if (auditLog != null)
+			auditLog.publish(methodId, allowed, requiredRoleMask);
+	}
+
+	/**
+	 * Returns the copy of a secured method body which is executed when a decision is pending (see {@linkplain SecurityManager#isAllowedAsync(int, String[], long[])}).
+	 * @param declaringClass class declaring the body.
+	 * @param name body name.
+	 * @return body method.
+	 */
+	public static Method getAsyncBody(Class<?> declaringClass, String name) {
+		for (Method method : declaringClass.getDeclaredMethods()) {
+			if (method.getName().equals(name)) {
+				method.setAccessible(true);
+				return method;
+			}
+		}
+
+		throw new IllegalStateException(String.format("Method body not found: %s.%s", declaringClass.getName(), name));
+	}
+
+	/**
+	 * Defers the body of a secured method until a pending decision is completed.
+	 * @param decision pending decision.
+	 * @param securityManager security manager which returned the decision.
+	 * @param body method body (see {@linkplain #getAsyncBody(Class, String)}).
+	 * @param target object executing the method (<code>null</code> for static methods).
+	 * @param args method arguments.
+	 * @param securedMethod secured method long name.
+	 * @param requiredRoles required roles.
+	 * @return future returned to method caller.
+	 */
+	public static Future<?> defer(AsyncDecision decision, SecurityManager securityManager, Method body, Object target, Object[] args, String securedMethod, String[] requiredRoles) {
+		DeferredFuture future = new DeferredFuture(securityManager, body, target, args, securedMethod, requiredRoles);
+		decision.addListener(future);
+		return future;
+	}
+
+	/**
+	 * Checks if a requirement is implied by the requirements satisfied by the secured methods being executed by current thread.
+	 * @param requiredRoleMask mask of required roles.
+	 * @return a boolean indicating if check can be skipped.
+	 */
+	public static boolean isImplied(long[] requiredRoleMask) {
+		long[] satisfied = SCOPE.get().getSatisfied();
+		return satisfied != NO_SCOPE && RoleRegistry.containsAll(satisfied, requiredRoleMask);
+	}
+
+	/**
+	 * Enters the scope of a secured method whose requirement is satisfied. Each call must be followed by a call to {@linkplain #exit()} when method returns or throws.
+	 * @param requiredRoleMask mask of satisfied roles.
+	 */
+	public static void enter(long[] requiredRoleMask) {
+		Scope scope = SCOPE.get();
+		long[] satisfied = scope.getSatisfied();
+
+		if (satisfied == NO_SCOPE || satisfied.length == 0) {
+			satisfied = requiredRoleMask; // <-- Masks of woven methods are never modified
+		} else if (!RoleRegistry.containsAll(satisfied, requiredRoleMask)) {
+			satisfied = Arrays.copyOf(satisfied, Math.max(satisfied.length, requiredRoleMask.length));
+
+			for (int i = 0; i < requiredRoleMask.length; i++) {
+				satisfied[i] |= requiredRoleMask[i];
+			}
+		}
+
+		scope.push(satisfied);
+	}
+
+	/** Leaves the scope entered by {@linkplain #enter(long[])}. */
+	public static void exit() {
+		SCOPE.get().pop();
+	}
+
+	/**
+	 * Opens a scope without satisfied requirements (e.g. when another principal is bound to current thread).
+	 * @return scope depth to be passed to {@linkplain #resume(int)}, or -1 if reentrancy elision is disabled and nothing is tracked.
+	 */
+	static int suspend() {
+		Scope scope = SCOPE.get();
+
+		if (!Security.isReentrancyElisionEnabled() && scope.depth == 0)
+			return -1; // <-- Nothing is satisfied. Otherwise, methods woven with elision (e.g. at build time) are being executed and their scopes must not leak into the new context
+
+		int depth = scope.depth;
+		scope.push(NO_SCOPE);
+		return depth;
+	}
+
+	/**
+	 * Closes a scope opened by {@linkplain #suspend()}.
+	 * @param depth value returned by {@linkplain #suspend()}.
+	 */
+	static void resume(int depth) {
+		if (depth < 0)
+			return;
+
+		Scope scope = SCOPE.get();
+
+		while (scope.depth > depth) {
+			scope.pop();
+		}
+	}
+
+	/** Discards the requirements satisfied by current thread (e.g. when its context is unbound). */
+	static void reset() {
+		SCOPE.remove();
+	}
+
+	/** @return number of scopes opened by current thread. */
+	static int getScopeDepth() {
+		return SCOPE.get().depth;
+	}
+	// =========================================================================
+
+	// INSTANCE SCOPE ==========================================================
+	private WovenGuard() {}
+	// =========================================================================
+}
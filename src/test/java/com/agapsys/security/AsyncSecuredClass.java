@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+@Secured("USER")
+public class AsyncSecuredClass {
+	public static final AtomicInteger EXECUTIONS = new AtomicInteger();
+
+	private final String name;
+
+	public AsyncSecuredClass(String name) {
+		this.name = name;
+	}
+
+	public Future<String> greet(final String greeting) {
+		EXECUTIONS.incrementAndGet();
+		final String caller = String.valueOf(SecurityContext.getCurrent().getPrincipal());
+		FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+			@Override
+			public String call() {
+				return greeting + " " + name + " from " + caller;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	@Secured("ADMIN")
+	public static Future<Integer> count(final int value) {
+		EXECUTIONS.incrementAndGet();
+		FutureTask<Integer> task = new FutureTask<>(new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return value;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	public FutureTask<String> task() { // <-- Subtypes of Future are checked synchronously
+		EXECUTIONS.incrementAndGet();
+		FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+			@Override
+			public String call() {
+				return name;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	public String sync() {
+		return name;
+	}
+}
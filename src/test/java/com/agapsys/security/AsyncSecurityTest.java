@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class AsyncSecurityTest {
+	/** In-process stand-in for a remote policy source: decisions stay pending until they are resolved by the test. */
+	private static class StubPolicySecurityManager extends MockedSecurityManager {
+		private final List<AsyncDecision> pending = new ArrayList<>();
+		private final List<String[]> pendingRoles = new ArrayList<>();
+		private boolean deferred = true;
+
+		@Override
+		public synchronized AsyncDecision isAllowedAsync(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+			if (!deferred)
+				return super.isAllowedAsync(methodId, requiredRoles, requiredRoleMask);
+
+			AsyncDecision decision = new AsyncDecision();
+			pending.add(decision);
+			pendingRoles.add(requiredRoles);
+			return decision;
+		}
+
+		public synchronized int getPendingCount() {
+			return pending.size();
+		}
+
+		public void resolveAll() {
+			List<AsyncDecision> decisions;
+			List<String[]> roles;
+
+			synchronized (this) {
+				decisions = new ArrayList<>(pending);
+				roles = new ArrayList<>(pendingRoles);
+				pending.clear();
+				pendingRoles.clear();
+			}
+
+			for (int i = 0; i < decisions.size(); i++) {
+				decisions.get(i).complete(isAllowed(roles.get(i)));
+			}
+		}
+
+		public synchronized void failAll(Throwable error) {
+			for (AsyncDecision decision : pending) {
+				decision.fail(error);
+			}
+
+			pending.clear();
+			pendingRoles.clear();
+		}
+	}
+
+	private static final StubPolicySecurityManager SECURITY_MANAGER = new StubPolicySecurityManager();
+
+	@BeforeClass
+	public static void beforeClass() {
+		MockedSecurity.init(SECURITY_MANAGER, "com.agapsys.security.AsyncSecuredClass");
+	}
+
+	@Before
+	public void before() {
+		SECURITY_MANAGER.deferred = true;
+		SECURITY_MANAGER.setAvailableRoles("USER");
+		AsyncSecuredClass.EXECUTIONS.set(0);
+	}
+
+	@After
+	public void after() {
+		SECURITY_MANAGER.resolveAll();
+		SecurityContext.unbind();
+	}
+
+	@Test
+	public void deferredBody() throws Exception {
+		AsyncSecuredClass obj = new AsyncSecuredClass("world");
+		Future<String> future;
+
+		SecurityContext.Scope scope = new SecurityContext("caller").bind();
+
+		try {
+			future = obj.greet("hello");
+		} finally {
+			scope.close();
+		}
+
+		Assert.assertEquals(0, AsyncSecuredClass.EXECUTIONS.get()); // <-- Body waits for the decision
+		Assert.assertFalse(future.isDone());
+		Assert.assertEquals(1, SECURITY_MANAGER.getPendingCount());
+
+		try {
+			future.get(10, TimeUnit.MILLISECONDS);
+			Assert.fail("Decision is pending");
+		} catch (TimeoutException ex) {}
+
+		SECURITY_MANAGER.resolveAll();
+
+		Assert.assertTrue(future.isDone());
+		Assert.assertEquals("hello world from caller", future.get()); // <-- Body runs with the context of the caller
+		Assert.assertEquals(1, AsyncSecuredClass.EXECUTIONS.get());
+	}
+
+	@Test
+	public void instrumentedDeferral() throws Exception {
+		int methodId = MethodRegistry.getId(AsyncSecuredClass.class.getMethod("greet", String.class));
+		SecurityMetrics.setEnabled(true);
+
+		try {
+			Future<String> future = new AsyncSecuredClass("world").greet("hello");
+			Assert.assertFalse(future.isDone()); // <-- Instrumentation does not make the guard wait for the decision
+			Assert.assertEquals(0, SecurityMetrics.getAllowCount(methodId));
+
+			SECURITY_MANAGER.resolveAll();
+			Assert.assertEquals("hello world from null", future.get());
+			Assert.assertEquals(1, SecurityMetrics.getAllowCount(methodId)); // <-- Recorded when decision is completed
+		} finally {
+			SecurityMetrics.setEnabled(false);
+			SecurityMetrics.reset();
+		}
+	}
+
+	@Test
+	public void deniedDecision() throws Exception {
+		Future<Integer> future = AsyncSecuredClass.count(3);
+		SECURITY_MANAGER.resolveAll();
+
+		try {
+			future.get();
+			Assert.fail("Execution should not be allowed");
+		} catch (ExecutionException ex) {
+			Assert.assertTrue(ex.getCause() instanceof NotAllowedException);
+		}
+
+		Assert.assertEquals(0, AsyncSecuredClass.EXECUTIONS.get());
+
+		SECURITY_MANAGER.setAvailableRoles("USER", "ADMIN");
+		future = AsyncSecuredClass.count(3);
+		SECURITY_MANAGER.resolveAll();
+		Assert.assertEquals(Integer.valueOf(3), future.get());
+	}
+
+	@Test
+	public void failedDecision() throws Exception {
+		Future<String> future = new AsyncSecuredClass("world").greet("hello");
+		IllegalStateException error = new IllegalStateException("Policy source unavailable");
+		SECURITY_MANAGER.failAll(error);
+
+		try {
+			future.get();
+			Assert.fail("Failed decision should not allow execution");
+		} catch (ExecutionException ex) {
+			Assert.assertSame(error, ex.getCause());
+		}
+
+		Assert.assertEquals(0, AsyncSecuredClass.EXECUTIONS.get());
+	}
+
+	@Test
+	public void cancelledBeforeDecision() throws Exception {
+		Future<String> future = new AsyncSecuredClass("world").greet("hello");
+		Assert.assertTrue(future.cancel(false));
+		SECURITY_MANAGER.resolveAll();
+
+		Assert.assertTrue(future.isCancelled());
+		Assert.assertEquals(0, AsyncSecuredClass.EXECUTIONS.get());
+
+		try {
+			future.get();
+			Assert.fail("Future was cancelled");
+		} catch (CancellationException ex) {}
+	}
+
+	@Test
+	public void completedDecision() throws Exception {
+		SECURITY_MANAGER.deferred = false;
+		AsyncSecuredClass obj = new AsyncSecuredClass("world");
+
+		Future<String> future = obj.greet("hi");
+		Assert.assertFalse(future.getClass().getName().contains("Deferred")); // <-- Completed decisions do not defer the body
+		Assert.assertEquals("hi world from null", future.get());
+
+		try {
+			AsyncSecuredClass.count(1);
+			Assert.fail("Execution should not be allowed");
+		} catch (NotAllowedException ex) {}
+
+		Assert.assertEquals("world", obj.sync());
+	}
+
+	@Test
+	public void deferredExecutor() throws Exception {
+		final List<Thread> threads = new ArrayList<>();
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				Thread thread = new Thread(command);
+				threads.add(thread);
+				thread.start();
+			}
+		};
+
+		Security.setDeferredExecutor(executor);
+		Future<String> future;
+
+		try {
+			future = new AsyncSecuredClass("world").greet("hello");
+		} finally {
+			Security.setDeferredExecutor(null);
+		}
+
+		SECURITY_MANAGER.resolveAll();
+		Assert.assertEquals(1, threads.size()); // <-- Body was not run by the thread completing the decision
+		Assert.assertEquals("hello world from null", future.get());
+		threads.get(0).join();
+	}
+
+	@Test
+	public void rejectedDeferral() throws Exception {
+		final RejectedExecutionException rejection = new RejectedExecutionException();
+		Security.setDeferredExecutor(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw rejection;
+			}
+		});
+
+		Future<String> future;
+
+		try {
+			future = new AsyncSecuredClass("world").greet("hello");
+		} finally {
+			Security.setDeferredExecutor(null);
+		}
+
+		SECURITY_MANAGER.resolveAll();
+
+		try {
+			future.get();
+			Assert.fail("Body was rejected");
+		} catch (ExecutionException ex) {
+			Assert.assertSame(rejection, ex.getCause());
+		}
+
+		Assert.assertEquals(0, AsyncSecuredClass.EXECUTIONS.get());
+	}
+
+	@Test
+	public void futureSubtype() throws Exception {
+		FutureTask<String> task = new AsyncSecuredClass("world").task();
+		Assert.assertEquals(0, SECURITY_MANAGER.getPendingCount()); // <-- Checked synchronously
+		Assert.assertEquals("world", task.get());
+	}
+
+	@Test
+	public void decisionListeners() throws Exception {
+		AsyncDecision decision = new AsyncDecision();
+		final List<AsyncDecision> notified = new ArrayList<>();
+		AsyncDecision.Listener listener = new AsyncDecision.Listener() {
+			@Override
+			public void onCompleted(AsyncDecision decision) {
+				notified.add(decision);
+			}
+		};
+
+		decision.addListener(listener);
+		Assert.assertTrue(notified.isEmpty());
+		Assert.assertTrue(decision.complete(true));
+		Assert.assertFalse(decision.complete(false));
+		Assert.assertTrue(decision.get());
+
+		decision.addListener(listener);
+		Assert.assertEquals(2, notified.size());
+		Assert.assertSame(AsyncDecision.ALLOWED, AsyncDecision.of(true));
+		Assert.assertFalse(AsyncDecision.DENIED.isAllowed());
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class AuditLogTest {
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File directory;
+	private int methodId;
+	private long[] roleMask;
+
+	@Before
+	public void before() throws IOException {
+		directory = temporaryFolder.newFolder("security-audit");
+		methodId = MethodRegistry.register("com.example.Audited", "run", "()V", new String[] {"AUDITOR"});
+		roleMask = RoleRegistry.getMask("AUDITOR");
+	}
+
+	private int countEvents() throws IOException {
+		int count = 0;
+
+		for (File logFile : AuditLogReader.listLogFiles(directory)) {
+			try (AuditLogReader reader = new AuditLogReader(logFile)) {
+				while (reader.next()) {
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	@Test
+	public void writeAndRead() throws IOException {
+		long start = System.currentTimeMillis();
+
+		try (AuditLog auditLog = new AuditLog(directory, 16, 4096, 4, AuditLog.Backpressure.BLOCK, 1)) {
+			Assert.assertTrue(auditLog.publish(methodId, false, roleMask));
+			Assert.assertTrue(auditLog.publish(methodId, true, roleMask));
+		}
+
+		List<File> logFiles = AuditLogReader.listLogFiles(directory);
+		Assert.assertEquals(1, logFiles.size());
+
+		try (AuditLogReader reader = new AuditLogReader(logFiles.get(0))) {
+			Assert.assertTrue(reader.next());
+			Assert.assertFalse(reader.isAllowed());
+			Assert.assertEquals(methodId, reader.getMethodId());
+			Assert.assertEquals("com.example.Audited.run()", reader.getMethod());
+			Assert.assertArrayEquals(new String[] {"AUDITOR"}, reader.getRoles());
+			Assert.assertEquals(Thread.currentThread().getId(), reader.getThreadId());
+			Assert.assertTrue(reader.getTimestamp() >= start);
+
+			Assert.assertTrue(reader.next());
+			Assert.assertTrue(reader.isAllowed());
+
+			Assert.assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void sampling() throws IOException {
+		try (AuditLog auditLog = new AuditLog(directory)) {
+			Assert.assertFalse(auditLog.publish(methodId, true, roleMask)); // <-- Only denials are recorded by default
+			Assert.assertTrue(auditLog.publish(methodId, false, roleMask));
+		}
+
+		Assert.assertEquals(1, countEvents());
+	}
+
+	@Test
+	public void rotation() throws IOException {
+		try (AuditLog auditLog = new AuditLog(directory, 16, AuditLog.HEADER_SIZE + 4 * AuditLog.RECORD_SIZE, 2, AuditLog.Backpressure.BLOCK, 0)) {
+			for (int i = 0; i < 10; i++) {
+				auditLog.publish(methodId, false, roleMask);
+			}
+		}
+
+		List<File> logFiles = AuditLogReader.listLogFiles(directory);
+		Assert.assertEquals(2, logFiles.size()); // <-- Oldest file was deleted
+		Assert.assertTrue(logFiles.get(0).getName().endsWith("00000002.log"));
+		Assert.assertEquals(6, countEvents());
+	}
+
+	@Test
+	public void backpressure() throws IOException {
+		int eventCount = 1000;
+		long droppedCount;
+
+		AuditLog auditLog = new AuditLog(directory, 2, 1024 * 1024, 4, AuditLog.Backpressure.DROP, 0);
+
+		try {
+			for (int i = 0; i < eventCount; i++) {
+				auditLog.publish(methodId, false, roleMask);
+			}
+		} finally {
+			auditLog.close(); // <-- Waits for pending events
+		}
+
+		droppedCount = auditLog.getDroppedCount();
+		Assert.assertEquals(eventCount, auditLog.getWrittenCount() + droppedCount);
+
+		Assert.assertEquals(eventCount - droppedCount, countEvents());
+
+		auditLog = new AuditLog(directory, 2, 4 * 1024 * 1024, 4, AuditLog.Backpressure.BLOCK, 0);
+
+		try {
+			for (int i = 0; i < eventCount; i++) {
+				Assert.assertTrue(auditLog.publish(methodId, false, roleMask));
+			}
+		} finally {
+			auditLog.close();
+		}
+
+		Assert.assertEquals(0, auditLog.getDroppedCount());
+		Assert.assertEquals(eventCount, auditLog.getWrittenCount());
+	}
+
+	@Test
+	public void publishWhileClosing() throws Exception {
+		final AuditLog auditLog = new AuditLog(directory, 64, 4 * 1024 * 1024, 4, AuditLog.Backpressure.BLOCK, 0);
+		final AtomicLong publishedCount = new AtomicLong();
+		Thread[] publishers = new Thread[4];
+
+		for (int i = 0; i < publishers.length; i++) {
+			publishers[i] = new Thread() {
+				@Override
+				public void run() {
+					while (auditLog.publish(methodId, false, roleMask)) {
+						publishedCount.incrementAndGet();
+					}
+				}
+			};
+			publishers[i].start();
+		}
+
+		Thread.sleep(20);
+		auditLog.close();
+
+		for (Thread publisher : publishers) {
+			publisher.join();
+		}
+
+		Assert.assertFalse(auditLog.publish(methodId, false, roleMask));
+		Assert.assertEquals(publishedCount.get(), auditLog.getWrittenCount()); // <-- Every accepted event was written
+		Assert.assertEquals(publishedCount.get(), countEvents());
+	}
+
+	private void waitForFailure(AuditLog auditLog) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+
+		while (auditLog.getFailure() == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+
+		Assert.assertNotNull(auditLog.getFailure());
+	}
+
+	private void deleteDirectory() {
+		for (File file : directory.listFiles()) {
+			Assert.assertTrue(file.delete());
+		}
+
+		Assert.assertTrue(directory.delete());
+	}
+
+	@Test
+	public void failureWithDrop() throws Exception {
+		AuditLog auditLog = new AuditLog(directory, 16, AuditLog.HEADER_SIZE + 2 * AuditLog.RECORD_SIZE, 4, AuditLog.Backpressure.DROP, 0);
+
+		try {
+			AuditLog.setCurrent(auditLog);
+			deleteDirectory();
+
+			for (int i = 0; i < 3; i++) {
+				auditLog.publish(methodId, false, roleMask); // <-- Third event requires a new file
+			}
+
+			waitForFailure(auditLog);
+			Assert.assertNull(AuditLog.getCurrent()); // <-- Auditing was disabled
+			Assert.assertFalse(auditLog.publish(methodId, false, roleMask));
+		} finally {
+			AuditLog.setCurrent(null);
+			auditLog.close();
+		}
+	}
+
+	@Test
+	public void failureWithBlock() throws Exception {
+		AuditLog auditLog = new AuditLog(directory, 16, AuditLog.HEADER_SIZE + 2 * AuditLog.RECORD_SIZE, 4, AuditLog.Backpressure.BLOCK, 0);
+
+		try {
+			AuditLog.setCurrent(auditLog);
+			deleteDirectory();
+
+			for (int i = 0; i < 3; i++) {
+				auditLog.publish(methodId, false, roleMask);
+			}
+
+			waitForFailure(auditLog);
+			Assert.assertSame(auditLog, AuditLog.getCurrent()); // <-- Log stays current, so audited calls fail
+
+			try {
+				auditLog.publish(methodId, false, roleMask);
+				Assert.fail();
+			} catch (IllegalStateException ex) {
+				Assert.assertSame(auditLog.getFailure(), ex.getCause());
+			}
+		} finally {
+			AuditLog.setCurrent(null);
+			auditLog.close();
+		}
+	}
+
+	@Test
+	public void wideRoleMask() throws IOException {
+		String[] roles = new String[70];
+
+		for (int i = 0; i < roles.length; i++) {
+			roles[i] = "AUDIT_ROLE_" + i;
+		}
+
+		long[] wideRoleMask = RoleRegistry.getMask(roles);
+		Assert.assertTrue(wideRoleMask.length > 1);
+
+		try (AuditLog auditLog = new AuditLog(directory, 16, 4096, 4, AuditLog.Backpressure.BLOCK, 0)) {
+			auditLog.publish(methodId, false, wideRoleMask);
+			auditLog.publish(methodId, false, roleMask);
+		}
+
+		try (AuditLogReader reader = new AuditLogReader(AuditLogReader.listLogFiles(directory).get(0))) {
+			Assert.assertTrue(reader.next());
+			Assert.assertArrayEquals(roles, reader.getRoles()); // <-- Roles beyond the first mask word are recorded
+
+			Assert.assertTrue(reader.next());
+			Assert.assertArrayEquals(new String[] {"AUDITOR"}, reader.getRoles());
+		}
+	}
+
+	@Test
+	public void wovenGuard() throws IOException {
+		MockedSecurity.init(new MockedSecurityManager(), "com.agapsys.security.AuditSecuredClass");
+		AuditSecuredClass obj = new AuditSecuredClass();
+
+		try (AuditLog auditLog = new AuditLog(directory)) {
+			AuditLog.setCurrent(auditLog);
+
+			try {
+				obj.secured();
+				Assert.fail();
+			} catch (NotAllowedException ex) {}
+		}
+
+		Assert.assertNull(AuditLog.getCurrent());
+
+		try (AuditLogReader reader = new AuditLogReader(AuditLogReader.listLogFiles(directory).get(0))) {
+			Assert.assertTrue(reader.next());
+			Assert.assertEquals("com.agapsys.security.AuditSecuredClass.secured()", reader.getMethod());
+			Assert.assertArrayEquals(new String[] {"AUDIT"}, reader.getRoles());
+			Assert.assertFalse(reader.next());
+		}
+	}
+}
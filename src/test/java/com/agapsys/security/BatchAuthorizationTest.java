@@ -0,0 +1,138 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.BitSet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class BatchAuthorizationTest {
+	private static final int[] METHOD_IDS = {
+		MethodRegistry.register("com.example.Menu", "open", "()V", new String[0]),
+		MethodRegistry.register("com.example.Menu", "users", "()V", new String[] {"B_USER"}),
+		MethodRegistry.register("com.example.Menu", "admin", "()V", new String[] {"B_USER", "B_ADMIN"}),
+		MethodRegistry.register("com.example.Menu", "support", "()V", new String[] {"B_USER"}, "B_ADMIN or (B_SUPPORT and B_EU)"),
+		MethodRegistry.register("com.example.Menu", "guests", "()V", new String[0], "not B_USER"),
+		MethodRegistry.register("com.example.Menu", "edit", "(J)V", new String[] {"B_USER"}, null, new String[] {"owner($1)"}),
+		MethodRegistry.register("com.example.Menu", "report", "()V", new String[] {"B_USER"}, null, new String[] {"businessHours()"})
+	};
+
+	/** Grants parameterless conditions. */
+	private static class ConditionSecurityManager extends ContextSecurityManager {
+		@Override
+		public boolean isConditionSatisfied(int methodId, String condition, Object argument) {
+			return argument == null;
+		}
+	}
+
+	private static BitSet bits(int... indexes) {
+		BitSet bitSet = new BitSet();
+
+		for (int index : indexes) {
+			bitSet.set(index);
+		}
+
+		return bitSet;
+	}
+
+	@After
+	public void after() {
+		SecurityContext.unbind();
+		RoleHierarchy.setCurrent(RoleHierarchy.NONE);
+	}
+
+	@Test
+	public void contextSecurityManager() {
+		ContextSecurityManager securityManager = new ContextSecurityManager();
+
+		Assert.assertEquals(bits(0, 4), securityManager.isAllowed(METHOD_IDS));
+
+		SecurityContext.Scope scope = new SecurityContext("user", "B_USER").bind();
+
+		try {
+			Assert.assertEquals(bits(0, 1), securityManager.isAllowed(METHOD_IDS)); // <-- Conditions are denied by default
+		} finally {
+			scope.close();
+		}
+
+		scope = new SecurityContext("support", "B_USER", "B_SUPPORT", "B_EU").bind();
+
+		try {
+			Assert.assertEquals(bits(0, 1, 3), securityManager.isAllowed(METHOD_IDS));
+		} finally {
+			scope.close();
+		}
+
+		RoleHierarchy.setCurrent(RoleHierarchy.parse("B_ADMIN > B_USER"));
+
+		scope = new SecurityContext("admin", "B_ADMIN").bind();
+
+		try {
+			Assert.assertEquals(bits(0, 1, 2, 3), securityManager.isAllowed(METHOD_IDS));
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void defaultImplementation() {
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+
+		Assert.assertEquals(bits(0, 4), securityManager.isAllowed(METHOD_IDS));
+
+		securityManager.setAvailableRoles("B_USER", "B_ADMIN");
+		Assert.assertEquals(bits(0, 1, 2, 3), securityManager.isAllowed(METHOD_IDS));
+
+		securityManager.setAvailableRoles("B_USER", "B_SUPPORT");
+		Assert.assertEquals(bits(0, 1), securityManager.isAllowed(METHOD_IDS));
+	}
+
+	@Test
+	public void conditions() {
+		ConditionSecurityManager securityManager = new ConditionSecurityManager();
+		SecurityContext.Scope scope = new SecurityContext("user", "B_USER").bind();
+
+		try {
+			Assert.assertEquals(bits(0, 1, 6), securityManager.isAllowed(METHOD_IDS)); // <-- Conditions on arguments cannot be evaluated without a call
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void overriddenMethodCheck() {
+		final int deniedMethodId = METHOD_IDS[1];
+		ContextSecurityManager securityManager = new ContextSecurityManager() {
+			@Override
+			public boolean isAllowed(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+				return methodId != deniedMethodId && super.isAllowed(methodId, requiredRoles, requiredRoleMask);
+			}
+		};
+
+		SecurityContext.Scope scope = new SecurityContext("user", "B_USER").bind();
+
+		try {
+			Assert.assertEquals(bits(0), securityManager.isAllowed(METHOD_IDS)); // <-- Per-method policy applies to batch checks
+		} finally {
+			scope.close();
+		}
+	}
+}
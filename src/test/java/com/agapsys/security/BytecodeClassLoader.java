@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Class loader which provides a single class from given bytecode (as a woven class would be provided).
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class BytecodeClassLoader extends ClassLoader {
+	
+	public static byte[] getClassFile(Class<?> c) throws IOException {
+		try (InputStream is = c.getClassLoader().getResourceAsStream(c.getName().replace('.', '/') + ".class")) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+
+			while ((read = is.read(buffer)) != -1) {
+				baos.write(buffer, 0, read);
+			}
+
+			return baos.toByteArray();
+		}
+	}
+	
+	private final String className;
+	private final byte[] bytecode;
+
+	public BytecodeClassLoader(ClassLoader parent, String className, byte[] bytecode) {
+		super(parent);
+		this.className = className;
+		this.bytecode = bytecode;
+	}
+
+	@Override
+	protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		if (!name.equals(className))
+			return super.loadClass(name, resolve);
+
+		Class<?> c = findLoadedClass(name);
+
+		if (c == null)
+			c = defineClass(name, bytecode, 0, bytecode.length);
+
+		return c;
+	}
+
+	@Override
+	public InputStream getResourceAsStream(String name) {
+		if (name.equals(className.replace('.', '/') + ".class"))
+			return new ByteArrayInputStream(bytecode);
+
+		return super.getResourceAsStream(name);
+	}
+}
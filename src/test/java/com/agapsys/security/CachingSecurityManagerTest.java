@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class CachingSecurityManagerTest {
+
+	private static class CountingSecurityManager extends ContextSecurityManager {
+		private int count = 0;
+
+		@Override
+		public boolean isAllowed(String[] requiredRoles, long[] requiredRoleMask) {
+			count++;
+			return super.isAllowed(requiredRoles, requiredRoleMask);
+		}
+	}
+
+	private static final String[] USER_ROLES = {"USER"};
+	private static final long[] USER_ROLE_MASK = RoleRegistry.getMask(USER_ROLES);
+
+	private static final String[] ADMIN_ROLES = {"ADMIN"};
+	private static final long[] ADMIN_ROLE_MASK = RoleRegistry.getMask(ADMIN_ROLES);
+
+	private final CountingSecurityManager delegate = new CountingSecurityManager();
+
+	@After
+	public void after() {
+		SecurityContext.unbind();
+		RoleHierarchy.setCurrent(RoleHierarchy.NONE);
+	}
+
+	@Test
+	public void hitsAndMisses() {
+		CachingSecurityManager securityManager = new CachingSecurityManager(delegate, 100);
+		new SecurityContext("user", "USER").bind();
+
+		Assert.assertTrue(securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK));
+		Assert.assertTrue(securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK));
+		Assert.assertFalse(securityManager.isAllowed(ADMIN_ROLES, ADMIN_ROLE_MASK));
+		Assert.assertFalse(securityManager.isAllowed(ADMIN_ROLES, ADMIN_ROLE_MASK));
+
+		Assert.assertEquals(2, delegate.count);
+		Assert.assertEquals(2, securityManager.getHitCount());
+		Assert.assertEquals(2, securityManager.getMissCount());
+		Assert.assertEquals(2, securityManager.getSize());
+	}
+
+	@Test
+	public void keyedByMethodIdAndRoles() {
+		CachingSecurityManager securityManager = new CachingSecurityManager(delegate, 100);
+		new SecurityContext("user", "USER").bind();
+
+		Assert.assertTrue(securityManager.isAllowed(1, USER_ROLES, USER_ROLE_MASK));
+		Assert.assertTrue(securityManager.isAllowed(1, USER_ROLES, USER_ROLE_MASK));
+		Assert.assertFalse(securityManager.isAllowed(1, ADMIN_ROLES, ADMIN_ROLE_MASK)); // <-- Replaced requirement is not served from cache
+		Assert.assertTrue(securityManager.isAllowed(2, USER_ROLES, USER_ROLE_MASK));
+
+		Assert.assertEquals(3, delegate.count);
+		Assert.assertEquals(1, securityManager.getHitCount());
+		Assert.assertEquals(2, securityManager.getSize()); // <-- Replaced requirement reuses the entry of its method
+	}
+
+	@Test
+	public void keyedByRoleContent() {
+		CachingSecurityManager securityManager = new CachingSecurityManager(delegate, 100);
+		new SecurityContext("user", "USER").bind();
+
+		for (int i = 0; i < 10; i++) {
+			Assert.assertTrue(securityManager.isAllowed(new String[] {"USER"}, USER_ROLE_MASK)); // <-- Callers passing a new array on each call
+			Assert.assertTrue(securityManager.isAllowed(1, new String[] {"USER"}, USER_ROLE_MASK));
+		}
+
+		Assert.assertEquals(2, delegate.count);
+		Assert.assertEquals(18, securityManager.getHitCount());
+		Assert.assertEquals(2, securityManager.getSize());
+	}
+
+	@Test
+	public void asyncDecisions() {
+		final List<AsyncDecision> pending = new ArrayList<>();
+		SecurityManager asyncDelegate = new ContextSecurityManager() {
+			@Override
+			public AsyncDecision isAllowedAsync(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+				AsyncDecision decision = new AsyncDecision();
+				pending.add(decision);
+				return decision;
+			}
+		};
+
+		CachingSecurityManager securityManager = new CachingSecurityManager(asyncDelegate, 100);
+		new SecurityContext("user", "USER").bind();
+
+		AsyncDecision decision = securityManager.isAllowedAsync(1, USER_ROLES, USER_ROLE_MASK);
+		Assert.assertFalse(decision.isDone()); // <-- Misses are forwarded without waiting
+		Assert.assertEquals(1, pending.size());
+
+		pending.get(0).fail(new IllegalStateException("Unavailable"));
+		Assert.assertFalse(securityManager.isAllowedAsync(1, USER_ROLES, USER_ROLE_MASK).isDone()); // <-- Failures are not cached
+		Assert.assertEquals(2, pending.size());
+
+		pending.get(1).complete(true);
+		Assert.assertSame(AsyncDecision.ALLOWED, securityManager.isAllowedAsync(1, USER_ROLES, USER_ROLE_MASK));
+		Assert.assertTrue(securityManager.isAllowed(1, USER_ROLES, USER_ROLE_MASK)); // <-- Shared with synchronous checks
+		Assert.assertEquals(2, pending.size());
+		Assert.assertEquals(2, securityManager.getHitCount());
+	}
+
+	@Test
+	public void anonymousIsNotCached() {
+		CachingSecurityManager securityManager = new CachingSecurityManager(delegate, 100);
+
+		Assert.assertFalse(securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK));
+		Assert.assertFalse(securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK));
+
+		Assert.assertEquals(2, delegate.count);
+		Assert.assertEquals(0, securityManager.getSize());
+	}
+
+	@Test
+	public void invalidation() {
+		CachingSecurityManager securityManager = new CachingSecurityManager(delegate, 100);
+
+		new SecurityContext("user", "USER").bind();
+		Assert.assertFalse(securityManager.isAllowed(ADMIN_ROLES, ADMIN_ROLE_MASK));
+
+		new SecurityContext("user", "USER", "ADMIN").bind();
+		Assert.assertFalse(securityManager.isAllowed(ADMIN_ROLES, ADMIN_ROLE_MASK)); // <-- Stale decision
+
+		securityManager.invalidate("user");
+		Assert.assertTrue(securityManager.isAllowed(ADMIN_ROLES, ADMIN_ROLE_MASK));
+
+		new SecurityContext("user", "USER").bind();
+		securityManager.invalidate();
+		Assert.assertFalse(securityManager.isAllowed(ADMIN_ROLES, ADMIN_ROLE_MASK));
+
+		Assert.assertEquals(3, delegate.count);
+	}
+
+	@Test
+	public void boundedPrincipalEpochs() {
+		CachingSecurityManager securityManager = new CachingSecurityManager(delegate, 16);
+
+		new SecurityContext("user", "ADMIN").bind();
+		Assert.assertTrue(securityManager.isAllowed(ADMIN_ROLES, ADMIN_ROLE_MASK));
+		securityManager.invalidate("user");
+
+		for (int i = 0; i < 1000; i++) {
+			securityManager.invalidate("user" + i);
+			Assert.assertTrue(securityManager.getPrincipalEpochCount() <= 16);
+		}
+
+		new SecurityContext("user", "USER").bind();
+		Assert.assertFalse(securityManager.isAllowed(ADMIN_ROLES, ADMIN_ROLE_MASK)); // <-- Discarding epochs does not revive stale decisions
+		Assert.assertTrue(securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK));
+
+		securityManager.invalidate("user");
+		securityManager.invalidate();
+		Assert.assertEquals(0, securityManager.getPrincipalEpochCount());
+		Assert.assertEquals(3, delegate.count);
+	}
+
+	@Test
+	public void hierarchyReplacement() {
+		CachingSecurityManager securityManager = new CachingSecurityManager(delegate, 100);
+		new SecurityContext("user", "ADMIN").bind();
+
+		RoleHierarchy.setCurrent(RoleHierarchy.parse("ADMIN > USER"));
+		Assert.assertTrue(securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK));
+		Assert.assertTrue(securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK));
+
+		RoleHierarchy.setCurrent(RoleHierarchy.NONE);
+		Assert.assertFalse(securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK)); // <-- Decision taken under previous hierarchy is stale
+
+		Assert.assertEquals(2, delegate.count);
+	}
+
+	@Test
+	public void expiration() throws InterruptedException {
+		CachingSecurityManager securityManager = new CachingSecurityManager(delegate, 100, 10, TimeUnit.MILLISECONDS);
+		new SecurityContext("user", "USER").bind();
+
+		securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK);
+		Thread.sleep(20);
+		securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK);
+
+		Assert.assertEquals(2, delegate.count);
+	}
+
+	@Test
+	public void eviction() {
+		CachingSecurityManager securityManager = new CachingSecurityManager(delegate, 16);
+
+		for (int i = 0; i < 1000; i++) {
+			new SecurityContext("user" + i, "USER").bind();
+			securityManager.isAllowed(USER_ROLES, USER_ROLE_MASK);
+		}
+
+		Assert.assertTrue(securityManager.getSize() <= 16);
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.IOException;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class ClassFilesTest {
+
+	private static CtClass getCtClass(String className) throws Exception {
+		ClassPool cp = new ClassPool(true);
+		cp.appendClassPath(new LoaderClassPath(ClassFilesTest.class.getClassLoader()));
+		return cp.get(className);
+	}
+
+	@Test
+	public void declaredFields() throws Exception {
+		byte[] classFile = getCtClass("com.agapsys.security.DeclaredFieldsClass").toBytecode();
+
+		Assert.assertTrue(ClassFiles.declaresField(classFile, "CONSTANT"));
+		Assert.assertTrue(ClassFiles.declaresField(classFile, "field"));
+		Assert.assertFalse(ClassFiles.declaresField(classFile, "method")); // <-- Method
+	}
+
+	@Test
+	public void wovenMarker() throws Exception {
+		Assert.assertFalse(ClassFiles.declaresField(getCtClass(Weaver.class.getName()).toBytecode(), Weaver.WOVEN_MARKER_FIELD)); // <-- Marker name is only a string constant
+
+		CtClass cc = getCtClass("com.agapsys.security.PrewovenClass");
+		Assert.assertFalse(ClassFiles.declaresField(cc.toBytecode(), Weaver.WOVEN_MARKER_FIELD));
+
+		cc.defrost();
+		Weaver.weave(cc);
+		Assert.assertTrue(ClassFiles.declaresField(cc.toBytecode(), Weaver.WOVEN_MARKER_FIELD));
+	}
+
+	@Test(expected = IOException.class)
+	public void invalidClassFile() throws IOException {
+		ClassFiles.declaresField(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, "field");
+	}
+}
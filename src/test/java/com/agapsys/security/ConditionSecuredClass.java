@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class ConditionSecuredClass {
+
+	@Secured(value = "USER", conditions = "sameTenant(tenantId)")
+	public void tenant(String name, int tenantId) {}
+
+	@Secured(conditions = "owner($2)")
+	public void owner(long id, String owner) {}
+
+	@Secured(conditions = {"positive(amount)", "confirmed(confirmed)"})
+	public static void transfer(double amount, boolean confirmed) {}
+
+	@Secured(conditions = "businessHours()")
+	public void report() {}
+
+	@Secured(value = "ADMIN or SUPPORT", conditions = "owner(owner)")
+	public void ticket(String owner) {}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class ConditionTest {
+	private static class ConditionSecurityManager extends MockedSecurityManager {
+		private final List<String> calls = new ArrayList<>();
+		private boolean satisfied = true;
+
+		private boolean check(String call) {
+			calls.add(call);
+			return satisfied;
+		}
+
+		@Override
+		public boolean isConditionSatisfied(int methodId, String condition, Object argument) {
+			return check(String.format("%s(Object %s)", condition, argument));
+		}
+
+		@Override
+		public boolean isConditionSatisfied(int methodId, String condition, long argument) {
+			return check(String.format("%s(long %d)", condition, argument));
+		}
+
+		@Override
+		public boolean isConditionSatisfied(int methodId, String condition, double argument) {
+			return check(String.format("%s(double %s)", condition, argument));
+		}
+
+		@Override
+		public boolean isConditionSatisfied(int methodId, String condition, boolean argument) {
+			return check(String.format("%s(boolean %s)", condition, argument));
+		}
+	}
+
+	private static final ConditionSecurityManager SECURITY_MANAGER = new ConditionSecurityManager();
+
+	@BeforeClass
+	public static void beforeClass() {
+		MockedSecurity.init(SECURITY_MANAGER, "com.agapsys.security.ConditionSecuredClass");
+	}
+
+	@Before
+	public void before() {
+		SECURITY_MANAGER.calls.clear();
+		SECURITY_MANAGER.satisfied = true;
+		SECURITY_MANAGER.setAvailableRoles("USER", "SUPPORT");
+	}
+
+	@Test
+	public void typedArguments() {
+		ConditionSecuredClass secured = new ConditionSecuredClass();
+
+		secured.tenant("a", 7);
+		secured.owner(1L, "bob");
+		ConditionSecuredClass.transfer(2.5, true);
+		secured.report();
+		secured.ticket("alice");
+
+		List<String> expected = new ArrayList<>();
+		expected.add("sameTenant(long 7)");
+		expected.add("owner(Object bob)");
+		expected.add("positive(double 2.5)");
+		expected.add("confirmed(boolean true)");
+		expected.add("businessHours(Object null)"); // <-- Nullary conditions are delegated with a null argument by default
+		expected.add("owner(Object alice)");
+		Assert.assertEquals(expected, SECURITY_MANAGER.calls);
+	}
+
+	@Test
+	public void notSatisfied() {
+		SECURITY_MANAGER.satisfied = false;
+
+		try {
+			new ConditionSecuredClass().tenant("a", 7);
+			Assert.fail("Condition should not be satisfied");
+		} catch (NotAllowedException ex) {}
+
+		Assert.assertEquals(1, SECURITY_MANAGER.calls.size());
+	}
+
+	@Test
+	public void rolesCheckedFirst() {
+		SECURITY_MANAGER.setAvailableRoles("GUEST");
+
+		try {
+			new ConditionSecuredClass().ticket("alice");
+			Assert.fail("Roles should not be satisfied");
+		} catch (NotAllowedException ex) {}
+
+		Assert.assertTrue(SECURITY_MANAGER.calls.isEmpty());
+	}
+
+	@Test
+	public void unsupportedCondition() {
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+		securityManager.setAvailableRoles("USER");
+
+		Assert.assertFalse(securityManager.isConditionSatisfied(0, "owner", "bob"));
+		Assert.assertFalse(securityManager.isConditionSatisfied(0, "sameTenant", 7L));
+
+		Security.swapSecurityManager(securityManager);
+
+		try {
+			new ConditionSecuredClass().tenant("a", 7);
+			Assert.fail("Unsupported condition should be denied");
+		} catch (NotAllowedException ex) {
+			Assert.assertEquals("com.agapsys.security.ConditionSecuredClass.tenant(java.lang.String,int)", ex.getSecuredMethod());
+		} finally {
+			Security.swapSecurityManager(SECURITY_MANAGER);
+		}
+	}
+
+	@Test
+	public void registeredConditions() throws Exception {
+		int id = MethodRegistry.getId(ConditionSecuredClass.class.getMethod("transfer", double.class, boolean.class));
+		Assert.assertArrayEquals(new String[] {"positive(amount)", "confirmed(confirmed)"}, MethodRegistry.getMethod(id).getConditions());
+	}
+}
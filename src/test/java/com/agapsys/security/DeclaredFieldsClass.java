@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+/**
+ * Class inspected by {@linkplain ClassFilesTest}, so its assertions do not depend on private members of framework classes.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class DeclaredFieldsClass {
+	private static final long CONSTANT = 1L; // <-- Long constants take two constant pool entries
+
+	private int field;
+
+	public int method() {
+		return field + (int) CONSTANT;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class MethodRegistryTest {
+
+	@Test
+	public void register() {
+		int id = MethodRegistry.register("com.example.Registered", "run", "(I[JLjava/lang/String;[[Ljava/lang/Object;)V", new String[] {"A", "B"});
+		SecuredMethod method = MethodRegistry.getMethod(id);
+
+		Assert.assertEquals(id, method.getId());
+		Assert.assertEquals("com.example.Registered.run(int,long[],java.lang.String,java.lang.Object[][])", method.getLongName());
+		Assert.assertEquals(method.getLongName(), MethodRegistry.getName(id));
+		Assert.assertEquals(id, MethodRegistry.getId(method.getLongName()));
+		Assert.assertArrayEquals(new String[] {"A", "B"}, method.getRequiredRoles());
+		Assert.assertTrue(MethodRegistry.getMethodCount() > id);
+
+		// Same method keeps its id
+		Assert.assertEquals(id, MethodRegistry.register("com.example.Registered", "run", "(I[JLjava/lang/String;[[Ljava/lang/Object;)V", new String[] {"A", "B"}));
+
+		// Methods differing only by return type have distinct ids
+		int bridgeId = MethodRegistry.register("com.example.Registered", "get", "()Ljava/lang/Object;", new String[0]);
+		int getId = MethodRegistry.register("com.example.Registered", "get", "()Ljava/lang/String;", new String[0]);
+		Assert.assertFalse(bridgeId == getId);
+		Assert.assertEquals(bridgeId, MethodRegistry.getId("com.example.Registered.get()"));
+
+		Assert.assertEquals(-1, MethodRegistry.getId("com.example.Registered.unknown()"));
+	}
+
+	@Test
+	public void reflectedMethod() throws NoSuchMethodException {
+		int id = MethodRegistry.register("java.lang.String", "valueOf", "([CII)Ljava/lang/String;", new String[0]);
+		Assert.assertEquals(id, MethodRegistry.getId(String.class.getMethod("valueOf", char[].class, int.class, int.class)));
+		Assert.assertEquals(-1, MethodRegistry.getId(String.class.getMethod("valueOf", char[].class)));
+	}
+
+	@Test
+	public void redefinedRequirement() {
+		int id = MethodRegistry.register("com.example.Redefined", "run", "()V", new String[] {"A"});
+		MethodRegistry.setRequiredRoles(id, "C");
+
+		Assert.assertEquals(id, MethodRegistry.register("com.example.Redefined", "run", "()V", new String[] {"B"})); // <-- Same class loader keeps the id
+		SecuredMethod requirement = MethodRegistry.getRequirement(id);
+		Assert.assertArrayEquals(new String[] {"B"}, requirement.getRequiredRoles()); // <-- Redefined requirement replaces the previous one
+		Assert.assertFalse(requirement.isOverridden());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidId() {
+		MethodRegistry.getMethod(-1);
+	}
+}
@@ -27,4 +27,8 @@ public class MockedSecurity extends Security {
 	public static void init(SecurityManager securityManager, String... securedClasses) {
 		Security.init(securityManager, securedClasses);
 	}
+	
+	public static void init(ClassLoader classLoader, SecurityManager securityManager, String... securedClasses) {
+		Security.init(classLoader, securityManager, securedClasses);
+	}
 }
\ No newline at end of file
@@ -25,6 +25,9 @@ import java.util.Set;
  */
 public class MockedSecurityManager extends com.agapsys.security.SecurityManager {	
 	private final Set<String> availableRoles = new LinkedHashSet<>();
+	private String[] lastRequiredRoles = null;
+	private long[] lastRequiredRoleMask = null;
+	private int lastMethodId = -1;
 	
 	public void setAvailableRoles(String...roles) {
 		availableRoles.clear();
@@ -43,8 +46,33 @@ public class MockedSecurityManager extends com.agapsys.security.SecurityManager
 		availableRoles.clear();
 	}
 	
+	public String[] getLastRequiredRoles() {
+		return lastRequiredRoles;
+	}
+	
+	public long[] getLastRequiredRoleMask() {
+		return lastRequiredRoleMask;
+	}
+	
+	public int getLastMethodId() {
+		return lastMethodId;
+	}
+	
+	@Override
+	public boolean isAllowed(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+		lastMethodId = methodId;
+		return super.isAllowed(methodId, requiredRoles, requiredRoleMask);
+	}
+	
+	@Override
+	public boolean isAllowed(String[] requiredRoles, long[] requiredRoleMask) {
+		lastRequiredRoleMask = requiredRoleMask;
+		return super.isAllowed(requiredRoles, requiredRoleMask);
+	}
+	
 	@Override
 	public boolean isAllowed(String[] requiredRoles) {
+		lastRequiredRoles = requiredRoles;
 		Set<String> requiredRoleSet = new LinkedHashSet<>();
 		requiredRoleSet.addAll(Arrays.asList(requiredRoles));
 		return availableRoles.containsAll(requiredRoleSet);
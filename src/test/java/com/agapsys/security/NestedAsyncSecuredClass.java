@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Deferred body calling another secured method, whose decision is also taken remotely.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class NestedAsyncSecuredClass {
+	@Secured("USER")
+	public Future<String> outer() {
+		final String inner = inner();
+		FutureTask<String> task = new FutureTask<>(new Callable<String>() {
+			@Override
+			public String call() {
+				return "outer " + inner;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	@Secured("ADMIN")
+	public String inner() {
+		return "inner";
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class NotAllowedExceptionTest {
+	private static final String[] REQUIRED_ROLES = {"A", "B"};
+
+	/** Manager written before woven methods passed denial details. */
+	private static class LegacySecurityManager extends MockedSecurityManager {
+		private int count = 0;
+
+		@Override
+		public void onNotAllowed() throws NotAllowedException {
+			count++;
+			throw new NotAllowedException("legacy", null);
+		}
+	}
+
+	@After
+	public void after() {
+		NotAllowedException.setMode(NotAllowedException.Mode.STACK_TRACE);
+	}
+
+	@Test
+	public void stackTraceMode() {
+		NotAllowedException ex = NotAllowedException.newInstance("Foo.bar()", REQUIRED_ROLES);
+
+		Assert.assertTrue(ex.getStackTrace().length > 0);
+		Assert.assertEquals("Foo.bar()", ex.getSecuredMethod());
+		Assert.assertArrayEquals(REQUIRED_ROLES, ex.getRequiredRoles());
+		Assert.assertEquals("Execution of 'Foo.bar()' is not allowed (required roles: [A, B])", ex.getMessage());
+	}
+
+	@Test
+	public void noStackTraceMode() {
+		NotAllowedException.setMode(NotAllowedException.Mode.NO_STACK_TRACE);
+		NotAllowedException ex = NotAllowedException.newInstance("Foo.bar()", REQUIRED_ROLES);
+
+		Assert.assertEquals(0, ex.getStackTrace().length);
+		Assert.assertEquals("Foo.bar()", ex.getSecuredMethod());
+		Assert.assertEquals("Execution of 'Foo.bar()' is not allowed (required roles: [A, B])", ex.getMessage());
+		Assert.assertNotSame(ex, NotAllowedException.newInstance("Foo.bar()", REQUIRED_ROLES));
+	}
+
+	@Test
+	public void sharedMode() {
+		NotAllowedException.setMode(NotAllowedException.Mode.SHARED);
+		NotAllowedException ex = NotAllowedException.newInstance("Foo.bar()", REQUIRED_ROLES);
+
+		Assert.assertEquals(0, ex.getStackTrace().length);
+		Assert.assertNull(ex.getSecuredMethod());
+		Assert.assertNull(ex.getMessage());
+		Assert.assertSame(ex, NotAllowedException.newInstance("Foo.baz()", REQUIRED_ROLES));
+
+		ex.addSuppressed(new RuntimeException());
+		Assert.assertEquals(0, ex.getSuppressed().length);
+	}
+
+	@Test
+	public void legacyHook() {
+		LegacySecurityManager securityManager = new LegacySecurityManager();
+
+		try {
+			securityManager.onNotAllowed("Foo.bar()", REQUIRED_ROLES);
+			Assert.fail();
+		} catch (NotAllowedException ex) {
+			Assert.assertEquals("legacy", ex.getSecuredMethod());
+		}
+
+		Assert.assertEquals(1, securityManager.count);
+	}
+
+	@Test
+	public void defaultHook() {
+		NotAllowedException.setMode(NotAllowedException.Mode.NO_STACK_TRACE);
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+
+		try {
+			securityManager.onNotAllowed("Foo.bar()", REQUIRED_ROLES);
+			Assert.fail();
+		} catch (NotAllowedException ex) {
+			Assert.assertEquals(0, ex.getStackTrace().length);
+			Assert.assertEquals("Foo.bar()", ex.getSecuredMethod());
+		}
+
+		try {
+			securityManager.onNotAllowed();
+			Assert.fail();
+		} catch (NotAllowedException ex) {
+			Assert.assertNull(ex.getSecuredMethod()); // <-- Details do not leak to later denials
+		}
+	}
+
+	@Test
+	public void nestedDenial() {
+		final MockedSecurityManager inner = new MockedSecurityManager();
+		MockedSecurityManager securityManager = new MockedSecurityManager() {
+			@Override
+			public void onNotAllowed() throws NotAllowedException {
+				try {
+					inner.onNotAllowed("Foo.audit()", null); // <-- Nested denial handled by the same thread
+				} catch (NotAllowedException ex) {}
+
+				super.onNotAllowed();
+			}
+		};
+
+		try {
+			securityManager.onNotAllowed("Foo.bar()", REQUIRED_ROLES);
+			Assert.fail();
+		} catch (NotAllowedException ex) {
+			Assert.assertEquals("Foo.bar()", ex.getSecuredMethod());
+		}
+	}
+}
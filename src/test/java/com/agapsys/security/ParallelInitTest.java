@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class ParallelInitTest {
+	private final MockedSecurityManager securityManager = new MockedSecurityManager();
+
+	@Before
+	public void before() {
+		Security.enableParallelInit(true);
+	}
+
+	@After
+	public void after() {
+		Security.enableParallelInit(false);
+	}
+
+	@Test
+	public void parallelInit() {
+		MockedSecurity.init(securityManager,
+			"com.agapsys.security.ParallelSecuredClasses$A",
+			"com.agapsys.security.ParallelSecuredClasses$B",
+			"com.agapsys.security.ParallelSecuredClasses$C",
+			"com.agapsys.security.ParallelSecuredClasses$D"
+		);
+
+		// Roles are registered in declaration order
+		Assert.assertTrue(RoleRegistry.getId("PARALLEL_A") < RoleRegistry.getId("PARALLEL_B"));
+		Assert.assertTrue(RoleRegistry.getId("PARALLEL_B") < RoleRegistry.getId("PARALLEL_C"));
+		Assert.assertTrue(RoleRegistry.getId("PARALLEL_C") < RoleRegistry.getId("PARALLEL_D"));
+
+		NotAllowedException error = null;
+
+		try {
+			ParallelSecuredClasses.D.secured();
+		} catch (NotAllowedException ex) {
+			error = ex;
+		}
+
+		Assert.assertNotNull(error);
+
+		securityManager.setAvailableRoles("PARALLEL_A", "PARALLEL_B", "PARALLEL_C", "PARALLEL_D");
+		ParallelSecuredClasses.A.secured();
+		ParallelSecuredClasses.B.secured();
+		ParallelSecuredClasses.C.secured();
+		ParallelSecuredClasses.D.secured();
+	}
+
+	@Test
+	public void parallelInitError() {
+		RuntimeException error = null;
+
+		try {
+			MockedSecurity.init(securityManager,
+				"com.agapsys.security.ParallelSecuredClasses$E",
+				"com.agapsys.security.ParallelSecuredClasses$Invalid",
+				"com.agapsys.security.ParallelSecuredClasses$F"
+			);
+		} catch (RuntimeException ex) {
+			error = ex;
+		}
+
+		Assert.assertNotNull(error);
+		Assert.assertEquals("Method 'com.agapsys.security.ParallelSecuredClasses$Invalid.invalid()' has both 'com.agapsys.security.Secured' and 'com.agapsys.security.Unsecured' annotations", error.getMessage());
+
+		// Classes declared before the invalid one are secured...
+		error = null;
+
+		try {
+			ParallelSecuredClasses.E.secured();
+		} catch (NotAllowedException ex) {
+			error = ex;
+		}
+
+		Assert.assertNotNull(error);
+
+		// ... but the ones declared after it are not
+		ParallelSecuredClasses.F.secured();
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class ParallelSecuredClasses {
+
+	@Secured("PARALLEL_A")
+	public static class A {
+		public static void secured() {}
+	}
+
+	@Secured("PARALLEL_B")
+	public static class B {
+		public static void secured() {}
+	}
+
+	@Secured("PARALLEL_C")
+	public static class C {
+		public static void secured() {}
+	}
+
+	@Secured("PARALLEL_D")
+	public static class D {
+		public static void secured() {}
+	}
+
+	@Secured("PARALLEL_E")
+	public static class E {
+		public static void secured() {}
+	}
+
+	public static class Invalid {
+		@Secured
+		@Unsecured
+		public static void invalid() {}
+	}
+
+	@Secured("PARALLEL_F")
+	public static class F {
+		public static void secured() {}
+	}
+}
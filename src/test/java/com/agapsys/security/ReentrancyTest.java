@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class ReentrancyTest {
+
+	private static class CountingSecurityManager extends MockedSecurityManager {
+		private int count = 0;
+
+		@Override
+		public boolean isAllowed(int methodId, String[] requiredRoles, long[] requiredRoleMask) {
+			count++;
+			return super.isAllowed(methodId, requiredRoles, requiredRoleMask);
+		}
+	}
+
+	private static final CountingSecurityManager SECURITY_MANAGER = new CountingSecurityManager();
+	private static final String REENTRANT_CLASS = "com.agapsys.security.ReentrantSecuredClass";
+
+	@BeforeClass
+	public static void beforeClass() {
+		Security.enableReentrancyElision(true);
+		MockedSecurity.init(SECURITY_MANAGER, REENTRANT_CLASS);
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		Security.enableReentrancyElision(false);
+	}
+
+	@Before
+	public void before() {
+		SECURITY_MANAGER.count = 0;
+		SECURITY_MANAGER.setAvailableRoles("E_USER", "E_ADMIN", "E_OTHER");
+	}
+
+	@Test
+	public void impliedChecks() {
+		ReentrantSecuredClass secured = new ReentrantSecuredClass();
+
+		secured.outer();
+		Assert.assertEquals(1, SECURITY_MANAGER.count); // <-- inner() is implied by outer()
+
+		secured.inner();
+		Assert.assertEquals(2, SECURITY_MANAGER.count); // <-- Top-level calls are always checked
+
+		secured.outerCallingOther();
+		Assert.assertEquals(4, SECURITY_MANAGER.count); // <-- other() is not implied
+
+		ReentrantSecuredClass.recursive(10);
+		Assert.assertEquals(5, SECURITY_MANAGER.count);
+	}
+
+	@Test
+	public void unwinding() {
+		ReentrantSecuredClass secured = new ReentrantSecuredClass();
+
+		try {
+			secured.failing();
+			Assert.fail();
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("failing", ex.getMessage());
+		}
+
+		secured.inner();
+		Assert.assertEquals(2, SECURITY_MANAGER.count); // <-- Scope was left when failing() threw
+
+		SECURITY_MANAGER.setAvailableRoles("E_USER");
+
+		try {
+			secured.outer();
+			Assert.fail();
+		} catch (NotAllowedException ex) {}
+
+		secured.inner();
+		Assert.assertEquals(4, SECURITY_MANAGER.count); // <-- Denied check did not enter a scope
+		Assert.assertFalse(WovenGuard.isImplied(RoleRegistry.getMask()));
+	}
+
+	@Test
+	public void contextBinding() {
+		long[] userMask = RoleRegistry.getMask("E_USER");
+
+		WovenGuard.enter(RoleRegistry.getMask("E_USER", "E_ADMIN"));
+
+		try {
+			Assert.assertTrue(WovenGuard.isImplied(userMask));
+
+			SecurityContext.Scope scope = new SecurityContext("other", "E_USER").bind();
+
+			try {
+				Assert.assertFalse(WovenGuard.isImplied(userMask)); // <-- Requirements satisfied for another principal
+			} finally {
+				scope.close();
+			}
+
+			Assert.assertTrue(WovenGuard.isImplied(userMask));
+		} finally {
+			WovenGuard.exit();
+		}
+
+		Assert.assertFalse(WovenGuard.isImplied(userMask));
+	}
+
+	@Test
+	public void unclosedScopes() {
+		for (int i = 0; i < 1000; i++) {
+			new SecurityContext("user" + i, "E_USER").bind(); // <-- Scopes never closed (e.g. pooled threads only calling unbind())
+		}
+
+		Assert.assertEquals(1000, WovenGuard.getScopeDepth());
+		SecurityContext.unbind();
+		Assert.assertEquals(0, WovenGuard.getScopeDepth());
+
+		Security.enableReentrancyElision(false);
+
+		try {
+			for (int i = 0; i < 1000; i++) {
+				new SecurityContext("user" + i, "E_USER").bind();
+			}
+
+			Assert.assertEquals(0, WovenGuard.getScopeDepth()); // <-- Nothing is tracked while elision is disabled
+		} finally {
+			SecurityContext.unbind();
+			Security.enableReentrancyElision(true);
+		}
+	}
+
+	@Test
+	public void buildTimeElision() throws Exception {
+		Security.enableReentrancyElision(false);
+
+		try {
+			ClassPool cp = new ClassPool(true);
+			cp.appendClassPath(new LoaderClassPath(getClass().getClassLoader()));
+			CtClass cc = cp.get(REENTRANT_CLASS);
+			Assert.assertTrue(Weaver.weave(cc, true)); // <-- Setting is passed explicitly (e.g. by the Maven plugin)
+			Assert.assertFalse(Security.isReentrancyElisionEnabled());
+
+			ClassLoader classLoader = new BytecodeClassLoader(getClass().getClassLoader(), REENTRANT_CLASS, cc.toBytecode());
+			MockedSecurity.init(classLoader, SECURITY_MANAGER, REENTRANT_CLASS); // <-- Class is not woven again
+
+			Object obj = classLoader.loadClass(REENTRANT_CLASS).getConstructor().newInstance();
+			obj.getClass().getMethod("outer").invoke(obj);
+			Assert.assertEquals(1, SECURITY_MANAGER.count); // <-- inner() is elided although elision is disabled at runtime
+
+			long[] userMask = RoleRegistry.getMask("E_USER");
+			WovenGuard.enter(RoleRegistry.getMask("E_USER", "E_ADMIN"));
+
+			SecurityContext.Scope scope = new SecurityContext("other", "E_USER").bind();
+
+			try {
+				Assert.assertFalse(WovenGuard.isImplied(userMask)); // <-- Scopes of prewoven methods do not leak into other contexts
+			} finally {
+				scope.close();
+				WovenGuard.exit();
+			}
+		} finally {
+			Security.enableReentrancyElision(true);
+		}
+	}
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class ReentrantSecuredClass {
+
+	@Secured({"E_USER", "E_ADMIN"})
+	public void outer() {
+		inner();
+	}
+
+	@Secured("E_USER")
+	public void inner() {}
+
+	@Secured("E_OTHER")
+	public void other() {}
+
+	@Secured({"E_USER", "E_ADMIN"})
+	public void outerCallingOther() {
+		other();
+	}
+
+	@Secured({"E_USER", "E_ADMIN"})
+	public void failing() {
+		throw new IllegalStateException("failing");
+	}
+
+	@Secured("E_USER")
+	public static void recursive(int depth) {
+		if (depth > 0)
+			recursive(depth - 1);
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class RemotePolicySecurityManagerTest {
+	private static final String[] USER = {"USER"};
+	private static final String[] ADMIN = {"ADMIN"};
+
+	private final StubPolicyServer server = new StubPolicyServer(20);
+	private final ExecutorService callers = Executors.newFixedThreadPool(32);
+	private RemotePolicySecurityManager securityManager;
+
+	@After
+	public void after() throws InterruptedException {
+		callers.shutdownNow();
+		callers.awaitTermination(5, TimeUnit.SECONDS);
+
+		if (securityManager != null)
+			securityManager.close();
+	}
+
+	private RemotePolicySecurityManager newSecurityManager(long batchWindowMillis, int maxCacheSize) {
+		securityManager = new RemotePolicySecurityManager(server, batchWindowMillis, TimeUnit.MILLISECONDS, 256, 0, TimeUnit.SECONDS, maxCacheSize);
+		return securityManager;
+	}
+
+	@Test
+	public void decisions() throws Exception {
+		newSecurityManager(1, 100);
+		server.grant("alice", "USER");
+
+		Assert.assertTrue(securityManager.decide(new PolicyQuery("alice", 1, USER)).get());
+		Assert.assertFalse(securityManager.decide(new PolicyQuery("alice", 2, ADMIN)).get());
+		Assert.assertFalse(securityManager.decide(new PolicyQuery(null, 1, USER)).get());
+
+		SecurityContext.Scope scope = new SecurityContext("alice").bind();
+
+		try {
+			Assert.assertTrue(securityManager.isAllowed(USER));
+			Assert.assertTrue(securityManager.isAllowed(1, USER, RoleRegistry.getMask(USER)));
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void singleFlight() throws Exception {
+		newSecurityManager(0, 0); // <-- No caching: decisions are shared only while pending
+		server.grant("alice", "USER");
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Boolean>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 32; i++) {
+			futures.add(callers.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					start.await();
+					return securityManager.decide(new PolicyQuery("alice", 1, USER)).get();
+				}
+			}));
+		}
+
+		start.countDown();
+
+		for (Future<Boolean> future : futures) {
+			Assert.assertTrue(future.get());
+		}
+
+		Assert.assertEquals(32, securityManager.getQueryCount());
+		Assert.assertTrue("Requests: " + server.getRequestCount(), server.getRequestCount() < 32);
+		Assert.assertEquals(server.getRequestCount() + securityManager.getCoalescedCount(), 32);
+	}
+
+	@Test
+	public void batching() throws Exception {
+		newSecurityManager(50, 0);
+		List<AsyncDecision> decisions = new ArrayList<>();
+
+		for (int i = 0; i < 100; i++) {
+			server.grant("user" + i, "USER");
+			decisions.add(securityManager.decide(new PolicyQuery("user" + i, 1, USER)));
+		}
+
+		for (AsyncDecision decision : decisions) {
+			Assert.assertTrue(decision.get());
+		}
+
+		Assert.assertEquals(1, server.getRequestCount()); // <-- Distinct queries issued within the window share a request
+		Assert.assertEquals(Integer.valueOf(100), server.getBatchSizes().get(0));
+	}
+
+	@Test
+	public void maxBatchSize() throws Exception {
+		securityManager = new RemotePolicySecurityManager(server, 10, TimeUnit.SECONDS, 10, 0, TimeUnit.SECONDS, 0);
+		List<AsyncDecision> decisions = new ArrayList<>();
+
+		for (int i = 0; i < 30; i++) {
+			decisions.add(securityManager.decide(new PolicyQuery("user" + i, 1, USER)));
+		}
+
+		for (AsyncDecision decision : decisions) {
+			Assert.assertFalse(decision.get(5, TimeUnit.SECONDS)); // <-- Full batches do not wait for the window
+		}
+
+		Assert.assertEquals(3, server.getRequestCount());
+	}
+
+	@Test
+	public void caching() throws Exception {
+		newSecurityManager(0, 100);
+		server.grant("alice", "USER");
+
+		Assert.assertTrue(securityManager.decide(new PolicyQuery("alice", 1, USER)).get());
+		AsyncDecision cached = securityManager.decide(new PolicyQuery("alice", 1, USER));
+		Assert.assertTrue(cached.isDone());
+		Assert.assertTrue(cached.isAllowed());
+		Assert.assertEquals(1, securityManager.getCacheHitCount());
+		Assert.assertEquals(1, server.getRequestCount());
+
+		server.grant("alice");
+		securityManager.invalidate();
+		Assert.assertFalse(securityManager.decide(new PolicyQuery("alice", 1, USER)).get());
+		Assert.assertEquals(2, server.getRequestCount());
+	}
+
+	@Test
+	public void burstyLoad() throws Exception {
+		newSecurityManager(2, 1000);
+
+		for (int i = 0; i < 10; i++) {
+			server.grant("user" + i, "USER");
+		}
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Integer>> futures = new ArrayList<>();
+
+		for (int t = 0; t < 32; t++) {
+			futures.add(callers.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					start.await();
+					int allowed = 0;
+
+					for (int i = 0; i < 1000; i++) {
+						if (securityManager.decide(new PolicyQuery("user" + (i % 10), i % 20, USER)).get())
+							allowed++;
+					}
+
+					return allowed;
+				}
+			}));
+		}
+
+		start.countDown();
+
+		for (Future<Integer> future : futures) {
+			Assert.assertEquals(Integer.valueOf(1000), future.get());
+		}
+
+		Assert.assertEquals(32000, securityManager.getQueryCount());
+		Assert.assertTrue("Requests: " + server.getRequestCount(), server.getRequestCount() * 100 < 32000); // <-- At least two orders of magnitude fewer calls
+	}
+
+	@Test
+	public void failedRequests() throws Exception {
+		newSecurityManager(0, 100);
+		server.setAvailable(false);
+
+		AsyncDecision decision = securityManager.decide(new PolicyQuery("alice", 1, USER));
+
+		try {
+			decision.get();
+			Assert.fail("Decision should fail");
+		} catch (RuntimeException ex) {
+			Assert.assertTrue(ex.getCause() instanceof IOException);
+		}
+
+		server.setAvailable(true);
+		server.grant("alice", "USER");
+		Assert.assertTrue(securityManager.decide(new PolicyQuery("alice", 1, USER)).get()); // <-- Failures are not cached
+	}
+
+	@Test
+	public void nestedDecisions() throws Exception {
+		newSecurityManager(1, 0); // <-- No caching: inner decision is always taken remotely
+		server.grant("alice", "USER", "ADMIN");
+		MockedSecurity.init(securityManager, "com.agapsys.security.NestedAsyncSecuredClass");
+
+		SecurityContext.Scope scope = new SecurityContext("alice").bind();
+
+		try {
+			Future<String> future = new NestedAsyncSecuredClass().outer();
+			Assert.assertEquals("outer inner", future.get(3, TimeUnit.SECONDS)); // <-- Deferred body does not run in the dispatcher thread, so its own query is sent
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void decisionTimeout() throws Exception {
+		StubPolicyServer slowServer = new StubPolicyServer(500);
+		slowServer.grant("alice", "USER");
+		securityManager = new RemotePolicySecurityManager(slowServer, 0, TimeUnit.MILLISECONDS, 256, 0, TimeUnit.SECONDS, 0, 50, TimeUnit.MILLISECONDS);
+
+		SecurityContext.Scope scope = new SecurityContext("alice").bind();
+
+		try {
+			long start = System.nanoTime();
+
+			try {
+				securityManager.isAllowed(USER);
+				Assert.fail("Check should fail");
+			} catch (RuntimeException ex) {
+				Assert.assertTrue(ex.getCause() instanceof TimeoutException); // <-- Fails closed
+			}
+
+			Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void negatedExpressionTimeout() throws Exception {
+		StubPolicyServer stalledServer = new StubPolicyServer(500);
+		securityManager = new RemotePolicySecurityManager(stalledServer, 0, TimeUnit.MILLISECONDS, 256, 0, TimeUnit.SECONDS, 0, 50, TimeUnit.MILLISECONDS);
+		CachingSecurityManager cachingSecurityManager = new CachingSecurityManager(securityManager, 100);
+		RoleExpression expression = RoleExpression.parse("not SUSPENDED");
+
+		SecurityContext.Scope scope = new SecurityContext("alice").bind();
+
+		try {
+			try {
+				expression.evaluate(cachingSecurityManager); // <-- A "false" decision would satisfy the expression
+				Assert.fail("Evaluation should fail");
+			} catch (RuntimeException ex) {
+				Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+			}
+
+			Assert.assertEquals(0, cachingSecurityManager.getSize()); // <-- Timeouts are not cached
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void batchConditions() throws Exception {
+		newSecurityManager(1, 0);
+		server.grant("alice", "USER");
+		int[] methodIds = {
+			MethodRegistry.register("com.example.RemoteMenu", "view", "()V", USER),
+			MethodRegistry.register("com.example.RemoteMenu", "edit", "(J)V", USER, null, new String[] {"owner($1)"})
+		};
+
+		SecurityContext.Scope scope = new SecurityContext("alice").bind();
+
+		try {
+			BitSet allowed = securityManager.isAllowed(methodIds);
+			Assert.assertTrue(allowed.get(0));
+			Assert.assertFalse(allowed.get(1)); // <-- Conditions on arguments cannot be evaluated without a call
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void closed() throws Exception {
+		newSecurityManager(10000, 0);
+		AsyncDecision decision = securityManager.decide(new PolicyQuery("alice", 1, USER));
+		securityManager.close();
+
+		Assert.assertTrue(decision.isDone());
+		Assert.assertTrue(decision.getError() instanceof IllegalStateException);
+		Assert.assertTrue(securityManager.awaitTermination(5, TimeUnit.SECONDS)); // <-- Completion pool is shut down along with the dispatcher
+	}
+
+	@Test
+	public void closedWhileSending() throws Exception {
+		newSecurityManager(0, 0);
+		server.grant("alice", "USER");
+		AsyncDecision decision = securityManager.decide(new PolicyQuery("alice", 1, USER));
+		Thread.sleep(5); // <-- Request is being sent (server latency is 20 ms)
+		securityManager.close();
+
+		Assert.assertTrue(decision.get(5, TimeUnit.SECONDS));
+		Assert.assertTrue(securityManager.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void boundedCache() throws Exception {
+		newSecurityManager(0, 64);
+
+		for (int i = 0; i < 200; i++) {
+			securityManager.decide(new PolicyQuery("user" + i, 1, USER)).get();
+		}
+
+		int size = securityManager.getCacheSize();
+		Assert.assertTrue("Cache size: " + size, size > 32 && size <= 64); // <-- Single entries are evicted instead of clearing the whole cache
+
+		int requestCount = server.getRequestCount();
+		Assert.assertFalse(securityManager.decide(new PolicyQuery("user199", 1, USER)).get()); // <-- Most recent decision is kept
+		Assert.assertEquals(requestCount, server.getRequestCount());
+	}
+}
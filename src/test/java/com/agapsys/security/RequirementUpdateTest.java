@@ -0,0 +1,250 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class RequirementUpdateTest {
+	private static final MockedSecurityManager SECURITY_MANAGER = new MockedSecurityManager();
+
+	private static int readId;
+	private static int writeId;
+	private static int expressionId;
+
+	@BeforeClass
+	public static void beforeClass() throws Exception {
+		MockedSecurity.init(SECURITY_MANAGER, "com.agapsys.security.UpdatableSecuredClass");
+		new UpdatableSecuredClass(); // <-- Registers secured methods
+
+		readId = MethodRegistry.getId(UpdatableSecuredClass.class.getMethod("read"));
+		writeId = MethodRegistry.getId(UpdatableSecuredClass.class.getMethod("write"));
+		expressionId = MethodRegistry.getId(UpdatableSecuredClass.class.getMethod("expression"));
+	}
+
+	@Before
+	public void before() {
+		SECURITY_MANAGER.setAvailableRoles("USER");
+	}
+
+	@After
+	public void after() {
+		MethodRegistry.resetRequiredRoles();
+	}
+
+	private static boolean isAllowed(Runnable runnable) {
+		try {
+			runnable.run();
+			return true;
+		} catch (NotAllowedException ex) {
+			return false;
+		}
+	}
+
+	private static final Runnable READ = new Runnable() {
+		@Override
+		public void run() {
+			new UpdatableSecuredClass().read();
+		}
+	};
+
+	private static final Runnable WRITE = new Runnable() {
+		@Override
+		public void run() {
+			new UpdatableSecuredClass().write();
+		}
+	};
+
+	private static final Runnable EXPRESSION = new Runnable() {
+		@Override
+		public void run() {
+			new UpdatableSecuredClass().expression();
+		}
+	};
+
+	@Test
+	public void replaceRequirement() {
+		Assert.assertTrue(isAllowed(READ));
+
+		MethodRegistry.setRequiredRoles(readId, "ADMIN");
+		Assert.assertFalse(isAllowed(READ));
+		Assert.assertArrayEquals(new String[] {"ADMIN"}, SECURITY_MANAGER.getLastRequiredRoles());
+		Assert.assertTrue(MethodRegistry.getMethod(readId).isOverridden());
+		Assert.assertTrue(isAllowed(WRITE));
+
+		SECURITY_MANAGER.setAvailableRoles("ADMIN");
+		Assert.assertTrue(isAllowed(READ));
+
+		MethodRegistry.resetRequiredRoles();
+		Assert.assertFalse(isAllowed(READ));
+		Assert.assertArrayEquals(new String[] {"USER"}, MethodRegistry.getMethod(readId).getRequiredRoles());
+		Assert.assertFalse(MethodRegistry.getMethod(readId).isOverridden());
+	}
+
+	@Test
+	public void replaceManyRequirements() {
+		Map<Integer, String[]> requirements = new HashMap<>();
+		requirements.put(readId, new String[0]);
+		requirements.put(writeId, new String[] {"USER", "EDITOR"});
+		MethodRegistry.setRequiredRoles(requirements);
+
+		SECURITY_MANAGER.clearRoles();
+		Assert.assertTrue(isAllowed(READ));
+		Assert.assertFalse(isAllowed(WRITE));
+
+		BitSet allowed = SECURITY_MANAGER.isAllowed(new int[] {readId, writeId}); // <-- Batch authorization reads the same table
+		Assert.assertTrue(allowed.get(0));
+		Assert.assertFalse(allowed.get(1));
+	}
+
+	@Test
+	public void expressionsAreKept() {
+		MethodRegistry.setRequiredRoles(expressionId, "ADMIN");
+		SECURITY_MANAGER.setAvailableRoles("ADMIN", "GUEST");
+		Assert.assertFalse(isAllowed(EXPRESSION)); // <-- Compiled expression still applies
+
+		SECURITY_MANAGER.setAvailableRoles("ADMIN");
+		Assert.assertTrue(isAllowed(EXPRESSION));
+	}
+
+	@Test
+	public void cachedDecisionsAreStale() {
+		CachingSecurityManager securityManager = new CachingSecurityManager(SECURITY_MANAGER, 100);
+		SecuredMethod method = MethodRegistry.getMethod(readId);
+
+		SecurityContext.Scope scope = new SecurityContext("user", "USER").bind();
+
+		try {
+			Assert.assertTrue(securityManager.isAllowed(readId, method.getSharedRequiredRoles(), method.getSharedRequiredRoleMask()));
+
+			MethodRegistry.setRequiredRoles(readId, "ADMIN");
+			method = MethodRegistry.getMethod(readId);
+			Assert.assertFalse(securityManager.isAllowed(readId, method.getSharedRequiredRoles(), method.getSharedRequiredRoleMask()));
+			Assert.assertEquals(0, securityManager.getHitCount());
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void concurrentRevocation() throws Exception {
+		final CachingSecurityManager securityManager = new CachingSecurityManager(new ContextSecurityManager(), 100);
+		final AtomicBoolean revoked = new AtomicBoolean();
+		final CountDownLatch checking = new CountDownLatch(8);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Integer>> futures = new ArrayList<>();
+
+		try {
+			for (int t = 0; t < 8; t++) {
+				futures.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						SecurityContext.Scope scope = new SecurityContext("user", "USER").bind();
+
+						try {
+							int staleAllows = 0;
+
+							for (int i = 0; i < 20000; i++) {
+								boolean afterRevocation = revoked.get(); // <-- Read before the requirement, as a guard would
+
+								SecuredMethod requirement = MethodRegistry.getRequirement(readId);
+								if (securityManager.isAllowed(readId, requirement.getSharedRequiredRoles(), requirement.getSharedRequiredRoleMask()) && afterRevocation)
+									staleAllows++;
+
+								if (i == 100)
+									checking.countDown();
+							}
+
+							return staleAllows;
+						} finally {
+							scope.close();
+						}
+					}
+				}));
+			}
+
+			checking.await();
+			MethodRegistry.setRequiredRoles(readId, "ADMIN");
+			revoked.set(true);
+
+			for (Future<Integer> future : futures) {
+				Assert.assertEquals(Integer.valueOf(0), future.get());
+			}
+
+			Assert.assertTrue(securityManager.getHitCount() > 0);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void requirementHolder() throws Exception {
+		RequirementHolder holder = MethodRegistry.getHolder(readId);
+		Assert.assertSame(MethodRegistry.getMethod(readId), holder.get());
+
+		MethodRegistry.setRequiredRoles(readId, "ADMIN");
+		Assert.assertSame(holder, MethodRegistry.getHolder(readId)); // <-- Woven classes keep the holder, so it is updated instead of replaced
+		Assert.assertSame(MethodRegistry.getMethod(readId), holder.get());
+		Assert.assertTrue(holder.get().isOverridden());
+
+		MethodRegistry.resetRequiredRoles();
+		Assert.assertFalse(holder.get().isOverridden());
+
+		Field field = UpdatableSecuredClass.class.getDeclaredField("security$requirement$0");
+		Assert.assertTrue(Modifier.isFinal(field.getModifiers()));
+	}
+
+	@Test
+	public void invalidRequirements() {
+		try {
+			MethodRegistry.setRequiredRoles(MethodRegistry.getMethodCount(), "ADMIN");
+			Assert.fail("Method id should be invalid");
+		} catch (IllegalArgumentException ex) {
+			Assert.assertEquals("Invalid method id: " + MethodRegistry.getMethodCount(), ex.getMessage());
+		}
+
+		Map<Integer, String[]> requirements = new HashMap<>();
+		requirements.put(readId, new String[] {"ADMIN"});
+		requirements.put(writeId, new String[] {""});
+
+		try {
+			MethodRegistry.setRequiredRoles(requirements);
+			Assert.fail("Role should be invalid");
+		} catch (IllegalArgumentException ex) {}
+
+		Assert.assertTrue(isAllowed(READ)); // <-- Nothing is replaced when a requirement is invalid
+	}
+}
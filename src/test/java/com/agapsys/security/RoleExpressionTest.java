@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class RoleExpressionTest {
+	private static final MockedSecurityManager SECURITY_MANAGER = new MockedSecurityManager();
+
+	@BeforeClass
+	public static void beforeClass() {
+		MockedSecurity.init(SECURITY_MANAGER, "com.agapsys.security.ExpressionSecuredClass");
+	}
+
+	private static boolean isAllowed(Runnable runnable) {
+		try {
+			runnable.run();
+			return true;
+		} catch (NotAllowedException ex) {
+			return false;
+		}
+	}
+
+	@Test
+	public void isExpression() {
+		Assert.assertFalse(RoleExpression.isExpression("ADMIN"));
+		Assert.assertFalse(RoleExpression.isExpression("app:admin"));
+		Assert.assertTrue(RoleExpression.isExpression("not ADMIN"));
+		Assert.assertTrue(RoleExpression.isExpression("!ADMIN"));
+		Assert.assertTrue(RoleExpression.isExpression("A||B"));
+	}
+
+	@Test
+	public void parse() {
+		Assert.assertEquals("(ADMIN or (SUPPORT and EU))", RoleExpression.parse("ADMIN or (SUPPORT and EU)").toString());
+		Assert.assertEquals("(ADMIN or (SUPPORT and EU))", RoleExpression.parse("ADMIN || SUPPORT && EU").toString()); // <-- "and" binds tighter
+		Assert.assertEquals("(A and B and C)", RoleExpression.parse("A AND (B and C)").toString());
+		Assert.assertEquals("not A", RoleExpression.parse("!A").toString());
+		Assert.assertEquals("(A and not (B or C))", RoleExpression.parse("A and not (B or C)").toString());
+		Assert.assertArrayEquals(new String[] {"A", "B", "C"}, RoleExpression.parse("A and not (B or C)").getRoles());
+	}
+
+	@Test
+	public void invalidExpressions() {
+		String[] expressions = {"", "A and", "(A or B", "A or B)", "A & B", "and A", "A B", "not"};
+
+		for (String expression : expressions) {
+			try {
+				RoleExpression.parse(expression);
+				Assert.fail("Expression should be invalid: " + expression);
+			} catch (IllegalArgumentException ex) {
+				Assert.assertTrue(ex.getMessage().startsWith("Invalid role expression '" + expression + "'"));
+			}
+		}
+	}
+
+	@Test
+	public void evaluate() {
+		RoleExpression expression = RoleExpression.parse("ADMIN or (SUPPORT and EU)");
+
+		Assert.assertTrue(expression.evaluate(RoleRegistry.getMask("ADMIN")));
+		Assert.assertTrue(expression.evaluate(RoleRegistry.getMask("SUPPORT", "EU")));
+		Assert.assertFalse(expression.evaluate(RoleRegistry.getMask("SUPPORT")));
+		Assert.assertFalse(expression.evaluate(RoleRegistry.getMask()));
+		Assert.assertTrue(RoleExpression.parse("not GUEST").evaluate(RoleRegistry.getMask("USER")));
+	}
+
+	@Test
+	public void wovenGuards() {
+		final ExpressionSecuredClass secured = new ExpressionSecuredClass();
+		Runnable support = new Runnable() {
+			@Override
+			public void run() {
+				secured.support();
+			}
+		};
+		Runnable audit = new Runnable() {
+			@Override
+			public void run() {
+				secured.audit();
+			}
+		};
+
+		SECURITY_MANAGER.setAvailableRoles("USER", "ADMIN");
+		Assert.assertTrue(isAllowed(support));
+		Assert.assertArrayEquals(new String[] {"ADMIN"}, SECURITY_MANAGER.getLastRequiredRoles()); // <-- Short-circuit: "SUPPORT and EU" is not checked
+
+		SECURITY_MANAGER.setAvailableRoles("ADMIN");
+		Assert.assertFalse(isAllowed(support)); // <-- Class roles are still required
+
+		SECURITY_MANAGER.setAvailableRoles("USER", "SUPPORT", "EU");
+		Assert.assertTrue(isAllowed(support));
+
+		SECURITY_MANAGER.setAvailableRoles("USER", "SUPPORT");
+		Assert.assertFalse(isAllowed(support));
+
+		SECURITY_MANAGER.setAvailableRoles("USER", "AUDIT");
+		Assert.assertTrue(isAllowed(audit));
+
+		SECURITY_MANAGER.setAvailableRoles("USER", "AUDIT", "GUEST");
+		Assert.assertFalse(isAllowed(audit));
+	}
+
+	@Test
+	public void registeredExpression() {
+		SecuredMethod support = MethodRegistry.getMethod(MethodRegistry.getId("com.agapsys.security.ExpressionSecuredClass.support()"));
+		Assert.assertArrayEquals(new String[] {"USER"}, support.getRequiredRoles());
+		Assert.assertEquals("(ADMIN or (SUPPORT and EU))", support.getRequiredExpression().toString());
+
+		SecuredMethod audit = MethodRegistry.getMethod(MethodRegistry.getId("com.agapsys.security.ExpressionSecuredClass.audit()"));
+		Assert.assertArrayEquals(new String[] {"USER", "AUDIT"}, audit.getRequiredRoles());
+		Assert.assertEquals("not GUEST", audit.getRequiredExpression().toString());
+
+		Assert.assertNull(MethodRegistry.getMethod(MethodRegistry.getId("com.agapsys.security.ExpressionSecuredClass.user()")).getRequiredExpression());
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class RoleHierarchyTest {
+
+	@After
+	public void after() {
+		RoleHierarchy.setCurrent(RoleHierarchy.NONE);
+	}
+
+	@Test
+	public void closure() {
+		RoleHierarchy hierarchy = RoleHierarchy.parse("# Sample\nH_ADMIN > H_MANAGER > H_USER\nH_ADMIN > H_AUDITOR\n");
+
+		Assert.assertEquals(new LinkedHashSet<>(Arrays.asList("H_MANAGER", "H_USER", "H_AUDITOR")), hierarchy.getImpliedRoles("H_ADMIN"));
+		Assert.assertEquals(new LinkedHashSet<>(Arrays.asList("H_USER")), hierarchy.getImpliedRoles("H_MANAGER"));
+		Assert.assertTrue(hierarchy.getImpliedRoles("H_USER").isEmpty());
+
+		Assert.assertArrayEquals(RoleRegistry.getMask("H_ADMIN", "H_MANAGER", "H_USER", "H_AUDITOR"), hierarchy.expand(RoleRegistry.getMask("H_ADMIN")));
+		Assert.assertArrayEquals(RoleRegistry.getMask("H_MANAGER", "H_USER"), hierarchy.expand(RoleRegistry.getMask("H_MANAGER")));
+
+		long[] mask = RoleRegistry.getMask("H_USER");
+		Assert.assertSame(mask, hierarchy.expand(mask)); // <-- Nothing implied
+	}
+
+	@Test
+	public void cycles() {
+		Map<String, Collection<String>> impliedRoles = new LinkedHashMap<>();
+		impliedRoles.put("C_A", Arrays.asList("C_B"));
+		impliedRoles.put("C_B", Arrays.asList("C_C"));
+		impliedRoles.put("C_C", Arrays.asList("C_A"));
+
+		try {
+			new RoleHierarchy(impliedRoles);
+			Assert.fail();
+		} catch (IllegalArgumentException ex) {
+			Assert.assertEquals("Cyclic role hierarchy: [C_A, C_B, C_C, C_A]", ex.getMessage());
+		}
+
+		try {
+			RoleHierarchy.parse("C_A > C_A");
+			Assert.fail();
+		} catch (IllegalArgumentException ex) {
+			Assert.assertEquals("Cyclic role hierarchy: [C_A, C_A]", ex.getMessage());
+		}
+
+		try {
+			RoleHierarchy.parse("C_A >");
+			Assert.fail();
+		} catch (IllegalArgumentException ex) {
+			Assert.assertEquals("Invalid hierarchy line: C_A >", ex.getMessage());
+		}
+	}
+
+	@Test
+	public void contexts() {
+		SecurityContext admin = new SecurityContext("admin", "R_ADMIN");
+		long[] userMask = RoleRegistry.getMask("R_USER");
+
+		Assert.assertFalse(admin.hasRoles(userMask));
+		Assert.assertFalse(admin.hasRoles("R_USER"));
+
+		RoleHierarchy.setCurrent(RoleHierarchy.parse("R_ADMIN > R_MANAGER > R_USER"));
+		Assert.assertTrue(admin.hasRoles(userMask));
+		Assert.assertTrue(admin.hasRoles("R_ADMIN", "R_USER"));
+		Assert.assertArrayEquals(RoleRegistry.getMask("R_ADMIN"), admin.getRoleMask()); // <-- Granted roles are kept
+		Assert.assertArrayEquals(RoleRegistry.getMask("R_ADMIN", "R_MANAGER", "R_USER"), admin.getEffectiveRoleMask());
+
+		RoleHierarchy.setCurrent(RoleHierarchy.parse("R_ADMIN > R_MANAGER")); // <-- Reload
+		Assert.assertFalse(admin.hasRoles(userMask));
+		Assert.assertFalse(admin.hasRoles("R_USER"));
+		Assert.assertTrue(admin.hasRoles("R_MANAGER"));
+	}
+}
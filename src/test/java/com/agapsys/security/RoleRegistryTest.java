@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class RoleRegistryTest {
+
+	@Test
+	public void ids() {
+		int id = RoleRegistry.getId("REGISTRY_ROLE");
+
+		Assert.assertEquals(id, RoleRegistry.getId("REGISTRY_ROLE"));
+		Assert.assertEquals("REGISTRY_ROLE", RoleRegistry.getName(id));
+		Assert.assertFalse(id == RoleRegistry.getId("REGISTRY_ROLE_2"));
+		Assert.assertTrue(RoleRegistry.getRoleCount() > id);
+	}
+
+	@Test
+	public void masks() {
+		long[] granted = RoleRegistry.getMask("MASK_A", "MASK_B", "MASK_C");
+
+		Assert.assertTrue(RoleRegistry.containsAll(granted, RoleRegistry.getMask("MASK_A", "MASK_C")));
+		Assert.assertTrue(RoleRegistry.containsAll(granted, RoleRegistry.getMask()));
+		Assert.assertFalse(RoleRegistry.containsAll(granted, RoleRegistry.getMask("MASK_A", "MASK_D")));
+		Assert.assertFalse(RoleRegistry.containsAll(RoleRegistry.getMask(), granted));
+
+		Assert.assertEquals(3, RoleRegistry.getCount(granted));
+		Assert.assertArrayEquals(new String[] {"MASK_A", "MASK_B", "MASK_C"}, RoleRegistry.getRoles(granted));
+	}
+
+	@Test
+	public void wideMasks() {
+		String[] roles = new String[100];
+
+		for (int i = 0; i < roles.length; i++) {
+			roles[i] = "WIDE_" + i;
+		}
+
+		long[] granted = RoleRegistry.getMask(roles);
+		Assert.assertTrue(granted.length >= 2);
+		Assert.assertTrue(RoleRegistry.containsAll(granted, RoleRegistry.getMask("WIDE_0", "WIDE_99")));
+		Assert.assertFalse(RoleRegistry.containsAll(RoleRegistry.getMask("WIDE_0"), RoleRegistry.getMask("WIDE_99")));
+		Assert.assertEquals(100, RoleRegistry.getCount(granted));
+	}
+}
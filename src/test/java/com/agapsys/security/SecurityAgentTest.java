@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class SecurityAgentTest {
+	private static final String AGENT_SECURED_CLASS = "com.agapsys.security.AgentSecuredClass";
+	private static final String AGENT_SECURED_CLASS_INTERNAL_NAME = AGENT_SECURED_CLASS.replace('.', '/');
+
+	private static final MockedSecurityManager securityManager = new MockedSecurityManager();
+
+	@BeforeClass
+	public static void beforeClass() {
+		MockedSecurity.init(securityManager, new String[0]);
+	}
+
+	private void assertSecured(Class<?> securedClass) throws Exception {
+		Object obj = securedClass.getConstructor().newInstance();
+		Method secured = securedClass.getMethod("secured");
+		securedClass.getMethod("unsecured").invoke(obj);
+
+		Throwable error = null;
+		securityManager.clearRoles();
+
+		try {
+			secured.invoke(obj);
+		} catch (InvocationTargetException ex) {
+			error = ex.getCause();
+		}
+
+		Assert.assertTrue(error instanceof NotAllowedException);
+
+		securityManager.setAvailableRoles("AGENT_ROLE");
+		secured.invoke(obj);
+	}
+
+	@Test
+	public void loadTimeWeaving() throws Exception {
+		SecurityAgent.Transformer transformer = new SecurityAgent.Transformer();
+		ClassLoader parent = getClass().getClassLoader();
+		byte[] classfile = BytecodeClassLoader.getClassFile(AgentSecuredClass.class);
+
+		byte[] woven = transformer.transform(parent, AGENT_SECURED_CLASS_INTERNAL_NAME, null, null, classfile);
+		Assert.assertNotNull(woven);
+		Assert.assertNull(transformer.transform(parent, AGENT_SECURED_CLASS_INTERNAL_NAME, null, null, woven)); // <-- Already woven
+		Assert.assertNull(transformer.transform(parent, "com/agapsys/security/SecurityAgentTest", null, null, BytecodeClassLoader.getClassFile(SecurityAgentTest.class)));
+
+		Class<?> securedClass = new BytecodeClassLoader(parent, AGENT_SECURED_CLASS, woven).loadClass(AGENT_SECURED_CLASS);
+		securedClass.getDeclaredField(Weaver.WOVEN_MARKER_FIELD);
+		assertSecured(securedClass);
+	}
+
+	@Test
+	public void retransformation() throws Exception {
+		SecurityAgent.Transformer transformer = new SecurityAgent.Transformer();
+		ClassLoader parent = getClass().getClassLoader();
+		byte[] classfile = BytecodeClassLoader.getClassFile(AgentSecuredClass.class);
+
+		byte[] woven = transformer.transform(parent, AGENT_SECURED_CLASS_INTERNAL_NAME, AgentSecuredClass.class, null, classfile);
+		Assert.assertNotNull(woven);
+
+		Class<?> securedClass = new BytecodeClassLoader(parent, AGENT_SECURED_CLASS, woven).loadClass(AGENT_SECURED_CLASS);
+		Assert.assertEquals(AgentSecuredClass.class.getDeclaredFields().length, securedClass.getDeclaredFields().length); // <-- No fields are added to a loaded class
+		assertSecured(securedClass);
+	}
+
+	@Test
+	public void weavingFailure() throws Exception {
+		SecurityAgent.Transformer transformer = new SecurityAgent.Transformer();
+		ClassLoader parent = getClass().getClassLoader();
+		String className = "com.agapsys.security.InvalidAnnotationTest$InnerClass"; // <-- Has conflicting annotations
+		byte[] classfile = BytecodeClassLoader.getClassFile(Class.forName(className));
+
+		byte[] woven = transformer.transform(parent, className.replace('.', '/'), null, null, classfile);
+		Assert.assertNotNull(woven); // <-- Class is not loaded without security
+
+		Class<?> securedClass = new BytecodeClassLoader(parent, className, woven).loadClass(className);
+		Constructor<?> constructor = securedClass.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		Method invalid = securedClass.getMethod("invalid");
+		invalid.setAccessible(true);
+
+		securityManager.setAvailableRoles("AGENT_ROLE");
+
+		try {
+			invalid.invoke(constructor.newInstance());
+			Assert.fail("Execution should be denied");
+		} catch (InvocationTargetException ex) {
+			Assert.assertTrue(ex.getCause() instanceof NotAllowedException);
+		}
+
+		SecurityAgent.checkFailures();
+	}
+}
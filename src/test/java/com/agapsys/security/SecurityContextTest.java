@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class SecurityContextTest {
+
+	@BeforeClass
+	public static void beforeClass() {
+		MockedSecurity.init(new ContextSecurityManager(), "com.agapsys.security.ContextSecuredClass");
+	}
+
+	@After
+	public void after() {
+		SecurityContext.unbind();
+	}
+
+	@Test
+	public void scopes() {
+		SecurityContext user = new SecurityContext("user", "USER");
+		SecurityContext admin = new SecurityContext("admin", "USER", "ADMIN");
+
+		Assert.assertSame(SecurityContext.ANONYMOUS, SecurityContext.getCurrent());
+
+		SecurityContext.Scope userScope = user.bind();
+
+		try {
+			Assert.assertSame(user, SecurityContext.getCurrent());
+
+			SecurityContext.Scope adminScope = admin.bind();
+
+			try {
+				Assert.assertSame(admin, SecurityContext.getCurrent());
+			} finally {
+				adminScope.close();
+			}
+
+			Assert.assertSame(user, SecurityContext.getCurrent());
+		} finally {
+			userScope.close();
+		}
+
+		Assert.assertSame(SecurityContext.ANONYMOUS, SecurityContext.getCurrent());
+	}
+
+	@Test
+	public void roles() {
+		SecurityContext context = new SecurityContext("admin", "USER", "ADMIN");
+
+		Assert.assertEquals("admin", context.getPrincipal());
+		Assert.assertTrue(context.hasRoles("USER", "ADMIN"));
+		Assert.assertTrue(context.hasRoles(RoleRegistry.getMask("ADMIN")));
+		Assert.assertFalse(context.hasRoles("SUPPORT"));
+		Assert.assertFalse(context.hasRoles(RoleRegistry.getMask("USER", "SUPPORT")));
+	}
+
+	@Test
+	public void securedMethods() {
+		ContextSecuredClass obj = new ContextSecuredClass();
+		NotAllowedException error;
+
+		// Anonymous -----------------------------------------------------------
+		error = null;
+		obj.unsecured();
+
+		try {
+			obj.user();
+		} catch (NotAllowedException ex) {
+			error = ex;
+		}
+
+		Assert.assertNotNull(error);
+		// User ----------------------------------------------------------------
+		error = null;
+
+		SecurityContext.Scope scope = new SecurityContext("user", "USER").bind();
+
+		try {
+			obj.user();
+
+			try {
+				obj.admin();
+			} catch (NotAllowedException ex) {
+				error = ex;
+			}
+		} finally {
+			scope.close();
+		}
+
+		Assert.assertNotNull(error);
+		// Admin ---------------------------------------------------------------
+		scope = new SecurityContext("admin", "USER", "ADMIN").bind();
+
+		try {
+			obj.user();
+			obj.admin();
+		} finally {
+			scope.close();
+		}
+	}
+}
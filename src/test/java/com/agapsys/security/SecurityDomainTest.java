@@ -0,0 +1,280 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.annotation.Annotation;
+import javassist.bytecode.annotation.ArrayMemberValue;
+import javassist.bytecode.annotation.MemberValue;
+import javassist.bytecode.annotation.StringMemberValue;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class SecurityDomainTest {
+	private static final String SECURED_CLASS = "com.agapsys.security.DomainSecuredClass";
+
+	private static ClassLoader newClassLoader() {
+		return new ClassLoader(SecurityDomainTest.class.getClassLoader()) {};
+	}
+
+	/** Returns a class loader defining secured class woven in advance with its secured method requiring given role (as a redeployed version would). */
+	private static ClassLoader newClassLoader(String requiredRole) throws Exception {
+		ClassPool cp = new ClassPool(true);
+		cp.appendClassPath(new LoaderClassPath(SecurityDomainTest.class.getClassLoader()));
+		CtClass cc = cp.get(SECURED_CLASS);
+
+		MethodInfo methodInfo = cc.getDeclaredMethod("secured").getMethodInfo();
+		ConstPool constPool = methodInfo.getConstPool();
+		ArrayMemberValue value = new ArrayMemberValue(constPool);
+		value.setValue(new MemberValue[] {new StringMemberValue(requiredRole, constPool)});
+		Annotation annotation = new Annotation(Secured.class.getName(), constPool);
+		annotation.addMemberValue("value", value);
+		AnnotationsAttribute attribute = new AnnotationsAttribute(constPool, AnnotationsAttribute.visibleTag);
+		attribute.addAnnotation(annotation);
+		methodInfo.addAttribute(attribute);
+
+		Weaver.weave(cc);
+		return new BytecodeClassLoader(SecurityDomainTest.class.getClassLoader(), SECURED_CLASS, cc.toBytecode());
+	}
+
+	/** Invokes secured method of the class defined in given class loader. */
+	private static Object invoke(ClassLoader classLoader) throws Throwable {
+		Class<?> securedClass = Class.forName(SECURED_CLASS, true, classLoader);
+		Method method = securedClass.getMethod("secured");
+
+		try {
+			return method.invoke(securedClass.getConstructor().newInstance());
+		} catch (InvocationTargetException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	private static boolean isAllowed(ClassLoader classLoader) throws Throwable {
+		try {
+			invoke(classLoader);
+			return true;
+		} catch (NotAllowedException ex) {
+			return false;
+		}
+	}
+
+	@Test
+	public void independentDomains() throws Throwable {
+		ClassLoader loader1 = newClassLoader();
+		ClassLoader loader2 = newClassLoader();
+		MockedSecurityManager securityManager1 = new MockedSecurityManager();
+		MockedSecurityManager securityManager2 = new MockedSecurityManager();
+		securityManager1.setAvailableRoles("D_USER");
+
+		try (SecurityDomain domain1 = SecurityDomain.open(loader1, securityManager1); SecurityDomain domain2 = SecurityDomain.open(loader2, securityManager2)) {
+			domain1.init(SECURED_CLASS);
+			domain2.init(SECURED_CLASS); // <-- Same class is woven again for another domain
+
+			Assert.assertSame(domain1, SecurityDomain.get(loader1));
+			Assert.assertSame(domain1, SecurityDomain.of(Class.forName(SECURED_CLASS, false, loader1)));
+			Assert.assertSame(domain2, SecurityDomain.of(Class.forName(SECURED_CLASS, false, loader2)));
+			Assert.assertSame(SecurityDomain.GLOBAL, SecurityDomain.of(SecurityDomainTest.class));
+
+			Assert.assertTrue(isAllowed(loader1));
+			Assert.assertFalse(isAllowed(loader2));
+
+			securityManager2.setAvailableRoles("D_USER");
+			Assert.assertTrue(isAllowed(loader2));
+
+			MockedSecurityManager denying = new MockedSecurityManager();
+			Assert.assertSame(securityManager1, domain1.swapSecurityManager(denying));
+			Assert.assertFalse(isAllowed(loader1));
+			Assert.assertTrue(isAllowed(loader2));
+		}
+
+		Assert.assertNull(SecurityDomain.get(loader1));
+
+		try {
+			invoke(loader1);
+			Assert.fail();
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("Security domain is closed", ex.getMessage());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void duplicateDomain() {
+		ClassLoader loader = newClassLoader();
+
+		SecurityDomain domain = SecurityDomain.open(loader, new MockedSecurityManager());
+
+		try {
+			SecurityDomain.open(loader, new MockedSecurityManager());
+		} finally {
+			domain.close();
+		}
+	}
+
+	@Test
+	public void release() throws Throwable {
+		ClassLoader loader = newClassLoader();
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+		securityManager.setAvailableRoles("D_USER");
+
+		SecurityDomain domain = SecurityDomain.open(loader, securityManager);
+		domain.init(SECURED_CLASS);
+		Assert.assertEquals("ok", invoke(loader));
+		domain.close();
+		Assert.assertTrue(domain.isClosed());
+
+		WeakReference<ClassLoader> loaderRef = new WeakReference<>(loader);
+		loader = null;
+
+		for (int i = 0; i < 20 && loaderRef.get() != null; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+
+		Assert.assertNull(loaderRef.get()); // <-- Neither the framework nor Javassist hold the class loader of a closed domain
+	}
+
+	@Test
+	public void globalRelease() throws Throwable {
+		ClassLoader loader = newClassLoader();
+		Security.secure(loader, Security.toClassNameSet(SECURED_CLASS), null); // <-- Global domain (as in Security.init(), without replacing global manager)
+		Assert.assertNotNull(Class.forName(SECURED_CLASS, false, loader).getDeclaredField(Weaver.WOVEN_MARKER_FIELD));
+
+		WeakReference<ClassLoader> loaderRef = new WeakReference<>(loader);
+		loader = null;
+
+		for (int i = 0; i < 20 && loaderRef.get() != null; i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+
+		Assert.assertNull(loaderRef.get()); // <-- Weavers of the global domain do not hold released class loaders
+	}
+
+	@Test
+	public void redeployment() throws Throwable {
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+		securityManager.setAvailableRoles("D_USER");
+		List<WeakReference<ClassLoader>> loaderRefs = new ArrayList<>();
+		int methodCount = -1;
+
+		for (int i = 0; i < 5; i++) {
+			ClassLoader loader = newClassLoader();
+			loaderRefs.add(new WeakReference<>(loader));
+
+			SecurityDomain domain = SecurityDomain.open(loader, securityManager);
+
+			try {
+				domain.init(SECURED_CLASS);
+				Assert.assertEquals("ok", invoke(loader));
+
+				if (i == 0) {
+					methodCount = MethodRegistry.getMethodCount();
+				} else {
+					Assert.assertEquals(methodCount, MethodRegistry.getMethodCount()); // <-- Ids released by previous deployments are recycled
+				}
+			} finally {
+				domain.close();
+			}
+		}
+
+		for (int i = 0; i < 20 && hasReachable(loaderRefs); i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+
+		Assert.assertFalse(hasReachable(loaderRefs)); // <-- No deployment is retained
+	}
+
+	private static boolean hasReachable(List<WeakReference<ClassLoader>> refs) {
+		for (WeakReference<ClassLoader> ref : refs) {
+			if (ref.get() != null)
+				return true;
+		}
+
+		return false;
+	}
+
+	@Test
+	public void initializedBeforeOpen() throws Throwable {
+		ClassLoader loader = newClassLoader();
+		Security.secure(loader, Security.toClassNameSet(SECURED_CLASS), null);
+		Class.forName(SECURED_CLASS, true, loader); // <-- Bound to global domain
+
+		try {
+			SecurityDomain.open(loader, new MockedSecurityManager());
+			Assert.fail("Initialized classes cannot be moved to a new domain");
+		} catch (IllegalStateException ex) {
+			Assert.assertEquals("Secured classes of given class loader were initialized before its security domain was opened", ex.getMessage());
+		}
+
+		Assert.assertNull(SecurityDomain.get(loader));
+	}
+
+	@Test
+	public void wovenConstants() {
+		Assert.assertEquals(WovenConstants.add(new String[] {"D_CONSTANT"}), WovenConstants.add(new String[] {"D_CONSTANT"})); // <-- Equal constants share an index
+		Assert.assertFalse(WovenConstants.add(new String[] {"D_CONSTANT"}) == WovenConstants.add(new long[] {1}));
+	}
+
+	@Test
+	public void redeployedRequirements() throws Throwable {
+		ClassLoader loader1 = newClassLoader("D_USER");
+		ClassLoader loader2 = newClassLoader("D_ADMIN"); // <-- Same class, stricter requirement
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+		securityManager.setAvailableRoles("D_USER");
+
+		SecurityDomain domain1 = SecurityDomain.open(loader1, securityManager);
+		SecurityDomain domain2 = SecurityDomain.open(loader2, securityManager);
+
+		try {
+			domain1.init(SECURED_CLASS);
+			domain2.init(SECURED_CLASS);
+
+			Assert.assertTrue(isAllowed(loader1));
+			Assert.assertFalse(isAllowed(loader2)); // <-- Not resolved to the requirement registered by the first class
+
+			Method method1 = Class.forName(SECURED_CLASS, false, loader1).getMethod("secured");
+			Method method2 = Class.forName(SECURED_CLASS, false, loader2).getMethod("secured");
+			int id1 = MethodRegistry.getId(method1);
+			int id2 = MethodRegistry.getId(method2);
+			Assert.assertFalse(id1 == id2);
+			Assert.assertArrayEquals(new String[] {"D_USER"}, MethodRegistry.getMethod(id1).getRequiredRoles());
+			Assert.assertArrayEquals(new String[] {"D_ADMIN"}, MethodRegistry.getMethod(id2).getRequiredRoles());
+
+			domain1.close();
+			Assert.assertEquals(-1, MethodRegistry.getId(method1)); // <-- Released along with its domain
+			Assert.assertEquals(id2, MethodRegistry.getId(method2));
+			Assert.assertEquals(id2, MethodRegistry.getId(method2.getDeclaringClass().getName() + ".secured()"));
+		} finally {
+			domain1.close();
+			domain2.close();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class SecurityExecutorsTest {
+	private static final Callable<SecurityContext> CURRENT_CONTEXT = new Callable<SecurityContext>() {
+		@Override
+		public SecurityContext call() {
+			return SecurityContext.getCurrent();
+		}
+	};
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+	@After
+	public void after() throws InterruptedException {
+		pool.shutdownNow();
+		pool.awaitTermination(5, TimeUnit.SECONDS);
+		SecurityContext.unbind();
+	}
+
+	@Test
+	public void wrappedTasks() throws Exception {
+		SecurityContext user = new SecurityContext("user", "USER");
+		Callable<SecurityContext> callable;
+		final AtomicReference<SecurityContext> seen = new AtomicReference<>();
+		Runnable runnable;
+
+		SecurityContext.Scope scope = user.bind();
+
+		try {
+			callable = SecurityExecutors.wrap(CURRENT_CONTEXT);
+			runnable = SecurityExecutors.wrap(new Runnable() {
+				@Override
+				public void run() {
+					seen.set(SecurityContext.getCurrent());
+				}
+			});
+		} finally {
+			scope.close();
+		}
+
+		SecurityContext admin = new SecurityContext("admin", "ADMIN");
+
+		scope = admin.bind();
+
+		try {
+			Assert.assertSame(user, callable.call()); // <-- Context is captured when task is wrapped
+			runnable.run();
+			Assert.assertSame(user, seen.get());
+			Assert.assertSame(admin, SecurityContext.getCurrent()); // <-- Context of the executing thread is restored
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void executorService() throws Exception {
+		ExecutorService executor = SecurityExecutors.wrap(pool);
+		Assert.assertSame(executor, SecurityExecutors.wrap(executor));
+
+		List<SecurityContext> contexts = new ArrayList<>();
+		List<Future<SecurityContext>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 10000; i++) {
+			SecurityContext context = new SecurityContext("user" + i, "USER");
+			contexts.add(context);
+
+			SecurityContext.Scope scope = context.bind();
+
+			try {
+				futures.add(executor.submit(CURRENT_CONTEXT));
+			} finally {
+				scope.close();
+			}
+		}
+
+		for (int i = 0; i < futures.size(); i++) {
+			Assert.assertSame(contexts.get(i), futures.get(i).get());
+		}
+
+		// Tasks submitted without a context do not see contexts left by previous tasks
+		Assert.assertSame(SecurityContext.ANONYMOUS, executor.submit(CURRENT_CONTEXT).get());
+		Assert.assertSame(SecurityContext.ANONYMOUS, pool.submit(CURRENT_CONTEXT).get());
+
+		List<Callable<SecurityContext>> tasks = new ArrayList<>();
+
+		for (int i = 0; i < 8; i++) {
+			tasks.add(CURRENT_CONTEXT);
+		}
+
+		SecurityContext admin = new SecurityContext("admin", "ADMIN");
+
+		SecurityContext.Scope scope = admin.bind();
+
+		try {
+			for (Future<SecurityContext> future : executor.invokeAll(tasks)) {
+				Assert.assertSame(admin, future.get());
+			}
+
+			Assert.assertSame(admin, executor.invokeAny(tasks));
+		} finally {
+			scope.close();
+		}
+	}
+
+	@Test
+	public void executor() throws Exception {
+		Executor executor = SecurityExecutors.wrap(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				new Thread(command).start();
+			}
+		});
+
+		final SecurityContext user = new SecurityContext("user", "USER");
+		final CountDownLatch latch = new CountDownLatch(100);
+		final AtomicInteger mismatches = new AtomicInteger();
+
+		SecurityContext.Scope scope = user.bind();
+
+		try {
+			for (int i = 0; i < 100; i++) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (SecurityContext.getCurrent() != user)
+							mismatches.incrementAndGet();
+
+						latch.countDown();
+					}
+				});
+			}
+		} finally {
+			scope.close();
+		}
+
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(0, mismatches.get());
+	}
+
+	@Test
+	public void nullArguments() {
+		try {
+			SecurityExecutors.wrap((Runnable) null);
+			Assert.fail("Null task should be rejected");
+		} catch (IllegalArgumentException ex) {
+			Assert.assertEquals("Task cannot be null", ex.getMessage());
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class SecurityLoggerTest {
+
+	private static class RecordingLogger extends SecurityLogger {
+		private final Level minLevel;
+		private final List<String> messages = new ArrayList<>();
+		private final List<Throwable> errors = new ArrayList<>();
+
+		public RecordingLogger(Level minLevel) {
+			this.minLevel = minLevel;
+		}
+
+		@Override
+		public boolean isEnabled(Level level) {
+			return level.compareTo(minLevel) >= 0;
+		}
+
+		@Override
+		protected void write(Level level, String message, Throwable error) {
+			messages.add(level + " " + message);
+			errors.add(error);
+		}
+	}
+
+	/** Argument which counts how many times it was formatted. */
+	private static class CountingArg {
+		private int count = 0;
+
+		@Override
+		public String toString() {
+			count++;
+			return "arg";
+		}
+	}
+
+	@After
+	public void after() {
+		Security.setLogger(SecurityLogger.NOOP);
+	}
+
+	@Test
+	public void format() {
+		Assert.assertEquals("a 1 b 2", SecurityLogger.format("a {} b {}", 1, 2));
+		Assert.assertEquals("a 1 b {}", SecurityLogger.format("a {} b {}", 1));
+		Assert.assertEquals("a 1", SecurityLogger.format("a {}", 1, 2));
+		Assert.assertEquals("no placeholders", SecurityLogger.format("no placeholders"));
+	}
+
+	@Test
+	public void levels() {
+		RecordingLogger logger = new RecordingLogger(SecurityLogger.Level.WARN);
+		CountingArg arg = new CountingArg();
+
+		logger.log(SecurityLogger.Level.DEBUG, "debug {}", arg);
+		logger.log(SecurityLogger.Level.INFO, "info {}", arg);
+		Assert.assertEquals(0, arg.count); // <-- Disabled messages are not formatted
+		Assert.assertTrue(logger.messages.isEmpty());
+
+		logger.log(SecurityLogger.Level.WARN, "warn {}", arg);
+		Assert.assertEquals(1, arg.count);
+		Assert.assertEquals("WARN warn arg", logger.messages.get(0));
+	}
+
+	@Test
+	public void errors() {
+		RecordingLogger logger = new RecordingLogger(SecurityLogger.Level.DEBUG);
+		RuntimeException error = new RuntimeException("error");
+
+		logger.log(SecurityLogger.Level.ERROR, "Error at {}", "x", error);
+		logger.log(SecurityLogger.Level.ERROR, "Error: {}", error);
+
+		Assert.assertEquals("ERROR Error at x", logger.messages.get(0));
+		Assert.assertSame(error, logger.errors.get(0));
+		Assert.assertEquals("ERROR Error: java.lang.RuntimeException: error", logger.messages.get(1)); // <-- Consumed by placeholder
+		Assert.assertNull(logger.errors.get(1));
+	}
+
+	@Test
+	public void frameworkMessages() {
+		RecordingLogger logger = new RecordingLogger(SecurityLogger.Level.DEBUG);
+		Security.setLogger(logger);
+		Assert.assertSame(logger, Security.getLogger());
+
+		MockedSecurity.init(new MockedSecurityManager(), "com.agapsys.security.LoggedSecuredClass");
+		Assert.assertTrue(logger.messages.contains("DEBUG Secured class: com.agapsys.security.LoggedSecuredClass"));
+	}
+}
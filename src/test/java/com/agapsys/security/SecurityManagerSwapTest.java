@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class SecurityManagerSwapTest {
+	private static final MockedSecurityManager ALLOWING = new MockedSecurityManager();
+	private static final MockedSecurityManager DENYING = new MockedSecurityManager();
+
+	@BeforeClass
+	public static void beforeClass() {
+		ALLOWING.setAvailableRoles("S_USER");
+		MockedSecurity.init(ALLOWING, "com.agapsys.security.SwappedSecuredClass");
+	}
+
+	@AfterClass
+	public static void afterClass() {
+		Security.swapSecurityManager(ALLOWING);
+	}
+
+	@Test
+	public void swap() {
+		SwappedSecuredClass secured = new SwappedSecuredClass();
+		Security.swapSecurityManager(ALLOWING);
+		secured.secured();
+
+		Assert.assertSame(ALLOWING, Security.swapSecurityManager(DENYING));
+		Assert.assertSame(DENYING, Security.getSecurityManager());
+
+		try {
+			secured.secured();
+			Assert.fail();
+		} catch (NotAllowedException ex) {}
+
+		Assert.assertFalse(Security.compareAndSwapSecurityManager(ALLOWING, ALLOWING));
+		Assert.assertTrue(Security.compareAndSwapSecurityManager(DENYING, ALLOWING));
+		secured.secured();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nullManager() {
+		Security.swapSecurityManager(null);
+	}
+
+	@Test
+	public void visibility() throws InterruptedException {
+		Security.swapSecurityManager(ALLOWING);
+
+		final SwappedSecuredClass secured = new SwappedSecuredClass();
+		final CountDownLatch running = new CountDownLatch(1);
+		final AtomicReference<Throwable> result = new AtomicReference<>();
+
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						secured.secured();
+						running.countDown();
+					}
+				} catch (Throwable t) {
+					result.set(t);
+				}
+			}
+		};
+
+		reader.start();
+		Assert.assertTrue(running.await(10, TimeUnit.SECONDS));
+
+		Security.swapSecurityManager(DENYING);
+		reader.join(10000);
+
+		Assert.assertFalse(reader.isAlive()); // <-- Replacement was observed by a thread spinning on the guard
+		Assert.assertTrue(result.get() instanceof NotAllowedException);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class SecurityMetricsTest {
+	private static final String SECURED_METHOD = "com.agapsys.security.MetricsSecuredClass.secured()";
+
+	private static final MockedSecurityManager SECURITY_MANAGER = new MockedSecurityManager();
+
+	@BeforeClass
+	public static void beforeClass() {
+		MockedSecurity.init(SECURITY_MANAGER, "com.agapsys.security.MetricsSecuredClass");
+	}
+
+	@After
+	public void after() {
+		SecurityMetrics.setEnabled(false);
+		SecurityMetrics.reset();
+		SECURITY_MANAGER.clearRoles();
+	}
+
+	private static void call(Object obj, int times) { // <-- Parameter type is not the fixture class, which must not be loaded before being woven
+		for (int i = 0; i < times; i++) {
+			try {
+				((MetricsSecuredClass) obj).secured();
+			} catch (NotAllowedException ex) {}
+		}
+	}
+
+	@Test
+	public void disabledMetrics() {
+		MetricsSecuredClass obj = new MetricsSecuredClass();
+		call(obj, 3);
+
+		int methodId = MethodRegistry.getId(SECURED_METHOD);
+		Assert.assertTrue(methodId >= 0);
+		Assert.assertEquals(SECURED_METHOD, MethodRegistry.getName(methodId));
+		Assert.assertEquals(0, SecurityMetrics.getAllowCount(methodId));
+		Assert.assertEquals(0, SecurityMetrics.getDenyCount(methodId));
+	}
+
+	@Test
+	public void counters() throws Exception {
+		MetricsSecuredClass obj = new MetricsSecuredClass();
+		SecurityMetrics.setEnabled(true);
+
+		call(obj, 3);
+		SECURITY_MANAGER.setAvailableRoles("METRICS");
+		call(obj, 5);
+		obj.unsecured();
+
+		int methodId = MethodRegistry.getId(SECURED_METHOD);
+		Assert.assertEquals(5, SecurityMetrics.getAllowCount(methodId));
+		Assert.assertEquals(3, SecurityMetrics.getDenyCount(methodId));
+
+		long histogramCount = 0;
+		for (long bucketCount : SecurityMetrics.getLatencyHistogram(methodId)) {
+			histogramCount += bucketCount;
+		}
+		Assert.assertEquals(8, histogramCount);
+
+		Assert.assertEquals(1, SecurityMetrics.getMethodStatistics().size());
+
+		// MBean ---------------------------------------------------------------
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(SecurityMetrics.MBEAN_NAME);
+		Assert.assertEquals(Boolean.TRUE, server.getAttribute(name, "Enabled"));
+
+		CompositeData[] statistics = (CompositeData[]) server.getAttribute(name, "MethodStatistics");
+		Assert.assertEquals(1, statistics.length);
+		Assert.assertEquals(SECURED_METHOD, statistics[0].get("method"));
+		Assert.assertEquals(5L, statistics[0].get("allowCount"));
+		Assert.assertEquals(3L, statistics[0].get("denyCount"));
+
+		server.invoke(name, "reset", null, null);
+		Assert.assertEquals(0, SecurityMetrics.getAllowCount(methodId));
+		Assert.assertTrue(SecurityMetrics.getMethodStatistics().isEmpty());
+	}
+
+	@Test
+	public void concurrentCounters() throws Exception {
+		final MetricsSecuredClass obj = new MetricsSecuredClass();
+		SECURITY_MANAGER.setAvailableRoles("METRICS");
+		SecurityMetrics.setEnabled(true);
+
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					call(obj, 10000);
+				}
+			};
+			threads[i].start();
+		}
+
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		Assert.assertEquals(40000, SecurityMetrics.getAllowCount(MethodRegistry.getId(SECURED_METHOD)));
+	}
+}
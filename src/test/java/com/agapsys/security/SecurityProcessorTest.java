@@ -0,0 +1,314 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class SecurityProcessorTest {
+	private static final String SECURED_SOURCE =
+		"package sample;\n" +
+		"import com.agapsys.security.*;\n" +
+		"@Secured(\"A\")\n" +
+		"public class Foo {\n" +
+		"	@Secured(\"B\") public String run(String s, int[] i) { return s; }\n" +
+		"	@Secured(conditions = \"owner(id)\") public void owned(long id) {}\n" +
+		"	@Unsecured public void open() {}\n" +
+		"	public void plain() {}\n" +
+		"	public static class Inner {\n" +
+		"		@Secured public java.util.List<String> list(java.util.Map<String, Object> m) { return null; }\n" +
+		"	}\n" +
+		"}\n";
+
+	private static final String INVALID_SOURCE =
+		"package sample;\n" +
+		"import com.agapsys.security.*;\n" +
+		"@Secured({\"A\", \"A\"})\n" +
+		"public class Invalid {\n" +
+		"	@Secured(\"A\") public void merged() {}\n" +
+		"	@Secured @Unsecured public void both(String s) {}\n" +
+		"	@Secured(\"B or\") public void expression() {}\n" +
+		"	@Secured(conditions = {\"owner(name)\", \"owner($2)\", \"owner\"}) public void conditions(String s) {}\n" +
+		"}\n";
+
+	private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+	private File compile(String className, String source) throws Exception {
+		File outputDir = new File(Files.createTempDirectory("security-processor").toFile(), "classes");
+		outputDir.mkdirs();
+		return compile(outputDir, className, source);
+	}
+
+	/** Compiles a source into given directory, which is also in the classpath (as in incremental builds). */
+	private File compile(File outputDir, String className, String source) throws Exception {
+		File dir = Files.createTempDirectory("security-processor").toFile();
+		File sourceFile = new File(dir, className.replace('.', '/') + ".java");
+		sourceFile.getParentFile().mkdirs();
+		Files.write(sourceFile.toPath(), source.getBytes(StandardCharsets.UTF_8));
+
+		String frameworkClasspath = new File(Secured.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+		try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+			List<String> options = Arrays.asList("-g", "-d", outputDir.getPath(), "-classpath", frameworkClasspath + File.pathSeparator + outputDir.getPath());
+			JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, fileManager.getJavaFileObjects(sourceFile));
+			task.setProcessors(Arrays.asList(new SecurityProcessor()));
+			task.call();
+		}
+
+		return outputDir;
+	}
+
+	private static List<String> readLines(File file) throws IOException {
+		return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+	}
+
+	/** @return lines of given index, except fingerprint ones (which are checked separately). */
+	private static List<String> readIndexLines(File file) throws IOException {
+		List<String> lines = new ArrayList<>();
+
+		for (String line : readLines(file)) {
+			if (!line.startsWith("H "))
+				lines.add(line);
+		}
+
+		return lines;
+	}
+
+	private static SecurityIndex readIndex(File outputDir) throws IOException {
+		try (InputStream is = new FileInputStream(new File(outputDir, "META-INF/security.index"))) {
+			return SecurityIndex.read(is);
+		}
+	}
+
+	/** Weaves a class, returning the messages logged while weaving. */
+	private static String secure(Weaver weaver, String className) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Security.setLogger(new SecurityLogger.StreamLogger(new PrintStream(out, true, "UTF-8"), SecurityLogger.Level.WARN));
+
+		try {
+			weaver.secure(className);
+		} finally {
+			Security.setLogger(SecurityLogger.NOOP);
+		}
+
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private List<String> getErrors() {
+		List<String> errors = new ArrayList<>();
+
+		for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+			if (diagnostic.getKind() == Diagnostic.Kind.ERROR)
+				errors.add(diagnostic.getMessage(null));
+		}
+
+		return errors;
+	}
+
+	@Test
+	public void generatedFiles() throws Exception {
+		File outputDir = compile("sample.Foo", SECURED_SOURCE);
+		Assert.assertEquals(new ArrayList<String>(), getErrors());
+
+		Assert.assertEquals(Arrays.asList("sample.Foo", "sample.Foo$Inner"), readLines(new File(outputDir, "META-INF/security.info")));
+		Assert.assertEquals(
+			Arrays.asList(
+				"S sample.Foo A",
+				"M sample.Foo run(Ljava/lang/String;[I)Ljava/lang/String; B",
+				"M sample.Foo owned(J)V",
+				"K sample.Foo owned(J)V owner(id)",
+				"U sample.Foo open()V",
+				"C sample.Foo$Inner",
+				"M sample.Foo$Inner list(Ljava/util/Map;)Ljava/util/List;"
+			),
+			readIndexLines(new File(outputDir, "META-INF/security.index"))
+		);
+
+		int fingerprints = 0;
+
+		for (String line : readLines(new File(outputDir, "META-INF/security.index"))) {
+			if (line.matches("H sample\\.Foo(\\$Inner)? [0-9a-f]{40}"))
+				fingerprints++;
+		}
+
+		Assert.assertEquals(2, fingerprints);
+	}
+
+	@Test
+	public void partialCompilation() throws Exception {
+		File outputDir = compile("sample.Foo", SECURED_SOURCE);
+		compile(outputDir, "sample.Bar", "package sample;\npublic class Bar { @com.agapsys.security.Secured(\"C\") public void run() {} }\n");
+		Assert.assertEquals(new ArrayList<String>(), getErrors());
+
+		Assert.assertEquals(Arrays.asList("sample.Bar", "sample.Foo", "sample.Foo$Inner"), readLines(new File(outputDir, "META-INF/security.info"))); // <-- Classes which were not compiled again are kept
+		Assert.assertTrue(readLines(new File(outputDir, "META-INF/security.index")).contains("S sample.Foo A"));
+
+		compile(outputDir, "sample.Foo", "package sample;\npublic class Foo { @com.agapsys.security.Secured(\"D\") public void run() {} }\n");
+		Assert.assertEquals(Arrays.asList("sample.Bar", "sample.Foo"), readLines(new File(outputDir, "META-INF/security.info"))); // <-- Entries of compiled classes are replaced
+		Assert.assertEquals(
+			Arrays.asList(
+				"C sample.Bar",
+				"M sample.Bar run()V C",
+				"C sample.Foo",
+				"M sample.Foo run()V D"
+			),
+			readIndexLines(new File(outputDir, "META-INF/security.index"))
+		);
+	}
+
+	@Test
+	public void validationErrors() throws Exception {
+		File outputDir = compile("sample.Invalid", INVALID_SOURCE);
+		List<String> errors = getErrors();
+
+		Assert.assertTrue(errors.contains("Duplicate role definition (A) for sample.Invalid"));
+		Assert.assertTrue(errors.contains("Duplicate role definition (A) for sample.Invalid.merged()"));
+		Assert.assertTrue(errors.contains("Method 'sample.Invalid.both(java.lang.String)' has both 'com.agapsys.security.Secured' and 'com.agapsys.security.Unsecured' annotations"));
+		Assert.assertTrue(errors.contains("Invalid role expression 'B or': unexpected end of expression for sample.Invalid.expression()"));
+		Assert.assertTrue(errors.contains("Unknown parameter in condition 'owner(name)' for sample.Invalid.conditions(java.lang.String)"));
+		Assert.assertTrue(errors.contains("Invalid parameter position in condition 'owner($2)' for sample.Invalid.conditions(java.lang.String)"));
+		Assert.assertTrue(errors.contains("Invalid condition 'owner' for sample.Invalid.conditions(java.lang.String)"));
+		Assert.assertFalse(new File(outputDir, "META-INF/security.info").exists());
+	}
+
+	@Test
+	public void weaveWithIndex() throws Exception {
+		File outputDir = compile("sample.Foo", SECURED_SOURCE);
+		SecurityIndex index = readIndex(outputDir);
+
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+		MockedSecurity.init(securityManager, new String[0]);
+
+		ClassLoader classLoader = new URLClassLoader(new URL[] {outputDir.toURI().toURL()}, getClass().getClassLoader());
+		Assert.assertFalse(secure(new Weaver(classLoader, index), "sample.Foo").contains("stale")); // <-- Index entry matches class annotations
+
+		Class<?> fooClass = classLoader.loadClass("sample.Foo");
+		Object foo = fooClass.getConstructor().newInstance();
+		Method run = fooClass.getMethod("run", String.class, int[].class);
+
+		fooClass.getMethod("open").invoke(foo);
+
+		Throwable error = null;
+
+		try {
+			run.invoke(foo, "x", null);
+		} catch (InvocationTargetException ex) {
+			error = ex.getCause();
+		}
+
+		Assert.assertTrue(error instanceof NotAllowedException);
+		Assert.assertArrayEquals(new String[] {"A", "B"}, securityManager.getLastRequiredRoles());
+
+		securityManager.setAvailableRoles("A");
+		fooClass.getMethod("plain").invoke(foo);
+		Assert.assertArrayEquals(new String[] {"A"}, securityManager.getLastRequiredRoles());
+
+		securityManager.setAvailableRoles("A", "B");
+		Assert.assertEquals("x", run.invoke(foo, "x", null));
+	}
+
+	@Test
+	public void staleIndex() throws Exception {
+		SecurityIndex staleIndex = readIndex(compile("sample.Foo", SECURED_SOURCE));
+		File outputDir = compile("sample.Foo", "package sample;\npublic class Foo { @com.agapsys.security.Secured(\"D\") public String run(String s, int[] i) { return s; } }\n"); // <-- Class changed after index generation
+
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+		MockedSecurity.init(securityManager, new String[0]);
+
+		ClassLoader classLoader = new URLClassLoader(new URL[] {outputDir.toURI().toURL()}, getClass().getClassLoader());
+		Assert.assertTrue(secure(new Weaver(classLoader, staleIndex), "sample.Foo").contains("Security index is stale for sample.Foo"));
+
+		Class<?> fooClass = classLoader.loadClass("sample.Foo");
+		Method run = fooClass.getMethod("run", String.class, int[].class);
+
+		securityManager.setAvailableRoles("A", "B");
+		Throwable error = null;
+
+		try {
+			run.invoke(fooClass.getConstructor().newInstance(), "x", null);
+		} catch (InvocationTargetException ex) {
+			error = ex.getCause();
+		}
+
+		Assert.assertTrue(error instanceof NotAllowedException);
+		Assert.assertArrayEquals(new String[] {"D"}, securityManager.getLastRequiredRoles()); // <-- Annotations are read instead of stale entry
+
+		securityManager.setAvailableRoles("D");
+		Assert.assertEquals("x", run.invoke(fooClass.getConstructor().newInstance(), "x", null));
+	}
+
+	@Test
+	public void unverifiedIndex() throws Exception {
+		SecurityIndex staleIndex = readIndex(compile("sample.Foo", SECURED_SOURCE));
+		File outputDir = compile("sample.Foo", "package sample;\npublic class Foo { @com.agapsys.security.Secured(\"D\") public String run(String s, int[] i) { return s; } }\n");
+
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+		MockedSecurity.init(securityManager, new String[0]);
+
+		ClassLoader classLoader = new URLClassLoader(new URL[] {outputDir.toURI().toURL()}, getClass().getClassLoader());
+		boolean verification = Security.isIndexVerificationEnabled();
+		Security.enableIndexVerification(false);
+
+		try {
+			Assert.assertFalse(secure(new Weaver(classLoader, staleIndex), "sample.Foo").contains("stale")); // <-- Annotations are not read
+		} finally {
+			Security.enableIndexVerification(verification);
+		}
+
+		Class<?> fooClass = classLoader.loadClass("sample.Foo");
+		securityManager.setAvailableRoles("A", "B");
+		Assert.assertEquals("x", fooClass.getMethod("run", String.class, int[].class).invoke(fooClass.getConstructor().newInstance(), "x", null)); // <-- Index entry is trusted
+		Assert.assertArrayEquals(new String[] {"A", "B"}, securityManager.getLastRequiredRoles());
+	}
+
+	@Test
+	public void mergedIndexes() throws Exception {
+		File fooDir = compile("sample.Foo", SECURED_SOURCE);
+		File barDir = compile("sample.Bar", "package sample;\npublic class Bar { @com.agapsys.security.Secured(\"C\") public void run() {} }\n");
+
+		ClassLoader classLoader = new URLClassLoader(new URL[] {fooDir.toURI().toURL(), barDir.toURI().toURL()}, null);
+		SecurityIndex index = Security.readSecurityIndex(classLoader);
+
+		Assert.assertArrayEquals(new String[] {"A", "B"}, index.get("sample.Foo").getRequiredRoles("run(Ljava/lang/String;[I)Ljava/lang/String;"));
+		Assert.assertArrayEquals(new String[] {"C"}, index.get("sample.Bar").getRequiredRoles("run()V"));
+	}
+}
@@ -368,4 +368,65 @@ public class SecurityTest {
 		
 		Assert.assertNull(error);
 	}
+	
+	@Test
+	public void requiredRolesAreConstant() {
+		securityManager.setAvailableRoles("CLASS_ROLE", "ROLE");
+		SecuredClass securedObj = new SecuredClass();
+		
+		securedObj.secured();
+		String[] requiredRoles = securityManager.getLastRequiredRoles();
+		Assert.assertArrayEquals(new String[] {"CLASS_ROLE", "ROLE"}, requiredRoles);
+		
+		securedObj.secured();
+		Assert.assertSame(requiredRoles, securityManager.getLastRequiredRoles());
+	}
+	
+	@Test
+	public void requiredRoleMask() {
+		securityManager.setAvailableRoles("CLASS_ROLE", "ROLE");
+		SecuredClass securedObj = new SecuredClass();
+		
+		securedObj.secured();
+		long[] requiredRoleMask = securityManager.getLastRequiredRoleMask();
+		Assert.assertArrayEquals(RoleRegistry.getMask("CLASS_ROLE", "ROLE"), requiredRoleMask);
+		
+		securedObj.secured();
+		Assert.assertSame(requiredRoleMask, securityManager.getLastRequiredRoleMask());
+	}
+	
+	@Test
+	public void notAllowedDetails() {
+		NotAllowedException error = null;
+		securityManager.setAvailableRoles("CLASS_ROLE");
+		
+		try {
+			new SecuredClass().secured();
+		} catch (NotAllowedException ex) {
+			error = ex;
+		}
+		
+		Assert.assertNotNull(error);
+		Assert.assertEquals("com.agapsys.security.SecuredClass.secured()", error.getSecuredMethod());
+		Assert.assertArrayEquals(new String[] {"CLASS_ROLE", "ROLE"}, error.getRequiredRoles());
+	}
+	
+	@Test
+	public void methodMetadata() {
+		securityManager.setAvailableRoles("CLASS_ROLE", "ROLE");
+		
+		new SecuredClass().securedWithArgs("test");
+		SecuredMethod method = MethodRegistry.getMethod(securityManager.getLastMethodId());
+		
+		Assert.assertEquals("com.agapsys.security.SecuredClass", method.getClassName());
+		Assert.assertEquals("securedWithArgs", method.getMethodName());
+		Assert.assertEquals("(Ljava/lang/String;)V", method.getDescriptor());
+		Assert.assertEquals("com.agapsys.security.SecuredClass.securedWithArgs(java.lang.String)", method.getLongName());
+		Assert.assertArrayEquals(new String[] {"CLASS_ROLE", "ROLE"}, method.getRequiredRoles());
+		Assert.assertArrayEquals(RoleRegistry.getMask("CLASS_ROLE", "ROLE"), method.getRequiredRoleMask());
+		Assert.assertEquals(method.getId(), MethodRegistry.getId(method.getLongName()));
+		
+		new SecuredClass().secured();
+		Assert.assertFalse(method.getId() == securityManager.getLastMethodId());
+	}
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process stand-in for a policy decision point: principals are granted roles and each request takes a fixed latency.
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class StubPolicyServer implements PolicyTransport {
+	private final Map<Object, Set<String>> grants = new ConcurrentHashMap<>();
+	private final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+	private final AtomicInteger queryCount = new AtomicInteger();
+	private final long latencyMillis;
+	private volatile boolean available = true;
+
+	public StubPolicyServer(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	public void grant(Object principal, String... roles) {
+		grants.put(principal, new HashSet<>(Arrays.asList(roles)));
+	}
+
+	public void setAvailable(boolean available) {
+		this.available = available;
+	}
+
+	public int getRequestCount() {
+		return batchSizes.size();
+	}
+
+	public int getQueryCount() {
+		return queryCount.get();
+	}
+
+	public List<Integer> getBatchSizes() {
+		return batchSizes;
+	}
+
+	@Override
+	public boolean[] decide(List<PolicyQuery> queries) throws IOException {
+		batchSizes.add(queries.size());
+		queryCount.addAndGet(queries.size());
+
+		try {
+			Thread.sleep(latencyMillis);
+		} catch (InterruptedException ex) {
+			throw new IOException(ex);
+		}
+
+		if (!available)
+			throw new IOException("Policy server unavailable");
+
+		boolean[] decisions = new boolean[queries.size()];
+
+		for (int i = 0; i < decisions.length; i++) {
+			PolicyQuery query = queries.get(i);
+			Set<String> granted = query.getPrincipal() != null ? grants.get(query.getPrincipal()) : null;
+			decisions[i] = (granted != null ? granted : Collections.<String>emptySet()).containsAll(Arrays.asList(query.getRequiredRoles()));
+		}
+
+		return decisions;
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Agapsys Tecnologia Ltda-ME.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.agapsys.security;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author Leandro Oliveira (leandro@agapsys.com)
+ */
+public class WeaverTest {
+	private static final String PREWOVEN_CLASS = "com.agapsys.security.PrewovenClass";
+
+	@Test
+	public void prewovenClass() throws Exception {
+		ClassPool cp = new ClassPool(true);
+		cp.appendClassPath(new LoaderClassPath(getClass().getClassLoader()));
+		CtClass cc = cp.get(PREWOVEN_CLASS);
+
+		Assert.assertFalse(Weaver.isWoven(cc));
+		Assert.assertTrue(Weaver.weave(cc));
+		Assert.assertTrue(Weaver.isWoven(cc));
+		Assert.assertFalse(Weaver.weave(cc));
+
+		ClassLoader classLoader = new BytecodeClassLoader(getClass().getClassLoader(), PREWOVEN_CLASS, cc.toBytecode());
+		MockedSecurityManager securityManager = new MockedSecurityManager();
+		MockedSecurity.init(classLoader, securityManager, PREWOVEN_CLASS); // <-- Class is not woven again
+
+		Class<?> prewovenClass = classLoader.loadClass(PREWOVEN_CLASS);
+		Object obj = prewovenClass.getConstructor().newInstance();
+		Method secured = prewovenClass.getMethod("secured");
+		prewovenClass.getMethod("unsecured").invoke(obj);
+
+		Throwable error = null;
+
+		try {
+			secured.invoke(obj);
+		} catch (InvocationTargetException ex) {
+			error = ex.getCause();
+		}
+
+		Assert.assertTrue(error instanceof NotAllowedException);
+
+		securityManager.setAvailableRoles("ROLE");
+		secured.invoke(obj);
+	}
+}